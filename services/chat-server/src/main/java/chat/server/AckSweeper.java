@@ -0,0 +1,170 @@
+package chat.server;
+
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.WriteModel;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.mongodb.client.model.Filters.*;
+import static com.mongodb.client.model.Updates.combine;
+import static com.mongodb.client.model.Updates.inc;
+import static com.mongodb.client.model.Updates.max;
+
+/**
+ * Removes messages confirmed by their recipients in the background. Confirmations are recorded as the highest
+ * confirmed sequence number per user and periodically written to the sequence collection ("acked" field) before the
+ * confirmed messages of many users are deleted at once. Until then {@link #acknowledged(String)} tells readers which
+ * messages have to be hidden.
+ * <p>
+ * Clients confirm the same sequence number on every poll until a new message arrived. The sweeper remembers the
+ * confirmations it wrote, so only confirmations that advance are written again.
+ */
+public class AckSweeper {
+
+    private final MongoCollection<Document> messages;
+    private final MongoCollection<Document> sequences;
+    private final int batchSize;
+    private final int maxUsers;
+    private final ConcurrentHashMap<String, Integer> pending = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Integer> written = new ConcurrentHashMap<>();
+    private ScheduledExecutorService executor;
+
+    /**
+     * Creates a new sweeper. Confirmations are only written after {@link #start(long)} was called.
+     *
+     * @param messages  The message collection.
+     * @param sequences The sequence collection.
+     * @param batchSize The maximum number of users whose messages are deleted with one request.
+     * @param maxUsers  The maximum number of users whose written confirmation is remembered.
+     */
+    public AckSweeper(MongoCollection<Document> messages, MongoCollection<Document> sequences, int batchSize,
+                      int maxUsers) {
+        this.messages = messages;
+        this.sequences = sequences;
+        this.batchSize = Math.max(1, batchSize);
+        this.maxUsers = maxUsers;
+    }
+
+    /**
+     * Starts writing confirmations periodically.
+     *
+     * @param intervalMillis The time between two sweeps in milliseconds.
+     */
+    public synchronized void start(long intervalMillis) {
+        if (executor != null) return;
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ack-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::sweep, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Records that the user received all messages up to the sequence number. The caller has to make sure the number
+     * was handed out to a message, otherwise messages stored later would be confirmed too.
+     *
+     * @param user           The user's name.
+     * @param sequenceNumber The highest sequence number the user confirmed.
+     * @return Returns false if the user already confirmed the sequence number, so there is nothing to remove.
+     */
+    public boolean acknowledge(String user, int sequenceNumber) {
+        if (sequenceNumber <= acknowledged(user)) {
+            return false;
+        }
+
+        pending.merge(user, sequenceNumber, Math::max);
+        return true;
+    }
+
+    /**
+     * @param user The user's name.
+     * @return Returns the highest sequence number the user is known to have confirmed or 0.
+     */
+    public int acknowledged(String user) {
+        return Math.max(pending.getOrDefault(user, 0), written.getOrDefault(user, 0));
+    }
+
+    /**
+     * Records a confirmation read from the user's sequence document.
+     *
+     * @param user  The user's name.
+     * @param acked The document's confirmed sequence number.
+     */
+    public void written(String user, int acked) {
+        if (acked <= 0) {
+            return;
+        }
+
+        if (written.size() >= maxUsers && !written.containsKey(user)) {
+            // Rare enough that forgetting everything is cheaper than tracking usage.
+            written.clear();
+        }
+
+        written.merge(user, acked, Math::max);
+    }
+
+    /**
+     * Writes all recorded confirmations and deletes the confirmed messages.
+     */
+    public void sweep() {
+        Map<String, Integer> batch = new HashMap<>();
+        for (Map.Entry<String, Integer> ack : pending.entrySet()) {
+            batch.put(ack.getKey(), ack.getValue());
+            if (batch.size() == batchSize) {
+                flush(batch);
+                batch = new HashMap<>();
+            }
+        }
+
+        if (!batch.isEmpty()) {
+            flush(batch);
+        }
+    }
+
+    /**
+     * Drops all recorded confirmations.
+     */
+    public void clear() {
+        pending.clear();
+        written.clear();
+    }
+
+    private void flush(Map<String, Integer> batch) {
+        List<WriteModel<Document>> updates = new ArrayList<>(batch.size());
+        List<Bson> confirmed = new ArrayList<>(batch.size());
+        for (Map.Entry<String, Integer> ack : batch.entrySet()) {
+            updates.add(new UpdateOneModel<>(eq("user", ack.getKey()),
+                    combine(max("acked", ack.getValue()), inc("writes", 1))));
+            confirmed.add(and(eq("to", ack.getKey()), lte("sequence", ack.getValue())));
+        }
+
+        try {
+            // Persist the confirmations first so other chat servers hide the messages until they are deleted. The write
+            // counter makes them reload cached inboxes.
+            sequences.bulkWrite(updates, new BulkWriteOptions().ordered(false));
+            messages.deleteMany(or(confirmed));
+        } catch (MongoException e) {
+            System.out.printf("Failed to remove confirmed messages of %d users: %s%n", batch.size(), e.getMessage());
+            return;
+        }
+
+        // Only forget confirmations which didn't advance in the meantime.
+        for (Map.Entry<String, Integer> ack : batch.entrySet()) {
+            written(ack.getKey(), ack.getValue());
+            pending.remove(ack.getKey(), ack.getValue());
+        }
+    }
+}
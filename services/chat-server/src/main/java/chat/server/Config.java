@@ -10,12 +10,82 @@ import java.util.Map;
 public enum Config {
     baseURI("http://0.0.0.0:5000/"),
     mongoURI("mongodb://mongo:27017"),
+    mongoMaxConnections("100"),
+    mongoMaxWaitQueue("500"),
+    mongoMaxWaitMillis("2000"),
+    mongoConnectTimeoutMillis("5000"),
+    mongoSocketTimeoutMillis("10000"),
+    storageBusyRetryAfter("1"),
+    storageThreads("32"),
+    storageQueueLimit("1000"),
     dbName("benutzer"),
     dbChatCollection("chats"),
     dbSequenceCollection("sequence"),
+    dbPayloadCollection("payloads"),
     loginURI("http://login-server:5001"),
     corsAllowOrigin("*"),
-    useAuthCache("true");
+    authMaxConnections("20"),
+    authConnectTimeoutMillis("1000"),
+    authReadTimeoutMillis("2000"),
+    authMaxBatch("50"),
+    useAuthCache("true"),
+    authCacheMaxSeconds("300"),
+    authCacheRejectedSeconds("5"),
+    authCacheMaxEntries("100000"),
+    tokenSigningKeys(""),
+    tokenRevoked(""),
+    longPollMaxWait("30"),
+    longPollMaxParked("10000"),
+    longPollThreads("2"),
+    streamMaxOpen("10000"),
+    streamMaxDuration("300"),
+    streamHeartbeat("15"),
+    maxBatchSize("100"),
+    sequenceBlockSize("1"),
+    groupCommitMaxBatch("100"),
+    groupCommitWindowMicros("0"),
+    sequenceLeaseMillis("2000"),
+    ackPurgeInterval("1000"),
+    ackPurgeBatchSize("500"),
+    inboxCacheMaxBytes(Long.toString(64L * 1024 * 1024)),
+    inboxCacheMaxInboxBytes(Long.toString(1024 * 1024)),
+    inboxCacheIdleSeconds("300"),
+    highWaterMarkRefreshMillis("1000"),
+    highWaterMarkMaxUsers("100000"),
+    storage("mongodb"),
+    storageDirectory("data"),
+    logSegmentBytes(Integer.toString(64 * 1024 * 1024)),
+    logCompactionRatio("0.5"),
+    logCompactionInterval("10000"),
+    maxGroupSize("100"),
+    payloadSweepInterval("60000"),
+    textCompression("none"),
+    textCompressionThreshold("1024"),
+    textCompressionLevel("1"),
+    messageMaxFieldLength("1024"),
+    messageMaxTextLength("1048576"),
+    statsSecret(""),
+    messageTtlSeconds("0"),
+    messageExpiryInterval("60000"),
+    messageExpiryBatchSize("500"),
+    inboxMaxMessages("10000"),
+    inboxMaxBytes(Long.toString(16L * 1024 * 1024)),
+    inboxQuotaRetryAfter("30"),
+    inboxUsageRefreshMillis("10000"),
+    sendRateLimit("20"),
+    sendRateBurst("40"),
+    messagesRateLimit("10"),
+    messagesRateBurst("30"),
+    clientRateLimit("50"),
+    clientRateBurst("100"),
+    rateLimitMaxUsers("100000"),
+    serverExecution("elastic"),
+    serverWorkerThreads("16"),
+    serverMaxWorkerThreads("256"),
+    serverSelectorThreads(Integer.toString(Runtime.getRuntime().availableProcessors())),
+    serverKeepAliveSeconds("30"),
+    serverMaxKeepAliveRequests("256"),
+    serverRequestQueueLimit("1000");
 
     private static Map<String, List<String>> settings = new HashMap<>();
 
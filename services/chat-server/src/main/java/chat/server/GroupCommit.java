@@ -0,0 +1,228 @@
+package chat.server;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoInterruptedException;
+import com.mongodb.MongoTimeoutException;
+import com.mongodb.bulk.BulkWriteError;
+import org.bson.Document;
+import org.json.JSONObject;
+import services.common.Histogram;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+
+/**
+ * Coalesces the message inserts of concurrent requests (group commit). Waiting inserts are written by a background
+ * thread with one insertMany: it takes everything queued, waits up to the window for more and releases the waiting
+ * requests once the batch is acknowledged. While a batch is written the next one queues up, so batches grow with the
+ * load even without a window.
+ * <p>
+ * Inserts still queued after the given timeout, e.g. because MongoDB is slow or unreachable, fail and are dropped, so
+ * a client retrying after the failure doesn't store its message twice. An insert whose batch is being written already
+ * waits for the batch's result instead, as its document may be stored.
+ */
+public class GroupCommit {
+
+    private final Consumer<List<Document>> insertMany;
+    private final int maxBatch;
+    private final long windowNanos;
+    private final long timeoutMillis;
+    private final LinkedBlockingQueue<Insert> queue = new LinkedBlockingQueue<>();
+    private final Histogram batchSizes = new Histogram();
+    private final Histogram flushMicros = new Histogram();
+    private Thread flusher;
+
+    /**
+     * Creates a new group commit. Inserts are only written after {@link #start()} was called.
+     *
+     * @param insertMany    Writes a batch. Documents reported by a {@link MongoBulkWriteException} fail, all others
+     *                      succeed.
+     * @param maxBatch      The maximum number of documents written at once.
+     * @param windowMicros  The time in microseconds to wait for more documents before a batch is written.
+     * @param timeoutMillis The time after which a queued insert fails with a {@link MongoTimeoutException}.
+     */
+    public GroupCommit(Consumer<List<Document>> insertMany, int maxBatch, long windowMicros, long timeoutMillis) {
+        this.insertMany = insertMany;
+        this.maxBatch = Math.max(1, maxBatch);
+        this.windowNanos = TimeUnit.MICROSECONDS.toNanos(windowMicros);
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Starts writing queued inserts.
+     */
+    public synchronized void start() {
+        if (flusher != null) return;
+        flusher = new Thread(this::run, "group-commit");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Inserts a document and waits until its batch is written.
+     *
+     * @param doc The document.
+     * @throws RuntimeException The exception the batch or the document failed with, a {@link MongoTimeoutException}
+     *                          if the document was still queued after the timeout and never written.
+     */
+    public void insert(Document doc) {
+        Insert insert = new Insert(doc);
+        queue.add(insert);
+        try {
+            try {
+                insert.done.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                if (queue.remove(insert)) {
+                    throw timeout();
+                }
+
+                // The flusher took the document, only the batch's result tells whether it was stored.
+                insert.done.get();
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+
+            throw new CompletionException(e.getCause());
+        } catch (InterruptedException e) {
+            queue.remove(insert);
+            Thread.currentThread().interrupt();
+            throw new MongoInterruptedException("Interrupted while waiting for the group commit", e);
+        }
+    }
+
+    /**
+     * Queues a document without waiting for its batch.
+     *
+     * @param doc The document.
+     * @return Returns a future completed once the batch is written or with the exception the batch or the document
+     * failed with. The document is dropped with a {@link MongoTimeoutException} if it is still queued after the
+     * timeout.
+     */
+    public CompletableFuture<Void> submit(Document doc) {
+        Insert insert = new Insert(doc);
+        queue.add(insert);
+        return insert.done;
+    }
+
+    /**
+     * @return Returns the histograms of the batch sizes and of the time in microseconds it took to write them as a
+     * JSON object.
+     */
+    public JSONObject toJson() {
+        return new JSONObject()
+                .put("batchSize", batchSizes.toJson())
+                .put("flushMicros", flushMicros.toJson());
+    }
+
+    private void run() {
+        List<Insert> batch = new ArrayList<>(maxBatch);
+        while (true) {
+            try {
+                batch.add(queue.take());
+                long deadline = System.nanoTime() + windowNanos;
+                queue.drainTo(batch, maxBatch - batch.size());
+                while (batch.size() < maxBatch) {
+                    Insert next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (next == null) break;
+                    batch.add(next);
+                    queue.drainTo(batch, maxBatch - batch.size());
+                }
+
+                dropExpired(batch);
+                if (!batch.isEmpty()) {
+                    flush(batch);
+                }
+            } catch (InterruptedException e) {
+                fail(batch, new IllegalStateException("Group commit was stopped"));
+                return;
+            } catch (Throwable e) {
+                // The flusher must keep running, otherwise every later insert waits for its timeout.
+                System.out.printf("Group commit failed: %s%n", e);
+                fail(batch, e);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Removes the inserts that waited longer than the timeout from the batch and fails them.
+     */
+    private void dropExpired(List<Insert> batch) {
+        long expired = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        Iterator<Insert> inserts = batch.iterator();
+        while (inserts.hasNext()) {
+            Insert insert = inserts.next();
+            if (insert.queued - expired < 0 || insert.done.isDone()) {
+                inserts.remove();
+                insert.done.completeExceptionally(timeout());
+            }
+        }
+    }
+
+    private static void fail(List<Insert> batch, Throwable e) {
+        for (Insert insert : batch) {
+            insert.done.completeExceptionally(e);
+        }
+    }
+
+    private MongoTimeoutException timeout() {
+        return new MongoTimeoutException("Message was not written within " + timeoutMillis + " ms");
+    }
+
+    private void flush(List<Insert> batch) {
+        List<Document> docs = new ArrayList<>(batch.size());
+        for (Insert insert : batch) {
+            docs.add(insert.doc);
+        }
+
+        long start = System.nanoTime();
+        try {
+            insertMany.accept(docs);
+            for (Insert insert : batch) {
+                insert.done.complete(null);
+            }
+        } catch (MongoBulkWriteException e) {
+            Set<Integer> failed = new HashSet<>();
+            for (BulkWriteError error : e.getWriteErrors()) {
+                failed.add(error.getIndex());
+            }
+
+            for (int i = 0; i < batch.size(); i++) {
+                if (failed.contains(i)) {
+                    batch.get(i).done.completeExceptionally(e);
+                } else {
+                    batch.get(i).done.complete(null);
+                }
+            }
+        } catch (RuntimeException e) {
+            System.out.printf("Failed to insert %d messages: %s%n", batch.size(), e.getMessage());
+            fail(batch, e);
+        }
+
+        flushMicros.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+        batchSizes.record(batch.size());
+    }
+
+    private static class Insert {
+        private final Document doc;
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+        private final long queued = System.nanoTime();
+
+        private Insert(Document doc) {
+            this.doc = doc;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package chat.server;
+
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Indexes;
+import org.bson.Document;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.mongodb.client.model.Filters.gte;
+import static com.mongodb.client.model.Projections.include;
+
+/**
+ * Remembers the value of every recipient's sequence document. No message has a higher sequence number than this
+ * value, so a client that already received a message with this sequence number has an empty inbox and storage doesn't
+ * have to be queried.
+ * <p>
+ * Values are learned from reads and from messages stored by this instance. Sequence documents changed by other chat
+ * server instances are found by periodically querying the documents' modification time.
+ */
+public class HighWaterMarks {
+
+    private final MongoCollection<Document> sequences;
+    private final int maxUsers;
+    private final ConcurrentHashMap<String, Integer> marks = new ConcurrentHashMap<>();
+    private ScheduledExecutorService executor;
+    private long lastRefresh = System.currentTimeMillis();
+
+    /**
+     * Creates a new map of high-water marks.
+     *
+     * @param sequences The sequence collection.
+     * @param maxUsers  The maximum number of users to remember.
+     */
+    public HighWaterMarks(MongoCollection<Document> sequences, int maxUsers) {
+        this.sequences = sequences;
+        this.maxUsers = maxUsers;
+        try {
+            sequences.createIndex(Indexes.ascending("modified"));
+        } catch (MongoException e) {
+            System.out.printf("Could not create sequence modification index: %s%n", e.getMessage());
+        }
+    }
+
+    /**
+     * Starts looking for sequence documents changed by other instances.
+     *
+     * @param intervalMillis The time between two refreshes in milliseconds.
+     */
+    public synchronized void start(long intervalMillis) {
+        if (executor != null) return;
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "high-water-marks");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(() -> refresh(intervalMillis), intervalMillis, intervalMillis,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param user           The recipient's name.
+     * @param sequenceNumber The last sequence number received by the client.
+     * @return Returns true if there is certainly no message with a higher sequence number.
+     */
+    public boolean isEmpty(String user, int sequenceNumber) {
+        Integer mark = marks.get(user);
+        return mark != null && sequenceNumber > 0 && mark == sequenceNumber;
+    }
+
+    /**
+     * Records a value of the recipient's sequence document.
+     *
+     * @param user       The recipient's name.
+     * @param storedHigh The value of the recipient's sequence document.
+     */
+    public void update(String user, int storedHigh) {
+        if (marks.size() >= maxUsers && !marks.containsKey(user)) {
+            // Rare enough that forgetting everything is cheaper than tracking usage.
+            marks.clear();
+        }
+
+        marks.merge(user, storedHigh, Math::max);
+    }
+
+    /**
+     * Forgets all values.
+     */
+    public void clear() {
+        marks.clear();
+    }
+
+    private void refresh(long intervalMillis) {
+        long start = System.currentTimeMillis();
+        try {
+            // Overlap with the previous refresh to tolerate clock differences and slow writes.
+            for (Document sequence : sequences.find(gte("modified", lastRefresh - 2 * intervalMillis))
+                    .projection(include("user", "sequence"))) {
+                marks.computeIfPresent(sequence.getString("user"),
+                        (user, mark) -> Math.max(mark, sequence.getInteger("sequence")));
+            }
+
+            lastRefresh = start;
+        } catch (MongoException e) {
+            // Remembered values may be outdated, don't use them until the next successful refresh.
+            marks.clear();
+            System.out.printf("Failed to refresh sequence high-water marks: %s%n", e.getMessage());
+        }
+    }
+}
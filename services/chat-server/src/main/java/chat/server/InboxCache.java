@@ -0,0 +1,283 @@
+package chat.server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Write-through cache of complete inboxes.
+ * <p>
+ * An inbox is only cached after all of its messages were read from storage, afterwards new messages stored by this
+ * instance are appended. Every entry remembers the write counter of the recipient's sequence document it is complete
+ * for. Every instance increments the counter when it stores, confirms or expires messages of the recipient, so a read
+ * comparing it with the sequence document never misses the changes of other chat server instances, the entry is
+ * simply reloaded. Messages stored from a leased block of sequence numbers don't touch the sequence document, so the
+ * cache can't be used together with sequence blocks. Entries are evicted least recently used first when the cache
+ * grows beyond its size limit and when they were not used for a while.
+ */
+public class InboxCache {
+
+    private static final int STRIPES = 1024;
+    private static final long MESSAGE_OVERHEAD = 96;
+
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    private final long idleMillis;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    /**
+     * Incremented whenever a message was stored for a recipient of the stripe. A load is only cached if no message
+     * was stored while it ran, otherwise it may lack the new message.
+     */
+    private final AtomicLongArray generations = new AtomicLongArray(STRIPES);
+    private long bytes = 0;
+
+    /**
+     * Creates a new cache.
+     *
+     * @param maxBytes      The estimated maximum memory used by all cached messages.
+     * @param maxEntryBytes The estimated maximum memory used by a single inbox. Larger inboxes are not cached.
+     * @param idleMillis    The time after which unused inboxes are evicted.
+     */
+    public InboxCache(long maxBytes, long maxEntryBytes, long idleMillis) {
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = Math.min(maxBytes, maxEntryBytes);
+        this.idleMillis = idleMillis;
+    }
+
+    /**
+     * Reads messages from a cached inbox.
+     *
+     * @param user          The recipient's name.
+     * @param writes        The current write counter of the recipient's sequence document.
+     * @param sequenceBegin Only messages with a higher sequence number are returned.
+     * @param limit         The maximum number of returned messages or 0 for all messages.
+     * @return Returns the messages or null if the inbox is not completely cached.
+     */
+    public synchronized MessagePage get(String user, int writes, int sequenceBegin, int limit) {
+        Entry entry = entries.get(user);
+        if (entry == null || entry.writes != writes || sequenceBegin < entry.base) {
+            return null;
+        }
+
+        entry.lastAccess = System.currentTimeMillis();
+        int from = firstAfter(entry.messages, sequenceBegin);
+        int to = limit > 0 ? Math.min(entry.messages.size(), from + limit) : entry.messages.size();
+        List<Message> page = new ArrayList<>(entry.messages.subList(from, to));
+        int continuation = to < entry.messages.size() ? page.get(page.size() - 1).sequence : 0;
+        return new MessagePage(page.iterator(), () -> {
+        }, continuation);
+    }
+
+    /**
+     * @param user The recipient's name.
+     * @return Returns the value to pass to {@link #loading(String, long, int, int, Iterator)}.
+     */
+    public long generation(String user) {
+        return generations.get(stripe(user));
+    }
+
+    /**
+     * Caches an inbox while it is read from storage. The inbox is cached once the returned iterator is exhausted.
+     *
+     * @param user          The recipient's name.
+     * @param generation    The value {@link #generation(String)} returned before the storage was queried.
+     * @param writes        The write counter of the recipient's sequence document the storage query is based on.
+     * @param sequenceBegin The storage query returns all messages with a higher sequence number.
+     * @param source        The messages in ascending sequence order.
+     * @return Returns an iterator over the same messages.
+     */
+    public Iterator<Message> loading(String user, long generation, int writes, int sequenceBegin,
+                                     Iterator<Message> source) {
+        return new Iterator<Message>() {
+            private List<Message> loaded = new ArrayList<>();
+            private long loadedBytes = 0;
+
+            @Override
+            public boolean hasNext() {
+                boolean hasNext = source.hasNext();
+                if (!hasNext && loaded != null) {
+                    install(user, generation, new Entry(writes, sequenceBegin, loaded, loadedBytes));
+                    loaded = null;
+                }
+
+                return hasNext;
+            }
+
+            @Override
+            public Message next() {
+                Message msg = source.next();
+                if (loaded != null) {
+                    loaded.add(msg);
+                    loadedBytes += estimateSize(msg);
+                    if (loadedBytes > maxEntryBytes) {
+                        loaded = null;
+                    }
+                }
+
+                return msg;
+            }
+        };
+    }
+
+    /**
+     * Appends stored messages to a cached inbox.
+     *
+     * @param user     The recipient's name.
+     * @param msgs     The stored messages.
+     * @param writes   The write counter of the sequence document after the messages' sequence numbers were reserved.
+     */
+    public void added(String user, List<Message> msgs, int writes) {
+        generations.incrementAndGet(stripe(user));
+        synchronized (this) {
+            Entry entry = entries.get(user);
+            if (entry == null) {
+                return;
+            }
+
+            // Someone else changed the inbox since the entry was loaded, it may miss messages.
+            if (entry.writes != writes - 1) {
+                remove(user);
+                return;
+            }
+
+            for (Message msg : msgs) {
+                int index = firstAfter(entry.messages, msg.sequence);
+                entry.messages.add(index, msg);
+                long size = estimateSize(msg);
+                entry.bytes += size;
+                bytes += size;
+            }
+
+            entry.writes = writes;
+            if (entry.bytes > maxEntryBytes) {
+                remove(user);
+            }
+
+            evict();
+        }
+    }
+
+    /**
+     * Drops confirmed messages from a cached inbox.
+     *
+     * @param user           The recipient's name.
+     * @param sequenceNumber The highest sequence number the recipient confirmed.
+     */
+    public synchronized void acknowledged(String user, int sequenceNumber) {
+        Entry entry = entries.get(user);
+        if (entry == null || sequenceNumber < entry.base) {
+            return;
+        }
+
+        List<Message> confirmed = entry.messages.subList(0, firstAfter(entry.messages, sequenceNumber));
+        for (Message msg : confirmed) {
+            long size = estimateSize(msg);
+            entry.bytes -= size;
+            bytes -= size;
+        }
+
+        confirmed.clear();
+        entry.base = sequenceNumber;
+    }
+
+    /**
+     * Removes the cached inboxes of recipients whose messages expired.
+     *
+     * @param users The recipients' names.
+     */
+    public synchronized void expired(Collection<String> users) {
+        for (String user : users) {
+            remove(user);
+        }
+    }
+
+    /**
+     * Removes all entries.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    private synchronized void install(String user, long generation, Entry entry) {
+        if (generations.get(stripe(user)) != generation) {
+            return;
+        }
+
+        remove(user);
+        entries.put(user, entry);
+        bytes += entry.bytes;
+        evict();
+    }
+
+    private void remove(String user) {
+        Entry entry = entries.remove(user);
+        if (entry != null) {
+            bytes -= entry.bytes;
+        }
+    }
+
+    /**
+     * Evicts the least recently used entries while the cache is too large or they are idle.
+     */
+    private void evict() {
+        long idleSince = System.currentTimeMillis() - idleMillis;
+        Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+        while (eldest.hasNext()) {
+            Entry entry = eldest.next().getValue();
+            if (bytes <= maxBytes && entry.lastAccess >= idleSince) {
+                break;
+            }
+
+            bytes -= entry.bytes;
+            eldest.remove();
+        }
+    }
+
+    /**
+     * @return Returns the index of the first message with a sequence number higher than the given one.
+     */
+    private static int firstAfter(List<Message> messages, int sequence) {
+        int low = 0, high = messages.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (messages.get(mid).sequence <= sequence) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        return low;
+    }
+
+    private static long estimateSize(Message msg) {
+        long chars = (msg.text == null ? 0 : msg.text.length())
+                + (msg.from == null ? 0 : msg.from.length())
+                + (msg.to == null ? 0 : msg.to.length());
+        return MESSAGE_OVERHEAD + 2 * chars;
+    }
+
+    private static int stripe(String user) {
+        return (user.hashCode() & 0x7fffffff) % STRIPES;
+    }
+
+    private static class Entry {
+        private int writes;
+        private int base;
+        private final List<Message> messages;
+        private long bytes;
+        private long lastAccess = System.currentTimeMillis();
+
+        private Entry(int writes, int base, List<Message> messages, long bytes) {
+            this.writes = writes;
+            this.base = base;
+            this.messages = messages;
+            this.bytes = bytes;
+        }
+    }
+}
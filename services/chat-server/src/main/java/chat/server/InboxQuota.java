@@ -0,0 +1,103 @@
+package chat.server;
+
+import org.json.JSONObject;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the number and size of a recipient's unconfirmed messages so a single sender can't flood an inbox. Messages
+ * for a full inbox are rejected until the recipient confirms some, the rejections are counted.
+ * <p>
+ * The limits are checked against the usage the storage tracks while messages are stored, concurrent sends may exceed
+ * them slightly.
+ */
+public class InboxQuota {
+
+    private final long maxMessages;
+    private final long maxBytes;
+    private final int retryAfterSeconds;
+    private final AtomicLong throttled = new AtomicLong();
+
+    /**
+     * Creates a new quota.
+     *
+     * @param maxMessages       The maximum number of unconfirmed messages per recipient or 0 for no limit.
+     * @param maxBytes          The maximum estimated size of a recipient's unconfirmed messages or 0 for no limit.
+     * @param retryAfterSeconds The time after which a rejected sender should try again.
+     */
+    public InboxQuota(long maxMessages, long maxBytes, int retryAfterSeconds) {
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    /**
+     * Creates the quota configured by {@link Config#inboxMaxMessages} and {@link Config#inboxMaxBytes}.
+     */
+    public static InboxQuota fromConfig() {
+        return new InboxQuota(
+                Long.parseLong(Config.inboxMaxMessages.value()),
+                Long.parseLong(Config.inboxMaxBytes.value()),
+                Integer.parseInt(Config.inboxQuotaRetryAfter.value()));
+    }
+
+    /**
+     * Checks if messages fit into the recipient's inbox. Rejections are counted.
+     *
+     * @param provider  The storage holding the inbox.
+     * @param recipient The recipient's name.
+     * @param messages  The number of messages to store.
+     * @param bytes     The estimated size of the messages, see {@link #size(Message)}.
+     * @return Returns true if the messages may be stored.
+     */
+    public boolean admits(StorageProvider provider, String recipient, int messages, long bytes) {
+        if (maxMessages <= 0 && maxBytes <= 0) {
+            return true;
+        }
+
+        InboxUsage usage = provider.usage(recipient);
+        // Messages larger than the whole quota are still delivered to an empty inbox.
+        if (usage.messages == 0
+                || (maxMessages <= 0 || usage.messages + messages <= maxMessages)
+                && (maxBytes <= 0 || usage.bytes + bytes <= maxBytes)) {
+            return true;
+        }
+
+        throttled.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * @return Returns the time in seconds after which a rejected sender should try again.
+     */
+    public int getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+
+    /**
+     * @return Returns the number of rejected requests.
+     */
+    public long getThrottled() {
+        return throttled.get();
+    }
+
+    /**
+     * @return Returns the counters as a JSON object.
+     */
+    public JSONObject toJson() {
+        return new JSONObject()
+                .put("maxMessages", maxMessages)
+                .put("maxBytes", maxBytes)
+                .put("throttledRequests", throttled.get());
+    }
+
+    /**
+     * @return Returns the estimated size of a stored message in bytes.
+     */
+    public static long size(Message msg) {
+        long chars = (msg.text == null ? 0 : msg.text.length())
+                + (msg.from == null ? 0 : msg.from.length())
+                + (msg.to == null ? 0 : msg.to.length());
+        return 2 * chars;
+    }
+}
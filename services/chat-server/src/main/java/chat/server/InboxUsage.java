@@ -0,0 +1,27 @@
+package chat.server;
+
+/**
+ * The number and estimated size of a recipient's unconfirmed messages.
+ */
+public class InboxUsage {
+
+    /**
+     * An inbox without messages.
+     */
+    public static final InboxUsage EMPTY = new InboxUsage(0, 0);
+
+    /**
+     * The number of messages.
+     */
+    public final long messages;
+
+    /**
+     * The estimated size of the messages in bytes.
+     */
+    public final long bytes;
+
+    public InboxUsage(long messages, long bytes) {
+        this.messages = messages;
+        this.bytes = bytes;
+    }
+}
@@ -0,0 +1,115 @@
+package chat.server;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Accumulators;
+import com.mongodb.client.model.Aggregates;
+import org.bson.Document;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntSupplier;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.gt;
+
+/**
+ * Tracks the usage of recipients' inboxes stored in MongoDB. A recipient's usage is counted once from the message
+ * documents' "size" field and then updated while this instance stores messages. Confirmations discard the usage so it
+ * is counted again, and usage older than the refresh interval is counted again to include messages stored by other
+ * instances. Messages stored while a recipient's usage is counted may be missing until it is counted again.
+ */
+public class InboxUsageCache {
+
+    private final MongoCollection<Document> messages;
+    private final long refreshMillis;
+    private final int maxUsers;
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a new cache.
+     *
+     * @param messages      The message collection.
+     * @param refreshMillis The time after which a recipient's usage is counted again.
+     * @param maxUsers      The maximum number of recipients to remember.
+     */
+    public InboxUsageCache(MongoCollection<Document> messages, long refreshMillis, int maxUsers) {
+        this.messages = messages;
+        this.refreshMillis = refreshMillis;
+        this.maxUsers = maxUsers;
+    }
+
+    /**
+     * @param user  The recipient's name.
+     * @param acked Supplies the highest sequence number the recipient confirmed if the usage has to be counted.
+     * @return Returns the recipient's usage.
+     */
+    public InboxUsage get(String user, IntSupplier acked) {
+        long now = System.currentTimeMillis();
+        Entry entry = entries.get(user);
+        if (entry != null && entry.countedAt + refreshMillis > now) {
+            synchronized (entry) {
+                return new InboxUsage(entry.messages, entry.bytes);
+            }
+        }
+
+        Document counted = messages.aggregate(Arrays.asList(
+                Aggregates.match(and(eq("to", user), gt("sequence", acked.getAsInt()))),
+                Aggregates.group(null, Accumulators.sum("messages", 1), Accumulators.sum("bytes", "$size"))))
+                .first();
+        entry = counted == null
+                ? new Entry(0, 0, now)
+                : new Entry(counted.getInteger("messages"), ((Number) counted.get("bytes")).longValue(), now);
+        if (entries.size() >= maxUsers) {
+            entries.clear();
+        }
+
+        entries.put(user, entry);
+        return new InboxUsage(entry.messages, entry.bytes);
+    }
+
+    /**
+     * Adds stored messages to the recipient's usage.
+     *
+     * @param user     The recipient's name.
+     * @param messages The number of messages.
+     * @param bytes    The messages' size.
+     */
+    public void added(String user, int messages, long bytes) {
+        Entry entry = entries.get(user);
+        if (entry != null) {
+            synchronized (entry) {
+                entry.messages += messages;
+                entry.bytes += bytes;
+            }
+        }
+    }
+
+    /**
+     * Discards a recipient's usage after messages were removed.
+     *
+     * @param user The recipient's name.
+     */
+    public void removed(String user) {
+        entries.remove(user);
+    }
+
+    /**
+     * Discards all usage.
+     */
+    public void clear() {
+        entries.clear();
+    }
+
+    private static class Entry {
+        private long messages;
+        private long bytes;
+        private final long countedAt;
+
+        private Entry(long messages, long bytes, long countedAt) {
+            this.messages = messages;
+            this.bytes = bytes;
+            this.countedAt = countedAt;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package chat.server;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Registry of clients waiting for new messages in their inbox. A waiter registers for a recipient and is woken up
+ * as soon as a new message for this recipient was stored on this chat server instance.
+ */
+public class InboxWaiters {
+
+    private final ConcurrentHashMap<String, Waiter> waiters = new ConcurrentHashMap<>();
+    private final Semaphore parkingSlots;
+
+    /**
+     * Creates a new registry.
+     *
+     * @param maxParked The maximum number of requests allowed to wait at the same time. A waiting long poll holds no
+     *                  worker thread but keeps its connection and registration.
+     */
+    public InboxWaiters(int maxParked) {
+        this.parkingSlots = new Semaphore(Math.max(0, maxParked));
+    }
+
+    /**
+     * Reserves a slot for a waiting request.
+     *
+     * @return Returns true if the request may wait or false if too many requests are already waiting.
+     */
+    public boolean tryPark() {
+        return parkingSlots.tryAcquire();
+    }
+
+    /**
+     * Releases a slot acquired with {@link #tryPark()}.
+     */
+    public void unpark() {
+        parkingSlots.release();
+    }
+
+    /**
+     * Registers interest in new messages for a recipient. Every call has to be followed by exactly one call to
+     * {@link #unregister(String, CompletableFuture)}.
+     *
+     * @param recipient The recipient's name.
+     * @return Returns a future that is completed by the next call to {@link #signal(String)} for the recipient.
+     */
+    public CompletableFuture<Void> register(String recipient) {
+        return waiters.compute(recipient, (name, waiter) -> {
+            if (waiter == null) {
+                waiter = new Waiter();
+            }
+
+            waiter.registered++;
+            return waiter;
+        }).signal;
+    }
+
+    /**
+     * Removes a registration made by {@link #register(String)}.
+     *
+     * @param recipient The recipient's name.
+     * @param signal    The future returned by {@link #register(String)}.
+     */
+    public void unregister(String recipient, CompletableFuture<Void> signal) {
+        // A signaled waiter was already removed from the map by signal().
+        waiters.computeIfPresent(recipient, (name, waiter) -> {
+            if (waiter.signal != signal) {
+                return waiter;
+            }
+
+            return --waiter.registered == 0 ? null : waiter;
+        });
+    }
+
+    /**
+     * Wakes up all requests currently waiting for messages of the recipient.
+     *
+     * @param recipient The recipient's name.
+     */
+    public void signal(String recipient) {
+        Waiter waiter = waiters.remove(recipient);
+        if (waiter != null) {
+            waiter.signal.complete(null);
+        }
+    }
+
+    /**
+     * All requests waiting for the same recipient share one future. The counter is only modified inside the map's
+     * compute functions which are atomic per key.
+     */
+    private static class Waiter {
+        private final CompletableFuture<Void> signal = new CompletableFuture<>();
+        private int registered = 0;
+    }
+}
@@ -0,0 +1,111 @@
+package chat.server;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Date;
+
+/**
+ * Thread-safe formatting and parsing of dates in the {@link Service#ISO8601} format. Formatting reuses the text of the
+ * previous date if both fall into the same second, which is the common case for the dates of a page of messages.
+ * Parsing handles the format clients send without allocating a {@link SimpleDateFormat} and falls back to one for
+ * everything else, so the accepted dates stay the same.
+ */
+public final class Iso8601 {
+
+    private static final DateTimeFormatter FORMATTER =
+            DateTimeFormatter.ofPattern(Service.ISO8601).withZone(ZoneId.systemDefault());
+    private static final ThreadLocal<SimpleDateFormat> lenientParsers =
+            ThreadLocal.withInitial(() -> new SimpleDateFormat(Service.ISO8601));
+    private static volatile Formatted last = new Formatted(Long.MIN_VALUE, null);
+
+    private Iso8601() {
+    }
+
+    /**
+     * @param date The date.
+     * @return Returns the date formatted like {@link SimpleDateFormat} does with the {@link Service#ISO8601} pattern.
+     */
+    public static String format(Date date) {
+        long second = Math.floorDiv(date.getTime(), 1000L);
+        Formatted formatted = last;
+        if (formatted.second != second) {
+            formatted = new Formatted(second, FORMATTER.format(Instant.ofEpochSecond(second)));
+            last = formatted;
+        }
+
+        return formatted.text;
+    }
+
+    /**
+     * @param text The date, e.g. 2017-12-01T00:31:43+0100.
+     * @return Returns the parsed date.
+     * @throws ParseException The text is not a date in the {@link Service#ISO8601} format.
+     */
+    public static Date parse(String text) throws ParseException {
+        Date date = parseStrict(text);
+        return date != null ? date : lenientParsers.get().parse(text);
+    }
+
+    /**
+     * @return Returns the date or null if the text isn't exactly in the format yyyy-MM-ddTHH:mm:ss+hhmm.
+     */
+    private static Date parseStrict(String text) {
+        if (text.length() != 24 || text.charAt(4) != '-' || text.charAt(7) != '-' || text.charAt(10) != 'T'
+                || text.charAt(13) != ':' || text.charAt(16) != ':') {
+            return null;
+        }
+
+        char sign = text.charAt(19);
+        int year = digits(text, 0, 4);
+        int month = digits(text, 5, 2);
+        int day = digits(text, 8, 2);
+        int hour = digits(text, 11, 2);
+        int minute = digits(text, 14, 2);
+        int second = digits(text, 17, 2);
+        int offsetHours = digits(text, 20, 2);
+        int offsetMinutes = digits(text, 22, 2);
+        if ((sign != '+' && sign != '-') || year < 1900 || month < 0 || day < 0 || hour < 0 || minute < 0
+                || second < 0 || offsetHours < 0 || offsetMinutes < 0 || offsetHours > 18 || offsetMinutes > 59) {
+            return null;
+        }
+
+        try {
+            int offset = (offsetHours * 3600 + offsetMinutes * 60) * (sign == '-' ? -1 : 1);
+            return new Date(LocalDateTime.of(year, month, day, hour, minute, second)
+                    .toEpochSecond(ZoneOffset.ofTotalSeconds(offset)) * 1000L);
+        } catch (DateTimeException e) {
+            // Out of range fields are rolled over by the lenient parser, not rejected.
+            return null;
+        }
+    }
+
+    /**
+     * @return Returns the value of the decimal digits or -1 if there is another character.
+     */
+    private static int digits(String text, int start, int count) {
+        int value = 0;
+        for (int i = start; i < start + count; i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9') return -1;
+            value = value * 10 + c - '0';
+        }
+
+        return value;
+    }
+
+    private static class Formatted {
+        private final long second;
+        private final String text;
+
+        private Formatted(long second, String text) {
+            this.second = second;
+            this.text = text;
+        }
+    }
+}
@@ -1,7 +1,6 @@
 package chat.server;
 
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.Date;
 
 import org.json.JSONException;
@@ -42,6 +41,12 @@ public class Message {
      */
     public String token;
 
+    /**
+     * The time the server stored the message in milliseconds or 0 if it wasn't stored yet. Unlike the date, which the
+     * sender chooses, it decides when the message expires.
+     */
+    public long received;
+
     /**
      * Create a new message.
      *
@@ -80,11 +85,23 @@ public class Message {
      */
     public static Message fromJson(String jsonSource) throws ParseException {
         try {
-            JSONObject obj = new JSONObject(jsonSource);
+            return fromJson(new JSONObject(jsonSource));
+        } catch (JSONException ex) {
+            throw new ParseException("String was not a valid JSON Message object.", -1);
+        }
+    }
+
+    /**
+     * Creates a new message from a JSON object.
+     *
+     * @param obj JSON object source
+     * @throws ParseException Object was not a valid JSON Message object.
+     */
+    public static Message fromJson(JSONObject obj) throws ParseException {
+        try {
             Date date = null;
             if (obj.has("date")) {
-                SimpleDateFormat sdf = new SimpleDateFormat(Service.ISO8601);
-                date = sdf.parse(obj.getString("date"));
+                date = Iso8601.parse(obj.getString("date"));
             }
 
             return new Message(obj.getString("from"), obj.getString("to"), date, obj.getString("text"), obj.getString("token"),
@@ -99,10 +116,8 @@ public class Message {
      */
     @Override
     public String toString() {
-        SimpleDateFormat sdf = new SimpleDateFormat(Service.ISO8601);
-
         return String.format("{ 'from': '%s', 'to': '%s', 'date': '%s', 'text': '%s', 'token': '%s'}".replace('\'', '"'), from, to,
-                sdf.format(new Date()), text, token);
+                Iso8601.format(new Date()), text, token);
     }
 
     /**
@@ -114,8 +129,7 @@ public class Message {
      */
     public JSONObject toJson(boolean isRecvConfirmation) throws JSONException {
         JSONObject obj = new JSONObject();
-        SimpleDateFormat sdf = new SimpleDateFormat(Service.ISO8601);
-        obj.put("date", sdf.format(date));
+        obj.put("date", Iso8601.format(date));
         obj.put("sequence", sequence);
 
         // The servers confirms a received client message by returning the messages date and sequence number.
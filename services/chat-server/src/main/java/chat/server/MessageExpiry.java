@@ -0,0 +1,111 @@
+package chat.server;
+
+import org.json.JSONObject;
+
+import java.util.Date;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Deletes messages stored longer than the time to live in the background, whether or not their recipient
+ * received them. Abandoned inboxes would grow forever otherwise. The deleted messages are counted so the expiry can be
+ * monitored.
+ */
+public class MessageExpiry {
+
+    private final StorageProvider provider;
+    private final long ttlMillis;
+    private final int batchSize;
+    private final AtomicLong expired = new AtomicLong();
+    private final AtomicLong sweeps = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private volatile long lastSweep = 0;
+    private ScheduledExecutorService executor;
+
+    /**
+     * Creates a new expiry.
+     *
+     * @param provider  The storage to delete messages from.
+     * @param ttlMillis The time in milliseconds after which a message is deleted.
+     * @param batchSize The number of messages deleted at once.
+     */
+    public MessageExpiry(StorageProvider provider, long ttlMillis, int batchSize) {
+        this.provider = provider;
+        this.ttlMillis = ttlMillis;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Starts deleting expired messages periodically. The first sweep runs immediately.
+     *
+     * @param intervalMillis The time between two sweeps in milliseconds.
+     */
+    public synchronized void start(long intervalMillis) {
+        if (executor != null) return;
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "message-expiry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(() -> {
+            try {
+                sweep();
+            } catch (RuntimeException e) {
+                failures.incrementAndGet();
+                System.out.printf("Failed to delete expired messages: %s%n", e.getMessage());
+            }
+        }, 0, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Deletes all expired messages batch by batch.
+     *
+     * @return Returns the number of deleted messages.
+     */
+    public long sweep() {
+        Date before = new Date(System.currentTimeMillis() - ttlMillis);
+        long total = 0;
+        int deleted;
+        do {
+            deleted = provider.expireMessages(before, batchSize);
+            total += deleted;
+            expired.addAndGet(deleted);
+        } while (deleted >= batchSize);
+
+        sweeps.incrementAndGet();
+        lastSweep = System.currentTimeMillis();
+        if (total > 0) {
+            System.out.printf("Deleted %d messages received before %s%n", total, before);
+        }
+
+        return total;
+    }
+
+    /**
+     * @return Returns the number of messages deleted since the start.
+     */
+    public long getExpired() {
+        return expired.get();
+    }
+
+    /**
+     * @return Returns the number of completed sweeps.
+     */
+    public long getSweeps() {
+        return sweeps.get();
+    }
+
+    /**
+     * @return Returns the counters as a JSON object.
+     */
+    public JSONObject toJson() {
+        return new JSONObject()
+                .put("ttlSeconds", ttlMillis / 1000)
+                .put("expiredMessages", expired.get())
+                .put("sweeps", sweeps.get())
+                .put("failedSweeps", failures.get())
+                .put("lastSweep", lastSweep);
+    }
+}
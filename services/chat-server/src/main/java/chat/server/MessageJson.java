@@ -0,0 +1,627 @@
+package chat.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Streaming JSON encoding of chat messages. Reads a message straight from the request body and writes it byte by byte
+ * without building a {@link org.json.JSONObject} first. The output is the same as {@link Message#toJson(boolean)}
+ * produces: same field order, null values left out and the same escaping.
+ */
+public final class MessageJson {
+
+    private static final int MAX_DEPTH = 32;
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+    private MessageJson() {
+    }
+
+    /**
+     * Reads a message object. Unknown fields are skipped, the date is optional.
+     *
+     * @param in             The stream to read from.
+     * @param maxFieldLength The maximum number of characters of sender, recipient, token and date.
+     * @param maxTextLength  The maximum number of characters of the text.
+     * @return Returns the message.
+     * @throws ParseException The stream doesn't contain a valid message or a field is too long.
+     * @throws IOException    Reading from the stream failed.
+     */
+    public static Message read(InputStream in, int maxFieldLength, int maxTextLength)
+            throws ParseException, IOException {
+        Reader reader = new Reader(in);
+        Message msg = readMessage(reader, null, 0, maxFieldLength, maxTextLength);
+        expectEnd(reader);
+        return msg;
+    }
+
+    /**
+     * Reads an array of message objects like {@link #read(InputStream, int, int)} reads one.
+     *
+     * @param in             The stream to read from.
+     * @param maxMessages    The maximum number of messages.
+     * @param maxFieldLength The maximum number of characters of sender, recipient, token and date.
+     * @param maxTextLength  The maximum number of characters of a text.
+     * @return Returns the messages, possibly none.
+     * @throws ParseException The stream doesn't contain an array of valid messages, a field is too long or there are
+     *                        too many messages.
+     * @throws IOException    Reading from the stream failed.
+     */
+    public static List<Message> readBatch(InputStream in, int maxMessages, int maxFieldLength, int maxTextLength)
+            throws ParseException, IOException {
+        Reader reader = new Reader(in);
+        List<Message> msgs = new ArrayList<>();
+        reader.expect('[');
+        if (reader.skipWhitespace() == ']') {
+            reader.read();
+        } else {
+            while (true) {
+                if (msgs.size() >= maxMessages) {
+                    throw reader.error("More than " + maxMessages + " messages");
+                }
+
+                msgs.add(readMessage(reader, null, 0, maxFieldLength, maxTextLength));
+                int c = reader.skipWhitespace();
+                reader.read();
+                if (c == ']') break;
+                if (c != ',') throw reader.error("Expected , or ]");
+            }
+        }
+
+        expectEnd(reader);
+        return msgs;
+    }
+
+    /**
+     * Reads a message object sent to several recipients: the field to holds an array of recipients instead of one.
+     *
+     * @param in             The stream to read from.
+     * @param recipients     Receives the recipients.
+     * @param maxRecipients  The maximum size of the recipients collection.
+     * @param maxFieldLength The maximum number of characters of sender, recipients, token and date.
+     * @param maxTextLength  The maximum number of characters of the text.
+     * @return Returns the message with an empty recipient.
+     * @throws ParseException The stream doesn't contain a valid message, a field is too long or there are too many
+     *                        recipients.
+     * @throws IOException    Reading from the stream failed.
+     */
+    public static Message readGroup(InputStream in, Collection<String> recipients, int maxRecipients,
+                                    int maxFieldLength, int maxTextLength) throws ParseException, IOException {
+        Reader reader = new Reader(in);
+        Message msg = readMessage(reader, recipients, maxRecipients, maxFieldLength, maxTextLength);
+        expectEnd(reader);
+        return msg;
+    }
+
+    /**
+     * @param recipients Receives the recipients if the field to has to be an array of them, null if it is a string.
+     */
+    private static Message readMessage(Reader reader, Collection<String> recipients, int maxRecipients,
+                                       int maxFieldLength, int maxTextLength) throws ParseException, IOException {
+        String from = null, to = null, text = null, token = null, date = null;
+        int sequence = 0;
+
+        reader.expect('{');
+        int c = reader.skipWhitespace();
+        if (c == '}') {
+            reader.read();
+        } else {
+            while (true) {
+                String name = reader.readString(maxFieldLength);
+                reader.expect(':');
+                switch (name) {
+                    case "from":
+                        from = reader.readStringValue(maxFieldLength);
+                        break;
+                    case "to":
+                        if (recipients == null) {
+                            to = reader.readStringValue(maxFieldLength);
+                        } else {
+                            reader.readStringArray(recipients, maxRecipients, maxFieldLength);
+                            to = "";
+                        }
+                        break;
+                    case "text":
+                        text = reader.readStringValue(maxTextLength);
+                        break;
+                    case "token":
+                        token = reader.readStringValue(maxFieldLength);
+                        break;
+                    case "date":
+                        date = reader.readStringValue(maxFieldLength);
+                        break;
+                    case "sequence":
+                        sequence = reader.readIntValue(maxFieldLength);
+                        break;
+                    default:
+                        reader.skipValue(maxTextLength, 0);
+                }
+
+                c = reader.skipWhitespace();
+                reader.read();
+                if (c == '}') break;
+                if (c != ',') throw reader.error("Expected , or }");
+            }
+        }
+
+        if (from == null || to == null || text == null || token == null) {
+            throw new ParseException("String was not a valid JSON Message object.", -1);
+        }
+
+        Date parsedDate = date == null ? null : Iso8601.parse(date);
+        return new Message(from, to, parsedDate, text, token, sequence);
+    }
+
+    private static void expectEnd(Reader reader) throws ParseException, IOException {
+        if (reader.skipWhitespace() != -1) {
+            throw reader.error("Unexpected content after the message");
+        }
+    }
+
+    /**
+     * Writes a message object.
+     *
+     * @param out                The stream to write to.
+     * @param msg                The message.
+     * @param isRecvConfirmation If true only date and sequence number are written.
+     * @throws IOException Writing to the stream failed.
+     */
+    public static void write(OutputStream out, Message msg, boolean isRecvConfirmation) throws IOException {
+        out.write('{');
+        writeName(out, "date", true);
+        writeString(out, Iso8601.format(msg.date));
+        writeName(out, "sequence", false);
+        writeInt(out, msg.sequence);
+        if (!isRecvConfirmation) {
+            writeField(out, "from", msg.from);
+            writeField(out, "to", msg.to);
+            writeField(out, "text", msg.text);
+            writeField(out, "token", msg.token);
+        }
+
+        out.write('}');
+    }
+
+    /**
+     * @param msg                The message.
+     * @param isRecvConfirmation If true only date and sequence number are written.
+     * @return Returns the UTF-8 encoded JSON object of the message.
+     */
+    public static byte[] toBytes(Message msg, boolean isRecvConfirmation) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(isRecvConfirmation ? 64 : 256);
+        try {
+            write(out, msg, isRecvConfirmation);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+
+        return out.toByteArray();
+    }
+
+    private static void writeField(OutputStream out, String name, String value) throws IOException {
+        if (value != null) {
+            writeName(out, name, false);
+            writeString(out, value);
+        }
+    }
+
+    private static void writeName(OutputStream out, String name, boolean first) throws IOException {
+        if (!first) {
+            out.write(',');
+        }
+
+        out.write('"');
+        for (int i = 0; i < name.length(); i++) {
+            out.write(name.charAt(i));
+        }
+
+        out.write('"');
+        out.write(':');
+    }
+
+    private static void writeInt(OutputStream out, int value) throws IOException {
+        if (value < 0) {
+            out.write('-');
+            if (value == Integer.MIN_VALUE) {
+                out.write('2');
+                value = -147483648;
+            }
+
+            value = -value;
+        }
+
+        int divisor = 1;
+        while (value / divisor >= 10) {
+            divisor *= 10;
+        }
+
+        for (; divisor > 0; divisor /= 10) {
+            out.write('0' + value / divisor % 10);
+        }
+    }
+
+    /**
+     * Writes a string escaped like {@link org.json.JSONObject#quote(String)} as UTF-8.
+     */
+    private static void writeString(OutputStream out, String value) throws IOException {
+        out.write('"');
+        char previous = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                case '\\':
+                    out.write('\\');
+                    out.write(c);
+                    break;
+                case '/':
+                    if (previous == '<') {
+                        out.write('\\');
+                    }
+
+                    out.write(c);
+                    break;
+                case '\b':
+                    out.write('\\');
+                    out.write('b');
+                    break;
+                case '\t':
+                    out.write('\\');
+                    out.write('t');
+                    break;
+                case '\n':
+                    out.write('\\');
+                    out.write('n');
+                    break;
+                case '\f':
+                    out.write('\\');
+                    out.write('f');
+                    break;
+                case '\r':
+                    out.write('\\');
+                    out.write('r');
+                    break;
+                default:
+                    if (c < ' ' || (c >= '\u0080' && c < '\u00a0') || (c >= '\u2000' && c < '\u2100')) {
+                        out.write('\\');
+                        out.write('u');
+                        out.write(HEX[c >> 12 & 0xf]);
+                        out.write(HEX[c >> 8 & 0xf]);
+                        out.write(HEX[c >> 4 & 0xf]);
+                        out.write(HEX[c & 0xf]);
+                    } else if (c < 0x80) {
+                        out.write(c);
+                    } else if (c < 0x800) {
+                        out.write(0xc0 | c >> 6);
+                        out.write(0x80 | c & 0x3f);
+                    } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                            && Character.isLowSurrogate(value.charAt(i + 1))) {
+                        int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                        out.write(0xf0 | codePoint >> 18);
+                        out.write(0x80 | codePoint >> 12 & 0x3f);
+                        out.write(0x80 | codePoint >> 6 & 0x3f);
+                        out.write(0x80 | codePoint & 0x3f);
+                    } else if (Character.isSurrogate(c)) {
+                        // Unpaired surrogates can't be encoded, like String.getBytes a question mark is written.
+                        out.write('?');
+                    } else {
+                        out.write(0xe0 | c >> 12);
+                        out.write(0x80 | c >> 6 & 0x3f);
+                        out.write(0x80 | c & 0x3f);
+                    }
+            }
+
+            previous = c;
+        }
+
+        out.write('"');
+    }
+
+    /**
+     * Decodes UTF-8 from a stream with one character lookahead.
+     */
+    private static class Reader {
+        private final InputStream in;
+        private final byte[] buffer = new byte[512];
+        private final StringBuilder chars = new StringBuilder();
+        private int position = 0;
+        private int limit = 0;
+        private long offset = 0;
+        private int peeked = -2;
+        private char pendingLowSurrogate = 0;
+
+        private Reader(InputStream in) {
+            this.in = in;
+        }
+
+        private int readByte() throws IOException {
+            if (position == limit) {
+                limit = in.read(buffer, 0, buffer.length);
+                position = 0;
+                if (limit <= 0) {
+                    limit = 0;
+                    return -1;
+                }
+            }
+
+            offset++;
+            return buffer[position++] & 0xff;
+        }
+
+        /**
+         * @return Returns the next character without consuming it or -1 at the end of the stream.
+         */
+        private int peek() throws IOException {
+            if (peeked == -2) {
+                peeked = decode();
+            }
+
+            return peeked;
+        }
+
+        private int read() throws IOException {
+            int c = peek();
+            peeked = -2;
+            return c;
+        }
+
+        /**
+         * @return Returns the next UTF-16 code unit, malformed input is replaced with U+FFFD.
+         */
+        private int decode() throws IOException {
+            if (pendingLowSurrogate != 0) {
+                int c = pendingLowSurrogate;
+                pendingLowSurrogate = 0;
+                return c;
+            }
+
+            int b = readByte();
+            if (b < 0x80) {
+                return b;
+            }
+
+            int length = b >= 0xf0 ? 3 : b >= 0xe0 ? 2 : b >= 0xc0 ? 1 : -1;
+            if (length < 0 || b >= 0xf8) {
+                return '\uFFFD';
+            }
+
+            int codePoint = b & (0x3f >> length);
+            for (int i = 0; i < length; i++) {
+                int next = readByte();
+                if ((next & 0xc0) != 0x80) {
+                    return '\uFFFD';
+                }
+
+                codePoint = codePoint << 6 | next & 0x3f;
+            }
+
+            if (codePoint > 0xffff) {
+                if (codePoint > Character.MAX_CODE_POINT) return '\uFFFD';
+                pendingLowSurrogate = Character.lowSurrogate(codePoint);
+                return Character.highSurrogate(codePoint);
+            }
+
+            return codePoint;
+        }
+
+        private int skipWhitespace() throws IOException {
+            int c = peek();
+            while (c == ' ' || c == '\t' || c == '\n' || c == '\r') {
+                read();
+                c = peek();
+            }
+
+            return c;
+        }
+
+        private void expect(char expected) throws IOException, ParseException {
+            if (skipWhitespace() != expected) {
+                throw error("Expected " + expected);
+            }
+
+            read();
+        }
+
+        private ParseException error(String message) {
+            return new ParseException(message + " at byte " + offset, (int) Math.min(offset, Integer.MAX_VALUE));
+        }
+
+        /**
+         * Reads a string, the opening quote has to follow.
+         */
+        private String readString(int maxLength) throws IOException, ParseException {
+            expect('"');
+            chars.setLength(0);
+            while (true) {
+                int c = read();
+                if (c == '"') {
+                    return chars.toString();
+                }
+
+                if (c == -1 || c < ' ') {
+                    throw error("Unterminated string");
+                }
+
+                if (chars.length() >= maxLength) {
+                    throw error("String is longer than " + maxLength + " characters");
+                }
+
+                if (c != '\\') {
+                    chars.append((char) c);
+                    continue;
+                }
+
+                c = read();
+                switch (c) {
+                    case 'b':
+                        chars.append('\b');
+                        break;
+                    case 't':
+                        chars.append('\t');
+                        break;
+                    case 'n':
+                        chars.append('\n');
+                        break;
+                    case 'f':
+                        chars.append('\f');
+                        break;
+                    case 'r':
+                        chars.append('\r');
+                        break;
+                    case 'u':
+                        int unit = 0;
+                        for (int i = 0; i < 4; i++) {
+                            int digit = Character.digit(read(), 16);
+                            if (digit < 0) throw error("Invalid escape");
+                            unit = unit << 4 | digit;
+                        }
+
+                        chars.append((char) unit);
+                        break;
+                    case '"':
+                    case '\\':
+                    case '/':
+                        chars.append((char) c);
+                        break;
+                    default:
+                        throw error("Invalid escape");
+                }
+            }
+        }
+
+        /**
+         * Reads a value that has to be a string, like {@link org.json.JSONObject#getString(String)}.
+         */
+        private String readStringValue(int maxLength) throws IOException, ParseException {
+            if (skipWhitespace() != '"') {
+                throw error("Expected a string");
+            }
+
+            return readString(maxLength);
+        }
+
+        /**
+         * Reads a value that has to be an array of strings.
+         */
+        private void readStringArray(Collection<String> values, int maxValues, int maxLength)
+                throws IOException, ParseException {
+            if (skipWhitespace() != '[') {
+                throw error("Expected an array");
+            }
+
+            read();
+            if (skipWhitespace() == ']') {
+                read();
+                return;
+            }
+
+            while (true) {
+                values.add(readStringValue(maxLength));
+                if (values.size() > maxValues) {
+                    throw error("More than " + maxValues + " values");
+                }
+
+                int c = skipWhitespace();
+                read();
+                if (c == ']') return;
+                if (c != ',') throw error("Expected , or ]");
+            }
+        }
+
+        /**
+         * Reads an integer value, like {@link org.json.JSONObject#optInt(String)} other values are read as 0.
+         */
+        private int readIntValue(int maxLength) throws IOException, ParseException {
+            int c = skipWhitespace();
+            String value;
+            if (c == '"') {
+                value = readString(maxLength);
+            } else if (c == '-' || (c >= '0' && c <= '9')) {
+                value = readNumber(maxLength);
+            } else {
+                skipValue(maxLength, 0);
+                return 0;
+            }
+
+            try {
+                return Integer.parseInt(value);
+            } catch (NumberFormatException e) {
+                try {
+                    return (int) Double.parseDouble(value);
+                } catch (NumberFormatException ignored) {
+                    return 0;
+                }
+            }
+        }
+
+        private String readNumber(int maxLength) throws IOException, ParseException {
+            chars.setLength(0);
+            int c = peek();
+            while (c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E' || (c >= '0' && c <= '9')) {
+                if (chars.length() >= maxLength) throw error("Number is too long");
+                chars.append((char) read());
+                c = peek();
+            }
+
+            if (chars.length() == 0) throw error("Expected a number");
+            return chars.toString();
+        }
+
+        private void skipValue(int maxLength, int depth) throws IOException, ParseException {
+            if (depth > MAX_DEPTH) {
+                throw error("Nested too deeply");
+            }
+
+            int c = skipWhitespace();
+            switch (c) {
+                case '"':
+                    readString(maxLength);
+                    return;
+                case '{':
+                case '[':
+                    read();
+                    char end = c == '{' ? '}' : ']';
+                    if (skipWhitespace() == end) {
+                        read();
+                        return;
+                    }
+
+                    while (true) {
+                        if (c == '{') {
+                            readString(maxLength);
+                            expect(':');
+                        }
+
+                        skipValue(maxLength, depth + 1);
+                        int next = skipWhitespace();
+                        read();
+                        if (next == end) return;
+                        if (next != ',') throw error("Expected , or " + end);
+                    }
+                case 't':
+                    literal("true");
+                    return;
+                case 'f':
+                    literal("false");
+                    return;
+                case 'n':
+                    literal("null");
+                    return;
+                default:
+                    readNumber(maxLength);
+            }
+        }
+
+        private void literal(String expected) throws IOException, ParseException {
+            for (int i = 0; i < expected.length(); i++) {
+                if (read() != expected.charAt(i)) throw error("Expected " + expected);
+            }
+        }
+    }
+}
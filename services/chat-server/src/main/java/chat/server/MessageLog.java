@@ -0,0 +1,448 @@
+package chat.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of chat records stored in memory-mapped segment files of a fixed size. Only the last segment is
+ * written to, full segments are immutable until they are deleted by compaction.
+ * <p>
+ * Every record starts with its body length and the body's CRC32 so a record torn by a crash is detected on recovery.
+ * The body starts with the record type:
+ * <ul>
+ * <li>{@link #MESSAGE}: sequence number, date, receive time, recipient, sender and text</li>
+ * <li>{@link #ACK}: the highest sequence number the recipient confirmed and the recipient</li>
+ * <li>{@link #SEQUENCE}: the recipient's latest and highest confirmed sequence number and the recipient</li>
+ * </ul>
+ * Strings are stored as UTF-8 with a length prefix. Message records written before the receive time was stored have
+ * the type {@link #DATED_MESSAGE} and are read as if they were received at their date.
+ */
+public class MessageLog implements Closeable {
+
+    static final byte ACK = 2;
+    static final byte SEQUENCE = 3;
+    static final byte MESSAGE = 4;
+    private static final byte DATED_MESSAGE = 1;
+
+    private static final int HEADER = 8;
+    private static final String SUFFIX = ".log";
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final List<Segment> segments = new ArrayList<>();
+    private Segment tail;
+
+    /**
+     * Opens the log. Call {@link #recover(RecordConsumer)} before appending records.
+     *
+     * @param directory    The directory holding the segment files.
+     * @param segmentBytes The size of new segment files.
+     * @throws IOException If the segments could not be opened.
+     */
+    public MessageLog(Path directory, int segmentBytes) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        Files.createDirectories(directory);
+
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            stream.forEach(files::add);
+        }
+
+        files.sort(null);
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            long id = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+            segments.add(new Segment(id, file, (int) Math.min(Integer.MAX_VALUE, Files.size(file))));
+        }
+    }
+
+    /**
+     * Reads all valid records in the order they were appended and prepares the last segment for appending. A torn
+     * record at the end of the last segment is discarded.
+     *
+     * @param consumer Called for every record.
+     */
+    public synchronized void recover(RecordConsumer consumer) throws IOException {
+        for (Segment segment : segments) {
+            ByteBuffer buffer = segment.buffer.duplicate();
+            int position = 0;
+            while (true) {
+                Record record = read(buffer, position);
+                if (record == null) {
+                    break;
+                }
+
+                segment.count(record.type);
+                consumer.accept(segment, position, record);
+                position = buffer.position();
+            }
+
+            segment.position = position;
+            segment.sealed = true;
+        }
+
+        if (segments.isEmpty()) {
+            tail = newSegment(1);
+        } else {
+            tail = segments.get(segments.size() - 1);
+            tail.sealed = false;
+            // Clear the rest of a torn record so it can't be mistaken for a record later.
+            for (int i = tail.position; i < tail.capacity && i < tail.position + HEADER; i++) {
+                if (tail.buffer.get(i) != 0) {
+                    for (int j = tail.position; j < tail.capacity; j++) {
+                        tail.buffer.put(j, (byte) 0);
+                    }
+
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * @param body A record body.
+     * @return Returns whether the record fits into a segment, see {@link #append(byte[])}.
+     */
+    public boolean fits(byte[] body) {
+        return HEADER + body.length <= segmentBytes;
+    }
+
+    /**
+     * Appends a record to the last segment, a new segment is started if it doesn't fit.
+     *
+     * @param body The record body created by {@link #message(Message)}, {@link #ack(String, int)} or
+     *             {@link #sequence(String, int, int)}.
+     * @return Returns where the record was stored.
+     * @throws IllegalArgumentException If the record is larger than a segment.
+     */
+    public synchronized Location append(byte[] body) throws IOException {
+        int length = HEADER + body.length;
+        if (length > segmentBytes) {
+            throw new IllegalArgumentException("Record of " + length + " bytes exceeds the segment size.");
+        }
+
+        if (tail.capacity - tail.position < length) {
+            tail.sealed = true;
+            tail.buffer.force();
+            tail = newSegment(tail.id + 1);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(body, 0, body.length);
+        int offset = tail.position;
+        ByteBuffer buffer = tail.buffer.duplicate();
+        buffer.position(offset + 4);
+        buffer.putInt((int) crc.getValue());
+        buffer.put(body);
+        // The length is written last, a record is complete as soon as it is visible.
+        buffer.putInt(offset, body.length);
+        tail.position = offset + length;
+        tail.count(body[0]);
+        return new Location(tail, offset);
+    }
+
+    /**
+     * @return Returns all segments except the one currently written to.
+     */
+    public synchronized List<Segment> sealedSegments() {
+        List<Segment> sealed = new ArrayList<>(segments);
+        sealed.remove(tail);
+        return sealed;
+    }
+
+    /**
+     * Reads all records of a sealed segment.
+     *
+     * @param segment  The segment.
+     * @param consumer Called for every record.
+     */
+    public void scan(Segment segment, RecordConsumer consumer) throws IOException {
+        ByteBuffer buffer = segment.buffer.duplicate();
+        int position = 0;
+        while (position < segment.position) {
+            Record record = read(buffer, position);
+            if (record == null) {
+                break;
+            }
+
+            consumer.accept(segment, position, record);
+            position = buffer.position();
+        }
+    }
+
+    /**
+     * Deletes a sealed segment. Records that are still being read stay readable until the segment is unreachable.
+     *
+     * @param segment The segment to delete.
+     */
+    public synchronized void delete(Segment segment) throws IOException {
+        if (segment == tail) {
+            throw new IllegalArgumentException("The segment written to can't be deleted.");
+        }
+
+        // Make the records copied out of the segment durable before it's gone.
+        tail.buffer.force();
+        segments.remove(segment);
+        Files.deleteIfExists(segment.file);
+    }
+
+    /**
+     * Deletes all segments and starts a new log.
+     */
+    public synchronized void clear() throws IOException {
+        for (Segment segment : segments) {
+            Files.deleteIfExists(segment.file);
+        }
+
+        segments.clear();
+        tail = newSegment(1);
+    }
+
+    @Override
+    public synchronized void close() {
+        if (tail != null) {
+            tail.buffer.force();
+        }
+    }
+
+    /**
+     * Reads a message record.
+     *
+     * @param segment The segment holding the record.
+     * @param offset  The record's offset in the segment.
+     * @return Returns the message.
+     */
+    public static Message readMessage(Segment segment, int offset) {
+        ByteBuffer buffer = segment.buffer.duplicate();
+        buffer.position(offset + HEADER);
+        byte type = buffer.get();
+        int sequence = buffer.getInt();
+        Date date = new Date(buffer.getLong());
+        long received = type == DATED_MESSAGE ? date.getTime() : buffer.getLong();
+        String to = readString(buffer);
+        String from = readString(buffer);
+        String text = readString(buffer);
+        Message msg = new Message(from, to, date, text, null, sequence);
+        msg.received = received;
+        return msg;
+    }
+
+    /**
+     * @param segment The segment holding the record.
+     * @param offset  The record's offset in the segment.
+     * @return Returns the length of the record's body.
+     */
+    public static int readLength(Segment segment, int offset) {
+        return segment.buffer.getInt(offset);
+    }
+
+    /**
+     * Reads the receive time of a message record without decoding the message.
+     *
+     * @param segment The segment holding the record.
+     * @param offset  The record's offset in the segment.
+     * @return Returns the time the message was received in milliseconds.
+     */
+    public static long readReceived(Segment segment, int offset) {
+        boolean dated = segment.buffer.get(offset + HEADER) == DATED_MESSAGE;
+        return segment.buffer.getLong(offset + HEADER + 1 + 4 + (dated ? 0 : 8));
+    }
+
+    /**
+     * @return Returns the body of a message record with the message's receive time.
+     */
+    public static byte[] message(Message msg) {
+        byte[] to = msg.to.getBytes(StandardCharsets.UTF_8);
+        byte[] from = msg.from.getBytes(StandardCharsets.UTF_8);
+        byte[] text = msg.text == null ? new byte[0] : msg.text.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer body = ByteBuffer.allocate(1 + 4 + 8 + 8 + 12 + to.length + from.length + text.length);
+        body.put(MESSAGE).putInt(msg.sequence).putLong(msg.date.getTime()).putLong(msg.received);
+        body.putInt(to.length).put(to).putInt(from.length).put(from).putInt(text.length).put(text);
+        return body.array();
+    }
+
+    /**
+     * Sets the sequence number in the body of a message record, so a message can be encoded before its sequence
+     * number is known.
+     */
+    public static void setSequence(byte[] message, int sequenceNumber) {
+        ByteBuffer.wrap(message).putInt(1, sequenceNumber);
+    }
+
+    /**
+     * @return Returns the body of a confirmation record.
+     */
+    public static byte[] ack(String user, int sequenceNumber) {
+        byte[] name = user.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(1 + 4 + 4 + name.length)
+                .put(ACK).putInt(sequenceNumber).putInt(name.length).put(name).array();
+    }
+
+    /**
+     * @return Returns the body of a record that preserves a recipient's sequence numbers when older records are
+     * deleted.
+     */
+    public static byte[] sequence(String user, int sequenceNumber, int acked) {
+        byte[] name = user.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(1 + 4 + 4 + 4 + name.length)
+                .put(SEQUENCE).putInt(sequenceNumber).putInt(acked).putInt(name.length).put(name).array();
+    }
+
+    private Segment newSegment(long id) throws IOException {
+        Segment segment = new Segment(id, directory.resolve(String.format("%020d%s", id, SUFFIX)), segmentBytes);
+        segments.add(segment);
+        return segment;
+    }
+
+    /**
+     * Reads the record at the given position and leaves the buffer after it.
+     *
+     * @return Returns the record or null if there is no valid record at the position.
+     */
+    private static Record read(ByteBuffer buffer, int position) {
+        if (position + HEADER > buffer.capacity()) {
+            return null;
+        }
+
+        int length = buffer.getInt(position);
+        if (length <= 0 || length > buffer.capacity() - position - HEADER) {
+            return null;
+        }
+
+        byte[] body = new byte[length];
+        buffer.position(position + 4);
+        int checksum = buffer.getInt();
+        buffer.get(body);
+        CRC32 crc = new CRC32();
+        crc.update(body, 0, length);
+        if ((int) crc.getValue() != checksum) {
+            return null;
+        }
+
+        ByteBuffer in = ByteBuffer.wrap(body);
+        Record record = new Record();
+        record.type = in.get();
+        record.sequence = in.getInt();
+        switch (record.type) {
+            case DATED_MESSAGE:
+                record.type = MESSAGE;
+                record.received = in.getLong();
+                record.user = readString(in);
+                break;
+            case MESSAGE:
+                in.getLong();
+                record.received = in.getLong();
+                record.user = readString(in);
+                break;
+            case ACK:
+                record.acked = record.sequence;
+                record.user = readString(in);
+                break;
+            case SEQUENCE:
+                record.acked = in.getInt();
+                record.user = readString(in);
+                break;
+            default:
+                return null;
+        }
+
+        return record;
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A segment file mapped into memory.
+     */
+    public static class Segment {
+        final long id;
+        final Path file;
+        final int capacity;
+        final MappedByteBuffer buffer;
+        /**
+         * The end of the segment's records.
+         */
+        volatile int position = 0;
+        volatile boolean sealed = false;
+        /**
+         * The number of message records and of other records in the segment.
+         */
+        final AtomicInteger messages = new AtomicInteger(), infoRecords = new AtomicInteger();
+        /**
+         * The number of message records that weren't confirmed and of records other recipients' sequence numbers
+         * depend on.
+         */
+        final AtomicInteger live = new AtomicInteger(), infoRefs = new AtomicInteger();
+
+        private Segment(long id, Path file, int capacity) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.capacity = capacity;
+            try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw");
+                 FileChannel channel = raf.getChannel()) {
+                // The mapping stays valid after the channel is closed.
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            }
+        }
+
+        private void count(byte type) {
+            if (type == MESSAGE || type == DATED_MESSAGE) {
+                messages.incrementAndGet();
+            } else {
+                infoRecords.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * The position of a record.
+     */
+    public static class Location {
+        final Segment segment;
+        final int offset;
+
+        private Location(Segment segment, int offset) {
+            this.segment = segment;
+            this.offset = offset;
+        }
+    }
+
+    /**
+     * The fields of a record needed to rebuild the index.
+     */
+    public static class Record {
+        byte type;
+        int sequence;
+        int acked;
+        /**
+         * The time a message was received in milliseconds.
+         */
+        long received;
+        String user;
+    }
+
+    /**
+     * Receives the records read from a segment.
+     */
+    public interface RecordConsumer {
+        void accept(Segment segment, int offset, Record record) throws IOException;
+    }
+}
@@ -0,0 +1,361 @@
+package chat.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.Date;
+
+/**
+ * Binary MessagePack encoding of chat messages. A message is a map with the same fields and values as its JSON
+ * representation (see {@link Message#toJson(boolean)}), the date is encoded as ISO 8601 string.
+ */
+public final class MessagePack {
+
+    /**
+     * Media type of MessagePack encoded requests and responses.
+     */
+    public static final String MEDIA_TYPE = "application/x-msgpack";
+
+    private static final int MAX_DEPTH = 32;
+    /**
+     * Room for the keys, the sequence number and small unknown fields of a message.
+     */
+    private static final int OVERHEAD_BYTES = 256;
+
+    private MessagePack() {
+    }
+
+    /**
+     * Encodes a message.
+     *
+     * @param msg                The message to encode.
+     * @param isRecvConfirmation If true only date and sequence number are encoded.
+     * @return Returns the encoded message.
+     */
+    public static byte[] encode(Message msg, boolean isRecvConfirmation) {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(64);
+        try {
+            write(buffer, msg, isRecvConfirmation);
+        } catch (IOException e) {
+            throw new IllegalStateException("Writing to memory failed.", e);
+        }
+
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Writes an encoded message to a stream.
+     *
+     * @param out                The stream to write to.
+     * @param msg                The message to encode.
+     * @param isRecvConfirmation If true only date and sequence number are encoded.
+     * @throws IOException Writing to the stream failed.
+     */
+    public static void write(OutputStream out, Message msg, boolean isRecvConfirmation) throws IOException {
+        // Like JSON null values are left out.
+        boolean hasFrom = !isRecvConfirmation && msg.from != null;
+        boolean hasTo = !isRecvConfirmation && msg.to != null;
+        boolean hasText = !isRecvConfirmation && msg.text != null;
+        boolean hasToken = !isRecvConfirmation && msg.token != null;
+        int fields = 2 + (hasFrom ? 1 : 0) + (hasTo ? 1 : 0) + (hasText ? 1 : 0) + (hasToken ? 1 : 0);
+
+        out.write(0x80 | fields);
+        writeString(out, "date");
+        writeString(out, Iso8601.format(msg.date));
+        writeString(out, "sequence");
+        writeInt(out, msg.sequence);
+        if (hasFrom) {
+            writeString(out, "from");
+            writeString(out, msg.from);
+        }
+        if (hasTo) {
+            writeString(out, "to");
+            writeString(out, msg.to);
+        }
+        if (hasText) {
+            writeString(out, "text");
+            writeString(out, msg.text);
+        }
+        if (hasToken) {
+            writeString(out, "token");
+            writeString(out, msg.token);
+        }
+    }
+
+    /**
+     * Reads and decodes a message. Only as many bytes as a message with fields of the maximum length can take are
+     * read, so an oversized request is rejected without buffering it.
+     *
+     * @param in             The stream to read from.
+     * @param maxFieldLength The maximum number of characters of sender, recipient, token and date.
+     * @param maxTextLength  The maximum number of characters of the text.
+     * @return Returns the decoded message.
+     * @throws ParseException The data was not a valid MessagePack Message object or a field is too long.
+     * @throws IOException    Reading from the stream failed.
+     */
+    public static Message decode(InputStream in, int maxFieldLength, int maxTextLength)
+            throws ParseException, IOException {
+        // A character takes at most 3 bytes in UTF-8.
+        long maxBytes = 3L * (maxTextLength + 4L * maxFieldLength) + OVERHEAD_BYTES;
+        ByteArrayOutputStream data = new ByteArrayOutputStream(1024);
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) > 0) {
+            if (data.size() + read > maxBytes) {
+                throw new ParseException("Message is larger than " + maxBytes + " bytes", data.size());
+            }
+
+            data.write(buffer, 0, read);
+        }
+
+        return decode(data.toByteArray(), maxFieldLength, maxTextLength);
+    }
+
+    /**
+     * Decodes a message.
+     *
+     * @param data           The encoded message.
+     * @param maxFieldLength The maximum number of characters of sender, recipient, token and date.
+     * @param maxTextLength  The maximum number of characters of the text.
+     * @return Returns the decoded message.
+     * @throws ParseException The data was not a valid MessagePack Message object or a field is too long.
+     */
+    public static Message decode(byte[] data, int maxFieldLength, int maxTextLength) throws ParseException {
+        Reader reader = new Reader(data);
+        try {
+            String from = null, to = null, text = null, token = null, date = null;
+            int sequence = 0;
+            int fields = reader.readMapHeader();
+            for (int i = 0; i < fields; i++) {
+                String key = reader.readString(maxFieldLength);
+                switch (key) {
+                    case "from":
+                        from = reader.readString(maxFieldLength);
+                        break;
+                    case "to":
+                        to = reader.readString(maxFieldLength);
+                        break;
+                    case "text":
+                        text = reader.readString(maxTextLength);
+                        break;
+                    case "token":
+                        token = reader.readString(maxFieldLength);
+                        break;
+                    case "date":
+                        date = reader.readString(maxFieldLength);
+                        break;
+                    case "sequence":
+                        sequence = reader.readInt();
+                        break;
+                    default:
+                        reader.skipValue(0);
+                }
+            }
+
+            if (from == null || to == null || text == null || token == null || reader.position != data.length) {
+                throw new ParseException("Data was not a valid MessagePack Message object.", reader.position);
+            }
+
+            Date parsedDate = date == null ? null : Iso8601.parse(date);
+            return new Message(from, to, parsedDate, text, token, sequence);
+        } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+            throw new ParseException("Data was not a valid MessagePack Message object.", reader.position);
+        }
+    }
+
+    private static void writeString(OutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        int length = bytes.length;
+        if (length < 32) {
+            out.write(0xa0 | length);
+        } else if (length < 0x100) {
+            out.write(0xd9);
+            out.write(length);
+        } else if (length < 0x10000) {
+            out.write(0xda);
+            writeBigEndian(out, length, 2);
+        } else {
+            out.write(0xdb);
+            writeBigEndian(out, length, 4);
+        }
+
+        out.write(bytes);
+    }
+
+    private static void writeInt(OutputStream out, int value) throws IOException {
+        if (value >= 0 && value < 0x80) {
+            out.write(value);
+        } else if (value < 0 && value >= -32) {
+            out.write(value & 0xff);
+        } else if (value >= 0 && value < 0x10000) {
+            out.write(0xcd);
+            writeBigEndian(out, value, 2);
+        } else {
+            out.write(0xd2);
+            writeBigEndian(out, value, 4);
+        }
+    }
+
+    private static void writeBigEndian(OutputStream out, long value, int bytes) throws IOException {
+        for (int shift = (bytes - 1) * 8; shift >= 0; shift -= 8) {
+            out.write((int) (value >>> shift) & 0xff);
+        }
+    }
+
+    /**
+     * Reads the subset of MessagePack needed for messages. Unknown fields of any type are skipped.
+     */
+    private static class Reader {
+        private final byte[] data;
+        private int position = 0;
+
+        private Reader(byte[] data) {
+            this.data = data;
+        }
+
+        private int readMapHeader() {
+            int type = next();
+            if ((type & 0xf0) == 0x80) return type & 0x0f;
+            if (type == 0xde) return (int) readBigEndian(2);
+            if (type == 0xdf) return length(readBigEndian(4));
+            throw new IllegalArgumentException("Expected map");
+        }
+
+        private String readString(int maxLength) {
+            int type = next();
+            int length;
+            if ((type & 0xe0) == 0xa0) {
+                length = type & 0x1f;
+            } else if (type == 0xd9) {
+                length = (int) readBigEndian(1);
+            } else if (type == 0xda) {
+                length = (int) readBigEndian(2);
+            } else if (type == 0xdb) {
+                length = length(readBigEndian(4));
+            } else {
+                throw new IllegalArgumentException("Expected string");
+            }
+
+            if (length > 3L * maxLength) {
+                throw new IllegalArgumentException("String is too long");
+            }
+
+            String value = new String(data, position, length, StandardCharsets.UTF_8);
+            skip(length);
+            if (value.length() > maxLength) {
+                throw new IllegalArgumentException("String is longer than " + maxLength + " characters");
+            }
+
+            return value;
+        }
+
+        private int readInt() {
+            int type = next();
+            long value;
+            if (type < 0x80) {
+                value = type;
+            } else if (type >= 0xe0) {
+                value = (byte) type;
+            } else if (type >= 0xcc && type <= 0xcf) {
+                value = readBigEndian(1 << (type - 0xcc));
+                // A uint64 with the top bit set doesn't fit into a long.
+                if (value < 0) {
+                    throw new IllegalArgumentException("Integer out of range");
+                }
+            } else if (type >= 0xd0 && type <= 0xd3) {
+                int bytes = 1 << (type - 0xd0);
+                value = readBigEndian(bytes);
+                // Sign extend
+                value = (value << (64 - bytes * 8)) >> (64 - bytes * 8);
+            } else {
+                throw new IllegalArgumentException("Expected integer");
+            }
+
+            if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Integer out of range");
+            }
+
+            return (int) value;
+        }
+
+        private void skipValue(int depth) {
+            if (depth > MAX_DEPTH) {
+                throw new IllegalArgumentException("Nested too deeply");
+            }
+
+            int type = next();
+            if (type < 0x80 || type >= 0xe0 || type == 0xc0 || type == 0xc2 || type == 0xc3) {
+                return;
+            }
+            if ((type & 0xf0) == 0x80) {
+                skipValues((type & 0x0f) * 2, depth);
+            } else if ((type & 0xf0) == 0x90) {
+                skipValues(type & 0x0f, depth);
+            } else if ((type & 0xe0) == 0xa0) {
+                skip(type & 0x1f);
+            } else if (type == 0xc4 || type == 0xd9) {
+                skip((int) readBigEndian(1));
+            } else if (type == 0xc5 || type == 0xda) {
+                skip((int) readBigEndian(2));
+            } else if (type == 0xc6 || type == 0xdb) {
+                skip(length(readBigEndian(4)));
+            } else if (type == 0xca) {
+                skip(4);
+            } else if (type == 0xcb) {
+                skip(8);
+            } else if (type >= 0xcc && type <= 0xcf) {
+                skip(1 << (type - 0xcc));
+            } else if (type >= 0xd0 && type <= 0xd3) {
+                skip(1 << (type - 0xd0));
+            } else if (type == 0xdc) {
+                skipValues((int) readBigEndian(2), depth);
+            } else if (type == 0xdd) {
+                skipValues(length(readBigEndian(4)), depth);
+            } else if (type == 0xde) {
+                skipValues((int) readBigEndian(2) * 2, depth);
+            } else if (type == 0xdf) {
+                skipValues(length(readBigEndian(4)) * 2, depth);
+            } else {
+                throw new IllegalArgumentException("Unsupported type " + type);
+            }
+        }
+
+        private void skipValues(int count, int depth) {
+            for (int i = 0; i < count; i++) {
+                skipValue(depth + 1);
+            }
+        }
+
+        private int next() {
+            return data[position++] & 0xff;
+        }
+
+        private void skip(int bytes) {
+            if (bytes < 0 || position + bytes > data.length) {
+                throw new IllegalArgumentException("Unexpected end of data");
+            }
+
+            position += bytes;
+        }
+
+        private long readBigEndian(int bytes) {
+            long value = 0;
+            for (int i = 0; i < bytes; i++) {
+                value = (value << 8) | next();
+            }
+
+            return value;
+        }
+
+        private static int length(long length) {
+            if (length > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Length out of range");
+            }
+
+            return (int) length;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package chat.server;
+
+import javax.ws.rs.core.StreamingOutput;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.function.Supplier;
+
+/**
+ * A page of messages read lazily from storage. The page is written as a compact JSON array (or as MessagePack, see
+ * {@link #asMessagePack()}) straight from the storage cursor so the inbox never has to be held in memory as a whole.
+ * <p>
+ * If reading fails after the first message was written, the page ends after the last complete message, so the client
+ * confirms what it got and receives the rest with the next request. A page with a continuation can't end early since
+ * the client would continue after messages it never got, so the response is aborted instead.
+ */
+public class MessagePage implements StreamingOutput, Closeable {
+
+    private final Supplier<Iterator<Message>> source;
+    private Iterator<Message> messages;
+    private final Closeable resource;
+    private final int continuation;
+
+    /**
+     * Creates a new page.
+     *
+     * @param messages     The messages of the page in ascending sequence order.
+     * @param resource     Released after the page was written or when the page is closed.
+     * @param continuation The sequence number to continue with if there are more messages, otherwise 0.
+     */
+    public MessagePage(Iterator<Message> messages, Closeable resource, int continuation) {
+        this(() -> messages, resource, continuation);
+        this.messages = messages;
+    }
+
+    /**
+     * Creates a new page which is read from storage only when it is written or its messages are read. Until then the
+     * page counts as not empty.
+     *
+     * @param source       Opens the messages of the page in ascending sequence order.
+     * @param resource     Released after the page was written or when the page is closed, whether it was opened or
+     *                     not.
+     * @param continuation The sequence number to continue with if there are more messages, otherwise 0.
+     */
+    public MessagePage(Supplier<Iterator<Message>> source, Closeable resource, int continuation) {
+        this.source = source;
+        this.resource = resource;
+        this.continuation = continuation;
+    }
+
+    /**
+     * @return Returns a page without messages.
+     */
+    public static MessagePage empty() {
+        return new MessagePage(Collections.emptyIterator(), () -> {
+        }, 0);
+    }
+
+    /**
+     * @return Returns true if the page contains at least one message not yet read.
+     */
+    public boolean hasMessages() {
+        return messages == null || messages.hasNext();
+    }
+
+    /**
+     * @return Returns the next message of the page.
+     */
+    public Message next() {
+        return messages().next();
+    }
+
+    /**
+     * @return Returns the sequence number to request the next page with or 0 if this is the last page.
+     */
+    public int getContinuation() {
+        return continuation;
+    }
+
+    @Override
+    public void write(OutputStream output) throws IOException {
+        try {
+            // Read before anything is written, so a failing query is still answered with an error status.
+            boolean more = messages().hasNext();
+            OutputStream buffered = new BufferedOutputStream(output);
+            buffered.write('[');
+            boolean first = true;
+            while (more) {
+                if (!first) {
+                    buffered.write(',');
+                }
+
+                MessageJson.write(buffered, messages.next(), false);
+                first = false;
+                more = hasMore();
+            }
+
+            buffered.write(']');
+            buffered.flush();
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * @return Returns the page as a stream of consecutive MessagePack encoded messages. An array header can't be used
+     * since the number of messages is not known before the cursor is exhausted.
+     */
+    public StreamingOutput asMessagePack() {
+        return output -> {
+            try {
+                boolean more = messages().hasNext();
+                OutputStream buffered = new BufferedOutputStream(output);
+                while (more) {
+                    MessagePack.write(buffered, messages.next(), false);
+                    more = hasMore();
+                }
+
+                buffered.flush();
+            } finally {
+                close();
+            }
+        };
+    }
+
+    private Iterator<Message> messages() {
+        if (messages == null) {
+            messages = source.get();
+        }
+
+        return messages;
+    }
+
+    /**
+     * @return Returns whether another message follows the one written last.
+     * @throws IOException Reading failed and the page can't end early.
+     */
+    private boolean hasMore() throws IOException {
+        try {
+            return messages.hasNext();
+        } catch (RuntimeException e) {
+            if (continuation > 0) {
+                throw new IOException("Failed to read page, aborting it", e);
+            }
+
+            System.out.printf("Failed to read page, ending it early: %s%n", e.getMessage());
+            return false;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        resource.close();
+    }
+}
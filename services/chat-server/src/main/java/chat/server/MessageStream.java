@@ -0,0 +1,225 @@
+package chat.server;
+
+import javax.ws.rs.core.StreamingOutput;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Pushes new messages of a user to the client as server-sent events. Messages are not removed from storage by the
+ * stream, the client still confirms received messages through /messages/{userid}/{sequenceNumber}.
+ * <p>
+ * The stream holds no thread while it waits: the storage is queried and the events are written on the executor when
+ * a new message was signaled or a heartbeat is due, like a long poll that never ends.
+ */
+public class MessageStream implements StreamingOutput {
+
+    private static final int PAGE_SIZE = 100;
+
+    private final User receiver;
+    private final StorageProvider provider;
+    private final InboxWaiters waiters;
+    private final ScheduledExecutorService executor;
+    private final Semaphore openStreams;
+    private final long maxDurationMillis;
+    private final long heartbeatMillis;
+    private final CompletableFuture<Void> done = new CompletableFuture<>();
+    private final AtomicBoolean started = new AtomicBoolean();
+    private OutputStream output;
+    private long deadline;
+    private int sequenceNumber;
+    /**
+     * Ends the current wait: true if a message was signaled, false if a heartbeat is due or the stream was cancelled.
+     */
+    private volatile CompletableFuture<Boolean> wake;
+
+    /**
+     * Creates a new message stream. The stream takes one of the open stream slots only once it is started, so a
+     * stream that is never written (e.g. for a HEAD request or a client that went away) doesn't hold a slot.
+     *
+     * @param provider          The storage provider the messages are read from.
+     * @param waiters           The registry signaled when a message for the receiver was stored.
+     * @param executor          Queries the storage and writes the events after a signal or heartbeat.
+     * @param receiver          The user whose messages are streamed.
+     * @param sequenceNumber    The last sequence number the client has received.
+     * @param maxDurationMillis The time after which the stream is closed and the client has to reconnect.
+     * @param heartbeatMillis   The interval in which a comment is sent to keep idle connections open.
+     * @param openStreams       The slots of streams that may be open at the same time. If there is none left the
+     *                          stream only tells the client to reconnect after a heartbeat interval.
+     */
+    public MessageStream(StorageProvider provider, InboxWaiters waiters, ScheduledExecutorService executor,
+                         User receiver, int sequenceNumber, long maxDurationMillis, long heartbeatMillis,
+                         Semaphore openStreams) {
+        this.provider = provider;
+        this.waiters = waiters;
+        this.executor = executor;
+        this.openStreams = openStreams;
+        this.receiver = receiver;
+        this.sequenceNumber = sequenceNumber;
+        this.maxDurationMillis = maxDurationMillis;
+        this.heartbeatMillis = heartbeatMillis;
+    }
+
+    /**
+     * Starts writing events to the output and returns right away.
+     *
+     * @param output The output the events are written to. It is not closed by the stream.
+     * @return Returns a future completed once the stream ended, exceptionally if writing to the output or querying
+     * the storage failed.
+     */
+    public CompletableFuture<Void> start(OutputStream output) {
+        if (!started.compareAndSet(false, true)) {
+            throw new IllegalStateException("The stream was already started");
+        }
+
+        this.output = output;
+        if (!openStreams.tryAcquire()) {
+            System.out.printf("[/stream] Too many open streams, rejected %s%n", receiver.getName());
+            try {
+                write("retry: " + heartbeatMillis + "\n\n");
+                done.complete(null);
+            } catch (IOException e) {
+                done.completeExceptionally(e);
+            }
+
+            return done;
+        }
+
+        done.whenComplete((result, e) -> openStreams.release());
+        deadline = System.currentTimeMillis() + maxDurationMillis;
+        try {
+            // Tell the client how long to wait before reconnecting after the stream was closed.
+            write("retry: 1000\n\n");
+        } catch (IOException e) {
+            done.completeExceptionally(e);
+            return done;
+        }
+
+        executor.execute(this::poll);
+        return done;
+    }
+
+    /**
+     * Ends the stream, e.g. because the client went away. Nothing is written anymore.
+     */
+    public void cancel() {
+        done.complete(null);
+        CompletableFuture<Boolean> current = wake;
+        if (current != null) {
+            current.complete(false);
+        }
+    }
+
+    /**
+     * Writes the events on the calling thread until the stream ended. Used where the response can't be suspended.
+     */
+    @Override
+    public void write(OutputStream output) throws IOException {
+        try {
+            start(output).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+
+            throw e;
+        }
+    }
+
+    private void poll() {
+        if (System.currentTimeMillis() >= deadline) {
+            done.complete(null);
+        }
+
+        if (done.isDone()) {
+            return;
+        }
+
+        // Register before querying so a message stored in between is not missed.
+        CompletableFuture<Void> signal = waiters.register(receiver.getName());
+        try {
+            MessagePage newMsgs = provider.getMessages(receiver, sequenceNumber, PAGE_SIZE);
+            if (newMsgs == null) {
+                // The client is ahead of the server, it has to start over.
+                waiters.unregister(receiver.getName(), signal);
+                write("event: reset\ndata: {}\n\n");
+                done.complete(null);
+                return;
+            }
+
+            try {
+                if (newMsgs.hasMessages()) {
+                    waiters.unregister(receiver.getName(), signal);
+                    writeMessages(newMsgs);
+                    executor.execute(this::poll);
+                    return;
+                }
+            } finally {
+                newMsgs.close();
+            }
+        } catch (IOException | RuntimeException e) {
+            waiters.unregister(receiver.getName(), signal);
+            done.completeExceptionally(e);
+            return;
+        }
+
+        long remaining = Math.max(1, deadline - System.currentTimeMillis());
+        CompletableFuture<Boolean> next = new CompletableFuture<>();
+        wake = next;
+        signal.thenRun(() -> next.complete(true));
+        ScheduledFuture<?> heartbeat = executor.schedule(() -> next.complete(false),
+                Math.min(heartbeatMillis, remaining), TimeUnit.MILLISECONDS);
+        if (done.isDone()) {
+            // Cancelled before the wait could be ended.
+            next.complete(false);
+        }
+
+        next.thenAcceptAsync(signaled -> {
+            heartbeat.cancel(false);
+            waiters.unregister(receiver.getName(), signal);
+            if (done.isDone()) {
+                return;
+            }
+
+            if (!signaled && System.currentTimeMillis() < deadline) {
+                // A heartbeat was due.
+                try {
+                    write(": keep-alive\n\n");
+                } catch (IOException e) {
+                    done.completeExceptionally(e);
+                    return;
+                }
+            }
+
+            poll();
+        }, executor);
+    }
+
+    private void writeMessages(MessagePage messages) throws IOException {
+        ByteArrayOutputStream events = new ByteArrayOutputStream(256);
+        while (messages.hasMessages()) {
+            Message msg = messages.next();
+            events.write(("id: " + msg.sequence + "\nevent: message\ndata: ").getBytes(StandardCharsets.UTF_8));
+            MessageJson.write(events, msg, false);
+            events.write('\n');
+            events.write('\n');
+            sequenceNumber = Math.max(sequenceNumber, msg.sequence);
+        }
+
+        events.writeTo(output);
+        output.flush();
+    }
+
+    private void write(String event) throws IOException {
+        output.write(event.getBytes(StandardCharsets.UTF_8));
+        output.flush();
+    }
+}
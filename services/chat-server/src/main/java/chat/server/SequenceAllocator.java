@@ -0,0 +1,251 @@
+package chat.server;
+
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoException;
+import com.mongodb.MongoInterruptedException;
+import com.mongodb.MongoWriteException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.ReturnDocument;
+import org.bson.Document;
+
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.mongodb.client.model.Filters.*;
+import static com.mongodb.client.model.Updates.*;
+
+/**
+ * Hands out the per-recipient message sequence numbers.
+ * <p>
+ * With a block size of 1 every number is fetched from the sequence collection. With a larger block size the allocator
+ * leases a block of numbers for a recipient and hands them out locally. A lease is exclusive: the sequence document
+ * records the owning chat server instance and the lease end, other instances only take over the recipient after the
+ * lease expired. That way numbers are never handed out twice and always increase per recipient even if several chat
+ * servers share the database. Unused numbers of an expired block are skipped.
+ * <p>
+ * A reservation for a recipient leased by another instance waits until that lease ended, since numbers taken past the
+ * leased block would be stored before the owner's lower ones and an acknowledgement of the higher number would hide
+ * them. The waiting instance marks the sequence document for handover, so the owner doesn't renew its lease and
+ * stops using its block at its local lease end. The wait takes at most one lease, which is why leases are short.
+ * All instances have to use the same block size, a block size of 1 doesn't look at leases.
+ * <p>
+ * Every change of a sequence document records its time in {@code modified}, see {@link HighWaterMarks}. Reservations
+ * made with a block size of 1 also increment the document's write counter ({@code writes}), see {@link InboxCache}.
+ */
+public class SequenceAllocator {
+
+    private static final int STRIPES = 64;
+    private static final int MAX_CACHED_BLOCKS = 10000;
+
+    private final MongoCollection<Document> sequences;
+    private final int sequenceOffset;
+    private final int blockSize;
+    private final long leaseMillis;
+    private final String instanceId = UUID.randomUUID().toString();
+    private final Object[] locks = new Object[STRIPES];
+    private final ConcurrentHashMap<String, Block> blocks = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a new allocator.
+     *
+     * @param sequences      The collection holding the latest sequence number of every recipient.
+     * @param sequenceOffset The sequence number of a recipient's first message.
+     * @param blockSize      The number of sequence numbers leased at once.
+     * @param leaseMillis    How long a leased block may be used by this instance.
+     */
+    public SequenceAllocator(MongoCollection<Document> sequences, int sequenceOffset, int blockSize, long leaseMillis) {
+        this.sequences = sequences;
+        this.sequenceOffset = sequenceOffset;
+        this.blockSize = Math.max(1, blockSize);
+        this.leaseMillis = leaseMillis;
+        for (int i = 0; i < STRIPES; i++) {
+            locks[i] = new Object();
+        }
+
+        try {
+            // Guarantees that concurrently created sequence documents can't coexist.
+            sequences.createIndex(Indexes.ascending("user"), new IndexOptions().unique(true));
+        } catch (MongoException e) {
+            System.out.printf("Could not create unique sequence index: %s%n", e.getMessage());
+        }
+    }
+
+    /**
+     * Reserves contiguous sequence numbers for a recipient.
+     *
+     * @param user  The recipient's name.
+     * @param count The amount of sequence numbers to reserve.
+     * @return Returns the reserved sequence numbers.
+     */
+    public Reservation reserve(String user, int count) {
+        if (blockSize == 1) {
+            return reserveFromDatabase(user, count);
+        }
+
+        synchronized (locks[(user.hashCode() & 0x7fffffff) % STRIPES]) {
+            long now = System.currentTimeMillis();
+            Block block = blocks.get(user);
+            int previous = block == null ? sequenceOffset - 1 : block.high;
+            if (block == null || block.validUntil <= now || block.high - block.next + 1 < count) {
+                if (blocks.size() > MAX_CACHED_BLOCKS) {
+                    blocks.values().removeIf(b -> b.validUntil <= now);
+                }
+
+                block = leaseBlock(user, Math.max(blockSize, count));
+                blocks.put(user, block);
+                previous = block.previous;
+            }
+
+            int first = block.next;
+            block.next += count;
+            return new Reservation(first, previous, block.high, 0);
+        }
+    }
+
+    private Reservation reserveFromDatabase(String user, int count) {
+        while (true) {
+            Document sequence =
+                    sequences.findOneAndUpdate(
+                            eq("user", user),
+                            combine(set("user", user), inc("sequence", count), inc("writes", 1),
+                                    set("modified", System.currentTimeMillis())),
+                            new FindOneAndUpdateOptions().returnDocument(ReturnDocument.AFTER));
+            if (sequence != null) {
+                // The update returns the last number of the reserved range.
+                int high = sequence.getInteger("sequence");
+                return new Reservation(high - count + 1, high - count, high, sequence.getInteger("writes"));
+            }
+
+            Document newSequence = new Document("user", user)
+                    .append("sequence", sequenceOffset + count - 1)
+                    .append("writes", 1)
+                    .append("modified", System.currentTimeMillis());
+            if (insertSequence(newSequence)) {
+                return new Reservation(sequenceOffset, sequenceOffset - 1, sequenceOffset + count - 1, 1);
+            }
+        }
+    }
+
+    /**
+     * @param user The recipient's name.
+     * @return Returns the highest sequence number this instance handed out from a block for the recipient or 0 if it
+     * doesn't know it.
+     */
+    public int issued(String user) {
+        Block block = blocks.get(user);
+        return block == null ? 0 : block.next - 1;
+    }
+
+    private Block leaseBlock(String user, int size) {
+        while (true) {
+            long now = System.currentTimeMillis();
+            // The owner only renews its lease while no other instance waits for it.
+            Document sequence =
+                    sequences.findOneAndUpdate(
+                            and(eq("user", user),
+                                    or(and(eq("owner", instanceId), exists("handover", false)),
+                                            exists("owner", false), lt("leaseUntil", now))),
+                            combine(set("owner", instanceId), set("leaseUntil", now + leaseMillis),
+                                    inc("sequence", size), set("modified", now), unset("handover")),
+                            new FindOneAndUpdateOptions().returnDocument(ReturnDocument.AFTER));
+            if (sequence != null) {
+                int high = sequence.getInteger("sequence");
+                return new Block(high - size, high, localLeaseEnd(now));
+            }
+
+            Document newSequence = new Document("user", user)
+                    .append("sequence", sequenceOffset + size - 1)
+                    .append("owner", instanceId)
+                    .append("leaseUntil", now + leaseMillis)
+                    .append("modified", now);
+            if (insertSequence(newSequence)) {
+                return new Block(sequenceOffset - 1, sequenceOffset + size - 1, localLeaseEnd(now));
+            }
+
+            // Another instance holds the lease. Ask it to hand the recipient over and wait until the lease ended.
+            sequence = sequences.findOneAndUpdate(eq("user", user), set("handover", true));
+            if (sequence != null && sequence.getLong("leaseUntil") != null) {
+                awaitLeaseEnd(Math.min(sequence.getLong("leaseUntil"), now + leaseMillis) - now);
+            }
+        }
+    }
+
+    private static void awaitLeaseEnd(long millis) {
+        try {
+            Thread.sleep(Math.max(1, millis + 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MongoInterruptedException("Interrupted while waiting for a sequence lease", e);
+        }
+    }
+
+    private boolean insertSequence(Document sequence) {
+        try {
+            sequences.insertOne(sequence);
+            return true;
+        } catch (MongoWriteException e) {
+            if (e.getError().getCategory() == ErrorCategory.DUPLICATE_KEY) {
+                return false;
+            }
+
+            throw e;
+        }
+    }
+
+    /**
+     * Stop using a block a quarter of the lease early so small clock differences between instances don't matter.
+     */
+    private long localLeaseEnd(long leaseStart) {
+        return leaseStart + leaseMillis - leaseMillis / 4;
+    }
+
+    /**
+     * Reserved sequence numbers. Besides the range the reservation tells which value the recipient's sequence document
+     * had before and after the reservation, which allows to detect reservations made by other instances.
+     */
+    public static class Reservation {
+        /**
+         * The first reserved sequence number.
+         */
+        public final int first;
+
+        /**
+         * The sequence document's value before the reservation.
+         */
+        public final int previous;
+
+        /**
+         * The sequence document's value after the reservation.
+         */
+        public final int high;
+
+        /**
+         * The sequence document's write counter after the reservation or 0 if the numbers came from a leased block.
+         */
+        public final int writes;
+
+        private Reservation(int first, int previous, int high, int writes) {
+            this.first = first;
+            this.previous = previous;
+            this.high = high;
+            this.writes = writes;
+        }
+    }
+
+    private static class Block {
+        private int next;
+        private final int previous;
+        private final int high;
+        private final long validUntil;
+
+        private Block(int previous, int high, long validUntil) {
+            this.next = previous + 1;
+            this.previous = previous;
+            this.high = high;
+            this.validUntil = validUntil;
+        }
+    }
+}
@@ -1,19 +1,44 @@
 package chat.server;
 
-import com.mongodb.MongoClientURI;
+import com.mongodb.MongoException;
 import com.sun.grizzly.http.SelectorThread;
-import com.sun.jersey.api.container.grizzly.GrizzlyWebContainerFactory;
 import org.json.JSONArray;
-import org.json.JSONException;
+import org.json.JSONObject;
 import services.common.AuthenticationProvider;
+import services.common.CachingAuthenticationProvider;
+import services.common.RateLimiter;
+import services.common.ServerBootstrap;
+import services.common.SignedTokens;
+import services.common.SuspendedResponse;
 
+import javax.servlet.http.HttpServletRequest;
 import javax.ws.rs.*;
 import javax.ws.rs.core.*;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.text.ParseException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Provides a basic REST chat server.
@@ -25,10 +50,27 @@ public class Service {
      * String for date parsing in ISO 8601 format.
      */
     static final String ISO8601 = "yyyy-MM-dd'T'HH:mm:ssZ";
+    /**
+     * Time after the longest wait after which Grizzly drops a suspended response that was never answered.
+     */
+    private static final long SUSPEND_GRACE_MILLIS = 10000;
     private static SelectorThread threadSelector = null;
 
-    private static StorageProviderMongoDB provider;
+    private static StorageProvider provider;
     private static AuthenticationProvider auth;
+    private static InboxWaiters waiters;
+    private static MessageExpiry expiry;
+    private static InboxQuota quota;
+    private static RateLimiter sendLimiter;
+    private static RateLimiter messagesLimiter;
+    private static RateLimiter clientLimiter;
+    private static ScheduledExecutorService longPolls;
+    private static ExecutorService storage;
+    private static Semaphore openStreams;
+
+    @Context
+    private HttpServletRequest request;
+
     public Service() {
 
     }
@@ -38,10 +80,18 @@ public class Service {
      * @param provider Storage provider used for persistence.
      * @param auth Authentication provider for user authentication.
      */
-    public Service(StorageProviderMongoDB provider, AuthenticationProvider auth) {
+    public Service(StorageProvider provider, AuthenticationProvider auth) {
         // Not nice but using a real dependency injection framework is out of scope for now.
         Service.provider = provider;
         Service.auth = auth;
+        Service.waiters = new InboxWaiters(Integer.parseInt(Config.longPollMaxParked.value()));
+        Service.longPolls = longPollExecutor();
+        Service.storage = storageExecutor();
+        Service.openStreams = new Semaphore(Integer.parseInt(Config.streamMaxOpen.value()));
+        Service.quota = InboxQuota.fromConfig();
+        Service.sendLimiter = rateLimiter(Config.sendRateLimit, Config.sendRateBurst);
+        Service.messagesLimiter = rateLimiter(Config.messagesRateLimit, Config.messagesRateBurst);
+        Service.clientLimiter = rateLimiter(Config.clientRateLimit, Config.clientRateBurst);
     }
 
     public static void main(String[] args) {
@@ -53,19 +103,60 @@ public class Service {
             System.exit(-1);
         }
 
-        provider = new StorageProviderMongoDB(new MongoClientURI(Config.mongoURI.value()), Config.dbName.value());
-        auth = new AuthenticationProvider(Config.loginURI.value());
+        try {
+            provider = StorageProvider.fromConfig();
+        } catch (IOException | IllegalArgumentException e) {
+            System.out.printf("Failed to open %s storage: %s%n", Config.storage.value(), e.getMessage());
+            System.exit(-1);
+        }
+
+        long ttlSeconds = Long.parseLong(Config.messageTtlSeconds.value());
+        if (ttlSeconds > 0) {
+            expiry = new MessageExpiry(provider, ttlSeconds * 1000L,
+                    Integer.parseInt(Config.messageExpiryBatchSize.value()));
+            expiry.start(Long.parseLong(Config.messageExpiryInterval.value()));
+        }
+
+        int authConnections = Integer.parseInt(Config.authMaxConnections.value());
+        int authConnectTimeout = Integer.parseInt(Config.authConnectTimeoutMillis.value());
+        int authReadTimeout = Integer.parseInt(Config.authReadTimeoutMillis.value());
+        if (Boolean.parseBoolean(Config.useAuthCache.value())) {
+            auth = new CachingAuthenticationProvider(Config.loginURI.value(), authConnections, authConnectTimeout,
+                    authReadTimeout,
+                    Long.parseLong(Config.authCacheMaxSeconds.value()),
+                    Long.parseLong(Config.authCacheRejectedSeconds.value()),
+                    Integer.parseInt(Config.authCacheMaxEntries.value()));
+        } else {
+            auth = new AuthenticationProvider(Config.loginURI.value(), authConnections, authConnectTimeout,
+                    authReadTimeout);
+        }
+
+        auth.setMaxBatch(Integer.parseInt(Config.authMaxBatch.value()));
+        try {
+            auth.setSignedTokens(SignedTokens.fromSettings(Config.getSettingValues(Config.tokenSigningKeys),
+                    Config.getSettingValues(Config.tokenRevoked)));
+        } catch (IllegalArgumentException e) {
+            System.out.printf("Invalid token settings: %s%n", e.getMessage());
+            System.exit(-1);
+        }
+
+        waiters = new InboxWaiters(Integer.parseInt(Config.longPollMaxParked.value()));
+        longPolls = longPollExecutor();
+        storage = storageExecutor();
+        openStreams = new Semaphore(Integer.parseInt(Config.streamMaxOpen.value()));
+        quota = InboxQuota.fromConfig();
+        sendLimiter = rateLimiter(Config.sendRateLimit, Config.sendRateBurst);
+        messagesLimiter = rateLimiter(Config.messagesRateLimit, Config.messagesRateBurst);
+        clientLimiter = rateLimiter(Config.clientRateLimit, Config.clientRateBurst);
         startChatServer(Config.baseURI.value());
     }
 
     public static void startChatServer(String uri) {
         final String packet = "chat.server";
-        final Map<String, String> initParams = new HashMap<String, String>();
 
-        initParams.put("com.sun.jersey.config.property.packages", packet);
         System.out.println("Starting grizzly...");
         try {
-            threadSelector = GrizzlyWebContainerFactory.create(uri, initParams);
+            threadSelector = ServerBootstrap.start(uri, packet, name -> Config.valueOf(name).value());
         } catch (IllegalArgumentException | IOException e) {
             e.printStackTrace();
             System.out.println("Failed to start grizzly!");
@@ -83,26 +174,63 @@ public class Service {
     /**
      * Receives new message from the user.
      *
-     * @param json A JSON object containing the fields to,from,date and text.
+     * @param body A JSON object containing the fields to,from,date and text.
      * @return If successful returns 204(Created) and a JSON object containing
-     * date and sequenceNumber of the Message.
+     * date and sequenceNumber of the Message. If the recipient's inbox is full returns 429(Too Many Requests) with a
+     * Retry-After header.
      */
     @PUT
     @Path("/send")
     @Produces(MediaType.APPLICATION_JSON)
     @Consumes(MediaType.APPLICATION_JSON)
-    public Response send(String json) {
-        String corsOrigin = Config.corsAllowOrigin.value();
+    public Response send(InputStream body) {
         Message msg;
         try {
-            msg = Message.fromJson(json);
-        } catch (ParseException e) {
+            msg = MessageJson.read(body, maxFieldLength(), maxTextLength());
+        } catch (ParseException | IOException e) {
             System.out.println("[/send] Message was badly formatted");
             return Response.status(Response.Status.BAD_REQUEST)
-                    .header("Access-Control-Allow-Origin", corsOrigin)
+                    .header("Access-Control-Allow-Origin", Config.corsAllowOrigin.value())
                     .entity("Message was incomplete").build();
         }
 
+        return send(msg, false);
+    }
+
+    /**
+     * Receives new message from the user in binary form.
+     *
+     * @param body A MessagePack map containing the fields to,from,date and text.
+     * @return If successful returns 204(Created) and a MessagePack map containing
+     * date and sequenceNumber of the Message.
+     */
+    @PUT
+    @Path("/send")
+    @Produces(MessagePack.MEDIA_TYPE)
+    @Consumes(MessagePack.MEDIA_TYPE)
+    public Response sendMessagePack(InputStream body) {
+        Message msg;
+        try {
+            msg = MessagePack.decode(body, maxFieldLength(), maxTextLength());
+        } catch (ParseException | IOException e) {
+            System.out.println("[/send] Message was badly formatted");
+            return Response.status(Response.Status.BAD_REQUEST)
+                    .header("Access-Control-Allow-Origin", Config.corsAllowOrigin.value())
+                    .entity("Message was incomplete").build();
+        }
+
+        return send(msg, true);
+    }
+
+    private Response send(Message msg, boolean binary) {
+        String corsOrigin = Config.corsAllowOrigin.value();
+        // Checked by address before the token so unauthenticated clients can't use up a user's limit.
+        long wait = acquireClient();
+        if (wait > 0) {
+            System.out.printf("[/send] Rate limited %s%n", clientAddress());
+            return rateLimited(corsOrigin, wait);
+        }
+
         if (authenticateUser(msg.token, msg.from) == null) {
             System.out.printf("[/send] Could not authenticate user %s with token %s%n", msg.from, msg.token);
             return Response.status(Response.Status.UNAUTHORIZED)
@@ -112,31 +240,267 @@ public class Service {
 
         }
 
-        User receiver = new User(provider, msg.to);
-        if (receiver.sendMessage(msg) == null) {
+        wait = sendLimiter.acquire(msg.from);
+        if (wait > 0) {
+            System.out.printf("[/send] Rate limited %s%n", msg.from);
+            return rateLimited(corsOrigin, wait);
+        }
+
+        if (!quota.admits(provider, msg.to, 1, InboxQuota.size(msg))) {
+            System.out.printf("[/send] Inbox of %s is full, rejected message of %s%n", msg.to, msg.from);
+            return inboxFull(corsOrigin);
+        }
+
+        User receiver = new User(provider, waiters, msg.to);
+        SuspendedResponse suspended = SuspendedResponse.of(request);
+        if (suspended == null) {
+            return sentResponse(receiver.sendMessage(msg), binary, corsOrigin);
+        }
+
+        // The worker is released while the message is stored.
+        CompletableFuture<Response> response;
+        try {
+            response = receiver.sendMessageAsync(msg, storage).handle((sent, e) -> e == null
+                    ? sentResponse(sent, binary, corsOrigin)
+                    : failedResponse(e, corsOrigin));
+        } catch (RejectedExecutionException e) {
+            return StorageBusyMapper.busy();
+        }
+
+        if (response.isDone()) {
+            return response.join();
+        }
+
+        suspended.suspend(response, storageTimeoutMillis(), () -> {
+        });
+        // Replaced by the confirmation once the message is stored.
+        return Response.status(Response.Status.ACCEPTED)
+                .header("Access-Control-Allow-Origin", corsOrigin).build();
+    }
+
+    /**
+     * @return Returns 201(Created) confirming the message with its date and sequence number or 400(Bad Request) if
+     * the storage refused it.
+     */
+    private static Response sentResponse(Message msg, boolean binary, String corsOrigin) {
+        if (msg == null) {
             System.out.println("[/send] DB refused message.");
             return Response.status(Response.Status.BAD_REQUEST)
                     .header("Access-Control-Allow-Origin", corsOrigin)
                     .entity("Message was not correctly formatted").build();
         }
 
+        // The server confirms a received message by returning its date and sequence number.
+        return Response.status(Response.Status.CREATED)
+                .header("Access-Control-Allow-Origin", corsOrigin)
+                .entity(binary ? MessagePack.encode(msg, true) : MessageJson.toBytes(msg, true)).build();
+    }
+
+    /**
+     * Receives a batch of new messages from one user, e.g. messages queued while the client was offline.
+     *
+     * @param json A JSON array of objects containing the fields to,from,date,text and token. All messages have to
+     *             be sent by the same user with the same token.
+     * @return If successful returns 201(Created) and a JSON array containing date and sequenceNumber of every message
+     * in the order they were sent.
+     */
+    @PUT
+    @Path("/send/batch")
+    @Produces(MediaType.APPLICATION_JSON)
+    @Consumes(MediaType.APPLICATION_JSON)
+    public Response sendBatch(InputStream json) {
+        String corsOrigin = Config.corsAllowOrigin.value();
+        List<Message> msgs;
+        try {
+            msgs = MessageJson.readBatch(json, Integer.parseInt(Config.maxBatchSize.value()), maxFieldLength(),
+                    maxTextLength());
+        } catch (ParseException | IOException e) {
+            System.out.println("[/send/batch] Messages were badly formatted");
+            return Response.status(Response.Status.BAD_REQUEST)
+                    .header("Access-Control-Allow-Origin", corsOrigin)
+                    .entity("Messages were incomplete").build();
+        }
+
+        if (msgs.isEmpty()) {
+            System.out.printf("[/send/batch] Rejected batch of %d messages%n", msgs.size());
+            return Response.status(Response.Status.BAD_REQUEST)
+                    .header("Access-Control-Allow-Origin", corsOrigin)
+                    .entity("Invalid batch size").build();
+        }
+
+        Message first = msgs.get(0);
+        for (Message msg : msgs) {
+            if (!first.from.equals(msg.from) || !first.token.equals(msg.token)) {
+                System.out.println("[/send/batch] Batch contained messages of different senders.");
+                return Response.status(Response.Status.BAD_REQUEST)
+                        .header("Access-Control-Allow-Origin", corsOrigin)
+                        .entity("All messages must have the same sender").build();
+            }
+        }
+
+        long wait = acquireClient();
+        if (wait > 0) {
+            System.out.printf("[/send/batch] Rate limited %s%n", clientAddress());
+            return rateLimited(corsOrigin, wait);
+        }
+
+        if (authenticateUser(first.token, first.from) == null) {
+            System.out.printf("[/send/batch] Could not authenticate user %s with token %s%n", first.from, first.token);
+            return Response.status(Response.Status.UNAUTHORIZED)
+                    .entity("Invalid Token")
+                    .header("Access-Control-Allow-Origin", corsOrigin)
+                    .build();
+        }
+
+        wait = sendLimiter.acquire(first.from, msgs.size());
+        if (wait > 0) {
+            System.out.printf("[/send/batch] Rate limited %s%n", first.from);
+            return rateLimited(corsOrigin, wait);
+        }
+
+        Map<String, List<Message>> byRecipient = new HashMap<>();
+        for (Message msg : msgs) {
+            byRecipient.computeIfAbsent(msg.to, to -> new ArrayList<>()).add(msg);
+        }
+
+        for (Map.Entry<String, List<Message>> recipient : byRecipient.entrySet()) {
+            long bytes = 0;
+            for (Message msg : recipient.getValue()) {
+                bytes += InboxQuota.size(msg);
+            }
+
+            if (!quota.admits(provider, recipient.getKey(), recipient.getValue().size(), bytes)) {
+                System.out.printf("[/send/batch] Inbox of %s is full, rejected batch of %s%n",
+                        recipient.getKey(), first.from);
+                return inboxFull(corsOrigin);
+            }
+        }
+
+        if (!provider.addMessages(msgs)) {
+            System.out.println("[/send/batch] DB refused messages.");
+            return Response.status(Response.Status.BAD_REQUEST)
+                    .header("Access-Control-Allow-Origin", corsOrigin)
+                    .entity("Messages were not correctly formatted").build();
+        }
+
+        JSONArray confirmations = new JSONArray();
+        Set<String> recipients = new HashSet<>();
+        for (Message msg : msgs) {
+            confirmations.put(msg.toJson(true));
+            recipients.add(msg.to);
+        }
+
+        System.out.printf("%s -> %d messages for %d recipients%n", first.from, msgs.size(), recipients.size());
+        for (String recipient : recipients) {
+            waiters.signal(recipient);
+        }
+
+        return Response.status(Response.Status.CREATED)
+                .header("Access-Control-Allow-Origin", corsOrigin)
+                .entity(confirmations.toString()).build();
+    }
+
+    /**
+     * Receives a message sent to several recipients. The text is stored once for all recipients where the storage
+     * supports it.
+     *
+     * @param json A JSON object containing the fields from,date,text and token and the field to holding a JSON array
+     *             of recipients.
+     * @return If successful returns 201(Created) and a JSON array containing to, date and sequenceNumber of the
+     * message for every recipient.
+     */
+    @PUT
+    @Path("/send/group")
+    @Produces(MediaType.APPLICATION_JSON)
+    @Consumes(MediaType.APPLICATION_JSON)
+    public Response sendGroup(InputStream json) {
+        String corsOrigin = Config.corsAllowOrigin.value();
+        Message msg;
+        List<String> recipients;
+        try {
+            Set<String> unique = new LinkedHashSet<>();
+            msg = MessageJson.readGroup(json, unique, Integer.parseInt(Config.maxGroupSize.value()), maxFieldLength(),
+                    maxTextLength());
+            recipients = new ArrayList<>(unique);
+        } catch (ParseException | IOException e) {
+            System.out.println("[/send/group] Message was badly formatted");
+            return Response.status(Response.Status.BAD_REQUEST)
+                    .header("Access-Control-Allow-Origin", corsOrigin)
+                    .entity("Message was incomplete").build();
+        }
+
+        if (recipients.isEmpty()) {
+            System.out.printf("[/send/group] Rejected message for %d recipients%n", recipients.size());
+            return Response.status(Response.Status.BAD_REQUEST)
+                    .header("Access-Control-Allow-Origin", corsOrigin)
+                    .entity("Invalid number of recipients").build();
+        }
+
+        long wait = acquireClient();
+        if (wait > 0) {
+            System.out.printf("[/send/group] Rate limited %s%n", clientAddress());
+            return rateLimited(corsOrigin, wait);
+        }
+
+        if (authenticateUser(msg.token, msg.from) == null) {
+            System.out.printf("[/send/group] Could not authenticate user %s with token %s%n", msg.from, msg.token);
+            return Response.status(Response.Status.UNAUTHORIZED)
+                    .entity("Invalid Token")
+                    .header("Access-Control-Allow-Origin", corsOrigin)
+                    .build();
+        }
+
+        wait = sendLimiter.acquire(msg.from, recipients.size());
+        if (wait > 0) {
+            System.out.printf("[/send/group] Rate limited %s%n", msg.from);
+            return rateLimited(corsOrigin, wait);
+        }
+
+        for (String recipient : recipients) {
+            if (!quota.admits(provider, recipient, 1, InboxQuota.size(msg))) {
+                System.out.printf("[/send/group] Inbox of %s is full, rejected message of %s%n", recipient, msg.from);
+                return inboxFull(corsOrigin);
+            }
+        }
+
+        List<Message> msgs = provider.addGroupMessage(msg, recipients);
+        if (msgs == null) {
+            System.out.println("[/send/group] DB refused message.");
+            return Response.status(Response.Status.BAD_REQUEST)
+                    .header("Access-Control-Allow-Origin", corsOrigin)
+                    .entity("Message was not correctly formatted").build();
+        }
+
+        JSONArray confirmations = new JSONArray();
+        for (Message copy : msgs) {
+            confirmations.put(copy.toJson(true).put("to", copy.to));
+        }
+
+        System.out.printf("%s -> group message for %d recipients%n", msg.from, recipients.size());
+        for (String recipient : recipients) {
+            waiters.signal(recipient);
+        }
+
         return Response.status(Response.Status.CREATED)
                 .header("Access-Control-Allow-Origin", corsOrigin)
-                .entity(msg.toJson(true).toString()).build();
+                .entity(confirmations.toString()).build();
     }
 
     /**
      * Queries new messages for the user.
      *
      * @param userID The user's name.
+     * @param wait   Optional time in seconds to wait for a new message if there are none (long polling).
+     * @param limit  Optional maximum number of returned messages.
      * @return If successful returns 200(OK) and a JSON array of new messages.
      * If no new messages are available returns 204(No Content).
      */
     @GET
-    @Produces(MediaType.APPLICATION_JSON)
+    @Produces({MediaType.APPLICATION_JSON, MessagePack.MEDIA_TYPE})
     @Path("/messages/{userid}")
-    public Response getMessages(@PathParam("userid") String userID, @Context HttpHeaders header) {
-        return getMessages(userID, 0, header);
+    public Response getMessages(@PathParam("userid") String userID, @QueryParam("wait") @DefaultValue("0") int wait,
+                                @QueryParam("limit") @DefaultValue("0") int limit, @Context HttpHeaders header) {
+        return getMessages(userID, 0, wait, limit, header);
     }
 
     /**
@@ -145,56 +509,65 @@ public class Service {
      *
      * @param userID         The user's name.
      * @param sequenceNumber The starting sequenceNumber.
-     * @return If successful returns 200(OK) and a JSON array of new messages.
+     * @param wait           Optional time in seconds to wait for a new message if there are none (long polling).
+     *                       Capped by Config.longPollMaxWait. The request is suspended while it waits, so it
+     *                       holds no worker thread.
+     * @param limit          Optional maximum number of returned messages. If more messages are available the
+     *                       X-Next-Sequence header contains the sequence number to request the next page with.
+     * @return If successful returns 200(OK) and a JSON array of new messages. If the client prefers
+     * application/x-msgpack the messages are sent as consecutive MessagePack maps instead.
      * If no new messages are available returns 204(No Content).
      */
     @GET
-    @Produces(MediaType.APPLICATION_JSON)
+    @Produces({MediaType.APPLICATION_JSON, MessagePack.MEDIA_TYPE})
     @Path("/messages/{userid}/{sequenceNumber}")
     public Response getMessages(@PathParam("userid") String userID, @PathParam("sequenceNumber") int sequenceNumber,
-                                @Context HttpHeaders header) {
+                                @QueryParam("wait") @DefaultValue("0") int wait,
+                                @QueryParam("limit") @DefaultValue("0") int limit, @Context HttpHeaders header) {
         try {
             MultivaluedMap<String, String> map = header.getRequestHeaders();
             String corsOrigin = Config.getSettingValue(Config.corsAllowOrigin);
-            JSONArray jsonMsgs = new JSONArray();
+            // Checked before the token so clients polling in a loop don't reach the login server. Only the address is
+            // known yet, the user's limit is checked once the token was.
+            long rateWait = acquireClient();
+            if (rateWait > 0) {
+                System.out.printf("[/messages] Rate limited %s%n", clientAddress());
+                return rateLimited(corsOrigin, rateWait);
+            }
+
             String token = map.get("Authorization").get(0).trim();
             token = token.startsWith("Token") ? token.substring("Token".length()) : token;
             token = token.trim();
             User receiver = authenticateUser(token, userID);
+            rateWait = receiver == null ? 0 : messagesLimiter.acquire(userID);
+            if (rateWait > 0) {
+                System.out.printf("[/messages] Rate limited %s%n", userID);
+                return rateLimited(corsOrigin, rateWait);
+            }
+
             if (receiver != null) {
-                List<Message> newMsgs = receiver.receiveMessages(sequenceNumber);
-                if (newMsgs == null) {
-                    return Response
-                            .status(Response.Status.BAD_REQUEST)
-                            .header("Access-Control-Allow-Origin", corsOrigin)
-                            .entity("User not found.").build();
-                } else if (newMsgs.isEmpty()) {
-                    return Response.status(Response.Status.NO_CONTENT)
-                            .header("Access-Control-Allow-Origin", corsOrigin).build();
-                } else {
-                    for (Message msg : newMsgs) {
-                        try {
-                            jsonMsgs.put(msg.toJson(false));
-                        } catch (JSONException e) {
-                            System.out.println("Failed to build json response.");
-                            return Response
-                                    .status(Response.Status.INTERNAL_SERVER_ERROR)
-                                    .header("Access-Control-Allow-Origin", corsOrigin)
-                                    .build();
-                        }
-                    }
-                    try {
-                        return Response.status(Response.Status.OK)
-                                .header("Access-Control-Allow-Origin", corsOrigin)
-                                .entity(jsonMsgs.toString(4)).build();
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                        return Response
-                                .status(Response.Status.INTERNAL_SERVER_ERROR)
-                                .header("Access-Control-Allow-Origin", corsOrigin)
-                                .build();
-                    }
+                boolean binary = prefersMessagePack(header);
+                // Without a suspendable response a waiting request would hold its worker thread, so it doesn't wait.
+                SuspendedResponse suspended = SuspendedResponse.of(request);
+                long maxWait = suspended == null
+                        ? 0
+                        : Math.min(wait, Long.parseLong(Config.longPollMaxWait.value())) * 1000L;
+                // The storage is queried on its own threads if the response can be suspended, so the worker is
+                // released right away.
+                CompletableFuture<MessagePage> newMsgs = suspended == null
+                        ? receiver.awaitMessages(sequenceNumber, Math.max(0, limit), maxWait, longPolls)
+                        : receiver.awaitMessages(sequenceNumber, Math.max(0, limit), maxWait, longPolls, storage);
+                CompletableFuture<Response> response = newMsgs.handle((page, e) -> e == null
+                        ? messagesResponse(page, binary, corsOrigin)
+                        : failedResponse(e, corsOrigin));
+                if (response.isDone()) {
+                    return response.join();
                 }
+
+                suspended.suspend(response, maxWait + storageTimeoutMillis(), () -> newMsgs.cancel(false));
+                // Replaced by the messages or by 204 once the wait is over.
+                return Response.status(Response.Status.NO_CONTENT)
+                        .header("Access-Control-Allow-Origin", corsOrigin).build();
             } else {
                 System.out.printf("Could not authenticate user %s with token %s%n", userID, map.get("Authorization").get(0));
                 return Response
@@ -202,6 +575,11 @@ public class Service {
                         .header("Access-Control-Allow-Origin", corsOrigin)
                         .build();
             }
+        } catch (MongoException e) {
+            // Answered by StorageBusyMapper.
+            throw e;
+        } catch (RejectedExecutionException e) {
+            return StorageBusyMapper.busy();
         } catch (Exception e) {
             System.out.printf("[/messages] Unhandled exception  %s:%d %s", userID, sequenceNumber, e.getMessage());
             e.printStackTrace();
@@ -212,6 +590,160 @@ public class Service {
         }
     }
 
+    /**
+     * Streams new messages for the user as server-sent events. Received messages are not removed, the client still
+     * confirms them through /messages/{userid}/{sequenceNumber}.
+     *
+     * @param userID         The user's name.
+     * @param sequenceNumber The last sequence number received by the client. A Last-Event-ID header sent by a
+     *                       reconnecting client takes precedence.
+     * @param token          The user's token cookie. Only used without an Authorization header since browsers can't
+     *                       set headers on event streams. It is not accepted in the URL, which ends up in access logs.
+     * @return If successful returns 200(OK) and an event stream. The request is suspended while the stream waits for
+     * messages, so it holds no worker thread. If too many streams are open the stream ends right away and tells the
+     * client to reconnect after a heartbeat interval. Connecting counts against the same rate limits as querying
+     * messages, otherwise returns 429(Too Many Requests) with a Retry-After header.
+     */
+    @GET
+    @Produces("text/event-stream")
+    @Path("/stream/{userid}")
+    public Response streamMessages(@PathParam("userid") String userID,
+                                   @QueryParam("sequenceNumber") @DefaultValue("0") int sequenceNumber,
+                                   @CookieParam("token") String token, @Context HttpHeaders header) {
+        String corsOrigin = Config.corsAllowOrigin.value();
+        try {
+            // Checked before the token like a long poll, a client reconnecting in a loop doesn't reach the login
+            // server.
+            long rateWait = acquireClient();
+            if (rateWait > 0) {
+                System.out.printf("[/stream] Rate limited %s%n", clientAddress());
+                return rateLimited(corsOrigin, rateWait);
+            }
+
+            MultivaluedMap<String, String> map = header.getRequestHeaders();
+            String authHeader = map.getFirst("Authorization");
+            if (authHeader != null) {
+                token = authHeader.trim();
+                token = token.startsWith("Token") ? token.substring("Token".length()).trim() : token;
+            }
+
+            String lastEventId = map.getFirst("Last-Event-ID");
+            if (lastEventId != null) {
+                sequenceNumber = Integer.parseInt(lastEventId.trim());
+            }
+
+            User receiver = token == null ? null : authenticateUser(token, userID);
+            if (receiver == null) {
+                System.out.printf("[/stream] Could not authenticate user %s with token %s%n", userID, token);
+                return Response
+                        .status(Response.Status.UNAUTHORIZED)
+                        .header("Access-Control-Allow-Origin", corsOrigin)
+                        .build();
+            }
+
+            rateWait = messagesLimiter.acquire(userID);
+            if (rateWait > 0) {
+                System.out.printf("[/stream] Rate limited %s%n", userID);
+                return rateLimited(corsOrigin, rateWait);
+            }
+
+            long maxDuration = Long.parseLong(Config.streamMaxDuration.value()) * 1000L;
+            MessageStream stream = new MessageStream(provider, waiters, longPolls, receiver, sequenceNumber,
+                    maxDuration, Long.parseLong(Config.streamHeartbeat.value()) * 1000L, openStreams);
+            Response.ResponseBuilder events = Response.status(Response.Status.OK)
+                    .type("text/event-stream")
+                    .header("Access-Control-Allow-Origin", corsOrigin)
+                    .header("Cache-Control", "no-cache");
+            SuspendedResponse suspended = SuspendedResponse.of(request);
+            if (suspended == null) {
+                // Without a suspendable response the stream holds its worker thread until it ends.
+                return events.entity(stream).build();
+            }
+
+            // The events are written whenever a message arrives or a heartbeat is due, so the stream holds no worker.
+            suspended.stream(maxDuration + SUSPEND_GRACE_MILLIS, output -> stream.start(output)
+                    .whenComplete((result, e) -> {
+                        if (e == null) {
+                            suspended.resume();
+                        } else {
+                            suspended.cancel();
+                        }
+                    }), stream::cancel);
+            return events.build();
+        } catch (NumberFormatException e) {
+            return Response
+                    .status(Response.Status.BAD_REQUEST)
+                    .header("Access-Control-Allow-Origin", corsOrigin)
+                    .entity("Invalid Last-Event-ID").build();
+        } catch (Exception e) {
+            System.out.printf("[/stream] Unhandled exception  %s:%d %s", userID, sequenceNumber, e.getMessage());
+            e.printStackTrace();
+            return Response
+                    .status(Response.Status.INTERNAL_SERVER_ERROR)
+                    .header("Access-Control-Allow-Origin", "*")
+                    .build();
+        }
+    }
+
+    /**
+     * Reports the server's counters.
+     *
+     * Only operators may read them: clients on the loopback interface or, if {@link Config#statsSecret} is set,
+     * clients sending it as bearer token.
+     *
+     * @return Returns 200(OK) and a JSON object containing the counters of the inbox quota, of the rate limits, of the
+     * storage and of the message expiry if it is enabled, or 403(Forbidden) for other clients.
+     */
+    @GET
+    @Path("/stats")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response stats(@HeaderParam("Authorization") String authorization) {
+        if (!mayReadStats(authorization)) {
+            return Response.status(Response.Status.FORBIDDEN).build();
+        }
+
+        JSONObject stats = new JSONObject();
+        if (expiry != null) {
+            stats.put("expiry", expiry.toJson());
+        }
+
+        if (quota != null) {
+            stats.put("inboxQuota", quota.toJson());
+        }
+
+        if (provider != null) {
+            stats.put("storage", provider.stats());
+        }
+
+        if (auth != null) {
+            stats.put("auth", auth.toJson());
+        }
+
+        if (sendLimiter != null) {
+            stats.put("rateLimited", new JSONObject()
+                    .put("send", sendLimiter.getRejected())
+                    .put("messages", messagesLimiter.getRejected())
+                    .put("client", clientLimiter.getRejected()));
+        }
+
+        return Response.ok(stats.toString()).build();
+    }
+
+    private boolean mayReadStats(String authorization) {
+        String secret = Config.statsSecret.value();
+        if (!secret.isEmpty()) {
+            return authorization != null && MessageDigest.isEqual(
+                    authorization.getBytes(StandardCharsets.UTF_8),
+                    ("Bearer " + secret).getBytes(StandardCharsets.UTF_8));
+        }
+
+        try {
+            return request != null && InetAddress.getByName(request.getRemoteAddr()).isLoopbackAddress();
+        } catch (UnknownHostException e) {
+            return false;
+        }
+    }
+
     @OPTIONS
     @Path("/send")
     public Response optionsReg() {
@@ -248,9 +780,199 @@ public class Service {
                 .build();
     }
 
+    @OPTIONS
+    @Path("/send/batch")
+    public Response optionsSendBatch() {
+        return Response.ok("")
+                .header("Access-Control-Allow-Origin", "*")
+                .header("Access-Control-Allow-Headers", "origin, content-type, accept, authorization")
+                .header("Access-Control-Allow-Credentials", "true")
+                .header("Access-Control-Allow-Methods", "GET, POST, PUT, DELETE, OPTIONS, HEAD")
+                .header("Access-Control-Max-Age", "1209600")
+                .build();
+    }
+
+    @OPTIONS
+    @Path("/send/group")
+    public Response optionsSendGroup() {
+        return Response.ok("")
+                .header("Access-Control-Allow-Origin", "*")
+                .header("Access-Control-Allow-Headers", "origin, content-type, accept, authorization")
+                .header("Access-Control-Allow-Credentials", "true")
+                .header("Access-Control-Allow-Methods", "GET, POST, PUT, DELETE, OPTIONS, HEAD")
+                .header("Access-Control-Max-Age", "1209600")
+                .build();
+    }
+
+    @OPTIONS
+    @Path("/stream/{userid}")
+    public Response optionsStream() {
+        return Response.ok("")
+                .header("Access-Control-Allow-Origin", "*")
+                .header("Access-Control-Allow-Headers", "origin, content-type, accept, authorization, last-event-id")
+                .header("Access-Control-Allow-Credentials", "true")
+                .header("Access-Control-Allow-Methods", "GET, POST, PUT, DELETE, OPTIONS, HEAD")
+                .header("Access-Control-Max-Age", "1209600")
+                .build();
+    }
+
+    /**
+     * @return Returns 429(Too Many Requests) telling the client when to try again.
+     */
+    private static Response rateLimited(String corsOrigin, long waitNanos) {
+        return Response.status(429)
+                .header("Retry-After", RateLimiter.retryAfterSeconds(waitNanos))
+                .header("Access-Control-Allow-Origin", corsOrigin)
+                .entity("Too many requests").build();
+    }
+
+    /**
+     * @return Returns 200(OK) and the page, 204(No Content) if the page is empty or 400(Bad Request) if there is no
+     * page.
+     */
+    private static Response messagesResponse(MessagePage newMsgs, boolean binary, String corsOrigin) {
+        if (newMsgs == null) {
+            return Response
+                    .status(Response.Status.BAD_REQUEST)
+                    .header("Access-Control-Allow-Origin", corsOrigin)
+                    .entity("User not found.").build();
+        } else if (!newMsgs.hasMessages()) {
+            try {
+                newMsgs.close();
+            } catch (IOException e) {
+                System.out.printf("[/messages] Failed to close page: %s%n", e.getMessage());
+            }
+
+            return Response.status(Response.Status.NO_CONTENT)
+                    .header("Access-Control-Allow-Origin", corsOrigin).build();
+        }
+
+        // The page is written straight from the storage cursor.
+        Response.ResponseBuilder response = Response.status(Response.Status.OK)
+                .header("Access-Control-Allow-Origin", corsOrigin)
+                .type(binary ? MessagePack.MEDIA_TYPE : MediaType.APPLICATION_JSON)
+                .entity(binary ? newMsgs.asMessagePack() : newMsgs);
+        if (newMsgs.getContinuation() > 0) {
+            response.header("X-Next-Sequence", newMsgs.getContinuation())
+                    .header("Access-Control-Expose-Headers", "X-Next-Sequence");
+        }
+
+        return response.build();
+    }
+
+    /**
+     * @return Returns the response for a long poll that failed after the request was suspended.
+     */
+    private static Response failedResponse(Throwable e, String corsOrigin) {
+        Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+        if (cause instanceof CancellationException) {
+            // The client is gone, nothing is written.
+            return Response.status(Response.Status.NO_CONTENT).build();
+        }
+
+        if (cause instanceof MongoException) {
+            return new StorageBusyMapper().toResponse((MongoException) cause);
+        }
+
+        if (cause instanceof RejectedExecutionException) {
+            return StorageBusyMapper.busy();
+        }
+
+        System.out.printf("Suspended request failed: %s%n", cause.getMessage());
+        return Response.status(Response.Status.INTERNAL_SERVER_ERROR)
+                .header("Access-Control-Allow-Origin", corsOrigin)
+                .build();
+    }
+
+    /**
+     * Takes a token from the bucket of the client's address.
+     *
+     * @return Returns 0 if the request may proceed, otherwise the time in nanoseconds until it may be retried.
+     */
+    private long acquireClient() {
+        return request == null ? 0 : clientLimiter.acquire(request.getRemoteAddr());
+    }
+
+    private String clientAddress() {
+        return request == null ? "unknown" : request.getRemoteAddr();
+    }
+
+    private static RateLimiter rateLimiter(Config rate, Config burst) {
+        return new RateLimiter(Double.parseDouble(rate.value()), Integer.parseInt(burst.value()),
+                Integer.parseInt(Config.rateLimitMaxUsers.value()));
+    }
+
+    /**
+     * @return Returns the threads that run the storage calls of suspended requests. Requests beyond the queue limit
+     * are rejected with 503(Service Unavailable).
+     */
+    private static ExecutorService storageExecutor() {
+        int threads = Integer.parseInt(Config.storageThreads.value());
+        return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(Integer.parseInt(Config.storageQueueLimit.value())), runnable -> {
+            Thread thread = new Thread(runnable, "storage");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private static int maxFieldLength() {
+        return Integer.parseInt(Config.messageMaxFieldLength.value());
+    }
+
+    private static int maxTextLength() {
+        return Integer.parseInt(Config.messageMaxTextLength.value());
+    }
+
+    /**
+     * @return Returns the time after which a suspended request waiting for the storage is dropped.
+     */
+    private static long storageTimeoutMillis() {
+        return Long.parseLong(Config.mongoMaxWaitMillis.value())
+                + Long.parseLong(Config.mongoSocketTimeoutMillis.value()) + SUSPEND_GRACE_MILLIS;
+    }
+
+    /**
+     * @return Returns the threads that end long polls and query the storage after a signal.
+     */
+    private static ScheduledExecutorService longPollExecutor() {
+        return Executors.newScheduledThreadPool(Integer.parseInt(Config.longPollThreads.value()), runnable -> {
+            Thread thread = new Thread(runnable, "long-poll");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @return Returns 429(Too Many Requests) telling the sender when to try again.
+     */
+    private static Response inboxFull(String corsOrigin) {
+        return Response.status(429)
+                .header("Retry-After", quota.getRetryAfterSeconds())
+                .header("Access-Control-Allow-Origin", corsOrigin)
+                .entity("Inbox of the recipient is full").build();
+    }
+
+    /**
+     * Checks if the client prefers MessagePack over JSON. The acceptable media types are sorted by preference.
+     */
+    private static boolean prefersMessagePack(HttpHeaders header) {
+        for (MediaType type : header.getAcceptableMediaTypes()) {
+            if (type.isCompatible(MediaType.APPLICATION_JSON_TYPE)) {
+                return false;
+            }
+
+            if (type.isCompatible(MediaType.valueOf(MessagePack.MEDIA_TYPE))) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
     private User authenticateUser(String token, String pseudonym) {
         if(auth.authenticateUser(token, pseudonym)) {
-            return new User(provider, pseudonym);
+            return new User(provider, waiters, pseudonym);
         } else {
             return null;
         }
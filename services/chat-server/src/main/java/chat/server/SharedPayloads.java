@@ -0,0 +1,176 @@
+package chat.server;
+
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.mongodb.client.model.Filters.in;
+import static com.mongodb.client.model.Filters.lt;
+import static com.mongodb.client.model.Projections.include;
+
+/**
+ * Stores the text of a message sent to several recipients once. The recipients' message documents only reference the
+ * payload document ("payload" field) and the text is joined in while the messages are read. Payloads no message
+ * references anymore are deleted in the background.
+ */
+public class SharedPayloads {
+
+    private static final int JOIN_BATCH = 100;
+    /**
+     * Payloads are stored before the messages referencing them, younger payloads are never deleted.
+     */
+    private static final long GRACE_MILLIS = 60 * 1000;
+
+    private final MongoCollection<Document> payloads;
+    private final MongoCollection<Document> messages;
+    private final TextCompression compression;
+    private ScheduledExecutorService executor;
+
+    /**
+     * Creates a new payload store.
+     *
+     * @param payloads    The payload collection.
+     * @param messages    The message collection.
+     * @param compression The compression of long texts.
+     */
+    public SharedPayloads(MongoCollection<Document> payloads, MongoCollection<Document> messages,
+                          TextCompression compression) {
+        this.payloads = payloads;
+        this.messages = messages;
+        this.compression = compression;
+        try {
+            messages.createIndex(Indexes.ascending("payload"), new IndexOptions().sparse(true));
+        } catch (MongoException e) {
+            System.out.printf("Could not create payload index: %s%n", e.getMessage());
+        }
+    }
+
+    /**
+     * Starts deleting unreferenced payloads periodically.
+     *
+     * @param intervalMillis The time between two sweeps in milliseconds.
+     */
+    public synchronized void start(long intervalMillis) {
+        if (executor != null) return;
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "payload-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::sweep, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stores a message's text.
+     *
+     * @param msg The message.
+     * @return Returns the id to reference the payload with.
+     */
+    public ObjectId store(Message msg) {
+        ObjectId id = new ObjectId();
+        payloads.insertOne(compression.putText(new Document("_id", id), msg.text));
+        return id;
+    }
+
+    /**
+     * Adds the text to message documents referencing a payload. The payloads of consecutive documents are fetched
+     * with one query.
+     *
+     * @param docs The message documents.
+     * @return Returns the message documents with their text.
+     */
+    public Iterator<Document> join(Iterator<Document> docs) {
+        return new Iterator<Document>() {
+            private final ArrayDeque<Document> joined = new ArrayDeque<>(JOIN_BATCH);
+
+            @Override
+            public boolean hasNext() {
+                if (joined.isEmpty()) {
+                    fetch();
+                }
+
+                return !joined.isEmpty();
+            }
+
+            @Override
+            public Document next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                return joined.poll();
+            }
+
+            private void fetch() {
+                List<ObjectId> ids = new ArrayList<>();
+                while (joined.size() < JOIN_BATCH && docs.hasNext()) {
+                    Document doc = docs.next();
+                    joined.add(doc);
+                    if (doc.containsKey("payload")) {
+                        ids.add(doc.getObjectId("payload"));
+                    }
+                }
+
+                if (ids.isEmpty()) {
+                    return;
+                }
+
+                Map<ObjectId, String> texts = new HashMap<>();
+                for (Document payload : payloads.find(in("_id", ids))) {
+                    texts.put(payload.getObjectId("_id"), TextCompression.getText(payload));
+                }
+
+                for (Document doc : joined) {
+                    if (doc.containsKey("payload")) {
+                        doc.put("text", texts.get(doc.getObjectId("payload")));
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Deletes payloads no message references anymore. The referenced payloads older than the grace period are read
+     * with one query on the payload index.
+     */
+    public void sweep() {
+        try {
+            ObjectId graceStart = new ObjectId(new Date(System.currentTimeMillis() - GRACE_MILLIS));
+            Set<ObjectId> referenced = new HashSet<>();
+            messages.distinct("payload", lt("payload", graceStart), ObjectId.class).into(referenced);
+
+            List<ObjectId> unreferenced = new ArrayList<>();
+            for (Document payload : payloads.find(lt("_id", graceStart)).projection(include("_id"))) {
+                ObjectId id = payload.getObjectId("_id");
+                if (!referenced.contains(id)) {
+                    unreferenced.add(id);
+                }
+
+                if (unreferenced.size() >= JOIN_BATCH) {
+                    payloads.deleteMany(in("_id", unreferenced));
+                    unreferenced.clear();
+                }
+            }
+
+            if (!unreferenced.isEmpty()) {
+                payloads.deleteMany(in("_id", unreferenced));
+            }
+        } catch (MongoException e) {
+            System.out.printf("Failed to delete unreferenced payloads: %s%n", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package chat.server;
+
+import com.mongodb.MongoException;
+import com.mongodb.MongoSocketException;
+import com.mongodb.MongoTimeoutException;
+import com.mongodb.MongoWaitQueueFullException;
+
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.ExceptionMapper;
+import javax.ws.rs.ext.Provider;
+
+/**
+ * Answers requests that failed because MongoDB is overloaded or unreachable with 503(Service Unavailable) and a
+ * Retry-After header, so clients back off instead of retrying immediately. Other database errors are answered with
+ * 500(Internal Server Error).
+ */
+@Provider
+public class StorageBusyMapper implements ExceptionMapper<MongoException> {
+
+    @Override
+    public Response toResponse(MongoException e) {
+        String corsOrigin = Config.corsAllowOrigin.value();
+        if (e instanceof MongoWaitQueueFullException || e instanceof MongoTimeoutException
+                || e instanceof MongoSocketException) {
+            System.out.printf("Storage busy: %s%n", e.getMessage());
+            return busy();
+        }
+
+        System.out.printf("Storage failed: %s%n", e.getMessage());
+        e.printStackTrace();
+        return Response.status(Response.Status.INTERNAL_SERVER_ERROR)
+                .header("Access-Control-Allow-Origin", corsOrigin)
+                .build();
+    }
+
+    /**
+     * @return Returns 503(Service Unavailable) telling the client when to try again.
+     */
+    static Response busy() {
+        return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                .header("Retry-After", Config.storageBusyRetryAfter.value())
+                .header("Access-Control-Allow-Origin", Config.corsAllowOrigin.value())
+                .entity("Storage unavailable").build();
+    }
+}
@@ -0,0 +1,179 @@
+package chat.server;
+
+import com.mongodb.MongoClientOptions;
+import com.mongodb.MongoClientURI;
+import org.json.JSONObject;
+import services.common.StorageType;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Persists the users' inboxes.
+ */
+public interface StorageProvider {
+
+    /**
+     * Stores a message and assigns its sequence number.
+     *
+     * @param user The receiver.
+     * @param msg  The message to store.
+     * @return Returns the message's sequence number or -1 if the message is invalid.
+     */
+    int addMessage(User user, Message msg);
+
+    /**
+     * Same as {@link #addMessage(User, Message)} without blocking the calling thread. By default the message is stored
+     * on the executor.
+     *
+     * @param user     The receiver.
+     * @param msg      The message to store.
+     * @param executor Runs the blocking storage calls.
+     * @return Returns a future of the message's sequence number or -1 if the message is invalid.
+     */
+    default CompletableFuture<Integer> addMessageAsync(User user, Message msg, Executor executor) {
+        return CompletableFuture.supplyAsync(() -> addMessage(user, msg), executor);
+    }
+
+    /**
+     * Stores a batch of messages.
+     *
+     * @param msgs The messages to store. Their sequence numbers are set on success.
+     * @return Returns true if the messages were stored or false if one of the messages was invalid. In that case no
+     * message is stored.
+     */
+    boolean addMessages(List<Message> msgs);
+
+    /**
+     * Stores a message for several recipients. Every recipient gets an own copy with an own sequence number.
+     *
+     * @param msg        The message. Its recipient is ignored.
+     * @param recipients The recipients' names, without duplicates.
+     * @return Returns one message per recipient with its sequence number or null if the message is invalid.
+     */
+    default List<Message> addGroupMessage(Message msg, List<String> recipients) {
+        List<Message> msgs = new ArrayList<>(recipients.size());
+        for (String recipient : recipients) {
+            msgs.add(new Message(msg.from, recipient, msg.date, msg.text, msg.token));
+        }
+
+        return addMessages(msgs) ? msgs : null;
+    }
+
+    /**
+     * Opens the user's messages with a sequence number higher than sequenceBegin.
+     *
+     * @param user          The receiver.
+     * @param sequenceBegin The last sequence number received by the client or 0 to fetch all available messages.
+     * @param limit         The maximum number of messages in the page or 0 for all messages.
+     * @return Returns the page of messages in ascending sequence order or null if the user or sequence number is
+     * invalid. The page has to be closed or written.
+     */
+    MessagePage getMessages(User user, int sequenceBegin, int limit);
+
+    /**
+     * Same as {@link #getMessages(User, int, int)} without blocking the calling thread. By default the messages are
+     * opened on the executor.
+     *
+     * @param user          The receiver.
+     * @param sequenceBegin The last sequence number received by the client or 0 to fetch all available messages.
+     * @param limit         The maximum number of messages in the page or 0 for all messages.
+     * @param executor      Runs the blocking storage calls.
+     * @return Returns a future of the page or of null if the user or sequence number is invalid.
+     */
+    default CompletableFuture<MessagePage> getMessagesAsync(User user, int sequenceBegin, int limit,
+                                                            Executor executor) {
+        return CompletableFuture.supplyAsync(() -> getMessages(user, sequenceBegin, limit), executor);
+    }
+
+    /**
+     * Removes the messages the user confirmed.
+     *
+     * @param user          The receiver.
+     * @param sequenceBegin The highest sequence number the user received.
+     * @return Returns false if the user or sequence number is invalid.
+     */
+    boolean removeMessages(User user, int sequenceBegin);
+
+    /**
+     * Tells how many unconfirmed messages the recipient has. The usage is tracked while messages are stored and
+     * removed.
+     *
+     * @param user The recipient's name.
+     * @return Returns the number and estimated size of the messages.
+     */
+    InboxUsage usage(String user);
+
+    /**
+     * Deletes messages the server stored before the given time whether or not their recipient received them. The
+     * date the sender set is not used, so a client can't make its messages expire early or never. Sequence numbers are
+     * not affected: the remaining messages keep theirs and new messages continue after the highest assigned one.
+     *
+     * @param before The receive time of the oldest message to keep.
+     * @param limit  The number of deleted messages after which to stop. Some more may be deleted to finish a
+     *               recipient.
+     * @return Returns the number of deleted messages.
+     */
+    int expireMessages(Date before, int limit);
+
+    /**
+     * @return Returns the storage's counters as a JSON object, empty if it has none.
+     */
+    default JSONObject stats() {
+        return new JSONObject();
+    }
+
+    /**
+     * Removes all messages and sequence numbers.
+     */
+    void clearForTests();
+
+    /**
+     * Creates the storage provider selected by {@link Config#storage}.
+     *
+     * @return Returns the storage provider.
+     * @throws IOException If the file or log storage could not be loaded.
+     */
+    static StorageProvider fromConfig() throws IOException {
+        switch (StorageType.fromConfig(Config.storage.value())) {
+            case memory:
+                return new StorageProviderMemory();
+            case file:
+                return new StorageProviderFile(
+                        Paths.get(Config.storageDirectory.value(), Config.dbChatCollection.value() + ".journal"));
+            case log:
+                StorageProviderLog provider = new StorageProviderLog(
+                        Paths.get(Config.storageDirectory.value(), Config.dbChatCollection.value()),
+                        Integer.parseInt(Config.logSegmentBytes.value()),
+                        Double.parseDouble(Config.logCompactionRatio.value()),
+                        Long.parseLong(Config.messageTtlSeconds.value()) * 1000L);
+                provider.startCompaction(Long.parseLong(Config.logCompactionInterval.value()));
+                return provider;
+            default:
+                return new StorageProviderMongoDB(new MongoClientURI(Config.mongoURI.value(), mongoOptions()),
+                        Config.dbName.value());
+        }
+    }
+
+    /**
+     * Bounds the time a request waits for MongoDB so a slow database can't tie up all server workers. Requests that
+     * can't get a connection in time fail fast, see {@link StorageBusyMapper}. Options in the URI take precedence.
+     *
+     * @return Returns the default client options.
+     */
+    static MongoClientOptions.Builder mongoOptions() {
+        int connections = Integer.parseInt(Config.mongoMaxConnections.value());
+        return MongoClientOptions.builder()
+                .connectionsPerHost(connections)
+                .threadsAllowedToBlockForConnectionMultiplier(
+                        Math.max(1, Integer.parseInt(Config.mongoMaxWaitQueue.value()) / connections))
+                .maxWaitTime(Integer.parseInt(Config.mongoMaxWaitMillis.value()))
+                .connectTimeout(Integer.parseInt(Config.mongoConnectTimeoutMillis.value()))
+                .socketTimeout(Integer.parseInt(Config.mongoSocketTimeoutMillis.value()));
+    }
+}
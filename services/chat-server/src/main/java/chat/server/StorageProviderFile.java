@@ -0,0 +1,229 @@
+package chat.server;
+
+import org.json.JSONObject;
+import services.common.StorageJournal;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Embedded storage provider for single-node deployments. Inboxes are kept in memory like
+ * {@link StorageProviderMemory} and every change is appended to a journal file the inboxes are restored from on start.
+ * The text of a group message is journaled once as a payload entry the recipients' message entries refer to. The
+ * journal is compacted on start and in the background while it grows.
+ */
+public class StorageProviderFile extends StorageProviderMemory {
+
+    private final StorageJournal journal;
+    /**
+     * The payload ids of group messages being stored by their text instance.
+     */
+    private final Map<String, String> payloadIds = Collections.synchronizedMap(new IdentityHashMap<>());
+    private Map<String, String> restoredPayloads = new HashMap<>();
+    /**
+     * Held while a group message is stored, so a snapshot contains all messages referring to a payload entry
+     * journaled before the snapshot started.
+     */
+    private final ReadWriteLock groupMessages = new ReentrantReadWriteLock();
+
+    /**
+     * Restores the inboxes from the journal and compacts it.
+     *
+     * @param file The journal file.
+     * @throws IOException If the journal could not be read or written.
+     */
+    public StorageProviderFile(Path file) throws IOException {
+        journal = new StorageJournal(file);
+        journal.replay(this::restore);
+        journal.compact(snapshot());
+        restoredPayloads = null;
+        journal.compactAutomatically(this::snapshot);
+    }
+
+    @Override
+    public List<Message> addGroupMessage(Message msg, List<String> recipients) {
+        if (recipients.size() < 2 || msg.text == null) {
+            return super.addGroupMessage(msg, recipients);
+        }
+
+        String id = UUID.randomUUID().toString();
+        groupMessages.readLock().lock();
+        try {
+            journal.append(payloadEntry(id, msg.text));
+            payloadIds.put(msg.text, id);
+            // The recipients' messages share the text instance.
+            return super.addGroupMessage(msg, recipients);
+        } finally {
+            payloadIds.remove(msg.text);
+            groupMessages.readLock().unlock();
+        }
+    }
+
+    @Override
+    void storing(String user, List<Message> msgs) {
+        for (Message msg : msgs) {
+            journal.append(messageEntry(user, msg, payloadIds.get(msg.text)));
+        }
+    }
+
+    @Override
+    void acknowledging(String user, int sequenceNumber) {
+        journal.append(new JSONObject()
+                .put("op", "ack")
+                .put("user", user)
+                .put("sequence", sequenceNumber));
+    }
+
+    @Override
+    void expiring(String user, Date before) {
+        journal.append(new JSONObject()
+                .put("op", "expire")
+                .put("user", user)
+                .put("date", before.getTime()));
+    }
+
+    @Override
+    public void clearForTests() {
+        synchronized (journal) {
+            super.clearForTests();
+            try {
+                journal.compact(new ArrayList<>());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private void restore(JSONObject entry) {
+        String op = entry.optString("op");
+        int sequence = entry.optInt("sequence");
+        Inbox inbox;
+        switch (op) {
+            case "payload":
+                restoredPayloads.put(entry.getString("id"), entry.getString("text"));
+                break;
+            case "message":
+                inbox = inboxes.computeIfAbsent(entry.getString("to"), name -> new Inbox());
+                int index = inbox.firstAfter(sequence);
+                if (index == 0 || inbox.messages.get(index - 1).sequence != sequence) {
+                    String text = entry.has("payload")
+                            ? restoredPayloads.get(entry.getString("payload"))
+                            : entry.getString("text");
+                    Message msg = new Message(entry.getString("from"), entry.getString("to"),
+                            new Date(entry.getLong("date")), text, null, sequence);
+                    // Entries journaled before the receive time was stored expire by their date.
+                    msg.received = entry.optLong("received", msg.date.getTime());
+                    inbox.add(index, msg);
+                }
+
+                inbox.sequence = Math.max(inbox.sequence, sequence);
+                break;
+            case "ack":
+                inbox = inboxes.computeIfAbsent(entry.getString("user"), name -> new Inbox());
+                inbox.removeThrough(sequence);
+                inbox.sequence = Math.max(inbox.sequence, sequence);
+                break;
+            case "expire":
+                inbox = inboxes.get(entry.getString("user"));
+                if (inbox != null) {
+                    inbox.expire(new Date(entry.getLong("date")));
+                }
+
+                break;
+            case "sequence":
+                inbox = inboxes.computeIfAbsent(entry.getString("user"), name -> new Inbox());
+                inbox.sequence = Math.max(inbox.sequence, sequence);
+                break;
+            default:
+                System.out.printf("Skipping unknown journal entry %s%n", op);
+        }
+    }
+
+    /**
+     * @return Returns the journal entries describing the current inboxes. Every inbox is copied while it is locked,
+     * changes made meanwhile to other inboxes are appended after the snapshot.
+     */
+    private List<JSONObject> snapshot() {
+        Map<String, Inbox> copies = new HashMap<>();
+        groupMessages.writeLock().lock();
+        try {
+            for (Map.Entry<String, Inbox> inbox : inboxes.entrySet()) {
+                Inbox copy = new Inbox();
+                synchronized (inbox.getValue()) {
+                    copy.sequence = inbox.getValue().sequence;
+                    copy.messages.addAll(inbox.getValue().messages);
+                }
+
+                copies.put(inbox.getKey(), copy);
+            }
+        } finally {
+            groupMessages.writeLock().unlock();
+        }
+
+        Map<String, Integer> references = new IdentityHashMap<>();
+        for (Inbox inbox : copies.values()) {
+            for (Message msg : inbox.messages) {
+                if (msg.text != null) {
+                    references.merge(msg.text, 1, Integer::sum);
+                }
+            }
+        }
+
+        Map<String, String> ids = new IdentityHashMap<>();
+        List<JSONObject> entries = new ArrayList<>();
+        for (Map.Entry<String, Inbox> inbox : copies.entrySet()) {
+            // Sequence numbers must keep increasing even if all messages were confirmed.
+            entries.add(new JSONObject()
+                    .put("op", "sequence")
+                    .put("user", inbox.getKey())
+                    .put("sequence", inbox.getValue().sequence));
+            for (Message msg : inbox.getValue().messages) {
+                String id = null;
+                if (msg.text != null && references.get(msg.text) > 1) {
+                    id = ids.get(msg.text);
+                    if (id == null) {
+                        id = UUID.randomUUID().toString();
+                        ids.put(msg.text, id);
+                        entries.add(payloadEntry(id, msg.text));
+                    }
+                }
+
+                entries.add(messageEntry(inbox.getKey(), msg, id));
+            }
+        }
+
+        return entries;
+    }
+
+    /**
+     * @param payload The id of the payload holding the text or null to store the text in the entry.
+     */
+    private static JSONObject messageEntry(String user, Message msg, String payload) {
+        JSONObject entry = new JSONObject()
+                .put("op", "message")
+                .put("to", user)
+                .put("from", msg.from)
+                .put("date", msg.date.getTime())
+                .put("received", msg.received)
+                .put("sequence", msg.sequence);
+        return payload == null ? entry.put("text", msg.text) : entry.put("payload", payload);
+    }
+
+    private static JSONObject payloadEntry(String id, String text) {
+        return new JSONObject()
+                .put("op", "payload")
+                .put("id", id)
+                .put("text", text);
+    }
+}
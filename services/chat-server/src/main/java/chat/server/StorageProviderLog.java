@@ -0,0 +1,512 @@
+package chat.server;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single-node storage provider that appends messages to a {@link MessageLog}. An in-memory index maps every recipient
+ * to the log positions of the unconfirmed messages, so reading an inbox decodes the messages straight from the mapped
+ * segments without searching.
+ * <p>
+ * Confirmed messages stay in their segment until the segment is compacted: once most of a full segment's records are
+ * no longer needed the remaining messages are copied to the end of the log and the segment is deleted.
+ * <p>
+ * Expiring messages writes no record, the time to live is applied again while the index is rebuilt.
+ */
+public class StorageProviderLog implements StorageProvider {
+
+    private static final int sequenceOffset = 1;
+
+    private final MessageLog log;
+    private final double compactionRatio;
+    private final long expiredBefore;
+    private final ConcurrentHashMap<String, Inbox> inboxes = new ConcurrentHashMap<>();
+    private ScheduledExecutorService compactor;
+
+    /**
+     * Opens the log and rebuilds the index.
+     *
+     * @param directory       The directory holding the segment files.
+     * @param segmentBytes    The size of a segment file.
+     * @param compactionRatio A full segment is compacted once at most this share of its records is needed.
+     * @throws IOException If the log could not be read.
+     */
+    public StorageProviderLog(Path directory, int segmentBytes, double compactionRatio) throws IOException {
+        this(directory, segmentBytes, compactionRatio, 0);
+    }
+
+    /**
+     * Opens the log and rebuilds the index without the expired messages.
+     *
+     * @param directory       The directory holding the segment files.
+     * @param segmentBytes    The size of a segment file.
+     * @param compactionRatio A full segment is compacted once at most this share of its records is needed.
+     * @param ttlMillis       The time to live of messages in milliseconds or 0 if messages don't expire.
+     * @throws IOException If the log could not be read.
+     */
+    public StorageProviderLog(Path directory, int segmentBytes, double compactionRatio, long ttlMillis)
+            throws IOException {
+        this.log = new MessageLog(directory, segmentBytes);
+        this.compactionRatio = compactionRatio;
+        this.expiredBefore = ttlMillis > 0 ? System.currentTimeMillis() - ttlMillis : Long.MIN_VALUE;
+        log.recover(this::restore);
+        for (Inbox inbox : inboxes.values()) {
+            for (int i = inbox.head; i < inbox.size; i++) {
+                inbox.segments[i].live.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Starts compacting segments in the background.
+     *
+     * @param intervalMillis The time between two compaction runs in milliseconds.
+     */
+    public synchronized void startCompaction(long intervalMillis) {
+        if (compactor != null) return;
+        compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "log-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        compactor.scheduleWithFixedDelay(() -> {
+            try {
+                compact();
+            } catch (IOException | RuntimeException e) {
+                System.out.printf("Log compaction failed: %s%n", e.getMessage());
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public int addMessage(User user, Message msg) {
+        if (user.getName() == null || user.getName().isEmpty()) return -1;
+        if (!user.getName().equals(msg.to) || msg.from == null || msg.from.equals("") || msg.date == null) return -1;
+
+        msg.received = System.currentTimeMillis();
+        byte[] body = MessageLog.message(msg);
+        if (!log.fits(body)) {
+            System.out.printf("Rejected message for %s: %d bytes exceed the segment size%n", user.getName(),
+                    body.length);
+            return -1;
+        }
+
+        Inbox inbox = inboxes.computeIfAbsent(user.getName(), name -> new Inbox());
+        synchronized (inbox) {
+            append(inbox, msg, body);
+        }
+
+        return msg.sequence;
+    }
+
+    @Override
+    public boolean addMessages(List<Message> msgs) {
+        Map<String, List<Message>> byRecipient = new LinkedHashMap<>();
+        Map<Message, byte[]> bodies = new IdentityHashMap<>();
+        for (Message msg : msgs) {
+            if (msg.to == null || msg.to.isEmpty() || msg.from == null || msg.from.equals("") || msg.date == null) {
+                return false;
+            }
+
+            // Checked before anything is appended so a rejected batch leaves no message behind.
+            msg.received = System.currentTimeMillis();
+            byte[] body = MessageLog.message(msg);
+            if (!log.fits(body)) {
+                System.out.printf("Rejected batch for %s: %d bytes exceed the segment size%n", msg.to, body.length);
+                return false;
+            }
+
+            bodies.put(msg, body);
+            byRecipient.computeIfAbsent(msg.to, to -> new ArrayList<>()).add(msg);
+        }
+
+        if (byRecipient.isEmpty()) return false;
+
+        for (Map.Entry<String, List<Message>> recipient : byRecipient.entrySet()) {
+            Inbox inbox = inboxes.computeIfAbsent(recipient.getKey(), name -> new Inbox());
+            synchronized (inbox) {
+                for (Message msg : recipient.getValue()) {
+                    append(inbox, msg, bodies.get(msg));
+                }
+            }
+        }
+
+        return true;
+    }
+
+    @Override
+    public MessagePage getMessages(User user, int sequenceBegin, int limit) {
+        if (user.getName() == null || user.getName().equals("")) return null;
+
+        Inbox inbox = inboxes.get(user.getName());
+        if (inbox == null) return MessagePage.empty();
+
+        // Only the positions are copied, the messages are decoded while the page is written.
+        MessageLog.Segment[] segments;
+        int[] offsets;
+        int continuation = 0;
+        synchronized (inbox) {
+            if (inbox.sequence < sequenceBegin) return null;
+
+            int from = inbox.firstAfter(sequenceBegin);
+            int to = limit > 0 ? Math.min(inbox.size, from + limit) : inbox.size;
+            segments = Arrays.copyOfRange(inbox.segments, from, to);
+            offsets = Arrays.copyOfRange(inbox.offsets, from, to);
+            if (to < inbox.size) {
+                continuation = inbox.sequences[to - 1];
+            }
+        }
+
+        Iterator<Message> messages = new Iterator<Message>() {
+            private int next = 0;
+
+            @Override
+            public boolean hasNext() {
+                return next < offsets.length;
+            }
+
+            @Override
+            public Message next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                Message msg = MessageLog.readMessage(segments[next], offsets[next]);
+                next++;
+                return msg;
+            }
+        };
+        return new MessagePage(messages, () -> {
+        }, continuation);
+    }
+
+    @Override
+    public boolean removeMessages(User user, int sequenceBegin) {
+        if (user.getName() == null || user.getName().equals("")) return false;
+
+        Inbox inbox = inboxes.get(user.getName());
+        if (inbox == null) return false;
+        synchronized (inbox) {
+            if (inbox.sequence < sequenceBegin) return false;
+            if (sequenceBegin <= inbox.acked) return true;
+
+            try {
+                MessageLog.Location location = log.append(MessageLog.ack(user.getName(), sequenceBegin));
+                inbox.acknowledge(sequenceBegin, location.segment);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * The size of a message is the length of its record.
+     */
+    @Override
+    public InboxUsage usage(String user) {
+        Inbox inbox = inboxes.get(user);
+        if (inbox == null) return InboxUsage.EMPTY;
+        synchronized (inbox) {
+            return new InboxUsage(inbox.size - inbox.head, inbox.bytes);
+        }
+    }
+
+    @Override
+    public int expireMessages(Date before, int limit) {
+        int expired = 0;
+        for (Inbox inbox : inboxes.values()) {
+            if (expired >= limit) break;
+            synchronized (inbox) {
+                expired += inbox.expire(before.getTime());
+            }
+        }
+
+        return expired;
+    }
+
+    @Override
+    public void clearForTests() {
+        synchronized (log) {
+            try {
+                inboxes.clear();
+                log.clear();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Compacts all full segments of which at most the configured share of records is still needed.
+     */
+    public void compact() throws IOException {
+        for (MessageLog.Segment segment : log.sealedSegments()) {
+            int needed = segment.live.get() + segment.infoRefs.get();
+            int records = segment.messages.get() + segment.infoRecords.get();
+            if (needed <= records * compactionRatio) {
+                compact(segment);
+            }
+        }
+    }
+
+    private void compact(MessageLog.Segment segment) throws IOException {
+        Set<String> users = new HashSet<>();
+        log.scan(segment, (source, offset, record) -> {
+            users.add(record.user);
+            if (record.type != MessageLog.MESSAGE) {
+                return;
+            }
+
+            Inbox inbox = inboxes.get(record.user);
+            if (inbox == null) return;
+            synchronized (inbox) {
+                int index = inbox.indexOf(record.sequence);
+                if (index < 0 || inbox.segments[index] != source || inbox.offsets[index] != offset) {
+                    return;
+                }
+
+                Message msg = MessageLog.readMessage(source, offset);
+                MessageLog.Location location = log.append(MessageLog.message(msg));
+                inbox.relocate(index, location);
+            }
+        });
+
+        // Keep the sequence numbers the deleted records established.
+        for (String user : users) {
+            Inbox inbox = inboxes.get(user);
+            if (inbox == null) continue;
+            synchronized (inbox) {
+                if (inbox.highSegment == segment || inbox.ackSegment == segment) {
+                    MessageLog.Location location = log.append(MessageLog.sequence(user, inbox.sequence, inbox.acked));
+                    inbox.setHigh(location.segment);
+                    inbox.setAck(location.segment);
+                }
+            }
+        }
+
+        log.delete(segment);
+    }
+
+    /**
+     * Assigns the message's sequence number and appends it. The inbox has to be locked.
+     */
+    /**
+     * @param body The message's record body, its sequence number is set here.
+     */
+    private void append(Inbox inbox, Message msg, byte[] body) {
+        try {
+            msg.sequence = inbox.sequence + 1;
+            MessageLog.setSequence(body, msg.sequence);
+            MessageLog.Location location = log.append(body);
+            inbox.sequence = msg.sequence;
+            inbox.add(msg.sequence, location);
+            location.segment.live.incrementAndGet();
+            inbox.setHigh(location.segment);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void restore(MessageLog.Segment segment, int offset, MessageLog.Record record) {
+        Inbox inbox = inboxes.computeIfAbsent(record.user, name -> new Inbox());
+        switch (record.type) {
+            case MessageLog.MESSAGE:
+                if (record.sequence > inbox.acked && record.received >= expiredBefore) {
+                    // Compaction may have copied the message before it crashed, the copy is the newer record.
+                    int index = inbox.indexOf(record.sequence);
+                    if (index >= 0) {
+                        inbox.segments[index] = segment;
+                        inbox.offsets[index] = offset;
+                    } else {
+                        inbox.insert(record.sequence, segment, offset);
+                    }
+                }
+
+                if (record.sequence >= inbox.sequence) {
+                    inbox.sequence = record.sequence;
+                    inbox.setHigh(segment);
+                }
+
+                break;
+            case MessageLog.ACK:
+            case MessageLog.SEQUENCE:
+                if (record.acked >= inbox.acked) {
+                    inbox.acked = record.acked;
+                    inbox.setAck(segment);
+                    inbox.dropThrough(record.acked, false);
+                }
+
+                if (record.sequence >= inbox.sequence) {
+                    inbox.sequence = record.sequence;
+                    inbox.setHigh(segment);
+                }
+
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * The log positions of a recipient's unconfirmed messages in ascending sequence order.
+     */
+    private static class Inbox {
+        int sequence = sequenceOffset - 1;
+        int acked = 0;
+        /**
+         * The segments holding the records that established the sequence numbers.
+         */
+        MessageLog.Segment highSegment, ackSegment;
+        int[] sequences = new int[4];
+        MessageLog.Segment[] segments = new MessageLog.Segment[4];
+        int[] offsets = new int[4];
+        int head = 0, size = 0;
+        /**
+         * The total length of the messages' records.
+         */
+        long bytes = 0;
+
+        void add(int sequenceNumber, MessageLog.Location location) {
+            insert(sequenceNumber, location.segment, location.offset);
+        }
+
+        void insert(int sequenceNumber, MessageLog.Segment segment, int offset) {
+            if (size == sequences.length) {
+                int capacity = size - head < sequences.length / 2 ? sequences.length : sequences.length * 2;
+                sequences = shift(sequences, capacity);
+                segments = shift(segments, capacity);
+                offsets = shift(offsets, capacity);
+                size -= head;
+                head = 0;
+            }
+
+            int index = firstAfter(sequenceNumber);
+            System.arraycopy(sequences, index, sequences, index + 1, size - index);
+            System.arraycopy(segments, index, segments, index + 1, size - index);
+            System.arraycopy(offsets, index, offsets, index + 1, size - index);
+            sequences[index] = sequenceNumber;
+            segments[index] = segment;
+            offsets[index] = offset;
+            size++;
+            bytes += MessageLog.readLength(segment, offset);
+        }
+
+        void acknowledge(int sequenceNumber, MessageLog.Segment segment) {
+            acked = sequenceNumber;
+            setAck(segment);
+            dropThrough(sequenceNumber, true);
+        }
+
+        void dropThrough(int sequenceNumber, boolean counted) {
+            int end = firstAfter(sequenceNumber);
+            for (int i = head; i < end; i++) {
+                if (counted) {
+                    segments[i].live.decrementAndGet();
+                }
+
+                bytes -= MessageLog.readLength(segments[i], offsets[i]);
+                segments[i] = null;
+            }
+
+            head = end;
+        }
+
+        /**
+         * Removes the messages received before the given time.
+         *
+         * @return Returns the number of removed messages.
+         */
+        int expire(long before) {
+            int kept = head;
+            for (int i = head; i < size; i++) {
+                if (MessageLog.readReceived(segments[i], offsets[i]) < before) {
+                    segments[i].live.decrementAndGet();
+                    bytes -= MessageLog.readLength(segments[i], offsets[i]);
+                    continue;
+                }
+
+                sequences[kept] = sequences[i];
+                segments[kept] = segments[i];
+                offsets[kept] = offsets[i];
+                kept++;
+            }
+
+            int expired = size - kept;
+            Arrays.fill(segments, kept, size, null);
+            size = kept;
+            return expired;
+        }
+
+        void relocate(int index, MessageLog.Location location) {
+            segments[index].live.decrementAndGet();
+            location.segment.live.incrementAndGet();
+            if (sequences[index] == sequence && highSegment == segments[index]) {
+                setHigh(location.segment);
+            }
+
+            segments[index] = location.segment;
+            offsets[index] = location.offset;
+        }
+
+        void setHigh(MessageLog.Segment segment) {
+            if (highSegment != null) highSegment.infoRefs.decrementAndGet();
+            highSegment = segment;
+            segment.infoRefs.incrementAndGet();
+        }
+
+        void setAck(MessageLog.Segment segment) {
+            if (ackSegment != null) ackSegment.infoRefs.decrementAndGet();
+            ackSegment = segment;
+            segment.infoRefs.incrementAndGet();
+        }
+
+        int indexOf(int sequenceNumber) {
+            int index = firstAfter(sequenceNumber) - 1;
+            return index >= head && sequences[index] == sequenceNumber ? index : -1;
+        }
+
+        /**
+         * @return Returns the index of the first message with a sequence number higher than the given one.
+         */
+        int firstAfter(int sequenceNumber) {
+            int low = head, high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (sequences[mid] <= sequenceNumber) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+
+            return low;
+        }
+
+        private int[] shift(int[] values, int capacity) {
+            int[] shifted = new int[capacity];
+            System.arraycopy(values, head, shifted, 0, size - head);
+            return shifted;
+        }
+
+        private MessageLog.Segment[] shift(MessageLog.Segment[] values, int capacity) {
+            MessageLog.Segment[] shifted = new MessageLog.Segment[capacity];
+            System.arraycopy(values, head, shifted, 0, size - head);
+            return shifted;
+        }
+    }
+}
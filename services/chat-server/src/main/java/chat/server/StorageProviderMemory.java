@@ -0,0 +1,240 @@
+package chat.server;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Storage provider that keeps all inboxes in memory. Inboxes are locked individually so different recipients don't
+ * contend with each other.
+ */
+public class StorageProviderMemory implements StorageProvider {
+
+    private static final int sequenceOffset = 1;
+
+    final ConcurrentHashMap<String, Inbox> inboxes = new ConcurrentHashMap<>();
+
+    @Override
+    public int addMessage(User user, Message msg) {
+        if (user.getName() == null || user.getName().isEmpty()) return -1;
+        if (!user.getName().equals(msg.to) || msg.from == null || msg.from.equals("") || msg.date == null) return -1;
+
+        Inbox inbox = inboxes.computeIfAbsent(user.getName(), name -> new Inbox());
+        synchronized (inbox) {
+            msg.sequence = ++inbox.sequence;
+            List<Message> stored = new ArrayList<>(1);
+            stored.add(stored(msg));
+            storing(user.getName(), stored);
+            inbox.addAll(stored);
+        }
+
+        return msg.sequence;
+    }
+
+    @Override
+    public boolean addMessages(List<Message> msgs) {
+        Map<String, List<Message>> byRecipient = new LinkedHashMap<>();
+        for (Message msg : msgs) {
+            if (msg.to == null || msg.to.isEmpty() || msg.from == null || msg.from.equals("") || msg.date == null) {
+                return false;
+            }
+
+            byRecipient.computeIfAbsent(msg.to, to -> new ArrayList<>()).add(msg);
+        }
+
+        if (byRecipient.isEmpty()) return false;
+
+        for (Map.Entry<String, List<Message>> recipient : byRecipient.entrySet()) {
+            Inbox inbox = inboxes.computeIfAbsent(recipient.getKey(), name -> new Inbox());
+            synchronized (inbox) {
+                List<Message> stored = new ArrayList<>(recipient.getValue().size());
+                for (Message msg : recipient.getValue()) {
+                    msg.sequence = ++inbox.sequence;
+                    stored.add(stored(msg));
+                }
+
+                storing(recipient.getKey(), stored);
+                inbox.addAll(stored);
+            }
+        }
+
+        return true;
+    }
+
+    @Override
+    public MessagePage getMessages(User user, int sequenceBegin, int limit) {
+        if (user.getName() == null || user.getName().equals("")) return null;
+
+        Inbox inbox = inboxes.get(user.getName());
+        if (inbox == null) return MessagePage.empty();
+        synchronized (inbox) {
+            if (inbox.sequence < sequenceBegin) return null;
+
+            int from = inbox.firstAfter(sequenceBegin);
+            int to = limit > 0 ? Math.min(inbox.messages.size(), from + limit) : inbox.messages.size();
+            List<Message> page = new ArrayList<>(inbox.messages.subList(from, to));
+            int continuation = to < inbox.messages.size() ? page.get(page.size() - 1).sequence : 0;
+            return new MessagePage(page.iterator(), () -> {
+            }, continuation);
+        }
+    }
+
+    @Override
+    public boolean removeMessages(User user, int sequenceBegin) {
+        if (user.getName() == null || user.getName().equals("")) return false;
+
+        Inbox inbox = inboxes.get(user.getName());
+        if (inbox == null) return false;
+        synchronized (inbox) {
+            if (inbox.sequence < sequenceBegin) return false;
+
+            if (inbox.firstAfter(sequenceBegin) > 0) {
+                acknowledging(user.getName(), sequenceBegin);
+                inbox.removeThrough(sequenceBegin);
+            }
+        }
+
+        return true;
+    }
+
+    @Override
+    public InboxUsage usage(String user) {
+        Inbox inbox = inboxes.get(user);
+        if (inbox == null) return InboxUsage.EMPTY;
+        synchronized (inbox) {
+            return new InboxUsage(inbox.messages.size(), inbox.bytes);
+        }
+    }
+
+    @Override
+    public int expireMessages(Date before, int limit) {
+        int expired = 0;
+        for (Map.Entry<String, Inbox> entry : inboxes.entrySet()) {
+            if (expired >= limit) break;
+
+            Inbox inbox = entry.getValue();
+            synchronized (inbox) {
+                int count = 0;
+                for (Message msg : inbox.messages) {
+                    if (msg.received < before.getTime()) count++;
+                }
+
+                if (count > 0) {
+                    expiring(entry.getKey(), before);
+                    inbox.expire(before);
+                    expired += count;
+                }
+            }
+        }
+
+        return expired;
+    }
+
+    @Override
+    public void clearForTests() {
+        inboxes.clear();
+    }
+
+    /**
+     * Called while the inbox is locked before messages are added to it. Throwing prevents adding the messages.
+     *
+     * @param user The recipient's name.
+     * @param msgs The messages with their sequence numbers, in ascending order.
+     */
+    void storing(String user, List<Message> msgs) {
+    }
+
+    /**
+     * Called while the inbox is locked before confirmed messages are removed from it.
+     *
+     * @param user           The recipient's name.
+     * @param sequenceNumber The highest confirmed sequence number.
+     */
+    void acknowledging(String user, int sequenceNumber) {
+    }
+
+    /**
+     * Called while the inbox is locked before expired messages are removed from it.
+     *
+     * @param user   The recipient's name.
+     * @param before The receive time of the oldest message to keep.
+     */
+    void expiring(String user, Date before) {
+    }
+
+    /**
+     * @return Returns the message as it is read from storage, i.e. without the sender's token and received now.
+     */
+    static Message stored(Message msg) {
+        Message stored = new Message(msg.from, msg.to, msg.date, msg.text, null, msg.sequence);
+        stored.received = System.currentTimeMillis();
+        return stored;
+    }
+
+    /**
+     * A recipient's messages in ascending sequence order and the last assigned sequence number. Messages are only
+     * added and removed with the methods that track their size.
+     */
+    static class Inbox {
+        int sequence = sequenceOffset - 1;
+        final ArrayList<Message> messages = new ArrayList<>();
+        /**
+         * The estimated size of the messages, see {@link InboxQuota#size(Message)}.
+         */
+        long bytes = 0;
+
+        void add(int index, Message msg) {
+            messages.add(index, msg);
+            bytes += InboxQuota.size(msg);
+        }
+
+        void addAll(List<Message> msgs) {
+            for (Message msg : msgs) {
+                add(messages.size(), msg);
+            }
+        }
+
+        /**
+         * Removes the messages up to the given sequence number.
+         */
+        void removeThrough(int sequenceNumber) {
+            List<Message> removed = messages.subList(0, firstAfter(sequenceNumber));
+            for (Message msg : removed) {
+                bytes -= InboxQuota.size(msg);
+            }
+
+            removed.clear();
+        }
+
+        /**
+         * Removes the messages received before the given time.
+         */
+        void expire(Date before) {
+            messages.removeIf(msg -> {
+                if (msg.received >= before.getTime()) return false;
+                bytes -= InboxQuota.size(msg);
+                return true;
+            });
+        }
+
+        /**
+         * @return Returns the index of the first message with a sequence number higher than the given one.
+         */
+        int firstAfter(int sequenceNumber) {
+            int low = 0, high = messages.size();
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (messages.get(mid).sequence <= sequenceNumber) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+
+            return low;
+        }
+    }
+}
@@ -3,91 +3,510 @@ package chat.server;
 import com.mongodb.MongoClientURI;
 import com.mongodb.client.FindIterable;
 import com.mongodb.client.MongoCollection;
-import com.mongodb.client.model.FindOneAndUpdateOptions;
-import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.InsertManyOptions;
 import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.json.JSONObject;
 import services.common.StorageProviderCoreMongoDB;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.function.Consumer;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static com.mongodb.client.model.Filters.*;
-import static com.mongodb.client.model.Updates.*;
+import static com.mongodb.client.model.Projections.include;
+import static com.mongodb.client.model.Sorts.ascending;
+import static com.mongodb.client.model.Updates.inc;
 
-public class StorageProviderMongoDB extends StorageProviderCoreMongoDB{
+public class StorageProviderMongoDB extends StorageProviderCoreMongoDB implements StorageProvider {
 
     private static final int sequenceOffset = 1;
 
+    private final SequenceAllocator sequenceAllocator;
+    private final int sequenceBlockSize;
+    private final AckSweeper ackSweeper;
+    private final boolean sweepAcks;
+    private final InboxCache inboxCache;
+    private final HighWaterMarks highWaterMarks;
+    private final SharedPayloads payloads;
+    private final InboxUsageCache usageCache;
+    private final GroupCommit groupCommit;
+    private final TextCompression compression;
+
     public StorageProviderMongoDB(MongoClientURI uri, String database) {
         super(uri, database);
+        this.database.getCollection(Config.getSettingValue(Config.dbChatCollection))
+                .createIndex(Indexes.ascending("to", "sequence"));
+
+        sequenceBlockSize = Integer.parseInt(Config.getSettingValue(Config.sequenceBlockSize));
+        sequenceAllocator = new SequenceAllocator(
+                this.database.getCollection(Config.getSettingValue(Config.dbSequenceCollection)),
+                sequenceOffset,
+                sequenceBlockSize,
+                Long.parseLong(Config.getSettingValue(Config.sequenceLeaseMillis)));
+
+        // Confirmed messages are removed synchronously if no purge interval is set. The sweeper still remembers the
+        // confirmations, so repeated ones are recognized without asking the database.
+        long purgeInterval = Long.parseLong(Config.getSettingValue(Config.ackPurgeInterval));
+        ackSweeper = new AckSweeper(
+                this.database.getCollection(Config.getSettingValue(Config.dbChatCollection)),
+                this.database.getCollection(Config.getSettingValue(Config.dbSequenceCollection)),
+                Integer.parseInt(Config.getSettingValue(Config.ackPurgeBatchSize)),
+                Integer.parseInt(Config.getSettingValue(Config.highWaterMarkMaxUsers)));
+        sweepAcks = purgeInterval > 0;
+        if (sweepAcks) {
+            ackSweeper.start(purgeInterval);
+        }
+
+        long cacheBytes = Long.parseLong(Config.getSettingValue(Config.inboxCacheMaxBytes));
+        if (cacheBytes > 0 && sequenceBlockSize > 1) {
+            // Messages stored by other instances from their leased blocks would go unnoticed.
+            System.out.println("Inbox cache disabled, it can't be used with sequenceBlockSize > 1.");
+            cacheBytes = 0;
+        }
+
+        inboxCache = cacheBytes <= 0 ? null : new InboxCache(
+                cacheBytes,
+                Long.parseLong(Config.getSettingValue(Config.inboxCacheMaxInboxBytes)),
+                Long.parseLong(Config.getSettingValue(Config.inboxCacheIdleSeconds)) * 1000L);
+
+        // Without refreshing, messages stored by other instances could go unnoticed.
+        long refreshInterval = Long.parseLong(Config.getSettingValue(Config.highWaterMarkRefreshMillis));
+        if (refreshInterval > 0) {
+            highWaterMarks = new HighWaterMarks(
+                    this.database.getCollection(Config.getSettingValue(Config.dbSequenceCollection)),
+                    Integer.parseInt(Config.getSettingValue(Config.highWaterMarkMaxUsers)));
+            highWaterMarks.start(refreshInterval);
+        } else {
+            highWaterMarks = null;
+        }
+
+        usageCache = new InboxUsageCache(
+                this.database.getCollection(Config.getSettingValue(Config.dbChatCollection)),
+                Long.parseLong(Config.getSettingValue(Config.inboxUsageRefreshMillis)),
+                Integer.parseInt(Config.getSettingValue(Config.highWaterMarkMaxUsers)));
+
+        // Without group commit every message is inserted by the request storing it.
+        int groupCommitBatch = Integer.parseInt(Config.getSettingValue(Config.groupCommitMaxBatch));
+        if (groupCommitBatch > 1) {
+            MongoCollection<Document> messages =
+                    this.database.getCollection(Config.getSettingValue(Config.dbChatCollection));
+            groupCommit = new GroupCommit(
+                    docs -> messages.insertMany(docs, new InsertManyOptions().ordered(false)),
+                    groupCommitBatch,
+                    Long.parseLong(Config.getSettingValue(Config.groupCommitWindowMicros)),
+                    // As long as the driver may take to get a connection and write the batch.
+                    Long.parseLong(Config.getSettingValue(Config.mongoMaxWaitMillis))
+                            + Long.parseLong(Config.getSettingValue(Config.mongoSocketTimeoutMillis)));
+            groupCommit.start();
+        } else {
+            groupCommit = null;
+        }
+
+        compression = TextCompression.fromConfig();
+        payloads = new SharedPayloads(
+                this.database.getCollection(Config.getSettingValue(Config.dbPayloadCollection)),
+                this.database.getCollection(Config.getSettingValue(Config.dbChatCollection)),
+                compression);
+        long payloadSweepInterval = Long.parseLong(Config.getSettingValue(Config.payloadSweepInterval));
+        if (payloadSweepInterval > 0) {
+            payloads.start(payloadSweepInterval);
+        }
     }
 
     public int addMessage(User user, Message msg) {
-        if (user.getName() == null || user.getName().isEmpty()) return -1;
-        if (!user.getName().equals(msg.to) || msg.from == null || msg.from.equals("") || msg.date == null) return -1;
+        if (!isValid(user, msg)) return -1;
         MongoCollection<Document> messages = database.getCollection(Config.getSettingValue(Config.dbChatCollection));
-        MongoCollection<Document> sequences = database.getCollection(Config.getSettingValue(Config.dbSequenceCollection));
 
-        Document sequence =
-                sequences.findOneAndUpdate(
-                        eq("user", user.getName()),
-                        combine(set("user", user.getName()), inc("sequence", 1)),
-                        new FindOneAndUpdateOptions().returnDocument(ReturnDocument.AFTER));
-        if (sequence == null) {
-            sequence = new Document("user", user.getName()).append("sequence", sequenceOffset);
-            sequences.insertOne(sequence);
+        SequenceAllocator.Reservation reservation = sequenceAllocator.reserve(user.getName(), 1);
+        msg.sequence = reservation.first;
+
+        if (groupCommit != null) {
+            groupCommit.insert(messageToDoc(msg));
+        } else {
+            messages.insertOne(messageToDoc(msg));
         }
 
-        msg.sequence = sequence.getInteger("sequence");
+        written(user.getName(), Collections.singletonList(msg), reservation);
+        return msg.sequence;
+    }
 
-        messages.insertOne(messageToDoc(msg));
+    /**
+     * Same as {@link #addMessage(User, Message)} without blocking the calling thread. With group commit only the
+     * sequence number is reserved on the executor, the insert waits for its batch without holding a thread.
+     */
+    @Override
+    public CompletableFuture<Integer> addMessageAsync(User user, Message msg, Executor executor) {
+        if (groupCommit == null) {
+            return StorageProvider.super.addMessageAsync(user, msg, executor);
+        }
 
-        return msg.sequence;
+        if (!isValid(user, msg)) return CompletableFuture.completedFuture(-1);
+        return CompletableFuture.supplyAsync(() -> sequenceAllocator.reserve(user.getName(), 1), executor)
+                .thenCompose(reservation -> {
+                    msg.sequence = reservation.first;
+                    // Continued on the executor so the response isn't written on the group commit thread.
+                    return groupCommit.submit(messageToDoc(msg)).thenApplyAsync(done -> {
+                        written(user.getName(), Collections.singletonList(msg), reservation);
+                        return msg.sequence;
+                    }, executor);
+                });
+    }
+
+    private static boolean isValid(User user, Message msg) {
+        return user.getName() != null && !user.getName().isEmpty() && user.getName().equals(msg.to)
+                && msg.from != null && !msg.from.equals("") && msg.date != null;
+    }
+
+    /**
+     * Stores a batch of messages. For every recipient a contiguous block of sequence numbers is reserved with a single
+     * update and all messages are written with one insert.
+     *
+     * @param msgs The messages to store. Their sequence numbers are set on success.
+     * @return Returns true if the messages were stored or false if one of the messages was invalid. In that case no
+     * message is stored.
+     */
+    public boolean addMessages(List<Message> msgs) {
+        Map<String, List<Message>> byRecipient = new LinkedHashMap<>();
+        for (Message msg : msgs) {
+            if (msg.to == null || msg.to.isEmpty() || msg.from == null || msg.from.equals("") || msg.date == null) {
+                return false;
+            }
+
+            byRecipient.computeIfAbsent(msg.to, to -> new ArrayList<>()).add(msg);
+        }
+
+        if (byRecipient.isEmpty()) return false;
+        MongoCollection<Document> messages = database.getCollection(Config.getSettingValue(Config.dbChatCollection));
+
+        Map<String, SequenceAllocator.Reservation> reservations = new HashMap<>();
+        for (Map.Entry<String, List<Message>> recipient : byRecipient.entrySet()) {
+            SequenceAllocator.Reservation reservation =
+                    sequenceAllocator.reserve(recipient.getKey(), recipient.getValue().size());
+            reservations.put(recipient.getKey(), reservation);
+            int next = reservation.first;
+            for (Message msg : recipient.getValue()) {
+                msg.sequence = next++;
+            }
+        }
+
+        List<Document> docs = new ArrayList<>(msgs.size());
+        for (Message msg : msgs) {
+            docs.add(messageToDoc(msg));
+        }
+
+        messages.insertMany(docs);
+        for (Map.Entry<String, List<Message>> recipient : byRecipient.entrySet()) {
+            written(recipient.getKey(), recipient.getValue(), reservations.get(recipient.getKey()));
+        }
+
+        return true;
     }
 
-    public List<Message> getMessages(User user, int sequenceBegin) {
+    /**
+     * Stores a message for several recipients. The text is stored once in the payload collection and every
+     * recipient's message document references it.
+     *
+     * @param msg        The message. Its recipient is ignored.
+     * @param recipients The recipients' names, without duplicates.
+     * @return Returns one message per recipient with its sequence number or null if the message is invalid.
+     */
+    @Override
+    public List<Message> addGroupMessage(Message msg, List<String> recipients) {
+        if (recipients.isEmpty() || msg.from == null || msg.from.equals("") || msg.date == null) return null;
+        for (String recipient : recipients) {
+            if (recipient == null || recipient.isEmpty()) return null;
+        }
+
+        MongoCollection<Document> messages = database.getCollection(Config.getSettingValue(Config.dbChatCollection));
+        ObjectId payload = payloads.store(msg);
+
+        List<Message> msgs = new ArrayList<>(recipients.size());
+        List<SequenceAllocator.Reservation> reservations = new ArrayList<>(recipients.size());
+        List<Document> docs = new ArrayList<>(recipients.size());
+        for (String recipient : recipients) {
+            SequenceAllocator.Reservation reservation = sequenceAllocator.reserve(recipient, 1);
+            Message copy = new Message(msg.from, recipient, msg.date, msg.text, msg.token, reservation.first);
+            msgs.add(copy);
+            reservations.add(reservation);
+            docs.add(groupMessageToDoc(copy, payload));
+        }
+
+        messages.insertMany(docs);
+        for (int i = 0; i < msgs.size(); i++) {
+            written(msgs.get(i).to, Collections.singletonList(msgs.get(i)), reservations.get(i));
+        }
+
+        return msgs;
+    }
+
+    /**
+     * Opens the user's messages with a sequence number higher than sequenceBegin.
+     *
+     * @param user          The receiver.
+     * @param sequenceBegin The last sequence number received by the client or 0 to fetch all available messages.
+     * @param limit         The maximum number of messages in the page or 0 for all messages.
+     * @return Returns the page of messages in ascending sequence order or null if the user or sequence number is
+     * invalid. The page has to be closed or written.
+     */
+    public MessagePage getMessages(User user, int sequenceBegin, int limit) {
         MongoCollection<Document> messages = database.getCollection(Config.getSettingValue(Config.dbChatCollection));
         MongoCollection<Document> sequences = database.getCollection(Config.getSettingValue(Config.dbSequenceCollection));
         if (user.getName() == null || user.getName().equals("")) return null;
 
-        List<Message> newMessages = new ArrayList<>();
+        // The client already received the latest message, nothing to look up.
+        if (highWaterMarks != null && highWaterMarks.isEmpty(user.getName(), sequenceBegin)) {
+            return MessagePage.empty();
+        }
+
+        // Read before the storage so a message stored concurrently prevents caching an incomplete inbox.
+        long generation = inboxCache == null ? 0 : inboxCache.generation(user.getName());
         Document sequence = sequences.find(eq("user", user.getName())).first();
-        if (sequence == null) return newMessages;
+        if (sequence == null) return MessagePage.empty();
         if (sequence.getInteger("sequence") < sequenceBegin) return null;
-        FindIterable<Document> docs;
+        Bson filter;
+
+        if (highWaterMarks != null) {
+            highWaterMarks.update(user.getName(), sequence.getInteger("sequence"));
+        }
+
+        // Confirmed messages that were not removed yet must not be delivered again.
+        int acked = sequence.getInteger("acked", 0);
+        ackSweeper.written(user.getName(), acked);
+        acked = Math.max(acked, ackSweeper.acknowledged(user.getName()));
 
-        // Get all if sequenceBegin is zero
-        if (sequenceBegin == 0) {
-            docs = messages.find(eq("to", user.getName()));
+        int after = Math.max(sequenceBegin, acked);
+        int writes = sequence.getInteger("writes", 0);
+        if (inboxCache != null) {
+            MessagePage cached = inboxCache.get(user.getName(), writes, after, limit);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        // Get all if nothing was received or confirmed yet
+        if (after == 0) {
+            filter = eq("to", user.getName());
         } else {
-            docs = messages.find(
-                    and(eq("to", user.getName()), gt("sequence", sequenceBegin)));
+            filter = and(eq("to", user.getName()), gt("sequence", after));
+        }
+
+        // Only the first sequence number, the messages are read when the page is written.
+        if (messages.find(filter).sort(ascending("sequence")).projection(include("sequence")).first() == null) {
+            return inboxCache == null
+                    ? MessagePage.empty()
+                    : new MessagePage(inboxCache.loading(user.getName(), generation, writes, after,
+                    Collections.emptyIterator()), () -> {
+            }, 0);
+        }
+
+        int continuation = 0;
+        FindIterable<Document> docs = messages.find(filter).sort(ascending("sequence"));
+        if (limit > 0) {
+            // Fetch the sequence numbers of the page's last message and of its successor if there is one.
+            List<Document> pageEnd = messages.find(filter)
+                    .sort(ascending("sequence"))
+                    .projection(include("sequence"))
+                    .skip(limit - 1)
+                    .limit(2)
+                    .into(new ArrayList<>());
+            if (pageEnd.size() == 2) {
+                continuation = pageEnd.get(0).getInteger("sequence");
+            }
+
+            docs = docs.limit(limit);
         }
 
-        docs.forEach((Consumer<? super Document>) document -> newMessages.add(messageFromDoc(document)));
+        // The cursor is opened when the page is written, so a page that is never written holds no cursor.
+        FindIterable<Document> query = docs;
+        boolean complete = inboxCache != null && continuation == 0;
+        AtomicReference<MongoCursor<Document>> cursor = new AtomicReference<>();
+        return new MessagePage(() -> {
+            cursor.set(query.iterator());
+            Iterator<Document> joined = payloads.join(cursor.get());
+            Iterator<Message> msgs = new Iterator<Message>() {
+                @Override
+                public boolean hasNext() {
+                    return joined.hasNext();
+                }
 
-        return newMessages;
+                @Override
+                public Message next() {
+                    return messageFromDoc(joined.next());
+                }
+            };
+
+            // The query returns the complete inbox, cache it while it's written to the client.
+            return complete ? inboxCache.loading(user.getName(), generation, writes, after, msgs) : msgs;
+        }, () -> {
+            if (cursor.get() != null) {
+                cursor.get().close();
+            }
+        }, continuation);
     }
 
     public boolean removeMessages(User user, int sequenceBegin) {
         MongoCollection<Document> messages = database.getCollection(Config.getSettingValue(Config.dbChatCollection));
         MongoCollection<Document> sequences = database.getCollection(Config.getSettingValue(Config.dbSequenceCollection));
         if (user.getName() == null || user.getName().equals("")) return false;
+        // Clients confirm the same number on every poll, there is nothing to remove unless it advanced.
+        if (sequenceBegin <= ackSweeper.acknowledged(user.getName())) return true;
+        if (!isIssued(messages, sequences, user.getName(), sequenceBegin)) return false;
+        if (sweepAcks && !ackSweeper.acknowledge(user.getName(), sequenceBegin)) return true;
 
-        Document sequence = sequences.find(eq("user", user.getName())).first();
-        if (sequence == null || sequence.getInteger("sequence") < sequenceBegin) return false;
+        if (inboxCache != null) {
+            inboxCache.acknowledged(user.getName(), sequenceBegin);
+        }
+
+        usageCache.removed(user.getName());
+
+        if (sweepAcks) {
+            return true;
+        }
 
         messages.deleteMany(and(eq("to", user.getName()), lte("sequence", sequenceBegin)));
+        // Makes other instances reload their cached inbox.
+        sequences.updateOne(eq("user", user.getName()), inc("writes", 1));
+        ackSweeper.written(user.getName(), sequenceBegin);
         return true;
     }
 
-    private static Document messageToDoc(Message msg) {
+    /**
+     * Checks that a confirmed sequence number was handed out to a message. With leased blocks the sequence document
+     * holds the end of the latest block, so a number past the messages stored so far would also confirm the messages
+     * stored later with the rest of the block.
+     */
+    private boolean isIssued(MongoCollection<Document> messages, MongoCollection<Document> sequences, String user,
+                             int sequenceNumber) {
+        if (sequenceNumber <= sequenceAllocator.issued(user)
+                || sequenceNumber <= ackSweeper.acknowledged(user)) {
+            return true;
+        }
+
+        Document sequence = sequences.find(eq("user", user)).first();
+        if (sequence == null || sequence.getInteger("sequence") < sequenceNumber) return false;
+        if (sequenceBlockSize == 1 || sequenceNumber <= sequence.getInteger("acked", 0)) return true;
+
+        return messages.find(and(eq("to", user), gte("sequence", sequenceNumber)))
+                .projection(include("_id"))
+                .first() != null;
+    }
+
+    @Override
+    public InboxUsage usage(String user) {
+        return usageCache.get(user, () -> {
+            Document sequence = database.getCollection(Config.getSettingValue(Config.dbSequenceCollection))
+                    .find(eq("user", user)).first();
+            int acked = sequence == null ? 0 : sequence.getInteger("acked", 0);
+            return Math.max(acked, ackSweeper.acknowledged(user));
+        });
+    }
+
+    /**
+     * Deletes a batch of messages received before the given time. Group message payloads are deleted by the next payload
+     * sweep once no message references them.
+     */
+    @Override
+    public int expireMessages(Date before, int limit) {
+        MongoCollection<Document> messages = database.getCollection(Config.getSettingValue(Config.dbChatCollection));
+        List<ObjectId> expired = new ArrayList<>();
+        Set<String> recipients = new HashSet<>();
+        // The client sets the message date, the ids tell when this server stored the messages.
+        ObjectId receivedBefore = new ObjectId(before);
+        for (Document doc : messages.find(lt("_id", receivedBefore)).projection(include("_id", "to")).limit(limit)) {
+            expired.add(doc.getObjectId("_id"));
+            recipients.add(doc.getString("to"));
+        }
+
+        if (expired.isEmpty()) return 0;
+
+        long deleted = messages.deleteMany(in("_id", expired)).getDeletedCount();
+        // Makes other instances reload their cached inboxes.
+        database.getCollection(Config.getSettingValue(Config.dbSequenceCollection))
+                .updateMany(in("user", recipients), inc("writes", 1));
+        if (inboxCache != null) {
+            inboxCache.expired(recipients);
+        }
+
+        usageCache.clear();
+
+        return (int) deleted;
+    }
+
+    @Override
+    public JSONObject stats() {
+        JSONObject stats = new JSONObject();
+        if (groupCommit != null) {
+            stats.put("groupCommit", groupCommit.toJson());
+        }
+
+        return stats;
+    }
+
+    /**
+     * Updates the in-memory state after messages were stored.
+     */
+    private void written(String user, List<Message> msgs, SequenceAllocator.Reservation reservation) {
+        if (inboxCache != null) {
+            List<Message> stored = new ArrayList<>(msgs.size());
+            for (Message msg : msgs) {
+                stored.add(stored(msg));
+            }
+
+            inboxCache.added(user, stored, reservation.writes);
+        }
+
+        if (highWaterMarks != null) {
+            highWaterMarks.update(user, reservation.high);
+        }
+
+        long bytes = 0;
+        for (Message msg : msgs) {
+            bytes += InboxQuota.size(msg);
+        }
+
+        usageCache.added(user, msgs.size(), bytes);
+    }
+
+    /**
+     * @return Returns the message as it is read from storage, i.e. without the sender's token.
+     */
+    private static Message stored(Message msg) {
+        return new Message(msg.from, msg.to, msg.date, msg.text, null, msg.sequence);
+    }
+
+    private Document messageToDoc(Message msg) {
+        Document doc = new Document("to", msg.to)
+                .append("from", msg.from)
+                .append("sequence", msg.sequence)
+                .append("date", msg.date)
+                .append("size", InboxQuota.size(msg));
+        return compression.putText(doc, msg.text);
+    }
+
+    /**
+     * @return Returns the document of a group message, it references the payload holding the text.
+     */
+    private static Document groupMessageToDoc(Message msg, ObjectId payload) {
         return new Document("to", msg.to)
                 .append("from", msg.from)
-                .append("text", msg.text)
+                .append("payload", payload)
                 .append("sequence", msg.sequence)
-                .append("date", msg.date);
+                .append("date", msg.date)
+                .append("size", InboxQuota.size(msg));
     }
 
     private static Message messageFromDoc(Document msgDoc) {
@@ -95,13 +514,25 @@ public class StorageProviderMongoDB extends StorageProviderCoreMongoDB{
                 msgDoc.getString("from"),
                 msgDoc.getString("to"),
                 msgDoc.getDate("date"),
-                msgDoc.getString("text"),
+                TextCompression.getText(msgDoc),
                 null,
                 msgDoc.getInteger("sequence"));
     }
 
     public void clearForTests() {
+        if (highWaterMarks != null) {
+            highWaterMarks.clear();
+        }
+
+        if (inboxCache != null) {
+            inboxCache.clear();
+        }
+
+        usageCache.clear();
+        ackSweeper.clear();
+
         deleteCollection(Config.getSettingValue(Config.dbChatCollection));
         deleteCollection(Config.getSettingValue(Config.dbSequenceCollection));
+        deleteCollection(Config.getSettingValue(Config.dbPayloadCollection));
     }
 }
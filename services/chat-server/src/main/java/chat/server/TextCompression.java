@@ -0,0 +1,150 @@
+package chat.server;
+
+import org.bson.Document;
+import org.bson.types.Binary;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses long message texts before they are stored in MongoDB. A compressed text is stored as binary "text" field
+ * next to an "encoding" field naming the algorithm. Texts below the threshold and texts that don't get smaller (e.g.
+ * random data) are stored as strings. Reading doesn't depend on the configuration so compression can be switched off
+ * at any time.
+ */
+public class TextCompression {
+
+    public static final String DEFLATE = "deflate";
+
+    private static final ThreadLocal<Deflater> deflaters = new ThreadLocal<>();
+    private static final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(Inflater::new);
+
+    private final boolean enabled;
+    private final int thresholdChars;
+    private final int level;
+
+    /**
+     * Creates a new compression.
+     *
+     * @param algorithm      "deflate" to compress texts or "none" to store all texts as strings.
+     * @param thresholdChars The length of the shortest text that is compressed.
+     * @param level          The deflate level between 1 (fastest) and 9 (smallest).
+     */
+    public TextCompression(String algorithm, int thresholdChars, int level) {
+        switch (algorithm) {
+            case DEFLATE:
+                enabled = true;
+                break;
+            case "none":
+                enabled = false;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown text compression " + algorithm);
+        }
+
+        this.thresholdChars = thresholdChars;
+        this.level = level;
+    }
+
+    /**
+     * @return Returns the compression configured by {@link Config#textCompression}.
+     */
+    public static TextCompression fromConfig() {
+        return new TextCompression(
+                Config.getSettingValue(Config.textCompression),
+                Integer.parseInt(Config.getSettingValue(Config.textCompressionThreshold)),
+                Integer.parseInt(Config.getSettingValue(Config.textCompressionLevel)));
+    }
+
+    /**
+     * Adds a text to a document, compressed if it is long enough.
+     *
+     * @param doc  The message or payload document.
+     * @param text The text.
+     * @return Returns the document.
+     */
+    public Document putText(Document doc, String text) {
+        if (!enabled || text == null || text.length() < thresholdChars) {
+            return doc.append("text", text);
+        }
+
+        byte[] raw = text.getBytes(StandardCharsets.UTF_8);
+        byte[] compressed = deflate(raw);
+        if (compressed == null) {
+            return doc.append("text", text);
+        }
+
+        return doc.append("text", new Binary(compressed)).append("encoding", DEFLATE);
+    }
+
+    /**
+     * Reads the text of a document written by {@link #putText(Document, String)}.
+     *
+     * @param doc The message or payload document.
+     * @return Returns the text.
+     */
+    public static String getText(Document doc) {
+        if (!DEFLATE.equals(doc.getString("encoding"))) {
+            return doc.getString("text");
+        }
+
+        Object text = doc.get("text");
+        byte[] compressed = text instanceof Binary ? ((Binary) text).getData() : (byte[]) text;
+        return new String(inflate(compressed), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return Returns the compressed bytes or null if they aren't smaller than the raw bytes.
+     */
+    private byte[] deflate(byte[] raw) {
+        Deflater deflater = deflaters.get();
+        if (deflater == null) {
+            deflater = new Deflater(level);
+            deflaters.set(deflater);
+        }
+
+        deflater.reset();
+        deflater.setLevel(level);
+        deflater.setInput(raw);
+        deflater.finish();
+        // Output that doesn't fit into the raw size is not worth storing.
+        byte[] buffer = new byte[raw.length];
+        int length = 0;
+        while (!deflater.finished() && length < buffer.length) {
+            length += deflater.deflate(buffer, length, buffer.length - length);
+        }
+
+        if (!deflater.finished()) {
+            return null;
+        }
+
+        byte[] compressed = new byte[length];
+        System.arraycopy(buffer, 0, compressed, 0, length);
+        return compressed;
+    }
+
+    private static byte[] inflate(byte[] compressed) {
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setInput(compressed);
+        ByteArrayOutputStream raw = new ByteArrayOutputStream(compressed.length * 4);
+        byte[] buffer = new byte[8192];
+        try {
+            while (!inflater.finished()) {
+                int length = inflater.inflate(buffer);
+                if (length == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalStateException("Compressed text is truncated");
+                }
+
+                raw.write(buffer, 0, length);
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Compressed text is corrupt", e);
+        }
+
+        return raw.toByteArray();
+    }
+}
@@ -1,6 +1,11 @@
 package chat.server;
 
-import java.util.List;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A chat user. Contains the user's name and information about his messages.
@@ -9,16 +14,19 @@ public class User {
 
     private static final boolean removeOldMessages = true;
     private String name;
-    private StorageProviderMongoDB provider;
+    private StorageProvider provider;
+    private InboxWaiters waiters;
 
     /**
      * Creates a new user with the given name.
      *
      * @param name            The user's name.
      * @param storageProvider The storage provider used for persisting user messages.
+     * @param waiters         The registry of clients waiting for new messages.
      */
-    public User(StorageProviderMongoDB storageProvider, String name) {
+    public User(StorageProvider storageProvider, InboxWaiters waiters, String name) {
         this.provider = storageProvider;
+        this.waiters = waiters;
         this.name = name;
     }
 
@@ -36,20 +44,41 @@ public class User {
         }
 
         System.out.println(String.format("%s -> %s [%d]: %s", msg.from, msg.to, msg.sequence, msg.text));
+        waiters.signal(name);
         return msg;
     }
 
+    /**
+     * Same as {@link #sendMessage(Message)} without blocking the calling thread.
+     *
+     * @param msg      The message to sent to the user.
+     * @param executor Runs the blocking storage calls.
+     * @return Returns a future of the sent message with the correct sequence number or of null if it is invalid.
+     */
+    public CompletableFuture<Message> sendMessageAsync(Message msg, Executor executor) {
+        return provider.addMessageAsync(this, msg, executor).thenApply(seq -> {
+            if (seq == -1) {
+                return null;
+            }
+
+            System.out.println(String.format("%s -> %s [%d]: %s", msg.from, msg.to, msg.sequence, msg.text));
+            waiters.signal(name);
+            return msg;
+        });
+    }
+
     /**
      * Gets all received message with a sequence number higher than the
-     * parameter. Returned messages are deleted.
+     * parameter. Messages up to the parameter are deleted.
      *
      * @param sequenceNumber The last sequence number received by the client or 0 to fetch
      *                       all available messages.
-     * @return Returns all message with a sequence number lower than the
-     * parameter.
+     * @param limit          The maximum number of returned messages or 0 for all messages.
+     * @return Returns all message with a sequence number higher than the
+     * parameter or null if the sequence number is invalid. The page has to be closed or written.
      */
-    public List<Message> receiveMessages(int sequenceNumber) {
-        List<Message> recvMsgs = provider.getMessages(this, sequenceNumber);
+    public MessagePage receiveMessages(int sequenceNumber, int limit) {
+        MessagePage recvMsgs = provider.getMessages(this, sequenceNumber, limit);
         if (recvMsgs == null) {
             return null;
         }
@@ -64,6 +93,141 @@ public class User {
         return recvMsgs;
     }
 
+    /**
+     * Same as {@link #receiveMessages(int, int)} but waits up to the given time for new messages if there are none.
+     * The wait holds no thread: the storage is queried again on the executor when a new message was signaled.
+     *
+     * @param sequenceNumber The last sequence number received by the client or 0 to fetch
+     *                       all available messages.
+     * @param limit          The maximum number of returned messages or 0 for all messages.
+     * @param maxWaitMillis  The maximum time to wait for a new message in milliseconds.
+     * @param executor       Queries the storage after a signal and ends the wait.
+     * @return Returns a future of all message with a sequence number higher than the parameter, completed right away
+     * if there are messages or no wait is possible. The page is empty if no message arrived in time or if too many
+     * clients are already waiting. Cancelling the future ends the wait.
+     */
+    public CompletableFuture<MessagePage> awaitMessages(int sequenceNumber, int limit, long maxWaitMillis,
+                                                        ScheduledExecutorService executor) throws IOException {
+        return await(receiveMessages(sequenceNumber, limit), sequenceNumber, limit, maxWaitMillis, executor);
+    }
+
+    /**
+     * Same as {@link #awaitMessages(int, int, long, ScheduledExecutorService)} but the storage is first queried on the
+     * storage executor, so the calling thread is never blocked.
+     *
+     * @param storage Runs the first storage query.
+     */
+    public CompletableFuture<MessagePage> awaitMessages(int sequenceNumber, int limit, long maxWaitMillis,
+                                                        ScheduledExecutorService executor, Executor storage) {
+        // Cancelling the composed future doesn't reach the wait it depends on, so it is passed on explicitly.
+        CompletableFuture<Void> cancelled = new CompletableFuture<>();
+        CompletableFuture<MessagePage> result = provider.getMessagesAsync(this, sequenceNumber, limit, storage)
+                .thenCompose(recvMsgs -> {
+                    if (recvMsgs != null && User.removeOldMessages && sequenceNumber > 0) {
+                        provider.removeMessages(this, sequenceNumber);
+                    }
+
+                    CompletableFuture<MessagePage> wait = await(recvMsgs, sequenceNumber, limit, maxWaitMillis,
+                            executor);
+                    cancelled.thenRun(() -> wait.cancel(false));
+                    return wait;
+                });
+        result.whenComplete((page, e) -> {
+            if (result.isCancelled()) {
+                cancelled.complete(null);
+            }
+        });
+        return result;
+    }
+
+    private CompletableFuture<MessagePage> await(MessagePage recvMsgs, int sequenceNumber, int limit,
+                                                 long maxWaitMillis, ScheduledExecutorService executor) {
+        if (recvMsgs == null || recvMsgs.hasMessages() || maxWaitMillis <= 0 || !waiters.tryPark()) {
+            return CompletableFuture.completedFuture(recvMsgs);
+        }
+
+        close(recvMsgs);
+        Wait wait = new Wait(sequenceNumber, limit, executor);
+        ScheduledFuture<?> timeout = executor.schedule(() -> wait.result.complete(MessagePage.empty()),
+                maxWaitMillis, TimeUnit.MILLISECONDS);
+        wait.result.whenComplete((page, e) -> {
+            timeout.cancel(false);
+            waiters.unpark();
+        });
+
+        wait.poll();
+        return wait.result;
+    }
+
+    /**
+     * A long poll waiting for a signal of the registry.
+     */
+    private class Wait {
+        private final int sequenceNumber;
+        private final int limit;
+        private final ScheduledExecutorService executor;
+        private final CompletableFuture<MessagePage> result = new CompletableFuture<>();
+        private CompletableFuture<Void> signal;
+
+        private Wait(int sequenceNumber, int limit, ScheduledExecutorService executor) {
+            this.sequenceNumber = sequenceNumber;
+            this.limit = limit;
+            this.executor = executor;
+            result.whenComplete((page, e) -> unregister());
+        }
+
+        private void poll() {
+            // Register before querying so a message stored in between is not missed.
+            CompletableFuture<Void> registered = register();
+            if (registered == null) {
+                return;
+            }
+
+            MessagePage recvMsgs;
+            try {
+                recvMsgs = provider.getMessages(User.this, sequenceNumber, limit);
+            } catch (RuntimeException e) {
+                result.completeExceptionally(e);
+                return;
+            }
+
+            if (recvMsgs == null || recvMsgs.hasMessages()) {
+                if (!result.complete(recvMsgs) && recvMsgs != null) {
+                    close(recvMsgs);
+                }
+
+                return;
+            }
+
+            close(recvMsgs);
+            registered.thenRunAsync(this::poll, executor);
+        }
+
+        /**
+         * @return Returns the new registration or null if the wait is over.
+         */
+        private synchronized CompletableFuture<Void> register() {
+            // A signaled registration was already removed by the registry, only the last one may still be there.
+            signal = result.isDone() ? null : waiters.register(name);
+            return signal;
+        }
+
+        private synchronized void unregister() {
+            if (signal != null) {
+                waiters.unregister(name, signal);
+                signal = null;
+            }
+        }
+    }
+
+    private static void close(MessagePage page) {
+        try {
+            page.close();
+        } catch (IOException e) {
+            System.out.printf("Failed to close message page: %s%n", e.getMessage());
+        }
+    }
+
     /**
      * The user's name.
      */
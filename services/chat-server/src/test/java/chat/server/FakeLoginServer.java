@@ -0,0 +1,128 @@
+package chat.server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Answers /auth and /auth/batch like the login server. A token is valid if it is "valid-" followed by the pseudonym.
+ */
+class FakeLoginServer implements AutoCloseable {
+
+    private final HttpServer server;
+    /**
+     * The number of tokens of every request, in the order they arrived.
+     */
+    final List<Integer> requests = Collections.synchronizedList(new ArrayList<>());
+    final AtomicInteger singleRequests = new AtomicInteger();
+    final AtomicInteger batchRequests = new AtomicInteger();
+    volatile boolean batchSupported = true;
+    volatile int status = 200;
+    /**
+     * Requests wait until it is counted down.
+     */
+    volatile CountDownLatch hold = new CountDownLatch(0);
+
+    FakeLoginServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/auth", exchange -> {
+            singleRequests.incrementAndGet();
+            requests.add(1);
+            await();
+            JSONObject result = check(new JSONObject(read(exchange)));
+            if (status != 200) {
+                respond(exchange, status, "Failed");
+            } else if (result.getString("success").equals("true")) {
+                respond(exchange, 200, result.toString());
+            } else {
+                respond(exchange, 401, "Invalid token");
+            }
+        });
+        server.createContext("/auth/batch", exchange -> {
+            if (!batchSupported) {
+                respond(exchange, 404, "Not found");
+                return;
+            }
+
+            batchRequests.incrementAndGet();
+            JSONArray checks = new JSONArray(read(exchange));
+            requests.add(checks.length());
+            await();
+            JSONArray results = new JSONArray();
+            for (int i = 0; i < checks.length(); i++) {
+                results.put(check(checks.getJSONObject(i)));
+            }
+
+            respond(exchange, status, results.toString());
+        });
+        server.start();
+    }
+
+    String url() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    @Override
+    public void close() {
+        hold.countDown();
+        server.stop(0);
+    }
+
+    private void await() {
+        try {
+            hold.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static JSONObject check(JSONObject check) {
+        if (!check.getString("token").equals("valid-" + check.getString("pseudonym"))) {
+            return new JSONObject().put("success", "false");
+        }
+
+        Date expireDate = new Date(System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1));
+        return new JSONObject()
+                .put("success", "true")
+                .put("expire-date", new SimpleDateFormat(Service.ISO8601).format(expireDate));
+    }
+
+    private static String read(HttpExchange exchange) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try (InputStream input = exchange.getRequestBody()) {
+            byte[] buffer = new byte[1024];
+            for (int read = input.read(buffer); read != -1; read = input.read(buffer)) {
+                body.write(buffer, 0, read);
+            }
+        }
+
+        return new String(body.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream output = exchange.getResponseBody()) {
+            output.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package chat.server;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestAckSweeper {
+
+    /**
+     * The collections are only used by sweeps.
+     */
+    private static AckSweeper sweeper(int maxUsers) {
+        return new AckSweeper(null, null, 10, maxUsers);
+    }
+
+    @Test
+    public void repeatedConfirmationIsNotQueued() {
+        AckSweeper sweeper = sweeper(10);
+
+        assertTrue(sweeper.acknowledge("user1", 5));
+        assertFalse(sweeper.acknowledge("user1", 5));
+        assertFalse(sweeper.acknowledge("user1", 3));
+        assertEquals(5, sweeper.acknowledged("user1"));
+
+        assertTrue(sweeper.acknowledge("user1", 6));
+        assertEquals(6, sweeper.acknowledged("user1"));
+        assertTrue(sweeper.acknowledge("user2", 1));
+    }
+
+    @Test
+    public void writtenConfirmationIsNotQueuedAgain() {
+        AckSweeper sweeper = sweeper(10);
+        sweeper.written("user1", 5);
+
+        assertFalse(sweeper.acknowledge("user1", 5));
+        assertEquals(5, sweeper.acknowledged("user1"));
+        assertTrue(sweeper.acknowledge("user1", 7));
+    }
+
+    @Test
+    public void writtenConfirmationsAreBounded() {
+        AckSweeper sweeper = sweeper(2);
+        sweeper.written("user1", 1);
+        sweeper.written("user2", 2);
+        sweeper.written("user3", 3);
+
+        assertEquals(0, sweeper.acknowledged("user1"));
+        assertEquals(3, sweeper.acknowledged("user3"));
+    }
+}
@@ -0,0 +1,172 @@
+package chat.server;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import services.common.AuthenticationProvider;
+import services.common.SignedTokens;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestAuthenticationProvider {
+
+    private final ExecutorService requests = Executors.newCachedThreadPool();
+    private FakeLoginServer server;
+
+    @Before
+    public void startServer() throws Exception {
+        server = new FakeLoginServer();
+    }
+
+    @After
+    public void stopServer() {
+        server.close();
+        requests.shutdownNow();
+    }
+
+    /**
+     * Waits until the login server received the given number of requests.
+     */
+    private void awaitRequests(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (server.requests.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+
+        assertEquals(count, server.requests.size());
+    }
+
+    /**
+     * Checks the token on its own thread like a request thread would. The provider's asynchronous checks only run as
+     * many at once as there are connections, so they never queue up for a batch.
+     */
+    private CompletableFuture<Boolean> check(AuthenticationProvider auth, String token, String pseudonym) {
+        return CompletableFuture.supplyAsync(() -> auth.authenticateUser(token, pseudonym), requests);
+    }
+
+    @Test
+    public void validatesWithLoginServer() {
+        AuthenticationProvider auth = new AuthenticationProvider(server.url(), 2, 1000, 2000);
+
+        assertTrue(auth.authenticateUser("valid-alice", "alice"));
+        assertFalse(auth.authenticateUser("valid-alice", "bob"));
+        assertEquals(2, server.singleRequests.get());
+    }
+
+    @Test
+    public void unreachableLoginServerRejects() {
+        server.status = 500;
+        AuthenticationProvider auth = new AuthenticationProvider(server.url(), 2, 1000, 2000);
+
+        assertFalse(auth.authenticateUser("valid-alice", "alice"));
+    }
+
+    @Test
+    public void identicalChecksShareRequest() throws Exception {
+        server.hold = new CountDownLatch(1);
+        AuthenticationProvider auth = new AuthenticationProvider(server.url(), 10, 1000, 5000);
+
+        CompletableFuture<Boolean> first = auth.authenticateUserAsync("valid-alice", "alice");
+        awaitRequests(1);
+        List<CompletableFuture<Boolean>> joined = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            joined.add(auth.authenticateUserAsync("valid-alice", "alice"));
+        }
+
+        // Give the checks time to join the running one.
+        long deadline = System.currentTimeMillis() + 5000;
+        while (auth.toJson().getLong("coalesced") < 5 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+
+        server.hold.countDown();
+        assertTrue(first.get(5, TimeUnit.SECONDS));
+        for (CompletableFuture<Boolean> check : joined) {
+            assertTrue(check.get(5, TimeUnit.SECONDS));
+        }
+
+        assertEquals(1, server.singleRequests.get());
+        assertEquals(5, auth.toJson().getLong("coalesced"));
+    }
+
+    @Test
+    public void checksQueuedBehindBusyConnectionAreBatched() throws Exception {
+        server.hold = new CountDownLatch(1);
+        AuthenticationProvider auth = new AuthenticationProvider(server.url(), 1, 1000, 5000);
+        auth.setMaxBatch(10);
+
+        CompletableFuture<Boolean> first = check(auth, "valid-user0", "user0");
+        awaitRequests(1);
+        List<CompletableFuture<Boolean>> queued = new ArrayList<>();
+        for (int i = 1; i <= 4; i++) {
+            queued.add(check(auth, i == 4 ? "forged" : "valid-user" + i, "user" + i));
+        }
+
+        // The checks are queued while the only connection is busy.
+        Thread.sleep(200);
+        server.hold.countDown();
+        assertTrue(first.get(5, TimeUnit.SECONDS));
+        for (int i = 0; i < 3; i++) {
+            assertTrue(queued.get(i).get(5, TimeUnit.SECONDS));
+        }
+
+        assertFalse(queued.get(3).get(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(1, 4), server.requests);
+        assertEquals(1, server.batchRequests.get());
+    }
+
+    @Test
+    public void loginServerWithoutBatchIsAskedSeparately() throws Exception {
+        server.batchSupported = false;
+        server.hold = new CountDownLatch(1);
+        AuthenticationProvider auth = new AuthenticationProvider(server.url(), 1, 1000, 5000);
+        auth.setMaxBatch(10);
+
+        CompletableFuture<Boolean> first = check(auth, "valid-user0", "user0");
+        awaitRequests(1);
+        List<CompletableFuture<Boolean>> queued = new ArrayList<>();
+        for (int i = 1; i <= 3; i++) {
+            queued.add(check(auth, "valid-user" + i, "user" + i));
+        }
+
+        Thread.sleep(200);
+        server.hold.countDown();
+        assertTrue(first.get(5, TimeUnit.SECONDS));
+        for (CompletableFuture<Boolean> check : queued) {
+            assertTrue(check.get(5, TimeUnit.SECONDS));
+        }
+
+        assertEquals(4, server.singleRequests.get());
+        assertEquals(0, server.batchRequests.get());
+    }
+
+    @Test
+    public void signedTokensAreCheckedInProcess() {
+        byte[] secret = new byte[32];
+        SignedTokens tokens = new SignedTokens(
+                Collections.singletonList("k1:" + Base64.getEncoder().encodeToString(secret)),
+                Collections.emptyList());
+        AuthenticationProvider auth = new AuthenticationProvider(server.url(), 2, 1000, 2000);
+        auth.setSignedTokens(tokens);
+
+        String token = tokens.sign("alice", new Date(System.currentTimeMillis() + 60000));
+        assertTrue(auth.authenticateUser(token, "alice"));
+        assertFalse(auth.authenticateUser(token, "bob"));
+        assertTrue(auth.authenticateUser("valid-alice", "alice"));
+        assertEquals(1, server.singleRequests.get());
+    }
+}
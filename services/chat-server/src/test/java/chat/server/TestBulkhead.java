@@ -0,0 +1,92 @@
+package chat.server;
+
+import org.junit.Test;
+import services.common.Bulkhead;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestBulkhead {
+
+    @Test
+    public void returnsResult() throws Exception {
+        Bulkhead bulkhead = new Bulkhead("test", 1, 1, 1000);
+        assertEquals("done", bulkhead.call(() -> "done"));
+    }
+
+    @Test(expected = IOException.class)
+    public void throwsWorkException() throws Exception {
+        new Bulkhead("test", 1, 1, 1000).call(() -> {
+            throw new IOException("failed");
+        });
+    }
+
+    @Test
+    public void rejectsWhenQueueIsFull() throws Exception {
+        Bulkhead bulkhead = new Bulkhead("test", 1, 1, 5000);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService callers = Executors.newCachedThreadPool();
+        try {
+            CompletableFuture<Boolean> running = CompletableFuture.supplyAsync(() -> call(bulkhead, release), callers);
+            CompletableFuture<Boolean> queued = CompletableFuture.supplyAsync(() -> call(bulkhead, release), callers);
+            long deadline = System.currentTimeMillis() + 5000;
+            while (bulkhead.toJson().getInt("queued") < 1 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+
+            try {
+                bulkhead.call(() -> true);
+                fail("The third call should be rejected");
+            } catch (RejectedExecutionException e) {
+                assertEquals(1, bulkhead.getRejected());
+            }
+
+            release.countDown();
+            assertTrue(running.get(5, TimeUnit.SECONDS));
+            assertTrue(queued.get(5, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+            callers.shutdownNow();
+        }
+    }
+
+    @Test
+    public void slowWorkTimesOutAndIsCancelled() throws Exception {
+        Bulkhead bulkhead = new Bulkhead("test", 1, 1, 100);
+        CountDownLatch interrupted = new CountDownLatch(1);
+        try {
+            bulkhead.call(() -> {
+                try {
+                    Thread.sleep(5000);
+                } catch (InterruptedException e) {
+                    interrupted.countDown();
+                }
+                return true;
+            });
+            fail("The call should time out");
+        } catch (RejectedExecutionException e) {
+            assertEquals(1, bulkhead.getTimedOut());
+        }
+
+        assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+        // The thread is free again.
+        assertTrue(bulkhead.call(() -> true));
+    }
+
+    private static boolean call(Bulkhead bulkhead, CountDownLatch release) {
+        try {
+            return bulkhead.call(() -> release.await(5, TimeUnit.SECONDS));
+        } catch (Exception e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package chat.server;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import services.common.CachingAuthenticationProvider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestCachingAuthenticationProvider {
+
+    private FakeLoginServer server;
+
+    @Before
+    public void startServer() throws Exception {
+        server = new FakeLoginServer();
+    }
+
+    @After
+    public void stopServer() {
+        server.close();
+    }
+
+    private CachingAuthenticationProvider provider(long maxAgeSeconds, long rejectedSeconds, int maxEntries) {
+        return new CachingAuthenticationProvider(server.url(), 2, 1000, 2000, maxAgeSeconds, rejectedSeconds,
+                maxEntries);
+    }
+
+    @Test
+    public void validTokenIsRemembered() throws Exception {
+        CachingAuthenticationProvider auth = provider(300, 5, 100);
+
+        assertTrue(auth.authenticateUser("valid-alice", "alice"));
+        assertTrue(auth.authenticateUser("valid-alice", "alice"));
+        assertTrue(auth.authenticateUserAsync("valid-alice", "alice").get());
+        assertEquals(1, server.singleRequests.get());
+        assertEquals(2, auth.toJson().getJSONObject("cache").getLong("hits"));
+
+        // The answer belongs to the pseudonym it was given for.
+        assertFalse(auth.authenticateUser("valid-alice", "bob"));
+        assertEquals(2, server.singleRequests.get());
+    }
+
+    @Test
+    public void rejectedTokenIsRememberedBriefly() throws Exception {
+        CachingAuthenticationProvider auth = provider(300, 1, 100);
+
+        assertFalse(auth.authenticateUser("forged", "alice"));
+        assertFalse(auth.authenticateUser("forged", "alice"));
+        assertEquals(1, server.singleRequests.get());
+
+        Thread.sleep(1100);
+        assertFalse(auth.authenticateUser("forged", "alice"));
+        assertEquals(2, server.singleRequests.get());
+    }
+
+    @Test
+    public void rejectionsAreNotRememberedWithoutRejectedAge() {
+        CachingAuthenticationProvider auth = provider(300, 0, 100);
+
+        assertFalse(auth.authenticateUser("forged", "alice"));
+        assertFalse(auth.authenticateUser("forged", "alice"));
+        assertEquals(2, server.singleRequests.get());
+    }
+
+    @Test
+    public void failuresAreNotRemembered() {
+        CachingAuthenticationProvider auth = provider(300, 5, 100);
+        server.status = 500;
+        assertFalse(auth.authenticateUser("valid-alice", "alice"));
+
+        server.status = 200;
+        assertTrue(auth.authenticateUser("valid-alice", "alice"));
+        assertEquals(2, server.singleRequests.get());
+    }
+
+    @Test
+    public void validTokenExpiresAfterMaxAge() throws Exception {
+        CachingAuthenticationProvider auth = provider(1, 5, 100);
+
+        assertTrue(auth.authenticateUser("valid-alice", "alice"));
+        Thread.sleep(1100);
+        assertTrue(auth.authenticateUser("valid-alice", "alice"));
+        assertEquals(2, server.singleRequests.get());
+    }
+
+    @Test
+    public void entriesAreBounded() {
+        CachingAuthenticationProvider auth = provider(300, 5, 2);
+
+        for (int i = 0; i < 5; i++) {
+            assertTrue(auth.authenticateUser("valid-user" + i, "user" + i));
+        }
+
+        assertTrue(auth.toJson().getJSONObject("cache").getLong("entries") <= 2);
+        // The latest entry survived.
+        assertTrue(auth.authenticateUser("valid-user4", "user4"));
+        assertEquals(5, server.singleRequests.get());
+    }
+}
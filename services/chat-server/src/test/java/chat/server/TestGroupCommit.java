@@ -0,0 +1,149 @@
+package chat.server;
+
+import com.mongodb.MongoTimeoutException;
+import org.bson.Document;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestGroupCommit {
+
+    @Test
+    public void concurrentInsertsShareBatches() throws Exception {
+        List<List<Document>> batches = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch firstFlush = new CountDownLatch(1);
+        GroupCommit commit = new GroupCommit(docs -> {
+            batches.add(new ArrayList<>(docs));
+            try {
+                // Hold the first batch so the other inserts queue up.
+                firstFlush.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, 100, 0, 5000);
+        commit.start();
+
+        ExecutorService executor = Executors.newFixedThreadPool(10);
+        List<Future<?>> inserts = new ArrayList<>();
+        inserts.add(executor.submit(() -> commit.insert(new Document("sequence", 0))));
+        while (batches.isEmpty()) {
+            Thread.sleep(1);
+        }
+
+        for (int i = 1; i < 10; i++) {
+            int sequence = i;
+            inserts.add(executor.submit(() -> commit.insert(new Document("sequence", sequence))));
+        }
+
+        Thread.sleep(100);
+        firstFlush.countDown();
+        for (Future<?> insert : inserts) {
+            insert.get(5, TimeUnit.SECONDS);
+        }
+
+        executor.shutdown();
+        assertEquals(2, batches.size());
+        assertEquals(1, batches.get(0).size());
+        assertEquals(9, batches.get(1).size());
+        assertEquals(2, commit.toJson().getJSONObject("batchSize").getLong("count"));
+        assertEquals(9, commit.toJson().getJSONObject("batchSize").getLong("max"));
+    }
+
+    @Test
+    public void failedBatchFailsItsInserts() {
+        GroupCommit commit = new GroupCommit(docs -> {
+            throw new IllegalStateException("down");
+        }, 100, 0, 5000);
+        commit.start();
+
+        try {
+            commit.insert(new Document("sequence", 1));
+            fail();
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().contains("down"));
+        }
+    }
+
+    @Test
+    public void queuedInsertTimesOutBehindSlowBatch() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        List<Document> written = Collections.synchronizedList(new ArrayList<>());
+        GroupCommit commit = new GroupCommit(docs -> {
+            written.addAll(docs);
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, 1, 0, 100);
+        commit.start();
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<?> first = executor.submit(() -> commit.insert(new Document("sequence", 1)));
+        while (written.isEmpty()) {
+            Thread.sleep(1);
+        }
+
+        // Queued behind the hanging batch, which can't finish before the release.
+        try {
+            commit.insert(new Document("sequence", 2));
+            fail();
+        } catch (MongoTimeoutException e) {
+            // Expected
+        }
+
+        // The document being written outlasted its timeout but was stored, so its insert succeeds.
+        assertFalse(first.isDone());
+        release.countDown();
+        first.get(5, TimeUnit.SECONDS);
+
+        // The timed out document was dropped and the flusher goes on.
+        commit.insert(new Document("sequence", 3));
+        executor.shutdown();
+        assertEquals(Arrays.asList(1, 3), sequences(written));
+    }
+
+    @Test
+    public void flusherSurvivesErrors() {
+        AtomicBoolean failing = new AtomicBoolean(true);
+        GroupCommit commit = new GroupCommit(docs -> {
+            if (failing.getAndSet(false)) {
+                throw new AssertionError("broken");
+            }
+        }, 100, 0, 5000);
+        commit.start();
+
+        try {
+            commit.insert(new Document("sequence", 1));
+            fail();
+        } catch (CompletionException e) {
+            assertTrue(e.getCause() instanceof AssertionError);
+        }
+
+        commit.insert(new Document("sequence", 2));
+    }
+
+    private static List<Integer> sequences(List<Document> docs) {
+        List<Integer> sequences = new ArrayList<>();
+        for (Document doc : docs) {
+            sequences.add(doc.getInteger("sequence"));
+        }
+
+        return sequences;
+    }
+}
@@ -0,0 +1,44 @@
+package chat.server;
+
+import com.mongodb.client.MongoCollection;
+import org.bson.Document;
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+public class TestHighWaterMarks {
+
+    @SuppressWarnings("unchecked")
+    private static HighWaterMarks create(int maxUsers) {
+        return new HighWaterMarks(mock(MongoCollection.class), maxUsers);
+    }
+
+    @Test
+    public void emptyOnlyAtLatestSequence() {
+        HighWaterMarks marks = create(10);
+        assertFalse(marks.isEmpty("user1", 3));
+
+        marks.update("user1", 3);
+        assertTrue(marks.isEmpty("user1", 3));
+        assertFalse(marks.isEmpty("user1", 2));
+        assertFalse(marks.isEmpty("user2", 3));
+
+        // A late reader must not lower the mark.
+        marks.update("user1", 5);
+        marks.update("user1", 4);
+        assertFalse(marks.isEmpty("user1", 4));
+        assertTrue(marks.isEmpty("user1", 5));
+    }
+
+    @Test
+    public void forgetsWhenFull() {
+        HighWaterMarks marks = create(1);
+        marks.update("user1", 1);
+        marks.update("user2", 1);
+
+        assertFalse(marks.isEmpty("user1", 1));
+        assertTrue(marks.isEmpty("user2", 1));
+    }
+}
@@ -0,0 +1,93 @@
+package chat.server;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class TestInboxCache {
+
+    private static Message message(int sequence) {
+        return new Message("sender", "user1", new Date(), "Hello " + sequence, null, sequence);
+    }
+
+    private static List<Integer> sequences(MessagePage page) {
+        List<Integer> sequences = new ArrayList<>();
+        while (page.hasMessages()) {
+            sequences.add(page.next().sequence);
+        }
+
+        return sequences;
+    }
+
+    private static void load(InboxCache cache, long generation, int writes, Message... msgs) {
+        Iterator<Message> loading = cache.loading("user1", generation, writes, 0, Arrays.asList(msgs).iterator());
+        while (loading.hasNext()) {
+            loading.next();
+        }
+    }
+
+    @Test
+    public void servesLoadedAndAddedMessages() {
+        InboxCache cache = new InboxCache(1024 * 1024, 1024 * 1024, 60000);
+        load(cache, cache.generation("user1"), 2, message(1), message(2));
+        cache.added("user1", Collections.singletonList(message(3)), 3);
+
+        assertEquals(Arrays.asList(2, 3), sequences(cache.get("user1", 3, 1, 0)));
+        MessagePage page = cache.get("user1", 3, 0, 2);
+        assertEquals(2, page.getContinuation());
+        assertEquals(Arrays.asList(1, 2), sequences(page));
+    }
+
+    @Test
+    public void missesAfterForeignWrite() {
+        InboxCache cache = new InboxCache(1024 * 1024, 1024 * 1024, 60000);
+        load(cache, cache.generation("user1"), 2, message(1), message(2));
+
+        // Another instance stored message 3.
+        assertNull(cache.get("user1", 3, 0, 0));
+        cache.added("user1", Collections.singletonList(message(4)), 4);
+        assertNull(cache.get("user1", 4, 0, 0));
+    }
+
+    @Test
+    public void concurrentWritePreventsCaching() {
+        InboxCache cache = new InboxCache(1024 * 1024, 1024 * 1024, 60000);
+        long generation = cache.generation("user1");
+        cache.added("user1", Collections.singletonList(message(2)), 2);
+        load(cache, generation, 2, message(1));
+
+        assertNull(cache.get("user1", 2, 0, 0));
+    }
+
+    @Test
+    public void acknowledgedMessagesAreDropped() {
+        InboxCache cache = new InboxCache(1024 * 1024, 1024 * 1024, 60000);
+        load(cache, cache.generation("user1"), 3, message(1), message(2), message(3));
+        cache.acknowledged("user1", 2);
+
+        assertEquals(Collections.singletonList(3), sequences(cache.get("user1", 3, 2, 0)));
+        assertNull(cache.get("user1", 3, 0, 0));
+    }
+
+    @Test
+    public void evictsWhenFull() {
+        InboxCache cache = new InboxCache(1, 1024 * 1024, 60000);
+        load(cache, cache.generation("user1"), 1, message(1));
+
+        assertNull(cache.get("user1", 1, 0, 0));
+        load(cache, cache.generation("user1"), 0);
+        MessagePage empty = cache.get("user1", 0, 0, 0);
+        assertNotNull(empty);
+        assertFalse(empty.hasMessages());
+    }
+}
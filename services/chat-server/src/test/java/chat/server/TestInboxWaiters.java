@@ -0,0 +1,47 @@
+package chat.server;
+
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TestInboxWaiters {
+
+    @Test
+    public void signalWakesAllWaitersOfRecipient() {
+        InboxWaiters waiters = new InboxWaiters(10);
+        CompletableFuture<Void> first = waiters.register("user1");
+        CompletableFuture<Void> second = waiters.register("user1");
+        CompletableFuture<Void> other = waiters.register("user2");
+
+        waiters.signal("user1");
+
+        assertTrue(first.isDone());
+        assertTrue(second.isDone());
+        assertFalse(other.isDone());
+    }
+
+    @Test
+    public void unregisteredWaiterIsRemoved() {
+        InboxWaiters waiters = new InboxWaiters(10);
+        CompletableFuture<Void> first = waiters.register("user1");
+        assertSame(first, waiters.register("user1"));
+        waiters.unregister("user1", first);
+        waiters.unregister("user1", first);
+
+        assertNotSame(first, waiters.register("user1"));
+    }
+
+    @Test
+    public void parkingIsBounded() {
+        InboxWaiters waiters = new InboxWaiters(1);
+        assertTrue(waiters.tryPark());
+        assertFalse(waiters.tryPark());
+        waiters.unpark();
+        assertTrue(waiters.tryPark());
+    }
+}
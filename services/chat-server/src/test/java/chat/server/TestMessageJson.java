@@ -0,0 +1,135 @@
+package chat.server;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class TestMessageJson {
+    public TestMessageJson() throws Exception {
+        Config.init(new String[]{});
+    }
+
+    @Test
+    public void writesLikeJsonObject() {
+        Message msg = new Message("validUser", "user1", new Date(1575160303000L),
+                "Hällo </script> \u0085\u001f\"\\😀", "valid", 70000);
+
+        assertEquals(msg.toJson(false).toString(), new String(MessageJson.toBytes(msg, false), StandardCharsets.UTF_8));
+        assertEquals(msg.toJson(true).toString(), new String(MessageJson.toBytes(msg, true), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void roundTrip() throws ParseException, IOException {
+        StringBuilder longText = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            longText.append("Hällo 😀 ");
+        }
+
+        Message msg = new Message("validUser", "user1", new Date(1575160303000L), longText.toString(), "valid", 70000);
+        Message decoded = read(new String(MessageJson.toBytes(msg, false), StandardCharsets.UTF_8));
+
+        assertEquals(msg.from, decoded.from);
+        assertEquals(msg.to, decoded.to);
+        assertEquals(msg.date, decoded.date);
+        assertEquals(msg.text, decoded.text);
+        assertEquals(msg.token, decoded.token);
+        assertEquals(msg.sequence, decoded.sequence);
+    }
+
+    @Test
+    public void skipsUnknownFields() throws ParseException, IOException {
+        Message msg = read("{'to':'user1', 'from':'validUser', 'extra':{'a':[1, 2.5e3, true, null]}, 'text': 'Hi\\u0021',"
+                + " 'token': 'valid'}");
+
+        assertEquals("Hi!", msg.text);
+        assertNull(msg.date);
+        assertEquals(0, msg.sequence);
+    }
+
+    @Test(expected = ParseException.class)
+    public void missingField() throws ParseException, IOException {
+        read("{'to':'user1', 'from':'validUser', 'text': 'Hello'}");
+    }
+
+    @Test(expected = ParseException.class)
+    public void unquotedNames() throws ParseException, IOException {
+        read("{to:'user1', from:'validUser', text: 'Hello', token: 'valid'}");
+    }
+
+    @Test(expected = ParseException.class)
+    public void trailingContent() throws ParseException, IOException {
+        read("{'to':'user1', 'from':'validUser', 'text': 'Hello', 'token': 'valid'} {}");
+    }
+
+    @Test(expected = ParseException.class)
+    public void textTooLong() throws ParseException, IOException {
+        MessageJson.read(new ByteArrayInputStream(
+                "{\"to\":\"user1\",\"from\":\"validUser\",\"text\":\"Hello\",\"token\":\"valid\"}"
+                        .getBytes(StandardCharsets.UTF_8)), 64, 4);
+    }
+
+    @Test
+    public void readsBatch() throws ParseException, IOException {
+        List<Message> msgs = MessageJson.readBatch(stream("[{'to':'user1', 'from':'validUser', 'text': 'Hello',"
+                + " 'token': 'valid'}, {'to':'user2', 'from':'validUser', 'text': 'Hi', 'token': 'valid'}]"), 2, 64, 64);
+
+        assertEquals(2, msgs.size());
+        assertEquals("user2", msgs.get(1).to);
+        assertEquals(0, MessageJson.readBatch(stream(" [ ] "), 2, 64, 64).size());
+    }
+
+    @Test(expected = ParseException.class)
+    public void batchWithUnquotedNames() throws ParseException, IOException {
+        MessageJson.readBatch(stream("[{to:'user1', from:'validUser', text: 'Hello', token: 'valid'}]"), 2, 64, 64);
+    }
+
+    @Test(expected = ParseException.class)
+    public void batchTooLarge() throws ParseException, IOException {
+        MessageJson.readBatch(stream("[{'to':'user1', 'from':'validUser', 'text': 'Hello', 'token': 'valid'},"
+                + " {'to':'user2', 'from':'validUser', 'text': 'Hi', 'token': 'valid'}]"), 1, 64, 64);
+    }
+
+    @Test
+    public void readsGroup() throws ParseException, IOException {
+        Set<String> recipients = new LinkedHashSet<>();
+        Message msg = MessageJson.readGroup(stream("{'to':['user1', 'user2', 'user1'], 'from':'validUser',"
+                + " 'text': 'Hello', 'token': 'valid'}"), recipients, 2, 64, 64);
+
+        assertEquals(Arrays.asList("user1", "user2"), new ArrayList<>(recipients));
+        assertEquals("", msg.to);
+        assertEquals("Hello", msg.text);
+    }
+
+    @Test(expected = ParseException.class)
+    public void groupTextTooLong() throws ParseException, IOException {
+        MessageJson.readGroup(stream("{'to':['user1'], 'from':'validUser', 'text': 'Hello', 'token': 'valid'}"),
+                new LinkedHashSet<>(), 2, 64, 4);
+    }
+
+    @Test(expected = ParseException.class)
+    public void groupWithTooManyRecipients() throws ParseException, IOException {
+        MessageJson.readGroup(stream("{'to':['user1', 'user2', 'user3'], 'from':'validUser', 'text': 'Hello',"
+                + " 'token': 'valid'}"), new LinkedHashSet<>(), 2, 64, 64);
+    }
+
+    private static InputStream stream(String json) {
+        return new ByteArrayInputStream(json.replace('\'', '"').getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static Message read(String json) throws ParseException, IOException {
+        return MessageJson.read(stream(json), 1024, 1 << 20);
+    }
+}
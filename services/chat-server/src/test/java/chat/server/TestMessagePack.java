@@ -0,0 +1,101 @@
+package chat.server;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.Arrays;
+import java.util.Date;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestMessagePack {
+    public TestMessagePack() throws Exception {
+        Config.init(new String[]{});
+    }
+
+    @Test
+    public void roundTrip() throws ParseException {
+        StringBuilder longText = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            longText.append("Hällo ");
+        }
+
+        Message msg = new Message("validUser", "user1", new Date(1575160303000L), longText.toString(), "valid", 70000);
+        Message decoded = decode(MessagePack.encode(msg, false));
+
+        assertEquals(msg.from, decoded.from);
+        assertEquals(msg.to, decoded.to);
+        assertEquals(msg.date, decoded.date);
+        assertEquals(msg.text, decoded.text);
+        assertEquals(msg.token, decoded.token);
+        assertEquals(msg.sequence, decoded.sequence);
+    }
+
+    @Test(expected = ParseException.class)
+    public void confirmationIsNoMessage() throws ParseException {
+        Message msg = new Message("validUser", "user1", new Date(), "Hello", "valid", 1);
+        decode(MessagePack.encode(msg, true));
+    }
+
+    @Test(expected = ParseException.class)
+    public void truncatedData() throws ParseException {
+        Message msg = new Message("validUser", "user1", new Date(), "Hello", "valid", 1);
+        byte[] data = MessagePack.encode(msg, false);
+        byte[] truncated = new byte[data.length - 3];
+        System.arraycopy(data, 0, truncated, 0, truncated.length);
+        decode(truncated);
+    }
+
+    @Test(expected = ParseException.class)
+    public void negativeUint64() throws ParseException {
+        Message msg = new Message("validUser", "user1", new Date(), "Hello", "valid", 1);
+        byte[] data = MessagePack.encode(msg, false);
+        byte[] key = "sequence".getBytes(StandardCharsets.UTF_8);
+        int value = key.length;
+        while (!Arrays.equals(key, Arrays.copyOfRange(data, value - key.length, value))) {
+            value++;
+        }
+
+        // Replace the sequence number 1 by the uint64 0xffffffffffffffff.
+        byte[] uint64 = new byte[data.length + 8];
+        System.arraycopy(data, 0, uint64, 0, value);
+        uint64[value] = (byte) 0xcf;
+        Arrays.fill(uint64, value + 1, value + 9, (byte) 0xff);
+        System.arraycopy(data, value + 1, uint64, value + 9, data.length - value - 1);
+        decode(uint64);
+    }
+
+    @Test(expected = ParseException.class)
+    public void textTooLong() throws ParseException {
+        Message msg = new Message("validUser", "user1", new Date(), "Hello", "valid", 1);
+        MessagePack.decode(MessagePack.encode(msg, false), 64, 4);
+    }
+
+    @Test(expected = ParseException.class)
+    public void fieldTooLong() throws ParseException {
+        Message msg = new Message("validUser", "user1", new Date(), "Hello", "valid", 1);
+        MessagePack.decode(MessagePack.encode(msg, false), 4, 64);
+    }
+
+    @Test
+    public void oversizedStreamIsNotBuffered() throws IOException {
+        char[] text = new char[2000];
+        Arrays.fill(text, 'a');
+        Message msg = new Message("validUser", "user1", new Date(), new String(text), "valid", 1);
+        try {
+            MessagePack.decode(new ByteArrayInputStream(MessagePack.encode(msg, false)), 64, 100);
+            fail();
+        } catch (ParseException e) {
+            assertTrue(e.getMessage().contains("larger than"));
+        }
+    }
+
+    private static Message decode(byte[] data) throws ParseException {
+        return MessagePack.decode(data, 1024, 1 << 20);
+    }
+}
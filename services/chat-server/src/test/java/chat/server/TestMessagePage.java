@@ -0,0 +1,93 @@
+package chat.server;
+
+import org.json.JSONArray;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestMessagePage {
+
+    /**
+     * @return Returns an iterator over the given number of messages which fails when reading on.
+     */
+    private static Iterator<Message> failingAfter(int count) {
+        return new Iterator<Message>() {
+            private int next = 1;
+
+            @Override
+            public boolean hasNext() {
+                if (next > count) throw new IllegalStateException("Cursor lost");
+                return true;
+            }
+
+            @Override
+            public Message next() {
+                return new Message("sender", "user1", new Date(), "Hello", null, next++);
+            }
+        };
+    }
+
+    @Test
+    public void unwrittenPageIsNeverOpened() throws IOException {
+        AtomicBoolean opened = new AtomicBoolean();
+        AtomicBoolean closed = new AtomicBoolean();
+        MessagePage page = new MessagePage(() -> {
+            opened.set(true);
+            return failingAfter(1);
+        }, () -> closed.set(true), 0);
+
+        assertTrue(page.hasMessages());
+        page.close();
+        assertFalse(opened.get());
+        assertTrue(closed.get());
+    }
+
+    @Test
+    public void failedReadEndsArray() throws IOException {
+        AtomicBoolean closed = new AtomicBoolean();
+        MessagePage page = new MessagePage(() -> failingAfter(2), () -> closed.set(true), 0);
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        page.write(output);
+        JSONArray messages = new JSONArray(new String(output.toByteArray(), StandardCharsets.UTF_8));
+        assertEquals(2, messages.length());
+        assertTrue(closed.get());
+    }
+
+    @Test
+    public void failedReadAbortsPageWithContinuation() {
+        MessagePage page = new MessagePage(() -> failingAfter(2), () -> {
+        }, 3);
+
+        try {
+            page.write(new ByteArrayOutputStream());
+            fail("Page was ended early");
+        } catch (IOException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    @Test
+    public void failedQueryWritesNothing() throws IOException {
+        MessagePage page = new MessagePage(() -> failingAfter(0), () -> {
+        }, 0);
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try {
+            page.write(output);
+            fail("Failed query was written");
+        } catch (IllegalStateException e) {
+            assertEquals(0, output.size());
+        }
+    }
+}
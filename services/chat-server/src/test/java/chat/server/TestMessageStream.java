@@ -0,0 +1,105 @@
+package chat.server;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestMessageStream {
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+
+    @After
+    public void stopExecutor() {
+        executor.shutdownNow();
+    }
+
+    private MessageStream stream(StorageProvider provider, User user, Semaphore openStreams) {
+        return new MessageStream(provider, new InboxWaiters(0), executor, user, 0, 0, 15000, openStreams);
+    }
+
+    private static String write(MessageStream stream) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        stream.write(output);
+        return new String(output.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void droppedStreamDoesNotHoldSlot() throws IOException {
+        StorageProvider provider = new StorageProviderMemory();
+        User user = new User(provider, null, "user1");
+        Semaphore openStreams = new Semaphore(1);
+
+        // Never written, like the entity of a HEAD request or of a client that went away.
+        for (int i = 0; i < 3; i++) {
+            stream(provider, user, openStreams);
+        }
+
+        assertEquals("retry: 1000\n\n", write(stream(provider, user, openStreams)));
+        assertEquals(1, openStreams.availablePermits());
+    }
+
+    @Test
+    public void fullStreamsTellClientToRetryLater() throws IOException {
+        StorageProvider provider = new StorageProviderMemory();
+        User user = new User(provider, null, "user1");
+        provider.addMessage(user, new Message("sender", "user1", new Date(), "Hello", "token"));
+        Semaphore openStreams = new Semaphore(0);
+
+        String events = write(new MessageStream(provider, new InboxWaiters(0), executor, user, 0, 60000, 15000,
+                openStreams));
+        assertEquals("retry: 15000\n\n", events);
+        assertEquals(0, openStreams.availablePermits());
+    }
+
+    @Test
+    public void streamWritesMessages() throws IOException {
+        StorageProvider provider = new StorageProviderMemory();
+        InboxWaiters waiters = new InboxWaiters(0);
+        User user = new User(provider, waiters, "user1");
+        provider.addMessage(user, new Message("sender", "user1", new Date(), "Hello", "token"));
+        Semaphore openStreams = new Semaphore(1);
+
+        String events = write(new MessageStream(provider, waiters, executor, user, 0, 200, 50, openStreams));
+        assertTrue(events.contains("id: 1\nevent: message\n"));
+        assertEquals(1, openStreams.availablePermits());
+    }
+
+    @Test
+    public void startedStreamWritesOnSignalAndReleasesSlotWhenCancelled() throws Exception {
+        StorageProvider provider = new StorageProviderMemory();
+        InboxWaiters waiters = new InboxWaiters(0);
+        User user = new User(provider, waiters, "user1");
+        Semaphore openStreams = new Semaphore(1);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        MessageStream stream = new MessageStream(provider, waiters, executor, user, 0, 60000, 15000, openStreams);
+        CompletableFuture<Void> done = stream.start(output);
+        assertEquals(0, openStreams.availablePermits());
+
+        user.sendMessage(new Message("sender", "user1", new Date(), "Hello", "token"));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!output.toString("UTF-8").contains("id: 1\n") && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+
+        assertTrue(output.toString("UTF-8").contains("id: 1\nevent: message\n"));
+        assertFalse(done.isDone());
+
+        stream.cancel();
+        done.get(5, TimeUnit.SECONDS);
+        assertEquals(1, openStreams.availablePermits());
+    }
+}
@@ -0,0 +1,89 @@
+package chat.server;
+
+import org.junit.Test;
+import services.common.RateLimiter;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestRateLimiter {
+
+    @Test
+    public void rejectsAfterBurst() {
+        RateLimiter limiter = new RateLimiter(0.01, 3, 100);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, limiter.acquire("user1"));
+        }
+
+        long wait = limiter.acquire("user1");
+        assertTrue(wait > TimeUnit.SECONDS.toNanos(90));
+        assertEquals(1, limiter.getRejected());
+        // Other keys have their own bucket.
+        assertEquals(0, limiter.acquire("user2"));
+    }
+
+    @Test
+    public void refillsOverTime() throws InterruptedException {
+        RateLimiter limiter = new RateLimiter(100, 1, 100);
+        assertEquals(0, limiter.acquire("user1"));
+        assertTrue(limiter.acquire("user1") > 0);
+        Thread.sleep(20);
+        assertEquals(0, limiter.acquire("user1"));
+    }
+
+    @Test
+    public void zeroRateAllowsAll() {
+        RateLimiter limiter = new RateLimiter(0, 1, 1);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(0, limiter.acquire("user" + i));
+        }
+
+        assertEquals(0, limiter.getRejected());
+    }
+
+    @Test
+    public void newKeysAreRejectedWhileAllBucketsAreInUse() {
+        RateLimiter limiter = new RateLimiter(0.01, 1, 2);
+        assertEquals(0, limiter.acquire("user1"));
+        assertEquals(0, limiter.acquire("user2"));
+
+        assertTrue(limiter.acquire("user3") > 0);
+        // Known keys are still served.
+        assertTrue(limiter.acquire("user1") > 0);
+        assertEquals(2, limiter.getRejected());
+    }
+
+    @Test
+    public void fullBucketsAreDropped() throws InterruptedException {
+        RateLimiter limiter = new RateLimiter(100, 1, 2);
+        assertEquals(0, limiter.acquire("user1"));
+        assertEquals(0, limiter.acquire("user2"));
+        Thread.sleep(20);
+
+        assertEquals(0, limiter.acquire("user3"));
+        assertEquals(0, limiter.getRejected());
+    }
+
+    @Test
+    public void takesSeveralTokens() {
+        RateLimiter limiter = new RateLimiter(0.01, 3, 100);
+        assertEquals(0, limiter.acquire("user1", 2));
+        assertTrue(limiter.acquire("user1", 2) > 0);
+        assertEquals(0, limiter.acquire("user1"));
+        assertTrue(limiter.acquire("user1") > 0);
+
+        // A full bucket serves more tokens than the burst and is empty afterwards.
+        assertEquals(0, limiter.acquire("user2", 5));
+        long wait = limiter.acquire("user2");
+        assertTrue(wait > TimeUnit.SECONDS.toNanos(290));
+    }
+
+    @Test
+    public void retryAfterIsRoundedUp() {
+        assertEquals(1, RateLimiter.retryAfterSeconds(1));
+        assertEquals(1, RateLimiter.retryAfterSeconds(TimeUnit.SECONDS.toNanos(1)));
+        assertEquals(2, RateLimiter.retryAfterSeconds(TimeUnit.SECONDS.toNanos(1) + 1));
+    }
+}
@@ -12,27 +12,40 @@ import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import chat.server.Service;
+import org.json.JSONArray;
 import services.common.AuthenticationProvider;
 
+import com.sun.jersey.core.util.MultivaluedMapImpl;
+
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.Response;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 
 public class TestService {
     public TestService() throws Exception {
         Config.init(new String[]{});
     }
 
+    @After
+    public void resetConfig() throws Exception {
+        Config.init(new String[]{});
+    }
+
     @Test
     public void successfulNewMessage() {
         AuthenticationProvider auth = mock(AuthenticationProvider.class);
         when(auth.authenticateUser("valid", "validUser")).thenReturn(true);
         StorageProviderMongoDB provider = mock(StorageProviderMongoDB.class);
+        when(provider.usage(any())).thenReturn(InboxUsage.EMPTY);
         when(provider.addMessage(any(), any())).thenReturn(1);
 
         Service service = new Service(provider, auth);
 
-        Response res = service.send(
+        Response res = service.send(body(
                 "{'to':'user1', 'from':'validUser', 'date':'2019-12-01T00:31:43+0000', 'text': 'Hello', 'token': 'valid'}"
-                        .replace('\'', '"'));
+                        .replace('\'', '"')));
         assertEquals(Response.Status.CREATED.getStatusCode(), res.getStatus());
     }
 
@@ -41,13 +54,14 @@ public class TestService {
         AuthenticationProvider auth = mock(AuthenticationProvider.class);
         when(auth.authenticateUser("valid", "validUser")).thenReturn(true);
         StorageProviderMongoDB provider = mock(StorageProviderMongoDB.class);
+        when(provider.usage(any())).thenReturn(InboxUsage.EMPTY);
         when(provider.addMessage(any(), any())).thenReturn(1);
 
         Service service = new Service(provider, auth);
 
-        Response res = service.send(
+        Response res = service.send(body(
                 "{'to':'user1', 'from':'notAllowed', 'date':'2019-12-01T00:31:43+0000', 'text': 'Hello', 'token': 'valid'}"
-                        .replace('\'', '"'));
+                        .replace('\'', '"')));
         assertEquals(Response.Status.UNAUTHORIZED.getStatusCode(), res.getStatus());
     }
 
@@ -56,11 +70,12 @@ public class TestService {
         AuthenticationProvider auth = mock(AuthenticationProvider.class);
         when(auth.authenticateUser("valid", "validUser")).thenReturn(true);
         StorageProviderMongoDB provider = mock(StorageProviderMongoDB.class);
+        when(provider.usage(any())).thenReturn(InboxUsage.EMPTY);
         when(provider.addMessage(any(), any())).thenReturn(1);
 
         Service service = new Service(provider, auth);
 
-        Response res = service.send("{NotJson:nope}");
+        Response res = service.send(body("{NotJson:nope}"));
         assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), res.getStatus());
     }
 
@@ -69,13 +84,14 @@ public class TestService {
         AuthenticationProvider auth = mock(AuthenticationProvider.class);
         when(auth.authenticateUser("valid", "validUser")).thenReturn(true);
         StorageProviderMongoDB provider = mock(StorageProviderMongoDB.class);
+        when(provider.usage(any())).thenReturn(InboxUsage.EMPTY);
         when(provider.addMessage(any(), any())).thenReturn(1);
 
         Service service = new Service(provider, auth);
 
-        Response res = service.send(
+        Response res = service.send(body(
                 "{'to':'user1', 'date':'2019-12-01T00:31:43+0000', 'text': 'Hello', 'token': 'valid'}"
-                        .replace('\'', '"'));
+                        .replace('\'', '"')));
         assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), res.getStatus());
     }
 
@@ -84,13 +100,144 @@ public class TestService {
         AuthenticationProvider auth = mock(AuthenticationProvider.class);
         when(auth.authenticateUser("valid", "validUser")).thenReturn(true);
         StorageProviderMongoDB provider = mock(StorageProviderMongoDB.class);
+        when(provider.usage(any())).thenReturn(InboxUsage.EMPTY);
         when(provider.addMessage(any(), any())).thenReturn(-1);
 
         Service service = new Service(provider, auth);
 
-        Response res = service.send(
+        Response res = service.send(body(
                 "{'to':'user1', 'from':'validUser', 'date':'2019-12-01T00:31:43+0000', 'text': 'Hello', 'token': 'valid'}"
-                        .replace('\'', '"'));
+                        .replace('\'', '"')));
+        assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), res.getStatus());
+    }
+
+    @Test
+    public void successfulBatch() {
+        AuthenticationProvider auth = mock(AuthenticationProvider.class);
+        when(auth.authenticateUser("valid", "validUser")).thenReturn(true);
+        StorageProviderMongoDB provider = mock(StorageProviderMongoDB.class);
+        when(provider.usage(any())).thenReturn(InboxUsage.EMPTY);
+        when(provider.addMessages(any())).thenReturn(true);
+
+        Service service = new Service(provider, auth);
+
+        Response res = service.sendBatch(body(
+                ("[{'to':'user1', 'from':'validUser', 'date':'2019-12-01T00:31:43+0000', 'text': 'Hello', 'token': 'valid'}," +
+                        "{'to':'user2', 'from':'validUser', 'date':'2019-12-01T00:31:44+0000', 'text': 'Hi', 'token': 'valid'}]")
+                        .replace('\'', '"')));
+        assertEquals(Response.Status.CREATED.getStatusCode(), res.getStatus());
+        verify(auth, times(1)).authenticateUser("valid", "validUser");
+    }
+
+    @Test
+    public void batchWithDifferentSenders() {
+        AuthenticationProvider auth = mock(AuthenticationProvider.class);
+        when(auth.authenticateUser(any(), any())).thenReturn(true);
+        StorageProviderMongoDB provider = mock(StorageProviderMongoDB.class);
+        when(provider.usage(any())).thenReturn(InboxUsage.EMPTY);
+        when(provider.addMessages(any())).thenReturn(true);
+
+        Service service = new Service(provider, auth);
+
+        Response res = service.sendBatch(body(
+                ("[{'to':'user1', 'from':'validUser', 'date':'2019-12-01T00:31:43+0000', 'text': 'Hello', 'token': 'valid'}," +
+                        "{'to':'user2', 'from':'otherUser', 'date':'2019-12-01T00:31:44+0000', 'text': 'Hi', 'token': 'other'}]")
+                        .replace('\'', '"')));
         assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), res.getStatus());
+        verify(provider, never()).addMessages(any());
+    }
+
+    @Test
+    public void successfulGroupSend() {
+        AuthenticationProvider auth = mock(AuthenticationProvider.class);
+        when(auth.authenticateUser("valid", "validUser")).thenReturn(true);
+        StorageProvider provider = new StorageProviderMemory();
+
+        Service service = new Service(provider, auth);
+
+        Response res = service.sendGroup(body(
+                "{'to':['user1', 'user2', 'user1'], 'from':'validUser', 'date':'2019-12-01T00:31:43+0000', 'text': 'Hello', 'token': 'valid'}"
+                        .replace('\'', '"')));
+        assertEquals(Response.Status.CREATED.getStatusCode(), res.getStatus());
+        assertEquals(2, new JSONArray((String) res.getEntity()).length());
+        assertEquals("Hello", provider.getMessages(new User(provider, null, "user2"), 0, 0).next().text);
+        verify(auth, times(1)).authenticateUser("valid", "validUser");
+    }
+
+    @Test
+    public void fullInboxIsThrottled() throws Exception {
+        Config.init(new String[]{"-inboxMaxMessages", "1"});
+        AuthenticationProvider auth = mock(AuthenticationProvider.class);
+        when(auth.authenticateUser("valid", "validUser")).thenReturn(true);
+        StorageProvider provider = new StorageProviderMemory();
+
+        Service service = new Service(provider, auth);
+
+        String json = "{'to':'user1', 'from':'validUser', 'date':'2019-12-01T00:31:43+0000', 'text': 'Hello', 'token': 'valid'}"
+                .replace('\'', '"');
+        assertEquals(Response.Status.CREATED.getStatusCode(), service.send(body(json)).getStatus());
+        Response res = service.send(body(json));
+        assertEquals(429, res.getStatus());
+        assertEquals("30", res.getMetadata().getFirst("Retry-After").toString());
+
+        // Confirming the message makes room again.
+        provider.removeMessages(new User(provider, null, "user1"), 1);
+        assertEquals(Response.Status.CREATED.getStatusCode(), service.send(body(json)).getStatus());
+    }
+
+    @Test
+    public void sendIsRateLimited() throws Exception {
+        Config.init(new String[]{"-sendRateLimit", "0.01", "-sendRateBurst", "1"});
+        AuthenticationProvider auth = mock(AuthenticationProvider.class);
+        when(auth.authenticateUser("valid", "validUser")).thenReturn(true);
+
+        Service service = new Service(new StorageProviderMemory(), auth);
+
+        String json = "{'to':'user1', 'from':'validUser', 'date':'2019-12-01T00:31:43+0000', 'text': 'Hello', 'token': 'valid'}"
+                .replace('\'', '"');
+        // Requests with a wrong token don't use up the user's limit.
+        assertEquals(Response.Status.UNAUTHORIZED.getStatusCode(),
+                service.send(body(json.replace("\"valid\"", "\"forged\""))).getStatus());
+        assertEquals(Response.Status.CREATED.getStatusCode(), service.send(body(json)).getStatus());
+        Response res = service.send(body(json));
+        assertEquals(429, res.getStatus());
+        verify(auth, times(2)).authenticateUser("valid", "validUser");
+    }
+
+    @Test
+    public void batchTakesATokenPerMessage() throws Exception {
+        Config.init(new String[]{"-sendRateLimit", "0.01", "-sendRateBurst", "3"});
+        AuthenticationProvider auth = mock(AuthenticationProvider.class);
+        when(auth.authenticateUser("valid", "validUser")).thenReturn(true);
+
+        Service service = new Service(new StorageProviderMemory(), auth);
+
+        String batch = ("[{'to':'user1', 'from':'validUser', 'date':'2019-12-01T00:31:43+0000', 'text': 'Hello', 'token': 'valid'}," +
+                "{'to':'user2', 'from':'validUser', 'date':'2019-12-01T00:31:44+0000', 'text': 'Hi', 'token': 'valid'}]")
+                .replace('\'', '"');
+        assertEquals(Response.Status.CREATED.getStatusCode(), service.sendBatch(body(batch)).getStatus());
+        // One token is left, not enough for two messages.
+        assertEquals(429, service.sendBatch(body(batch)).getStatus());
+    }
+
+    @Test
+    public void streamIsRateLimited() throws Exception {
+        Config.init(new String[]{"-messagesRateLimit", "0.01", "-messagesRateBurst", "1"});
+        AuthenticationProvider auth = mock(AuthenticationProvider.class);
+        when(auth.authenticateUser("valid", "validUser")).thenReturn(true);
+        HttpHeaders header = mock(HttpHeaders.class);
+        when(header.getRequestHeaders()).thenReturn(new MultivaluedMapImpl());
+
+        Service service = new Service(new StorageProviderMemory(), auth);
+
+        assertEquals(Response.Status.UNAUTHORIZED.getStatusCode(),
+                service.streamMessages("validUser", 0, "forged", header).getStatus());
+        assertEquals(Response.Status.OK.getStatusCode(),
+                service.streamMessages("validUser", 0, "valid", header).getStatus());
+        assertEquals(429, service.streamMessages("validUser", 0, "valid", header).getStatus());
+    }
+
+    private static InputStream body(String json) {
+        return new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8));
     }
 }
@@ -0,0 +1,156 @@
+package chat.server;
+
+import org.junit.Test;
+import services.common.SignedTokens;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestSignedTokens {
+
+    private static final String KEY1 = key("k1", 1);
+    private static final String KEY2 = key("k2", 2);
+
+    private static String key(String id, int seed) {
+        byte[] secret = new byte[32];
+        Arrays.fill(secret, (byte) seed);
+        return id + ":" + Base64.getEncoder().encodeToString(secret);
+    }
+
+    private static SignedTokens tokens(String... keys) {
+        return new SignedTokens(Arrays.asList(keys), Collections.emptyList());
+    }
+
+    private static Date inAnHour() {
+        return new Date(System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1));
+    }
+
+    private static String replacePart(String token, int index, String value) {
+        String[] parts = token.split("\\.", -1);
+        parts[index] = value;
+        return String.join(".", parts);
+    }
+
+    private static String encode(String value) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void roundTrip() {
+        SignedTokens tokens = tokens(KEY1);
+        Date expireDate = inAnHour();
+        String token = tokens.sign("alice", expireDate);
+
+        assertTrue(SignedTokens.isSigned(token));
+        assertEquals(expireDate.getTime() / 1000, tokens.verify(token, "alice").getTime() / 1000);
+        assertNull(tokens.verify(token, "bob"));
+        // Every token gets its own id.
+        assertFalse(token.equals(tokens.sign("alice", expireDate)));
+    }
+
+    @Test
+    public void tamperedTokensAreRejected() {
+        SignedTokens tokens = tokens(KEY1);
+        String token = tokens.sign("alice", inAnHour());
+        String[] parts = token.split("\\.");
+
+        assertNull(tokens.verify(replacePart(token, 2, encode("bob")), "bob"));
+        long later = Long.parseLong(parts[3]) + TimeUnit.DAYS.toSeconds(365);
+        assertNull(tokens.verify(replacePart(token, 3, Long.toString(later)), "alice"));
+        assertNull(tokens.verify(replacePart(token, 4, encode("other id")), "alice"));
+
+        char first = parts[5].charAt(0);
+        String signature = (first == 'A' ? 'B' : 'A') + parts[5].substring(1);
+        assertNull(tokens.verify(replacePart(token, 5, signature), "alice"));
+    }
+
+    @Test
+    public void unknownKeyIsRejected() {
+        String token = tokens(KEY1).sign("alice", inAnHour());
+
+        assertNull(tokens(KEY2).verify(token, "alice"));
+        // Signed with the other key's id but the first key's secret.
+        assertNull(tokens(KEY1, KEY2).verify(replacePart(token, 1, "k2"), "alice"));
+    }
+
+    @Test
+    public void expiredTokenIsRejected() {
+        SignedTokens tokens = tokens(KEY1);
+        assertNull(tokens.verify(tokens.sign("alice", new Date(System.currentTimeMillis() - 1000)), "alice"));
+    }
+
+    @Test
+    public void revokedTokenIsRejected() {
+        String token = tokens(KEY1).sign("alice", inAnHour());
+        String other = tokens(KEY1).sign("alice", inAnHour());
+        String id = token.split("\\.")[4];
+
+        SignedTokens revoking = SignedTokens.fromSettings(Collections.singletonList(KEY1),
+                Collections.singletonList("unknown, " + id));
+        assertNull(revoking.verify(token, "alice"));
+        assertNotNull(revoking.verify(other, "alice"));
+    }
+
+    @Test
+    public void malformedTokensAreRejected() {
+        SignedTokens tokens = tokens(KEY1);
+        String token = tokens.sign("alice", inAnHour());
+        List<String> malformed = Arrays.asList(
+                null,
+                "",
+                "v1.",
+                "v1.k1",
+                "plain-token",
+                token + ".",
+                token + ".extra",
+                "." + token,
+                token.replace("v1.k1.", "v1.k1.."),
+                replacePart(token, 3, "soon"),
+                replacePart(token, 2, "not base64!"),
+                replacePart(token, 5, "not base64!"),
+                replacePart(token, 5, ""));
+        for (String candidate : malformed) {
+            assertNull(candidate, tokens.verify(candidate, "alice"));
+        }
+
+        assertNull(tokens.verify(token, null));
+    }
+
+    @Test
+    public void keysAreRotated() {
+        String old = tokens(KEY1).sign("alice", inAnHour());
+
+        // The new key is added in front: it signs new tokens, old ones stay valid.
+        SignedTokens rotating = tokens(KEY2, KEY1);
+        String current = rotating.sign("alice", inAnHour());
+        assertEquals("k2", current.split("\\.")[1]);
+        assertNotNull(rotating.verify(old, "alice"));
+        assertNotNull(rotating.verify(current, "alice"));
+
+        // Once the old key is removed its tokens are rejected.
+        SignedTokens rotated = tokens(KEY2);
+        assertNull(rotated.verify(old, "alice"));
+        assertNotNull(rotated.verify(current, "alice"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shortKeyIsRefused() {
+        tokens("k1:" + Base64.getEncoder().encodeToString(new byte[16]));
+    }
+
+    @Test
+    public void noKeysDisableSignedTokens() {
+        assertNull(SignedTokens.fromSettings(Collections.singletonList(""), Collections.emptyList()));
+    }
+}
@@ -0,0 +1,92 @@
+package chat.server;
+
+import org.json.JSONObject;
+import org.junit.Test;
+import services.common.StorageJournal;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestStorageJournal {
+
+    private static JSONObject entry(String key, int value) {
+        return new JSONObject().put("key", key).put("value", value);
+    }
+
+    private static Map<String, Integer> replay(Path file) throws IOException {
+        Map<String, Integer> state = new HashMap<>();
+        new StorageJournal(file).replay(entry -> state.put(entry.getString("key"), entry.getInt("value")));
+        return state;
+    }
+
+    @Test
+    public void compactsWhileGrowing() throws Exception {
+        Path file = Files.createTempDirectory("journal").resolve("test.journal");
+        Map<String, Integer> state = new HashMap<>();
+        StorageJournal journal = new StorageJournal(file);
+        journal.compact(new ArrayList<>());
+        journal.compactAutomatically(() -> {
+            List<JSONObject> entries = new ArrayList<>();
+            synchronized (state) {
+                state.forEach((key, value) -> entries.add(entry(key, value)));
+            }
+
+            return entries;
+        }, 10);
+
+        for (int i = 0; i < 1000; i++) {
+            synchronized (state) {
+                journal.append(entry("key" + i % 5, i));
+                state.put("key" + i % 5, i);
+            }
+        }
+
+        // Compacted at least once, it holds at most twice the entries of the last compaction.
+        long deadline = System.currentTimeMillis() + 5000;
+        while (Files.readAllLines(file).size() >= 1000 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assertTrue(Files.readAllLines(file).size() < 1000);
+        journal.append(entry("key0", -1));
+        state.put("key0", -1);
+        journal.close();
+        assertEquals(state, replay(file));
+    }
+
+    @Test
+    public void concurrentAppendsAreAllWritten() throws Exception {
+        Path file = Files.createTempDirectory("journal").resolve("test.journal");
+        StorageJournal journal = new StorageJournal(file);
+        journal.compact(new ArrayList<>());
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        AtomicInteger next = new AtomicInteger();
+        for (int i = 0; i < 8; i++) {
+            executor.execute(() -> {
+                for (int j = 0; j < 500; j++) {
+                    int value = next.getAndIncrement();
+                    journal.append(entry("key" + value, value));
+                }
+            });
+        }
+
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        // Every append was flushed before it returned.
+        assertEquals(4000, replay(file).size());
+        journal.close();
+    }
+}
@@ -0,0 +1,118 @@
+package chat.server;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class TestStorageProviderFile {
+
+    private static List<Integer> sequences(MessagePage page) {
+        List<Integer> sequences = new ArrayList<>();
+        while (page.hasMessages()) {
+            sequences.add(page.next().sequence);
+        }
+
+        return sequences;
+    }
+
+    private static Message message(String to) {
+        return new Message("sender", to, new Date(), "Hello \"" + to + "\"\n", "token");
+    }
+
+    @Test
+    public void pagesAndConfirms() {
+        StorageProvider provider = new StorageProviderMemory();
+        User user = new User(provider, null, "user1");
+        for (int i = 0; i < 3; i++) {
+            provider.addMessage(user, message("user1"));
+        }
+
+        MessagePage page = provider.getMessages(user, 0, 2);
+        assertEquals(2, page.getContinuation());
+        assertEquals(Arrays.asList(1, 2), sequences(page));
+        assertNull(provider.getMessages(user, 4, 0));
+
+        provider.removeMessages(user, 2);
+        assertEquals(Arrays.asList(3), sequences(provider.getMessages(user, 0, 0)));
+    }
+
+    @Test
+    public void restoresInboxes() throws IOException {
+        Path file = Files.createTempDirectory("chat").resolve("chats.journal");
+        StorageProvider provider = new StorageProviderFile(file);
+        User user = new User(provider, null, "user1");
+        provider.addMessage(user, message("user1"));
+        provider.addMessages(Arrays.asList(message("user1"), message("user2")));
+        provider.removeMessages(user, 1);
+
+        StorageProvider restored = new StorageProviderFile(file);
+        User restoredUser = new User(restored, null, "user1");
+        MessagePage page = restored.getMessages(restoredUser, 0, 0);
+        Message msg = page.next();
+        assertEquals(2, msg.sequence);
+        assertEquals("Hello \"user1\"\n", msg.text);
+        assertNull(msg.token);
+
+        // Confirmed sequence numbers are not handed out again.
+        restored.removeMessages(restoredUser, 2);
+        restored = new StorageProviderFile(file);
+        restoredUser = new User(restored, null, "user1");
+        assertEquals(3, restored.addMessage(restoredUser, message("user1")));
+        assertEquals(Arrays.asList(3), sequences(restored.getMessages(restoredUser, 0, 0)));
+        assertEquals(Arrays.asList(1), sequences(restored.getMessages(new User(restored, null, "user2"), 0, 0)));
+    }
+
+    @Test
+    public void restoresGroupMessages() throws IOException {
+        Path file = Files.createTempDirectory("chat").resolve("chats.journal");
+        StorageProvider provider = new StorageProviderFile(file);
+        List<Message> msgs = provider.addGroupMessage(message("group"), Arrays.asList("user1", "user2"));
+        assertEquals(2, msgs.size());
+        assertEquals(1, msgs.get(1).sequence);
+
+        // Restored twice to read the journal written by compaction as well.
+        new StorageProviderFile(file);
+        StorageProvider restored = new StorageProviderFile(file);
+        for (String name : Arrays.asList("user1", "user2")) {
+            Message msg = restored.getMessages(new User(restored, null, name), 0, 0).next();
+            assertEquals(name, msg.to);
+            assertEquals("Hello \"group\"\n", msg.text);
+        }
+    }
+
+    @Test
+    public void expiresMessagesByReceiveTime() throws Exception {
+        Path file = Files.createTempDirectory("chat").resolve("chats.journal");
+        StorageProvider provider = new StorageProviderFile(file);
+        User user = new User(provider, null, "user1");
+        Message future = message("user1");
+        future.date = new Date(System.currentTimeMillis() + 24 * 60 * 60 * 1000);
+        provider.addMessage(user, future);
+        Thread.sleep(20);
+        Date cutoff = new Date();
+        Thread.sleep(20);
+        Message backdated = message("user1");
+        backdated.date = new Date(0);
+        provider.addMessage(user, backdated);
+
+        assertEquals(1, provider.expireMessages(cutoff, 100));
+        assertEquals(0, provider.expireMessages(cutoff, 100));
+        assertEquals(Arrays.asList(2), sequences(provider.getMessages(user, 0, 0)));
+        assertEquals(1, provider.usage("user1").messages);
+        assertEquals(InboxQuota.size(message("user1")), provider.usage("user1").bytes);
+
+        // The expired message's sequence number is neither invalid nor handed out again.
+        StorageProvider restored = new StorageProviderFile(file);
+        assertEquals(Arrays.asList(2), sequences(restored.getMessages(user, 1, 0)));
+        assertEquals(3, restored.addMessage(user, message("user1")));
+    }
+}
@@ -0,0 +1,132 @@
+package chat.server;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestStorageProviderLog {
+
+    private static List<Integer> sequences(MessagePage page) {
+        List<Integer> sequences = new ArrayList<>();
+        while (page.hasMessages()) {
+            sequences.add(page.next().sequence);
+        }
+
+        return sequences;
+    }
+
+    private static Message message(String to, int i) {
+        return new Message("sender", to, new Date(1575160303000L + i), "Hällo " + i, "token");
+    }
+
+    private static int segments(Path directory) throws IOException {
+        try (java.util.stream.Stream<Path> files = Files.list(directory)) {
+            return (int) files.count();
+        }
+    }
+
+    @Test
+    public void readsRanges() throws IOException {
+        StorageProviderLog provider = new StorageProviderLog(Files.createTempDirectory("log"), 1024, 0.5);
+        User user = new User(provider, null, "user1");
+        for (int i = 1; i <= 5; i++) {
+            assertEquals(i, provider.addMessage(user, message("user1", i)));
+        }
+
+        MessagePage page = provider.getMessages(user, 1, 2);
+        assertEquals(3, page.getContinuation());
+        Message msg = page.next();
+        assertEquals("Hällo 2", msg.text);
+        assertEquals(new Date(1575160303002L), msg.date);
+        assertNull(msg.token);
+        assertNull(provider.getMessages(user, 6, 0));
+
+        provider.removeMessages(user, 3);
+        assertEquals(Arrays.asList(4, 5), sequences(provider.getMessages(user, 0, 0)));
+    }
+
+    @Test
+    public void compactsAndRecovers() throws IOException {
+        Path directory = Files.createTempDirectory("log");
+        StorageProviderLog provider = new StorageProviderLog(directory, 256, 0.5);
+        User user1 = new User(provider, null, "user1");
+        User user2 = new User(provider, null, "user2");
+        for (int i = 1; i <= 20; i++) {
+            provider.addMessage(user1, message("user1", i));
+            if (i % 10 == 0) {
+                provider.addMessage(user2, message("user2", i));
+            }
+        }
+
+        provider.removeMessages(user1, 18);
+        int before = segments(directory);
+        provider.compact();
+        assertTrue(segments(directory) < before);
+        assertEquals(Arrays.asList(19, 20), sequences(provider.getMessages(user1, 0, 0)));
+
+        StorageProviderLog recovered = new StorageProviderLog(directory, 256, 0.5);
+        assertEquals(Arrays.asList(19, 20), sequences(recovered.getMessages(user1, 0, 0)));
+        assertEquals(Arrays.asList(1, 2), sequences(recovered.getMessages(user2, 0, 0)));
+        assertEquals(21, recovered.addMessage(user1, message("user1", 21)));
+    }
+
+    @Test
+    public void expiresMessagesByReceiveTime() throws Exception {
+        Path directory = Files.createTempDirectory("log");
+        StorageProviderLog provider = new StorageProviderLog(directory, 1024, 0.5);
+        User user = new User(provider, null, "user1");
+        for (int i = 1; i <= 2; i++) {
+            Message future = message("user1", i);
+            future.date = new Date(System.currentTimeMillis() + 24 * 60 * 60 * 1000);
+            provider.addMessage(user, future);
+        }
+
+        Thread.sleep(20);
+        long cutoff = System.currentTimeMillis();
+        Thread.sleep(500);
+        for (int i = 3; i <= 4; i++) {
+            Message backdated = message("user1", i);
+            backdated.date = new Date(0);
+            provider.addMessage(user, backdated);
+        }
+
+        assertEquals(2, provider.expireMessages(new Date(cutoff), 100));
+        assertEquals(Arrays.asList(3, 4), sequences(provider.getMessages(user, 0, 0)));
+        assertEquals(Arrays.asList(4), sequences(provider.getMessages(user, 3, 0)));
+
+        // The index is rebuilt without the messages received before the cutoff, compacted ones keep their time.
+        provider.compact();
+        long ttl = System.currentTimeMillis() - cutoff - 250;
+        StorageProviderLog recovered = new StorageProviderLog(directory, 1024, 0.5, ttl);
+        assertEquals(Arrays.asList(3, 4), sequences(recovered.getMessages(user, 0, 0)));
+        assertEquals(2, recovered.usage("user1").messages);
+        assertEquals(provider.usage("user1").bytes, recovered.usage("user1").bytes);
+        recovered.removeMessages(user, 3);
+        assertEquals(1, recovered.usage("user1").messages);
+        assertEquals(5, recovered.addMessage(user, message("user1", 5)));
+    }
+
+    @Test
+    public void rejectsBatchWithOversizedMessage() throws IOException {
+        StorageProviderLog provider = new StorageProviderLog(Files.createTempDirectory("log"), 1024, 0.5);
+        char[] text = new char[2048];
+        Arrays.fill(text, 'a');
+        Message oversized = new Message("sender", "user2", new Date(), new String(text), "token");
+
+        assertFalse(provider.addMessages(Arrays.asList(message("user1", 1), oversized)));
+        assertEquals(-1, provider.addMessage(new User(provider, null, "user2"), oversized));
+        assertFalse(provider.getMessages(new User(provider, null, "user1"), 0, 0).hasMessages());
+        assertEquals(1, provider.addMessage(new User(provider, null, "user1"), message("user1", 2)));
+    }
+}
@@ -0,0 +1,166 @@
+package chat.server;
+
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientURI;
+import com.mongodb.MongoException;
+import com.mongodb.event.CommandFailedEvent;
+import com.mongodb.event.CommandListener;
+import com.mongodb.event.CommandStartedEvent;
+import com.mongodb.event.CommandSucceededEvent;
+import org.bson.Document;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs against the MongoDB given by the MONGO_URI environment variable or on localhost and is skipped if there is none.
+ * Every test uses two providers sharing the database like two chat server instances.
+ */
+public class TestStorageProviderMongoDB {
+
+    private static final String URI = System.getenv().getOrDefault("MONGO_URI", "mongodb://localhost:27017");
+
+    private StorageProviderMongoDB first;
+    private StorageProviderMongoDB second;
+
+    private void start(String... settings) throws Exception {
+        List<String> args = new ArrayList<>(Arrays.asList("-dbName", "chat-test", "-ackPurgeInterval", "0",
+                "-highWaterMarkRefreshMillis", "0", "-groupCommitMaxBatch", "1"));
+        args.addAll(Arrays.asList(settings));
+        Config.init(args.toArray(new String[0]));
+
+        MongoClientURI uri = new MongoClientURI(URI, StorageProvider.mongoOptions().serverSelectionTimeout(1000));
+        MongoClient client = new MongoClient(uri);
+        try {
+            client.getDatabase("chat-test").runCommand(new Document("ping", 1));
+        } catch (MongoException e) {
+            Assume.assumeNoException("No MongoDB at " + URI, e);
+        } finally {
+            client.close();
+        }
+
+        first = new StorageProviderMongoDB(uri, "chat-test");
+        second = new StorageProviderMongoDB(uri, "chat-test");
+        first.clearForTests();
+    }
+
+    @After
+    public void resetConfig() throws Exception {
+        if (first != null) {
+            first.clearForTests();
+        }
+
+        Config.init(new String[]{});
+    }
+
+    private static int send(StorageProvider provider, String text) {
+        User user = new User(provider, null, "user1");
+        return provider.addMessage(user, new Message("sender", "user1", new Date(), text, "token"));
+    }
+
+    private static List<Integer> read(StorageProvider provider, int sequenceBegin) throws Exception {
+        List<Integer> sequences = new ArrayList<>();
+        try (MessagePage page = provider.getMessages(new User(provider, null, "user1"), sequenceBegin, 0)) {
+            while (page.hasMessages()) {
+                sequences.add(page.next().sequence);
+            }
+        }
+
+        return sequences;
+    }
+
+    @Test
+    public void cachedInboxSeesOtherInstance() throws Exception {
+        start();
+        send(first, "Hello");
+        assertEquals(Collections.singletonList(1), read(second, 0));
+        // Served from the second provider's cache.
+        assertEquals(Collections.singletonList(1), read(second, 0));
+
+        send(first, "Hello again");
+        assertEquals(Arrays.asList(1, 2), read(second, 0));
+
+        first.removeMessages(new User(first, null, "user1"), 1);
+        assertEquals(Collections.singletonList(2), read(second, 0));
+
+        first.expireMessages(new Date(System.currentTimeMillis() + 60000), 100);
+        assertEquals(Collections.emptyList(), read(second, 0));
+    }
+
+    @Test
+    public void sequenceBlocksSeeOtherInstance() throws Exception {
+        start("-sequenceBlockSize", "10");
+        send(first, "Hello");
+        assertEquals(Collections.singletonList(1), read(second, 0));
+
+        send(first, "Hello again");
+        assertEquals(Arrays.asList(1, 2), read(second, 0));
+    }
+
+    @Test
+    public void sequenceBlocksNeverGoBackwards() throws Exception {
+        start("-sequenceBlockSize", "10", "-sequenceLeaseMillis", "200");
+        int last = 0;
+        for (int i = 0; i < 6; i++) {
+            // Both instances take turns while the other one still holds its lease.
+            for (StorageProvider provider : Arrays.asList(first, first, second)) {
+                int sequence = send(provider, "Hello " + i);
+                assertTrue(sequence + " after " + last, sequence > last);
+                last = sequence;
+            }
+        }
+
+        List<Integer> stored = read(first, 0);
+        List<Integer> sorted = new ArrayList<>(stored);
+        Collections.sort(sorted);
+        assertEquals(sorted, stored);
+        assertEquals(18, stored.size());
+    }
+
+    @Test
+    public void repeatedConfirmationNeedsNoStorage() throws Exception {
+        start("-ackPurgeInterval", "60000", "-highWaterMarkRefreshMillis", "60000", "-payloadSweepInterval", "0");
+        AtomicInteger commands = new AtomicInteger();
+        MongoClientURI uri = new MongoClientURI(URI, StorageProvider.mongoOptions()
+                .serverSelectionTimeout(1000)
+                .addCommandListener(new CommandListener() {
+                    @Override
+                    public void commandStarted(CommandStartedEvent event) {
+                        commands.incrementAndGet();
+                    }
+
+                    @Override
+                    public void commandSucceeded(CommandSucceededEvent event) {
+                    }
+
+                    @Override
+                    public void commandFailed(CommandFailedEvent event) {
+                    }
+                }));
+        StorageProviderMongoDB provider = new StorageProviderMongoDB(uri, "chat-test");
+        User user = new User(provider, null, "user1");
+        send(provider, "Hello");
+        user.receiveMessages(1, 0).close();
+
+        // The client keeps confirming the message it already confirmed while its inbox is empty.
+        commands.set(0);
+        for (int i = 0; i < 3; i++) {
+            try (MessagePage page = user.receiveMessages(1, 0)) {
+                assertFalse(page.hasMessages());
+            }
+        }
+
+        assertEquals(0, commands.get());
+    }
+}
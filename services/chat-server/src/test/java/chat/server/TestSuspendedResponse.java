@@ -0,0 +1,171 @@
+package chat.server;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import services.common.AuthenticationProvider;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Runs the service on Grizzly with fewer workers than waiting long polls and open streams.
+ */
+public class TestSuspendedResponse {
+
+    private static final int WORKERS = 2;
+    private static final int POLLS = 3 * WORKERS;
+
+    private final ExecutorService clients = Executors.newCachedThreadPool();
+    private FakeLoginServer login;
+    private String url;
+
+    @Before
+    public void startServer() throws Exception {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+
+        Config.init(new String[]{"-serverExecution", "fixed", "-serverWorkerThreads", Integer.toString(WORKERS),
+                "-serverSelectorThreads", "1"});
+        login = new FakeLoginServer();
+        new Service(new StorageProviderMemory(), new AuthenticationProvider(login.url(), 4, 1000, 2000));
+        url = "http://127.0.0.1:" + port;
+        Service.startChatServer(url + "/");
+    }
+
+    @After
+    public void stopServer() throws Exception {
+        Service.stopChatServer();
+        login.close();
+        clients.shutdownNow();
+        Config.init(new String[]{});
+    }
+
+    private int request(String method, String path, String user, String body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url + path).openConnection();
+        connection.setRequestMethod(method);
+        connection.setReadTimeout(20000);
+        connection.setRequestProperty("Authorization", "Token valid-" + user);
+        if (body != null) {
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/json");
+            try (OutputStream output = connection.getOutputStream()) {
+                output.write(body.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+
+        try {
+            return connection.getResponseCode();
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private CompletableFuture<Integer> poll(String user) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return request("GET", "/messages/" + user + "/0?wait=10", user, null);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }, clients);
+    }
+
+    @Test
+    public void waitingPollsHoldNoWorkers() throws Exception {
+        List<CompletableFuture<Integer>> polls = new ArrayList<>();
+        for (int i = 0; i < POLLS; i++) {
+            polls.add(poll("user" + i));
+        }
+
+        // Give the polls time to be parked.
+        Thread.sleep(500);
+        for (CompletableFuture<Integer> poll : polls) {
+            assertFalse(poll.isDone());
+        }
+
+        long start = System.nanoTime();
+        assertEquals(204, request("GET", "/messages/other/0", "other", null));
+        assertEquals(201, request("PUT", "/send", "other",
+                "{'to':'user0', 'from':'other', 'date':'2019-12-01T00:31:43+0000', 'text':'Hello', 'token':'valid-other'}"
+                        .replace('\'', '"')));
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertFalse("Requests waited " + millis + " ms for a worker", millis > 5000);
+
+        // The message ends the recipient's poll, the others are still waiting.
+        assertEquals(200, (int) polls.get(0).get(5, TimeUnit.SECONDS));
+        for (CompletableFuture<Integer> poll : polls.subList(1, POLLS)) {
+            assertFalse(poll.isDone());
+        }
+    }
+
+    @Test
+    public void openStreamsHoldNoWorkers() throws Exception {
+        List<HttpURLConnection> streams = new ArrayList<>();
+        try {
+            for (int i = 0; i < POLLS; i++) {
+                HttpURLConnection stream = (HttpURLConnection) new URL(url + "/stream/user" + i).openConnection();
+                stream.setReadTimeout(5000);
+                stream.setRequestProperty("Authorization", "Token valid-user" + i);
+                assertEquals(200, stream.getResponseCode());
+                assertEquals("text/event-stream", stream.getContentType());
+                streams.add(stream);
+            }
+
+            assertEquals(204, request("GET", "/messages/other/0", "other", null));
+            assertEquals(201, request("PUT", "/send", "other",
+                    "{'to':'user0', 'from':'other', 'date':'2019-12-01T00:31:43+0000', 'text':'Hello', 'token':'valid-other'}"
+                            .replace('\'', '"')));
+
+            BufferedReader events = new BufferedReader(
+                    new InputStreamReader(streams.get(0).getInputStream(), StandardCharsets.UTF_8));
+            assertEquals("retry: 1000", events.readLine());
+            assertEquals("", events.readLine());
+            assertEquals("id: 1", events.readLine());
+            assertEquals("event: message", events.readLine());
+        } finally {
+            for (HttpURLConnection stream : streams) {
+                stream.disconnect();
+            }
+        }
+    }
+
+    @Test
+    public void streamTakesTokenFromCookieNotUrl() throws Exception {
+        HttpURLConnection query = (HttpURLConnection) new URL(url + "/stream/user0?token=valid-user0").openConnection();
+        try {
+            assertEquals(401, query.getResponseCode());
+        } finally {
+            query.disconnect();
+        }
+
+        HttpURLConnection cookie = (HttpURLConnection) new URL(url + "/stream/user0").openConnection();
+        cookie.setReadTimeout(5000);
+        cookie.setRequestProperty("Cookie", "token=valid-user0");
+        try {
+            assertEquals(200, cookie.getResponseCode());
+            BufferedReader events = new BufferedReader(
+                    new InputStreamReader(cookie.getInputStream(), StandardCharsets.UTF_8));
+            assertEquals("retry: 1000", events.readLine());
+        } finally {
+            cookie.disconnect();
+        }
+    }
+}
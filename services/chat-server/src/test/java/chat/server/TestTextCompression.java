@@ -0,0 +1,52 @@
+package chat.server;
+
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestTextCompression {
+
+    private static String repeated(int length) {
+        StringBuilder text = new StringBuilder(length);
+        while (text.length() < length) {
+            text.append("Hällo Welt! ");
+        }
+
+        return text.substring(0, length);
+    }
+
+    @Test
+    public void longTextIsCompressed() {
+        TextCompression compression = new TextCompression("deflate", 100, 1);
+        String text = repeated(5000);
+        Document doc = compression.putText(new Document(), text);
+
+        assertTrue(doc.get("text") instanceof Binary);
+        assertTrue(((Binary) doc.get("text")).getData().length < text.length());
+        assertEquals("deflate", doc.getString("encoding"));
+        assertEquals(text, TextCompression.getText(doc));
+    }
+
+    @Test
+    public void shortTextStaysString() {
+        TextCompression compression = new TextCompression("deflate", 100, 1);
+        Document doc = compression.putText(new Document(), repeated(50));
+
+        assertEquals(repeated(50), doc.getString("text"));
+        assertNull(doc.get("encoding"));
+        assertEquals(repeated(50), TextCompression.getText(doc));
+    }
+
+    @Test
+    public void compressedTextIsReadWhenSwitchedOff() {
+        Document doc = new TextCompression("deflate", 0, 9).putText(new Document(), repeated(3000));
+
+        assertEquals(repeated(3000), TextCompression.getText(doc));
+        assertEquals(repeated(3000), TextCompression.getText(
+                new TextCompression("none", 0, 1).putText(new Document(), repeated(3000))));
+    }
+}
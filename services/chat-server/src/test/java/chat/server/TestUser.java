@@ -0,0 +1,127 @@
+package chat.server;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestUser {
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+
+    @After
+    public void stopExecutor() {
+        executor.shutdownNow();
+    }
+
+    private static Message message(String to) {
+        return new Message("sender", to, new Date(), "Hello", "token");
+    }
+
+    @Test
+    public void waitEndsWithNewMessage() throws Exception {
+        StorageProvider provider = new StorageProviderMemory();
+        InboxWaiters waiters = new InboxWaiters(1);
+        User user = new User(provider, waiters, "user1");
+
+        CompletableFuture<MessagePage> page = user.awaitMessages(0, 0, 10000, executor);
+        assertFalse(page.isDone());
+        user.sendMessage(message("user1"));
+
+        MessagePage received = page.get(5, TimeUnit.SECONDS);
+        assertTrue(received.hasMessages());
+        assertEquals(1, received.next().sequence);
+        assertTrue(waiters.tryPark());
+    }
+
+    @Test
+    public void waitEndsEmptyAfterMaxWait() throws Exception {
+        InboxWaiters waiters = new InboxWaiters(1);
+        User user = new User(new StorageProviderMemory(), waiters, "user1");
+
+        MessagePage received = user.awaitMessages(0, 0, 50, executor).get(5, TimeUnit.SECONDS);
+        assertFalse(received.hasMessages());
+        assertTrue(waiters.tryPark());
+    }
+
+    @Test
+    public void cancelledWaitReleasesSlot() throws IOException {
+        InboxWaiters waiters = new InboxWaiters(1);
+        User user = new User(new StorageProviderMemory(), waiters, "user1");
+
+        CompletableFuture<MessagePage> page = user.awaitMessages(0, 0, 10000, executor);
+        assertTrue(user.awaitMessages(0, 0, 10000, executor).isDone());
+        page.cancel(false);
+
+        assertFalse(user.awaitMessages(0, 0, 10000, executor).isDone());
+    }
+
+    @Test
+    public void cancelledAsyncWaitReleasesSlot() throws Exception {
+        InboxWaiters waiters = new InboxWaiters(1);
+        User user = new User(new StorageProviderMemory(), waiters, "user1");
+        ExecutorService storage = Executors.newSingleThreadExecutor();
+        try {
+            CompletableFuture<MessagePage> page = user.awaitMessages(0, 0, 10000, executor, storage);
+            // The only slot is taken, so the second wait ends right away.
+            assertFalse(user.awaitMessages(0, 0, 10000, executor, storage).get(5, TimeUnit.SECONDS).hasMessages());
+            page.cancel(false);
+
+            CompletableFuture<MessagePage> next = user.awaitMessages(0, 0, 10000, executor, storage);
+            try {
+                next.get(200, TimeUnit.MILLISECONDS);
+                fail("The wait should have taken the released slot");
+            } catch (TimeoutException e) {
+                next.cancel(false);
+            }
+        } finally {
+            storage.shutdownNow();
+        }
+    }
+
+    @Test
+    public void messagesAreReturnedWithoutWaiting() throws IOException {
+        StorageProvider provider = new StorageProviderMemory();
+        User user = new User(provider, new InboxWaiters(0), "user1");
+        user.sendMessage(message("user1"));
+
+        CompletableFuture<MessagePage> page = user.awaitMessages(0, 0, 10000, executor);
+        assertTrue(page.isDone());
+        assertTrue(page.join().hasMessages());
+    }
+
+    @Test
+    public void asyncSendAndReceiveUseStorageExecutor() throws Exception {
+        StorageProvider provider = new StorageProviderMemory();
+        User user = new User(provider, new InboxWaiters(1), "user1");
+        ExecutorService storage = Executors.newSingleThreadExecutor();
+        try {
+            CompletableFuture<MessagePage> page = user.awaitMessages(0, 0, 10000, executor, storage);
+            Message sent = user.sendMessageAsync(message("user1"), storage).get(5, TimeUnit.SECONDS);
+            assertEquals(1, sent.sequence);
+            assertEquals(1, page.get(5, TimeUnit.SECONDS).next().sequence);
+
+            // Confirmed messages are removed.
+            user.sendMessageAsync(message("user1"), storage).get(5, TimeUnit.SECONDS);
+            MessagePage rest = user.awaitMessages(1, 0, 0, executor, storage).get(5, TimeUnit.SECONDS);
+            assertEquals(2, rest.next().sequence);
+            assertEquals(1, provider.usage("user1").messages);
+            assertNull(user.sendMessageAsync(message("user2"), storage).get(5, TimeUnit.SECONDS));
+        } finally {
+            storage.shutdownNow();
+        }
+    }
+}
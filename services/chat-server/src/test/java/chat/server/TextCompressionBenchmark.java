@@ -0,0 +1,68 @@
+package chat.server;
+
+import org.bson.Document;
+import org.bson.types.Binary;
+
+import java.util.Base64;
+import java.util.Random;
+
+/**
+ * Measures the CPU time and the stored bytes of {@link TextCompression} for texts like the clients send: base64
+ * encoded ciphertext and plain text. Not a unit test, run the main method to choose threshold and level.
+ */
+public class TextCompressionBenchmark {
+
+    private static final int[] SIZES = {1024, 16 * 1024, 64 * 1024};
+    private static final int[] LEVELS = {1, 6, 9};
+
+    public static void main(String[] args) {
+        Random random = new Random(42);
+        System.out.printf("%-10s %7s %5s %10s %8s %12s %12s%n",
+                "text", "chars", "level", "stored", "ratio", "write us/op", "read us/op");
+        for (int size : SIZES) {
+            byte[] cipher = new byte[size * 3 / 4];
+            random.nextBytes(cipher);
+            report("base64", Base64.getEncoder().encodeToString(cipher));
+            report("plain", plainText(random, size));
+        }
+    }
+
+    private static void report(String kind, String text) {
+        for (int level : LEVELS) {
+            TextCompression compression = new TextCompression(TextCompression.DEFLATE, 0, level);
+            int iterations = Math.max(200, 20_000_000 / text.length());
+            Document doc = null;
+            for (int i = 0; i < iterations; i++) {
+                doc = compression.putText(new Document(), text);
+            }
+
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                doc = compression.putText(new Document(), text);
+            }
+
+            long write = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                TextCompression.getText(doc);
+            }
+
+            long read = System.nanoTime() - start;
+            Object stored = doc.get("text");
+            int bytes = stored instanceof Binary ? ((Binary) stored).getData().length : text.length();
+            System.out.printf("%-10s %7d %5d %10d %8.2f %12.1f %12.1f%n", kind, text.length(), level, bytes,
+                    (double) bytes / text.length(), write / 1000.0 / iterations, read / 1000.0 / iterations);
+        }
+    }
+
+    private static String plainText(Random random, int length) {
+        String[] words = {"hallo", "welt", "nachricht", "der", "die", "das", "und", "chat", "server", "morgen",
+                "treffen", "wann", "heute", "wir", "ich", "du", "ja", "nein", "bis", "später"};
+        StringBuilder text = new StringBuilder(length);
+        while (text.length() < length) {
+            text.append(words[random.nextInt(words.length)]).append(random.nextInt(10) == 0 ? ". " : " ");
+        }
+
+        return text.substring(0, length);
+    }
+}
@@ -1,22 +1,290 @@
 package services.common;
 
 import com.sun.jersey.api.client.Client;
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.api.client.UniformInterfaceException;
+import com.sun.jersey.api.client.WebResource;
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import javax.ws.rs.core.MediaType;
 import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Validates tokens with the login server. A single client is shared by all threads; its connections are kept alive
+ * and reused by the JDK's keep-alive cache, which holds up to http.maxConnections idle connections per server.
+ * Connecting and reading are bounded by timeouts so a slow login server can't hold request threads indefinitely.
+ * <p>
+ * Concurrent checks of the same token share one request. With batching enabled, distinct checks that arrive while all
+ * connections are busy queue up and are sent together to /auth/batch once a connection is free, so batches grow with
+ * the load. Login servers without that endpoint are asked for every token separately.
+ * <p>
+ * If {@link SignedTokens} are set, tokens in the signed format are checked in-process and never sent to the login
+ * server.
+ */
 public class AuthenticationProvider {
-    private Client client;
-    private String baseURL;
+    static final String ISO8601 = "yyyy-MM-dd'T'HH:mm:ssZ";
+
+    private final Client client;
+    private final WebResource authResource;
+    private final WebResource batchResource;
+    private final ExecutorService executor;
+    private final ExecutorService batchExecutor;
+    private final Semaphore connections;
+    private final ConcurrentHashMap<Check, CompletableFuture<Date>> inFlight = new ConcurrentHashMap<>();
+    private final LinkedBlockingQueue<Check> pending = new LinkedBlockingQueue<>();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final Histogram batchSizes = new Histogram();
+    private volatile SignedTokens signedTokens;
+    private volatile int maxBatch = 1;
+    private volatile boolean batchSupported = true;
+    private Thread batcher;
 
     public AuthenticationProvider(String authServerURL) {
+        this(authServerURL, 20, 1000, 2000);
+    }
+
+    /**
+     * Creates a new authentication provider.
+     *
+     * @param authServerURL        The login server's URL.
+     * @param maxConnections       The number of connections kept alive and of concurrent asynchronous requests.
+     * @param connectTimeoutMillis The time to wait for a connection to the login server.
+     * @param readTimeoutMillis    The time to wait for the login server's response.
+     */
+    public AuthenticationProvider(String authServerURL, int maxConnections, int connectTimeoutMillis,
+                                  int readTimeoutMillis) {
+        if (System.getProperty("http.maxConnections") == null) {
+            // Read by the JDK when the first connection is kept alive, so it has to be set before any request.
+            System.setProperty("http.maxConnections", Integer.toString(maxConnections));
+        }
+
         client = Client.create();
-        baseURL = authServerURL;
+        client.setConnectTimeout(connectTimeoutMillis);
+        client.setReadTimeout(readTimeoutMillis);
+        String baseURL = authServerURL.endsWith("/")
+                ? authServerURL.substring(0, authServerURL.length() - 1)
+                : authServerURL;
+        authResource = client.resource(baseURL + "/auth");
+        batchResource = client.resource(baseURL + "/auth/batch");
+        executor = daemonPool(maxConnections, "auth-client");
+        batchExecutor = daemonPool(maxConnections, "auth-batch");
+        connections = new Semaphore(maxConnections);
+    }
+
+    /**
+     * Enables sending concurrent checks of different tokens in one request.
+     *
+     * @param maxBatch The maximum number of tokens sent at once, 1 to send every token on its own.
+     */
+    public synchronized void setMaxBatch(int maxBatch) {
+        this.maxBatch = Math.max(1, maxBatch);
+        if (this.maxBatch > 1 && batcher == null) {
+            batcher = new Thread(this::runBatches, "auth-batcher");
+            batcher.setDaemon(true);
+            batcher.start();
+        }
+    }
+
+    /**
+     * @param signedTokens The keys to check signed tokens with or null to send all tokens to the login server.
+     */
+    public void setSignedTokens(SignedTokens signedTokens) {
+        this.signedTokens = signedTokens;
     }
 
     public boolean authenticateUser(String token, String userPseudonym) {
+        Boolean signed = verifySigned(token, userPseudonym);
+        if (signed != null) {
+            return signed;
+        }
+
+        try {
+            if (validateToken(token, userPseudonym) != null) {
+                return true;
+            }
+        } catch (RuntimeException e) {
+            System.out.printf("Failed to authenticate user %s with token %s caused by : %s%n", userPseudonym, token, e.getMessage());
+            return false;
+        }
+
+        System.out.printf(
+                "Failed to authenticate user %s with token %s. Auth server response did not indicate success%n",
+                userPseudonym,
+                token);
+        return false;
+    }
+
+    /**
+     * Authenticates the user without blocking the calling thread.
+     *
+     * @param token         The user's token.
+     * @param userPseudonym The user's pseudonym.
+     * @return Returns a future that completes with the result of {@link #authenticateUser(String, String)}.
+     */
+    public CompletableFuture<Boolean> authenticateUserAsync(String token, String userPseudonym) {
+        Boolean signed = verifySigned(token, userPseudonym);
+        if (signed != null) {
+            return CompletableFuture.completedFuture(signed);
+        }
+
+        return CompletableFuture.supplyAsync(() -> authenticateUser(token, userPseudonym), executor);
+    }
+
+    /**
+     * @return Returns the number of checks that joined an identical running check and the histogram of batch sizes as
+     * a JSON object.
+     */
+    public JSONObject toJson() {
+        return new JSONObject()
+                .put("coalesced", coalesced.get())
+                .put("batchSize", batchSizes.toJson());
+    }
+
+    /**
+     * @return Returns whether a signed token is valid or null if it has to be checked by the login server.
+     */
+    protected Boolean verifySigned(String token, String userPseudonym) {
+        SignedTokens tokens = signedTokens;
+        if (tokens == null || !SignedTokens.isSigned(token)) {
+            return null;
+        }
+
+        if (tokens.verify(token, userPseudonym) == null) {
+            System.out.printf("Failed to authenticate user %s with signed token %s%n", userPseudonym, token);
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Asks the login server whether the token belongs to the user. Joins an identical check that is already running.
+     *
+     * @param token         The user's token.
+     * @param userPseudonym The user's pseudonym.
+     * @return Returns the token's expire date or null if the login server rejected the token.
+     * @throws RuntimeException The login server could not be asked or sent an invalid response.
+     */
+    protected Date validateToken(String token, String userPseudonym) {
+        Check check = new Check(token, userPseudonym);
+        CompletableFuture<Date> running = inFlight.putIfAbsent(check, check.result);
+        if (running != null) {
+            coalesced.incrementAndGet();
+            return join(running);
+        }
+
+        try {
+            if (maxBatch > 1) {
+                pending.add(check);
+            } else {
+                complete(check);
+            }
+
+            return join(check.result);
+        } finally {
+            inFlight.remove(check, check.result);
+        }
+    }
+
+    private void runBatches() {
+        List<Check> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(pending.take());
+                // Checks arriving while all connections are busy end up in the same batch.
+                connections.acquire();
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            pending.drainTo(batch, maxBatch - batch.size());
+            List<Check> send = new ArrayList<>(batch);
+            batch.clear();
+            try {
+                batchExecutor.execute(() -> {
+                    try {
+                        send(send);
+                    } finally {
+                        connections.release();
+                    }
+                });
+            } catch (RuntimeException e) {
+                connections.release();
+                for (Check check : send) {
+                    check.result.completeExceptionally(e);
+                }
+            }
+        }
+    }
+
+    private void send(List<Check> batch) {
+        batchSizes.record(batch.size());
+        if (batch.size() == 1 || !batchSupported) {
+            for (Check check : batch) {
+                complete(check);
+            }
+
+            return;
+        }
+
+        JSONArray checks = new JSONArray();
+        for (Check check : batch) {
+            checks.put(new JSONObject().put("token", check.token).put("pseudonym", check.pseudonym));
+        }
+
+        JSONArray results;
+        try {
+            results = new JSONArray(batchResource.accept(MediaType.APPLICATION_JSON)
+                    .type(MediaType.APPLICATION_JSON).post(String.class, checks.toString()));
+        } catch (UniformInterfaceException e) {
+            e.getResponse().close();
+            if (e.getResponse().getStatus() == ClientResponse.Status.NOT_FOUND.getStatusCode()) {
+                System.out.println("Login server doesn't support /auth/batch, checking tokens separately.");
+                batchSupported = false;
+                send(batch);
+                return;
+            }
+
+            fail(batch, e);
+            return;
+        } catch (RuntimeException e) {
+            fail(batch, e);
+            return;
+        }
+
+        for (int i = 0; i < batch.size(); i++) {
+            try {
+                batch.get(i).result.complete(parse(results.getJSONObject(i)));
+            } catch (RuntimeException e) {
+                batch.get(i).result.completeExceptionally(e);
+            }
+        }
+    }
+
+    private void complete(Check check) {
+        try {
+            check.result.complete(request(check.token, check.pseudonym));
+        } catch (RuntimeException e) {
+            check.result.completeExceptionally(e);
+        }
+    }
+
+    private Date request(String token, String userPseudonym) {
         String response;
 
         JSONObject obj = new JSONObject();
@@ -24,23 +292,79 @@ public class AuthenticationProvider {
         obj.put("pseudonym", userPseudonym);
 
         try {
-            response = client.resource(baseURL + "/auth").accept(MediaType.APPLICATION_JSON)
+            response = authResource.accept(MediaType.APPLICATION_JSON)
                     .type(MediaType.APPLICATION_JSON).post(String.class, obj.toString());
-            client.destroy();
-        } catch (RuntimeException e) {
-            System.out.printf("Failed to authenticate user %s with token %s caused by : %s", userPseudonym, token, e.getMessage());
-            return false;
+        } catch (UniformInterfaceException e) {
+            e.getResponse().close();
+            if (e.getResponse().getStatus() == ClientResponse.Status.UNAUTHORIZED.getStatusCode()) {
+                return null;
+            }
+
+            throw e;
         }
 
-        JSONObject jo = new JSONObject(response);
-        if (jo.get("success").equals("true")) {
-            return true;
+        return parse(new JSONObject(response));
+    }
+
+    private static Date parse(JSONObject jo) {
+        if (!jo.get("success").equals("true")) {
+            return null;
         }
 
-        System.out.printf(
-                "Failed to authenticate user %s with token %s. Auth server response did not indicate success",
-                userPseudonym,
-                token);
-        return false;
+        try {
+            return new SimpleDateFormat(ISO8601).parse(jo.getString("expire-date"));
+        } catch (ParseException | JSONException e) {
+            throw new IllegalStateException("Auth server sent an invalid expire date", e);
+        }
+    }
+
+    private static void fail(List<Check> batch, RuntimeException e) {
+        for (Check check : batch) {
+            check.result.completeExceptionally(e);
+        }
+    }
+
+    private static Date join(CompletableFuture<Date> result) {
+        try {
+            return result.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+
+            throw e;
+        }
+    }
+
+    private static ExecutorService daemonPool(int threads, String name) {
+        return Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private static class Check {
+        private final String token;
+        private final String pseudonym;
+        private final CompletableFuture<Date> result = new CompletableFuture<>();
+
+        private Check(String token, String pseudonym) {
+            this.token = token;
+            this.pseudonym = pseudonym;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Check)) return false;
+            Check check = (Check) o;
+            return Objects.equals(token, check.token) && Objects.equals(pseudonym, check.pseudonym);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Objects.hashCode(token) + Objects.hashCode(pseudonym);
+        }
     }
 }
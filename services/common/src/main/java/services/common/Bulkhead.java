@@ -0,0 +1,128 @@
+package services.common;
+
+import org.json.JSONObject;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs one kind of work on its own bounded pool so it can't take over the threads or cores needed by other work.
+ * Work beyond the threads waits in a bounded queue; when the queue is full it is rejected immediately instead of
+ * waiting, so the caller can answer with 503 right away.
+ * <p>
+ * Callers block until their work is done or the timeout passes. So the number of request threads a bulkhead can hold
+ * is its threads plus its queue limit, which has to stay below the server's worker threads to leave room for other
+ * requests.
+ */
+public class Bulkhead {
+
+    private final String name;
+    private final ThreadPoolExecutor executor;
+    private final long timeoutMillis;
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong timedOut = new AtomicLong();
+    private final Histogram waitMicros = new Histogram();
+    private final Histogram runMicros = new Histogram();
+
+    /**
+     * Creates a new bulkhead.
+     *
+     * @param name          The name of the pool's threads.
+     * @param threads       The number of threads.
+     * @param queueLimit    The number of calls that may wait for a thread.
+     * @param timeoutMillis The time a caller waits for the work, including its time in the queue.
+     */
+    public Bulkhead(String name, int threads, int queueLimit, long timeoutMillis) {
+        this.name = name;
+        this.timeoutMillis = timeoutMillis;
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueLimit)), runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        }, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * Runs the work on the bulkhead's pool and waits for its result.
+     *
+     * @param work The work.
+     * @param <T>  The type of the result.
+     * @return Returns the work's result.
+     * @throws RejectedExecutionException The queue is full or the work did not finish within the timeout, in which case
+     *                                    it is cancelled.
+     * @throws Exception                  The exception thrown by the work.
+     */
+    public <T> T call(Callable<T> work) throws Exception {
+        long queued = System.nanoTime();
+        Future<T> result;
+        try {
+            result = executor.submit(() -> {
+                long start = System.nanoTime();
+                waitMicros.record(TimeUnit.NANOSECONDS.toMicros(start - queued));
+                try {
+                    return work.call();
+                } finally {
+                    runMicros.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            throw e;
+        }
+
+        try {
+            return result.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            result.cancel(true);
+            timedOut.incrementAndGet();
+            throw new RejectedExecutionException(name + " work did not finish within " + timeoutMillis + " ms");
+        } catch (InterruptedException e) {
+            result.cancel(true);
+            throw e;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+
+            throw e;
+        }
+    }
+
+    /**
+     * @return Returns the number of calls rejected because the queue was full.
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * @return Returns the number of calls that did not finish within the timeout.
+     */
+    public long getTimedOut() {
+        return timedOut.get();
+    }
+
+    /**
+     * @return Returns the pool's size, active threads, queue length, rejected and timed out calls and the histograms of the time in
+     * microseconds calls waited for a thread and ran as a JSON object.
+     */
+    public JSONObject toJson() {
+        return new JSONObject()
+                .put("name", name)
+                .put("threads", executor.getMaximumPoolSize())
+                .put("active", executor.getActiveCount())
+                .put("queued", executor.getQueue().size())
+                .put("rejected", rejected.get())
+                .put("timedOut", timedOut.get())
+                .put("waitMicros", waitMicros.toJson())
+                .put("runMicros", runMicros.toJson());
+    }
+}
@@ -0,0 +1,181 @@
+package services.common;
+
+import org.json.JSONObject;
+
+import java.util.Date;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Authentication provider that remembers the login server's answers. A valid token is remembered until the expire
+ * date the login server returned, but at most for the maximum age so a token replaced by a new login stops working
+ * eventually. A rejected token is remembered for a short time so clients retrying with a stale token don't reach the
+ * login server on every request. Failures to reach the login server are not remembered.
+ * <p>
+ * Answers are kept in a {@link ConcurrentHashMap} so lookups take no lock. When there are too many entries the
+ * outdated ones are dropped, and if that doesn't help all of them. Signed tokens checked in-process are not cached.
+ */
+public class CachingAuthenticationProvider extends AuthenticationProvider {
+
+    private final long maxAgeNanos;
+    private final long rejectedAgeNanos;
+    private final int maxEntries;
+    private final ConcurrentHashMap<Key, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Creates a new caching authentication provider.
+     *
+     * @param authServerURL        The login server's URL.
+     * @param maxConnections       The number of connections kept alive and of concurrent asynchronous requests.
+     * @param connectTimeoutMillis The time to wait for a connection to the login server.
+     * @param readTimeoutMillis    The time to wait for the login server's response.
+     * @param maxAgeSeconds        The maximum time a valid token is remembered.
+     * @param rejectedSeconds      The time a rejected token is remembered, 0 to not remember rejections.
+     * @param maxEntries           The number of entries after which entries are dropped.
+     */
+    public CachingAuthenticationProvider(String authServerURL, int maxConnections, int connectTimeoutMillis,
+                                         int readTimeoutMillis, long maxAgeSeconds, long rejectedSeconds,
+                                         int maxEntries) {
+        super(authServerURL, maxConnections, connectTimeoutMillis, readTimeoutMillis);
+        this.maxAgeNanos = TimeUnit.SECONDS.toNanos(maxAgeSeconds);
+        this.rejectedAgeNanos = TimeUnit.SECONDS.toNanos(rejectedSeconds);
+        this.maxEntries = maxEntries;
+    }
+
+    @Override
+    public boolean authenticateUser(String token, String userPseudonym) {
+        Boolean signed = verifySigned(token, userPseudonym);
+        if (signed != null) {
+            return signed;
+        }
+
+        Key key = new Key(token, userPseudonym);
+        Boolean cached = cached(key);
+        if (cached != null) {
+            return cached;
+        }
+
+        misses.incrementAndGet();
+        Date expireDate;
+        try {
+            expireDate = validateToken(token, userPseudonym);
+        } catch (RuntimeException e) {
+            entries.remove(key);
+            System.out.printf("Failed to authenticate user %s with token %s caused by : %s%n", userPseudonym, token,
+                    e.getMessage());
+            return false;
+        }
+
+        long now = System.nanoTime();
+        if (expireDate != null) {
+            long remainingNanos = TimeUnit.MILLISECONDS.toNanos(expireDate.getTime() - System.currentTimeMillis());
+            put(key, new Entry(true, now + Math.min(remainingNanos, maxAgeNanos)), now);
+            return true;
+        }
+
+        if (rejectedAgeNanos > 0) {
+            put(key, new Entry(false, now + rejectedAgeNanos), now);
+        } else {
+            entries.remove(key);
+        }
+
+        System.out.printf("Failed to authenticate user %s with token %s. Auth server rejected the token%n",
+                userPseudonym, token);
+        return false;
+    }
+
+    /**
+     * Answers from the cache on the calling thread and only asks the login server asynchronously.
+     */
+    @Override
+    public CompletableFuture<Boolean> authenticateUserAsync(String token, String userPseudonym) {
+        Boolean signed = verifySigned(token, userPseudonym);
+        if (signed != null) {
+            return CompletableFuture.completedFuture(signed);
+        }
+
+        Boolean cached = cached(new Key(token, userPseudonym));
+        return cached != null
+                ? CompletableFuture.completedFuture(cached)
+                : super.authenticateUserAsync(token, userPseudonym);
+    }
+
+    /**
+     * @return Returns the statistics of {@link AuthenticationProvider#toJson()} and the cache's number of entries,
+     * hits and misses as a JSON object.
+     */
+    @Override
+    public JSONObject toJson() {
+        return super.toJson().put("cache", new JSONObject()
+                .put("entries", entries.size())
+                .put("hits", hits.get())
+                .put("misses", misses.get()));
+    }
+
+    /**
+     * @return Returns the remembered answer or null if there is none and the login server has to be asked.
+     */
+    private Boolean cached(Key key) {
+        Entry entry = entries.get(key);
+        if (entry != null && entry.validUntil - System.nanoTime() > 0) {
+            hits.incrementAndGet();
+            return entry.valid;
+        }
+
+        return null;
+    }
+
+    private void put(Key key, Entry entry, long now) {
+        if (entry.validUntil - now <= 0) {
+            entries.remove(key);
+            return;
+        }
+
+        if (entries.size() >= maxEntries && !entries.containsKey(key)) {
+            entries.values().removeIf(outdated -> outdated.validUntil - now <= 0);
+            if (entries.size() >= maxEntries) {
+                entries.clear();
+            }
+        }
+
+        entries.put(key, entry);
+    }
+
+    private static class Key {
+        private final String token;
+        private final String pseudonym;
+
+        private Key(String token, String pseudonym) {
+            this.token = token;
+            this.pseudonym = pseudonym;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return Objects.equals(token, key.token) && Objects.equals(pseudonym, key.pseudonym);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Objects.hashCode(token) + Objects.hashCode(pseudonym);
+        }
+    }
+
+    private static class Entry {
+        private final boolean valid;
+        private final long validUntil;
+
+        private Entry(boolean valid, long validUntil) {
+            this.valid = valid;
+            this.validUntil = validUntil;
+        }
+    }
+}
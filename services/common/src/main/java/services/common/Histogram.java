@@ -0,0 +1,77 @@
+package services.common;
+
+import org.json.JSONObject;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of non-negative values, e.g. latencies in microseconds. Values are counted in buckets of powers
+ * of two, so percentiles are reported as the upper bound of their bucket, at most twice the real value.
+ */
+public class Histogram {
+
+    private static final int BUCKETS = 64;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Counts a value. Negative values are counted as 0.
+     *
+     * @param value The value.
+     */
+    public void record(long value) {
+        value = Math.max(0, value);
+        buckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // Retry until the maximum is at least the value.
+        }
+    }
+
+    /**
+     * @return Returns the number of values.
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @param percentile The percentile between 0 and 100.
+     * @return Returns the upper bound of the bucket containing the percentile or 0 if no value was counted.
+     */
+    public long percentile(double percentile) {
+        long total = count.get();
+        if (total == 0) return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += buckets.get(bucket);
+            if (seen >= rank) {
+                return Math.min(max.get(), bucket == 0 ? 0 : (1L << bucket) - 1);
+            }
+        }
+
+        return max.get();
+    }
+
+    /**
+     * @return Returns the count, mean, maximum and the 50th, 90th and 99th percentile as a JSON object.
+     */
+    public JSONObject toJson() {
+        long total = count.get();
+        return new JSONObject()
+                .put("count", total)
+                .put("mean", total == 0 ? 0 : sum.get() / total)
+                .put("p50", percentile(50))
+                .put("p90", percentile(90))
+                .put("p99", percentile(99))
+                .put("max", max.get());
+    }
+}
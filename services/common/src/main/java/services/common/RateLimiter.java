@@ -0,0 +1,125 @@
+package services.common;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket rate limiter with one bucket per key, e.g. per pseudonym.
+ * <p>
+ * A bucket is a single {@link AtomicLong} holding the time at which it is full again (generic cell rate algorithm):
+ * taking a token moves that time one token interval ahead and is rejected while it is more than the burst ahead of
+ * now. So a request is checked with a single compare-and-set, no lock is taken. Full buckets carry no state and are
+ * dropped when there are too many keys. Only a few buckets are looked at for that, so many new keys can't make every
+ * request scan all buckets; requests with a new key are rejected while none of those is full.
+ */
+public class RateLimiter {
+
+    private static final int EVICTION_SAMPLE = 32;
+
+    private final boolean enabled;
+    private final long intervalNanos;
+    private final long toleranceNanos;
+    private final int burst;
+    private final int maxKeys;
+    private final ConcurrentHashMap<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * Creates a new rate limiter.
+     *
+     * @param ratePerSecond The number of tokens added to a bucket per second or 0 to allow all requests.
+     * @param burst         The number of tokens a bucket holds.
+     * @param maxKeys       The maximum number of buckets.
+     */
+    public RateLimiter(double ratePerSecond, int burst, int maxKeys) {
+        this.enabled = ratePerSecond > 0;
+        this.intervalNanos = enabled ? (long) (TimeUnit.SECONDS.toNanos(1) / ratePerSecond) : 0;
+        this.burst = Math.max(1, burst);
+        this.toleranceNanos = intervalNanos * (this.burst - 1);
+        this.maxKeys = maxKeys;
+    }
+
+    /**
+     * Takes a token from the key's bucket.
+     *
+     * @param key The key, e.g. the pseudonym of the requesting user.
+     * @return Returns 0 if a token was taken, otherwise the time in nanoseconds until the next token is available.
+     */
+    public long acquire(String key) {
+        return acquire(key, 1);
+    }
+
+    /**
+     * Takes several tokens from the key's bucket at once, e.g. one per message of a batch. More tokens than the burst
+     * are taken from a full bucket, which then stays empty until all of them were added again.
+     *
+     * @param key     The key, e.g. the pseudonym of the requesting user.
+     * @param permits The number of tokens.
+     * @return Returns 0 if the tokens were taken, otherwise the time in nanoseconds until enough tokens are available.
+     */
+    public long acquire(String key, int permits) {
+        if (!enabled) {
+            return 0;
+        }
+
+        long now = System.nanoTime();
+        AtomicLong bucket = buckets.get(key);
+        if (bucket == null) {
+            if (buckets.size() >= maxKeys && !evict(now)) {
+                rejected.incrementAndGet();
+                return intervalNanos;
+            }
+
+            bucket = buckets.computeIfAbsent(key, name -> new AtomicLong(now));
+        }
+
+        while (true) {
+            long fullAt = bucket.get();
+            long start = fullAt - now > 0 ? fullAt : now;
+            long wait = start + intervalNanos * (Math.min(permits, burst) - 1) - toleranceNanos - now;
+            if (wait > 0) {
+                rejected.incrementAndGet();
+                return wait;
+            }
+
+            if (bucket.compareAndSet(fullAt, start + intervalNanos * permits)) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Drops full buckets among the first few buckets.
+     *
+     * @return Returns true if a bucket was dropped.
+     */
+    private boolean evict(long now) {
+        boolean evicted = false;
+        Iterator<AtomicLong> sample = buckets.values().iterator();
+        for (int i = 0; i < EVICTION_SAMPLE && sample.hasNext(); i++) {
+            if (sample.next().get() - now <= 0) {
+                sample.remove();
+                evicted = true;
+            }
+        }
+
+        return evicted;
+    }
+
+    /**
+     * @return Returns the number of rejected requests.
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * @param waitNanos The time returned by {@link #acquire(String)}.
+     * @return Returns the value of a Retry-After header, the time in whole seconds.
+     */
+    public static long retryAfterSeconds(long waitNanos) {
+        return Math.max(1, (waitNanos + TimeUnit.SECONDS.toNanos(1) - 1) / TimeUnit.SECONDS.toNanos(1));
+    }
+}
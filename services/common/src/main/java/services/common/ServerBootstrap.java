@@ -0,0 +1,116 @@
+package services.common;
+
+import com.sun.grizzly.http.SelectorThread;
+import com.sun.grizzly.http.StatsThreadPool;
+import com.sun.grizzly.http.servlet.ServletAdapter;
+import com.sun.grizzly.standalone.StaticStreamAlgorithm;
+import com.sun.grizzly.tcp.http11.GrizzlyRequest;
+import com.sun.grizzly.tcp.http11.GrizzlyResponse;
+import com.sun.jersey.spi.container.servlet.ServletContainer;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Starts the Jersey resources of a service on Grizzly with a tunable HTTP runtime. Replaces
+ * {@code GrizzlyWebContainerFactory}, which always uses Grizzly's default of five worker threads, so a few slow
+ * requests (e.g. long polls or storage calls) can no longer stall all other requests of a server.
+ * <p>
+ * The runtime is read from these settings of the service's config:
+ * <ul>
+ * <li>serverExecution: "fixed" to handle requests on serverWorkerThreads threads or "elastic" to add threads up to
+ * serverMaxWorkerThreads while all are blocked and retire them when idle.</li>
+ * <li>serverSelectorThreads: The number of threads reading from connections.</li>
+ * <li>serverKeepAliveSeconds, serverMaxKeepAliveRequests: How long and for how many requests an idle connection is
+ * kept open.</li>
+ * <li>serverRequestQueueLimit: The number of requests waiting for a worker before new ones are rejected, -1 for no
+ * limit.</li>
+ * </ul>
+ * Resources can answer a request later through its {@link SuspendedResponse}.
+ */
+public final class ServerBootstrap {
+
+    private static final long IDLE_WORKER_MILLIS = 60 * 1000;
+
+    private ServerBootstrap() {
+    }
+
+    /**
+     * Starts a server.
+     *
+     * @param uri      The base URI the resources are served at.
+     * @param packages The package containing the resources.
+     * @param settings Returns the value of a setting by its name.
+     * @return Returns the running server.
+     * @throws IOException If the server could not listen at the URI.
+     */
+    public static SelectorThread start(String uri, String packages, Function<String, String> settings)
+            throws IOException {
+        URI baseUri = URI.create(uri);
+        String path = baseUri.getPath();
+        if (path == null || !path.startsWith("/")) {
+            throw new IllegalArgumentException("The URI path must start with '/'");
+        }
+
+        ServletAdapter adapter = new ServletAdapter() {
+            // ServletAdapter declares the raw type, so the override has to use it too.
+            @Override
+            @SuppressWarnings("rawtypes")
+            public void service(GrizzlyRequest request, GrizzlyResponse response) {
+                SuspendedResponse.attach(request, response);
+                super.service(request, response);
+                SuspendedResponse.serviced(request);
+            }
+        };
+        adapter.addInitParameter("com.sun.jersey.config.property.packages", packages);
+        adapter.setServletInstance(new ServletContainer());
+        if (path.length() > 1) {
+            adapter.setContextPath(path.endsWith("/") ? path.substring(0, path.length() - 1) : path);
+        }
+
+        adapter.setResourcesContextPath(baseUri.getRawPath());
+
+        SelectorThread selector = new SelectorThread();
+        selector.setAlgorithmClassName(StaticStreamAlgorithm.class.getName());
+        selector.setPort(baseUri.getPort() == -1 ? 80 : baseUri.getPort());
+        selector.setAddress(InetAddress.getByName(baseUri.getHost()));
+        selector.setAdapter(adapter);
+        selector.setSelectorReadThreadsCount(Integer.parseInt(settings.apply("serverSelectorThreads")));
+        selector.setKeepAliveTimeoutInSeconds(Integer.parseInt(settings.apply("serverKeepAliveSeconds")));
+        selector.setMaxKeepAliveRequests(Integer.parseInt(settings.apply("serverMaxKeepAliveRequests")));
+        configureWorkers(selector, baseUri, settings);
+        try {
+            selector.listen();
+        } catch (InstantiationException e) {
+            throw new IOException(e);
+        }
+
+        return selector;
+    }
+
+    private static void configureWorkers(SelectorThread selector, URI baseUri, Function<String, String> settings) {
+        int workers = Integer.parseInt(settings.apply("serverWorkerThreads"));
+        String execution = settings.apply("serverExecution");
+        int maxWorkers;
+        switch (execution) {
+            case "fixed":
+                maxWorkers = workers;
+                break;
+            case "elastic":
+                maxWorkers = Math.max(workers, Integer.parseInt(settings.apply("serverMaxWorkerThreads")));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown server execution " + execution);
+        }
+
+        // Grizzly handles requests on its own worker threads only, so its pool is configured rather than replaced.
+        // The selector applies its pool sizes to the pool when listening.
+        selector.setCoreThreads(workers);
+        selector.setMaxThreads(maxWorkers);
+        selector.setThreadPool(new StatsThreadPool("Grizzly-" + baseUri.getPort(), workers, maxWorkers,
+                Integer.parseInt(settings.apply("serverRequestQueueLimit")), IDLE_WORKER_MILLIS, TimeUnit.MILLISECONDS));
+    }
+}
@@ -0,0 +1,170 @@
+package services.common;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Tokens that carry the pseudonym and expire date and are signed with HMAC-SHA256, so every service holding the key
+ * can check them without asking the login server. A token looks like
+ * <pre>v1.&lt;key id&gt;.&lt;pseudonym&gt;.&lt;expire date&gt;.&lt;token id&gt;.&lt;signature&gt;</pre>
+ * with the pseudonym, token id and signature base64url encoded and the expire date in seconds since the epoch.
+ * <p>
+ * Keys are given as "id:base64 secret". The first key signs new tokens and all keys are accepted, so a key is rotated
+ * by adding the new key in front and removing the old one once its tokens have expired. Single tokens are revoked by
+ * listing their token id.
+ */
+public class SignedTokens {
+
+    public static final String PREFIX = "v1.";
+
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final SecureRandom random = new SecureRandom();
+
+    private final String signingKeyId;
+    private final Map<String, Mac> keys = new HashMap<>();
+    private final Set<String> revoked;
+
+    /**
+     * Creates new signed tokens.
+     *
+     * @param keys    The keys as "id:base64 secret", the first one signs new tokens.
+     * @param revoked The ids of revoked tokens.
+     * @throws IllegalArgumentException A key is malformed or there is no key.
+     */
+    public SignedTokens(List<String> keys, Collection<String> revoked) {
+        if (keys.isEmpty()) {
+            throw new IllegalArgumentException("Signed tokens need at least one key");
+        }
+
+        for (String key : keys) {
+            int separator = key.indexOf(':');
+            String id = separator > 0 ? key.substring(0, separator) : "";
+            if (id.isEmpty() || id.contains(".")) {
+                throw new IllegalArgumentException("Token keys must look like id:secret");
+            }
+
+            byte[] secret = Base64.getDecoder().decode(key.substring(separator + 1));
+            if (secret.length < 32) {
+                throw new IllegalArgumentException("Token key " + id + " is shorter than 32 bytes");
+            }
+
+            try {
+                Mac mac = Mac.getInstance(ALGORITHM);
+                mac.init(new SecretKeySpec(secret, ALGORITHM));
+                this.keys.put(id, mac);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        this.signingKeyId = keys.get(0).substring(0, keys.get(0).indexOf(':'));
+        this.revoked = new HashSet<>(revoked);
+    }
+
+    /**
+     * Creates signed tokens from settings that may hold several comma separated values each.
+     *
+     * @param keys    The key settings, see {@link #SignedTokens(List, Collection)}.
+     * @param revoked The revoked token id settings.
+     * @return Returns the signed tokens or null if no key is configured.
+     */
+    public static SignedTokens fromSettings(List<String> keys, List<String> revoked) {
+        List<String> keyList = split(keys);
+        return keyList.isEmpty() ? null : new SignedTokens(keyList, split(revoked));
+    }
+
+    /**
+     * @param token The token.
+     * @return Returns true if the token is in the signed format, regardless of whether it is valid.
+     */
+    public static boolean isSigned(String token) {
+        return token != null && token.startsWith(PREFIX);
+    }
+
+    /**
+     * Creates a new token.
+     *
+     * @param pseudonym  The user's pseudonym.
+     * @param expireDate The token's expire date.
+     * @return Returns the signed token.
+     */
+    public String sign(String pseudonym, Date expireDate) {
+        Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+        byte[] id = new byte[12];
+        random.nextBytes(id);
+        String payload = PREFIX + signingKeyId + "." + encoder.encodeToString(pseudonym.getBytes(StandardCharsets.UTF_8))
+                + "." + expireDate.getTime() / 1000 + "." + encoder.encodeToString(id);
+        return payload + "." + encoder.encodeToString(mac(signingKeyId, payload));
+    }
+
+    /**
+     * Checks a token's signature, pseudonym, expire date and revocation.
+     *
+     * @param token     The token.
+     * @param pseudonym The pseudonym the token has to belong to.
+     * @return Returns the token's expire date or null if the token is not valid for the user.
+     */
+    public Date verify(String token, String pseudonym) {
+        if (!isSigned(token) || pseudonym == null) {
+            return null;
+        }
+
+        String[] parts = token.split("\\.", -1);
+        if (parts.length != 6 || !keys.containsKey(parts[1]) || revoked.contains(parts[4])) {
+            return null;
+        }
+
+        try {
+            int signatureStart = token.length() - parts[5].length();
+            byte[] signature = Base64.getUrlDecoder().decode(parts[5]);
+            if (!MessageDigest.isEqual(signature, mac(parts[1], token.substring(0, signatureStart - 1)))) {
+                return null;
+            }
+
+            String owner = new String(Base64.getUrlDecoder().decode(parts[2]), StandardCharsets.UTF_8);
+            Date expireDate = new Date(Long.parseLong(parts[3]) * 1000);
+            return owner.equals(pseudonym) && expireDate.after(new Date()) ? expireDate : null;
+        } catch (IllegalArgumentException e) {
+            // Malformed base64 or expire date.
+            return null;
+        }
+    }
+
+    private byte[] mac(String keyId, String payload) {
+        Mac mac;
+        try {
+            // An initialized Mac is cheaper to clone than to create, and a clone is not shared between threads.
+            mac = (Mac) keys.get(keyId).clone();
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(e);
+        }
+
+        return mac.doFinal(payload.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static List<String> split(List<String> settings) {
+        List<String> values = new ArrayList<>();
+        for (String setting : settings) {
+            for (String value : setting.split(",")) {
+                if (!value.trim().isEmpty()) {
+                    values.add(value.trim());
+                }
+            }
+        }
+
+        return values;
+    }
+}
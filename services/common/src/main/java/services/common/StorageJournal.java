@@ -0,0 +1,276 @@
+package services.common;
+
+import org.json.JSONObject;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Append-only journal of JSON entries, one per line, used by the file-backed storage providers. A provider keeps its
+ * data in memory, appends every change to the journal and rebuilds its data from the journal on start. Afterwards the
+ * journal is compacted to the provider's current state, and again in the background whenever it grew to more than
+ * twice the entries of the last compaction, see {@link #compactAutomatically(Supplier)}.
+ * <p>
+ * Entries are flushed to the operating system before {@link #append(JSONObject)} returns, so they survive a crash of
+ * the service but not necessarily of the machine. Entries appended while another append flushes share the next flush.
+ */
+public class StorageJournal implements Closeable {
+
+    private static final int MIN_COMPACTION_ENTRIES = 10000;
+
+    private final Path file;
+    private final Object flushLock = new Object();
+    private volatile Writer writer;
+    private volatile long appended = 0;
+    private long flushed = 0;
+    private long entries = 0;
+    private long compactedEntries = 0;
+    private int minCompactionEntries;
+    private Supplier<? extends Iterable<JSONObject>> snapshot;
+    private ExecutorService compactor;
+    private boolean compacting = false;
+    /**
+     * The entries appended while a background compaction takes its snapshot.
+     */
+    private List<String> captured;
+
+    /**
+     * Creates a journal. Call {@link #replay(Consumer)} and {@link #compact(Iterable)} before appending entries.
+     *
+     * @param file The journal file. It is created if it doesn't exist.
+     */
+    public StorageJournal(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * Reads all entries of the journal.
+     *
+     * @param consumer Called for every entry in the order the entries were appended.
+     * @throws IOException If the journal could not be read.
+     */
+    public synchronized void replay(Consumer<JSONObject> consumer) throws IOException {
+        new StorageJournalReader(file).poll(() -> {
+        }, consumer);
+    }
+
+    /**
+     * Replaces the journal's content and opens it for appending.
+     *
+     * @param entries The entries that describe the provider's current state.
+     * @throws IOException If the journal could not be written.
+     */
+    public void compact(Iterable<JSONObject> entries) throws IOException {
+        synchronized (this) {
+            synchronized (flushLock) {
+                Path compacted = file.resolveSibling(file.getFileName() + ".tmp");
+                long written = write(compacted, entries, new ArrayList<>());
+                replace(compacted, written);
+            }
+        }
+    }
+
+    /**
+     * Compacts the journal in the background once it holds more than twice the entries of the last compaction.
+     *
+     * @param snapshot Returns the entries describing the provider's current state. It is called while entries are
+     *                 appended, those are written after the snapshot. So the provider's state must not change if an
+     *                 entry whose change the snapshot already contains is replayed on top of it.
+     */
+    public void compactAutomatically(Supplier<? extends Iterable<JSONObject>> snapshot) {
+        compactAutomatically(snapshot, MIN_COMPACTION_ENTRIES);
+    }
+
+    /**
+     * Same as {@link #compactAutomatically(Supplier)}, but the journal is never compacted before it holds the given
+     * number of entries.
+     */
+    public synchronized void compactAutomatically(Supplier<? extends Iterable<JSONObject>> snapshot,
+                                                  int minEntries) {
+        this.snapshot = snapshot;
+        this.minCompactionEntries = minEntries;
+        if (compactor == null) {
+            compactor = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "journal-compactor");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * Appends an entry.
+     *
+     * @param entry The entry to append.
+     * @throws UncheckedIOException If the entry could not be written.
+     */
+    public void append(JSONObject entry) {
+        String line = entry.toString();
+        long position;
+        synchronized (this) {
+            if (writer == null) {
+                throw new IllegalStateException("Journal " + file + " is not open.");
+            }
+
+            try {
+                writer.write(line);
+                writer.write('\n');
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to append to journal " + file, e);
+            }
+
+            position = ++appended;
+            entries++;
+            if (captured != null) {
+                captured.add(line);
+            }
+
+            if (!compacting && snapshot != null
+                    && entries > Math.max(minCompactionEntries, 2 * compactedEntries)) {
+                compacting = true;
+                compactor.execute(this::compactInBackground);
+            }
+        }
+
+        synchronized (flushLock) {
+            // Another append may have flushed this entry already.
+            if (flushed >= position) {
+                return;
+            }
+
+            // The writer is only replaced while the flush lock is held.
+            long upTo = appended;
+            try {
+                writer.flush();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to append to journal " + file, e);
+            }
+
+            flushed = upTo;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            synchronized (flushLock) {
+                if (writer != null) {
+                    writer.close();
+                    writer = null;
+                    flushed = appended;
+                }
+            }
+        }
+    }
+
+    private void compactInBackground() {
+        Path compacted = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            Supplier<? extends Iterable<JSONObject>> current;
+            synchronized (this) {
+                captured = new ArrayList<>();
+                current = snapshot;
+            }
+
+            // Appends continue while the snapshot is taken and written.
+            long written = write(compacted, current.get(), drainCaptured());
+            synchronized (this) {
+                synchronized (flushLock) {
+                    if (writer == null) {
+                        return;
+                    }
+
+                    try (Writer rest = new BufferedWriter(new OutputStreamWriter(
+                            new FileOutputStream(compacted.toFile(), true), StandardCharsets.UTF_8))) {
+                        for (String line : captured) {
+                            rest.write(line);
+                            rest.write('\n');
+                        }
+                    }
+
+                    replace(compacted, written + captured.size());
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            System.out.printf("Failed to compact journal %s: %s%n", file, e.getMessage());
+        } finally {
+            synchronized (this) {
+                captured = null;
+                compacting = false;
+            }
+        }
+    }
+
+    private synchronized List<String> drainCaptured() {
+        List<String> lines = captured;
+        captured = new ArrayList<>();
+        return lines;
+    }
+
+    /**
+     * Writes the entries and the lines after them to the file and syncs it.
+     *
+     * @return Returns the number of written lines.
+     */
+    private long write(Path target, Iterable<JSONObject> entries, List<String> lines) throws IOException {
+        Path parent = target.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+
+        long written = 0;
+        try (FileOutputStream out = new FileOutputStream(target.toFile())) {
+            Writer compactedWriter = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+            for (JSONObject entry : entries) {
+                compactedWriter.write(entry.toString());
+                compactedWriter.write('\n');
+                written++;
+            }
+
+            for (String line : lines) {
+                compactedWriter.write(line);
+                compactedWriter.write('\n');
+                written++;
+            }
+
+            compactedWriter.flush();
+            out.getFD().sync();
+        }
+
+        return written;
+    }
+
+    /**
+     * Replaces the journal by the compacted file and opens it for appending. The journal and the flush lock must be
+     * held, in that order.
+     */
+    private void replace(Path compacted, long written) throws IOException {
+        if (writer != null) {
+            writer.close();
+            writer = null;
+        }
+
+        // Readers either see the old or the new journal, never a partially written one.
+        Files.move(compacted, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file.toFile(), true),
+                StandardCharsets.UTF_8));
+        flushed = appended;
+        entries = written;
+        compactedEntries = written;
+    }
+}
@@ -0,0 +1,98 @@
+package services.common;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Objects;
+import java.util.function.Consumer;
+
+/**
+ * Reads a journal written by {@link StorageJournal}, possibly by another process. Every poll only reads the entries
+ * appended since the previous poll. An incomplete last line is left for the next poll.
+ */
+public class StorageJournalReader {
+
+    private final Path file;
+    private Object fileKey;
+    private long offset = 0;
+
+    /**
+     * Creates a reader that starts at the beginning of the journal.
+     *
+     * @param file The journal file. It doesn't have to exist yet.
+     */
+    public StorageJournalReader(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * Reads the entries appended since the last poll.
+     *
+     * @param reset    Called before the entries are read from the beginning because the journal was compacted.
+     * @param consumer Called for every new entry.
+     * @throws IOException If the journal could not be read.
+     */
+    public synchronized void poll(Runnable reset, Consumer<JSONObject> consumer) throws IOException {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return;
+        }
+
+        // Compaction replaces the file.
+        if (!Objects.equals(attributes.fileKey(), fileKey) || attributes.size() < offset) {
+            if (offset > 0) {
+                reset.run();
+            }
+
+            fileKey = attributes.fileKey();
+            offset = 0;
+        }
+
+        if (attributes.size() == offset) {
+            return;
+        }
+
+        try (RandomAccessFile in = new RandomAccessFile(file.toFile(), "r")) {
+            in.seek(offset);
+            byte[] buffer = new byte[8192];
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            long position = offset;
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                for (int i = 0; i < read; i++) {
+                    position++;
+                    if (buffer[i] != '\n') {
+                        line.write(buffer[i]);
+                        continue;
+                    }
+
+                    apply(new String(line.toByteArray(), StandardCharsets.UTF_8), consumer);
+                    line.reset();
+                    offset = position;
+                }
+            }
+        }
+    }
+
+    private void apply(String line, Consumer<JSONObject> consumer) {
+        if (line.isEmpty()) {
+            return;
+        }
+
+        try {
+            consumer.accept(new JSONObject(line));
+        } catch (JSONException e) {
+            System.out.printf("Skipping corrupted journal entry in %s: %s%n", file, e.getMessage());
+        }
+    }
+}
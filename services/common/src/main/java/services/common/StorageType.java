@@ -0,0 +1,38 @@
+package services.common;
+
+/**
+ * The storage implementations a service can be configured to use.
+ */
+public enum StorageType {
+    /**
+     * A MongoDB server, can be shared by several instances of a service.
+     */
+    mongodb,
+    /**
+     * Process memory only, everything is lost when the service stops.
+     */
+    memory,
+    /**
+     * Process memory backed by journal files, for single-node deployments.
+     */
+    file,
+    /**
+     * Memory-mapped message log, for single-node chat server deployments.
+     */
+    log;
+
+    /**
+     * Parses the configured storage type.
+     *
+     * @param value The configuration value.
+     * @return Returns the storage type.
+     * @throws IllegalArgumentException If the value names no storage type.
+     */
+    public static StorageType fromConfig(String value) {
+        try {
+            return StorageType.valueOf(value.trim().toLowerCase());
+        } catch (IllegalArgumentException | NullPointerException e) {
+            throw new IllegalArgumentException("Unknown storage type " + value);
+        }
+    }
+}
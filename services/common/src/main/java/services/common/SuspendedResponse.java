@@ -0,0 +1,188 @@
+package services.common;
+
+import com.sun.grizzly.tcp.CompletionHandler;
+import com.sun.grizzly.tcp.http11.GrizzlyRequest;
+import com.sun.grizzly.tcp.http11.GrizzlyResponse;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * A response that is written after its resource method returned, e.g. the answer to a long poll. Grizzly suspends the
+ * response, so while the request waits it holds no worker thread and its connection is only watched by the selector.
+ * The resource returns a placeholder which Jersey writes to the suspended response; the real response replaces it
+ * once it is available and completes the request. A streamed response keeps the placeholder's status and headers
+ * and gets its body written in parts until it is resumed.
+ * <p>
+ * Only requests served through {@link ServerBootstrap} can be suspended.
+ */
+public class SuspendedResponse {
+
+    private static final String ATTRIBUTE = SuspendedResponse.class.getName();
+
+    private final GrizzlyResponse<SuspendedResponse> response;
+    private final CompletableFuture<Void> serviced = new CompletableFuture<>();
+    private final AtomicBoolean completed = new AtomicBoolean();
+
+    private SuspendedResponse(GrizzlyResponse<SuspendedResponse> response) {
+        this.response = response;
+    }
+
+    /**
+     * Makes the response available to the resource handling the request.
+     */
+    static void attach(GrizzlyRequest request, GrizzlyResponse<?> response) {
+        request.setAttribute(ATTRIBUTE, response);
+    }
+
+    /**
+     * Marks that Jersey is done with the request, so a suspended response may be written.
+     */
+    static void serviced(GrizzlyRequest request) {
+        Object suspended = request.getAttribute(ATTRIBUTE);
+        if (suspended instanceof SuspendedResponse) {
+            ((SuspendedResponse) suspended).serviced.complete(null);
+        }
+    }
+
+    /**
+     * @param request The request being handled.
+     * @return Returns the request's response or null if it can't be suspended.
+     */
+    @SuppressWarnings("unchecked")
+    public static SuspendedResponse of(HttpServletRequest request) {
+        Object value = request == null ? null : request.getAttribute(ATTRIBUTE);
+        if (value instanceof GrizzlyResponse) {
+            // Created on demand since most requests are answered right away.
+            value = new SuspendedResponse((GrizzlyResponse<SuspendedResponse>) value);
+            request.setAttribute(ATTRIBUTE, value);
+        }
+
+        return value instanceof SuspendedResponse ? (SuspendedResponse) value : null;
+    }
+
+    /**
+     * Suspends the response until the result is complete and writes the result then. The result's entity may be a
+     * {@link StreamingOutput}, a byte array or a string; a {@link Closeable} entity is closed if it can't be written.
+     *
+     * @param result        The response to write. A result completed exceptionally is answered with 500.
+     * @param timeoutMillis The time after which Grizzly closes the connection if the result is still missing.
+     * @param cancelled     Called if the connection was closed before the result was written, e.g. because the
+     *                      client went away.
+     */
+    public void suspend(CompletableFuture<Response> result, long timeoutMillis, Runnable cancelled) {
+        suspend(timeoutMillis, cancelled);
+        // Jersey writes the placeholder after the resource method returned, so the result must not be written before.
+        result.whenComplete((written, e) -> serviced.thenRun(() -> write(e == null
+                ? written
+                : Response.status(Response.Status.INTERNAL_SERVER_ERROR).build())));
+    }
+
+    /**
+     * Suspends the response and hands its output to the writer once Jersey wrote the placeholder's status and
+     * headers. The body can then be written in parts from any thread, e.g. whenever new data arrived, without holding
+     * a worker in between. The response stays open until {@link #resume()} or {@link #cancel()} is called.
+     *
+     * @param timeoutMillis The time after which Grizzly closes the connection if the response is still open.
+     * @param writer        Receives the output. Writes have to be flushed to reach the client.
+     * @param cancelled     Called if the connection was closed before the response was resumed.
+     */
+    public void stream(long timeoutMillis, Consumer<OutputStream> writer, Runnable cancelled) {
+        suspend(timeoutMillis, cancelled);
+        serviced.thenRun(() -> {
+            try {
+                writer.accept(response.getOutputStream());
+            } catch (IOException | RuntimeException e) {
+                System.out.printf("Failed to write suspended response: %s%n", e.getMessage());
+                cancel();
+            }
+        });
+    }
+
+    /**
+     * Completes a streamed response.
+     */
+    public void resume() {
+        if (completed.compareAndSet(false, true)) {
+            response.resume();
+        }
+    }
+
+    /**
+     * Closes the connection of a streamed response, e.g. because writing to it failed.
+     */
+    public void cancel() {
+        if (completed.compareAndSet(false, true)) {
+            response.cancel();
+        }
+    }
+
+    private void suspend(long timeoutMillis, Runnable cancelled) {
+        response.suspend(timeoutMillis, this, new CompletionHandler<SuspendedResponse>() {
+            @Override
+            public void resumed(SuspendedResponse attachment) {
+            }
+
+            @Override
+            public void cancelled(SuspendedResponse attachment) {
+                if (completed.compareAndSet(false, true)) {
+                    cancelled.run();
+                }
+            }
+        });
+    }
+
+    private void write(Response result) {
+        Object entity = result.getEntity();
+        if (!completed.compareAndSet(false, true)) {
+            close(entity);
+            return;
+        }
+
+        try {
+            response.setStatus(result.getStatus());
+            for (Map.Entry<String, List<Object>> header : result.getMetadata().entrySet()) {
+                // Replaces the placeholder's header of the same name.
+                response.setHeader(header.getKey(), header.getValue().get(0).toString());
+                for (Object value : header.getValue().subList(1, header.getValue().size())) {
+                    response.addHeader(header.getKey(), value.toString());
+                }
+            }
+
+            OutputStream output = response.getOutputStream();
+            if (entity instanceof StreamingOutput) {
+                ((StreamingOutput) entity).write(output);
+            } else if (entity instanceof byte[]) {
+                output.write((byte[]) entity);
+            } else if (entity != null) {
+                output.write(entity.toString().getBytes(StandardCharsets.UTF_8));
+            }
+
+            response.resume();
+        } catch (IOException | RuntimeException e) {
+            System.out.printf("Failed to write suspended response: %s%n", e.getMessage());
+            close(entity);
+            response.cancel();
+        }
+    }
+
+    private static void close(Object entity) {
+        if (entity instanceof Closeable) {
+            try {
+                ((Closeable) entity).close();
+            } catch (IOException e) {
+                // Nothing left to do about it.
+            }
+        }
+    }
+}
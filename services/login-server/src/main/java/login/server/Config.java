@@ -13,9 +13,31 @@ public enum Config {
     dbName("benutzer"),
     dbAccountCollection("account"),
     tokenDuration(Integer.toString(30 * 60)),
+    tokenFormat("random"),
+    tokenSigningKeys(""),
+    tokenRevoked(""),
+    authMaxBatchSize("100"),
+    loginThreads(Integer.toString(Math.max(1, Math.min(8, Runtime.getRuntime().availableProcessors() / 2)))),
+    loginQueueLimit("4"),
+    authThreads("4"),
+    authQueueLimit("4"),
+    bulkheadTimeoutMillis("5000"),
+    bulkheadRetryAfter("1"),
     dbTokenCollection("token"),
     allowEmailLogin("true"),
-    corsAllowOrigin("*");
+    corsAllowOrigin("*"),
+    storage("mongodb"),
+    storageDirectory("data"),
+    loginRateLimit("0.2"),
+    loginRateBurst("5"),
+    rateLimitMaxUsers("100000"),
+    serverExecution("fixed"),
+    serverWorkerThreads("16"),
+    serverMaxWorkerThreads("256"),
+    serverSelectorThreads(Integer.toString(Runtime.getRuntime().availableProcessors())),
+    serverKeepAliveSeconds("30"),
+    serverMaxKeepAliveRequests("256"),
+    serverRequestQueueLimit("1000");
 
     private static Map<String, List<String>> settings = new HashMap<>();
 
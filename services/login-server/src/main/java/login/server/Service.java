@@ -3,21 +3,28 @@ package login.server;
 import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.RejectedExecutionException;
 
 import javax.ws.rs.Consumes;
+import javax.ws.rs.GET;
 import javax.ws.rs.OPTIONS;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 
-import com.mongodb.MongoClientURI;
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import com.sun.grizzly.http.SelectorThread;
-import com.sun.jersey.api.container.grizzly.GrizzlyWebContainerFactory;
+import services.common.Bulkhead;
+import services.common.RateLimiter;
+import services.common.ServerBootstrap;
+import services.common.SignedTokens;
 import services.common.StorageException;
 import services.common.StorageProviderCoreMongoDB;
 
@@ -30,7 +37,15 @@ public class Service {
      */
     static final String ISO8601 = "yyyy-MM-dd'T'HH:mm:ssZ";
 
-    private static StorageProviderMongoDB provider;
+    private static StorageProvider provider;
+    private static RateLimiter loginLimiter;
+    private static SignedTokens signedTokens;
+    private static boolean signTokens;
+    private static Bulkhead passwordBulkhead;
+    private static Bulkhead authBulkhead;
+
+    @Context
+    private HttpServletRequest request;
 
     public static void main(String[] args) throws Exception {
         try {
@@ -41,19 +56,56 @@ public class Service {
             System.exit(-1);
         }
 
-        provider = new StorageProviderMongoDB(new MongoClientURI(Config.mongoURI.value()), Config.dbName.value());
+        try {
+            provider = StorageProvider.fromConfig();
+        } catch (IOException | IllegalArgumentException e) {
+            System.out.printf("Failed to open %s storage: %s%n", Config.storage.value(), e.getMessage());
+            System.exit(-1);
+        }
 
+        try {
+            signedTokens = SignedTokens.fromSettings(Config.getSettingValues(Config.tokenSigningKeys),
+                    Config.getSettingValues(Config.tokenRevoked));
+            signTokens = "signed".equals(Config.tokenFormat.value());
+            if (signTokens && signedTokens == null) {
+                throw new IllegalArgumentException("tokenFormat signed requires tokenSigningKeys");
+            }
+        } catch (IllegalArgumentException e) {
+            System.out.printf("Invalid token settings: %s%n", e.getMessage());
+            System.exit(-1);
+        }
+
+        int workerThreads = Integer.parseInt(Config.serverWorkerThreads.value());
+        int loginThreads = Integer.parseInt(Config.loginThreads.value());
+        int loginQueueLimit = Integer.parseInt(Config.loginQueueLimit.value());
+        if (loginThreads + loginQueueLimit >= workerThreads) {
+            System.out.println("loginThreads plus loginQueueLimit should be below serverWorkerThreads, "
+                    + "otherwise logins can take all workers from /auth.");
+        }
+
+        int authThreads = Integer.parseInt(Config.authThreads.value());
+        int authQueueLimit = Integer.parseInt(Config.authQueueLimit.value());
+        if (authThreads + authQueueLimit >= workerThreads) {
+            System.out.println("authThreads plus authQueueLimit should be below serverWorkerThreads, "
+                    + "otherwise the auth bulkhead never rejects and token checks can take all workers from /login.");
+        }
+
+        long bulkheadTimeoutMillis = Long.parseLong(Config.bulkheadTimeoutMillis.value());
+        passwordBulkhead = new Bulkhead("login", loginThreads, loginQueueLimit, bulkheadTimeoutMillis);
+        authBulkhead = new Bulkhead("auth", authThreads, authQueueLimit, bulkheadTimeoutMillis);
+        loginLimiter = new RateLimiter(
+                Double.parseDouble(Config.loginRateLimit.value()),
+                Integer.parseInt(Config.loginRateBurst.value()),
+                Integer.parseInt(Config.rateLimitMaxUsers.value()));
         startLoginServer(Config.baseURI.value());
     }
 
     public static void startLoginServer(String uri) {
         final String paket = "login.server";
-        final Map<String, String> initParams = new HashMap<>();
 
-        initParams.put("com.sun.jersey.config.property.packages", paket);
         System.out.println("Starting grizzly...");
         try {
-            threadSelector = GrizzlyWebContainerFactory.create(uri, initParams);
+            threadSelector = ServerBootstrap.start(uri, paket, name -> Config.valueOf(name).value());
         } catch (IllegalArgumentException | IOException e) {
             e.printStackTrace();
         }
@@ -62,6 +114,49 @@ public class Service {
 
     }
 
+    private static JSONArray validateTokens(JSONArray checks) {
+        SimpleDateFormat sdf = new SimpleDateFormat(ISO8601);
+        JSONArray results = new JSONArray();
+        for (int i = 0; i < checks.length(); i++) {
+            JSONObject check = checks.optJSONObject(i);
+            String token = check != null ? check.optString("token", null) : null;
+            String pseudonym = check != null ? check.optString("pseudonym", null) : null;
+            Date expireDate = token != null && pseudonym != null ? validateToken(token, pseudonym) : null;
+            if (expireDate != null) {
+                results.put(new JSONObject().put("success", "true").put("expire-date", sdf.format(expireDate)));
+            } else {
+                results.put(new JSONObject().put("success", "false"));
+            }
+        }
+
+        return results;
+    }
+
+    /**
+     * @return Returns the token's expire date or null if the token is unknown, expired or revoked.
+     */
+    private static Date validateToken(String token, String pseudonym) {
+        Date expireDate = provider.retrieveTokenExpireDate(pseudonym, token);
+        if (expireDate == null) {
+            return null;
+        }
+
+        if (Calendar.getInstance().getTime().before(expireDate) && !isRevoked(token, pseudonym)) {
+            return expireDate;
+        }
+
+        // Token has expired or was revoked
+        provider.deleteToken(token);
+        return null;
+    }
+
+    /**
+     * @return Returns true if the token is signed but revoked or signed with a key that was removed.
+     */
+    private static boolean isRevoked(String token, String pseudonym) {
+        return signedTokens != null && SignedTokens.isSigned(token) && signedTokens.verify(token, pseudonym) == null;
+    }
+
     public static void stopLoginServer() {
         //System.exit(0);
         threadSelector.stopEndpoint();
@@ -107,10 +202,33 @@ public class Service {
                         .build();
             }
 
+            // Checked before the password is hashed so retrying clients can't tie up the server. Counted per address
+            // and account, so guessing passwords from elsewhere doesn't lock the account's owner out.
+            String limited = (request != null ? request.getRemoteAddr() : "") + "/"
+                    + (pseudonym != null ? pseudonym : userName);
+            long wait = loginLimiter.acquire(limited);
+            if (wait > 0) {
+                System.out.printf("[/login] Rate limited %s%n", limited);
+                return Response
+                        .status(429)
+                        .header("Retry-After", RateLimiter.retryAfterSeconds(wait))
+                        .header("Access-Control-Allow-Origin", corsOrigin)
+                        .build();
+            }
+
             User user = provider.retrieveUser(userName, pseudonym);
-            if (user != null && user.VerifyPassword(password)) {
+            boolean verified;
+            try {
+                // Hashing the password takes a lot of CPU, so it runs on its own pool apart from /auth.
+                verified = user != null && passwordBulkhead.call(() -> user.VerifyPassword(password));
+            } catch (RejectedExecutionException e) {
+                System.out.printf("[/login] Too many logins, rejected %s%n", userName);
+                return overloaded(corsOrigin);
+            }
+
+            if (verified) {
                 JSONObject obj = new JSONObject();
-                user.GenerateToken();
+                user.GenerateToken(signTokens ? signedTokens : null);
                 try {
                     SimpleDateFormat sdf = new SimpleDateFormat(Service.ISO8601);
                     Calendar expireDate = user.GetTokenExpireDate();
@@ -177,30 +295,31 @@ public class Service {
                         .header("Access-Control-Allow-Origin", corsOrigin)
                         .build();
             }
-            Date expireDate = provider.retrieveTokenExpireDate(pseudonym, token);
+            Date expireDate;
+            try {
+                expireDate = authBulkhead.call(() -> validateToken(token, pseudonym));
+            } catch (RejectedExecutionException e) {
+                System.out.printf("[/auth] Too many requests, rejected %s%n", pseudonym);
+                return overloaded(corsOrigin);
+            }
+
             if (expireDate != null) {
-                Calendar cal = Calendar.getInstance();
-                if (cal.getTime().before(expireDate)) {
-                    JSONObject obj = new JSONObject();
-                    try {
-                        SimpleDateFormat sdf = new SimpleDateFormat(ISO8601);
-                        obj.put("success", "true");
-                        obj.put("expire-date", sdf.format(expireDate));
-                        return Response
-                                .status(Response.Status.OK)
-                                .header("Access-Control-Allow-Origin", corsOrigin)
-                                .entity(obj.toString()).build();
-
-                    } catch (JSONException e) {
-                        System.out.println("[/auth] Error when building json response.");
-                        return Response
-                                .status(Response.Status.INTERNAL_SERVER_ERROR)
-                                .header("Access-Control-Allow-Origin", corsOrigin)
-                                .build();
-                    }
-                } else {
-                    // Token has expired
-                    provider.deleteToken(token);
+                JSONObject obj = new JSONObject();
+                try {
+                    SimpleDateFormat sdf = new SimpleDateFormat(ISO8601);
+                    obj.put("success", "true");
+                    obj.put("expire-date", sdf.format(expireDate));
+                    return Response
+                            .status(Response.Status.OK)
+                            .header("Access-Control-Allow-Origin", corsOrigin)
+                            .entity(obj.toString()).build();
+
+                } catch (JSONException e) {
+                    System.out.println("[/auth] Error when building json response.");
+                    return Response
+                            .status(Response.Status.INTERNAL_SERVER_ERROR)
+                            .header("Access-Control-Allow-Origin", corsOrigin)
+                            .build();
                 }
             }
 
@@ -219,6 +338,82 @@ public class Service {
         }
     }
 
+    /**
+     * Validates several tokens at once, e.g. all tokens a chat server had to check at the same time.
+     *
+     * @param jsonString A JSON array of objects containing the fields token and pseudonym.
+     * @return Returns a JSON array with an object for every token in the same order. It contains the field success and
+     * for valid tokens expire-date.
+     */
+    @POST
+    @Path("/auth/batch")
+    @Produces(MediaType.APPLICATION_JSON)
+    @Consumes(MediaType.APPLICATION_JSON)
+    public Response validateTokens(String jsonString) {
+        String corsOrigin = Config.getSettingValue(Config.corsAllowOrigin);
+        JSONArray checks;
+        try {
+            checks = new JSONArray(jsonString);
+        } catch (JSONException e) {
+            System.out.println("[/auth/batch] Failed to parse json request.");
+            return Response
+                    .status(Response.Status.BAD_REQUEST)
+                    .header("Access-Control-Allow-Origin", corsOrigin)
+                    .build();
+        }
+
+        if (checks.length() > Integer.parseInt(Config.authMaxBatchSize.value())) {
+            System.out.printf("[/auth/batch] Rejected batch of %d tokens%n", checks.length());
+            return Response
+                    .status(Response.Status.BAD_REQUEST)
+                    .header("Access-Control-Allow-Origin", corsOrigin)
+                    .entity("Too many tokens")
+                    .build();
+        }
+
+        JSONArray results;
+        try {
+            results = authBulkhead.call(() -> validateTokens(checks));
+        } catch (RejectedExecutionException e) {
+            System.out.printf("[/auth/batch] Too many requests, rejected batch of %d tokens%n", checks.length());
+            return overloaded(corsOrigin);
+        } catch (Exception e) {
+            System.out.printf("[/auth/batch] Unhandled exception %s%n", e.getMessage());
+            e.printStackTrace();
+            return Response
+                    .status(Response.Status.INTERNAL_SERVER_ERROR)
+                    .header("Access-Control-Allow-Origin", corsOrigin)
+                    .build();
+        }
+
+        return Response
+                .status(Response.Status.OK)
+                .header("Access-Control-Allow-Origin", corsOrigin)
+                .entity(results.toString()).build();
+    }
+
+    /**
+     * @return Returns the login server's counters as a JSON object.
+     */
+    @GET
+    @Path("/stats")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response stats() {
+        JSONObject stats = new JSONObject();
+        if (passwordBulkhead != null) {
+            stats.put("login", passwordBulkhead.toJson());
+            stats.put("auth", authBulkhead.toJson());
+        }
+
+        if (loginLimiter != null) {
+            stats.put("rateLimited", new JSONObject().put("login", loginLimiter.getRejected()));
+        }
+
+        return Response.ok(stats.toString())
+                .header("Access-Control-Allow-Origin", Config.corsAllowOrigin.value())
+                .build();
+    }
+
     @OPTIONS
     @Path("/login")
     public Response optionsReg() {
@@ -231,6 +426,18 @@ public class Service {
                 .build();
     }
 
+    @OPTIONS
+    @Path("/auth/batch")
+    public Response optionsAuthBatch() {
+        return Response.ok("")
+                .header("Access-Control-Allow-Origin", "*")
+                .header("Access-Control-Allow-Headers", "origin, content-type, accept, authorization")
+                .header("Access-Control-Allow-Credentials", "true")
+                .header("Access-Control-Allow-Methods", "GET, POST, PUT, DELETE, OPTIONS, HEAD")
+                .header("Access-Control-Max-Age", "1209600")
+                .build();
+    }
+
     @OPTIONS
     @Path("/auth")
     public Response optionsProfile() {
@@ -243,4 +450,25 @@ public class Service {
                 .build();
     }
 
+    @OPTIONS
+    @Path("/stats")
+    public Response optionsStats() {
+        return Response.ok("")
+                .header("Access-Control-Allow-Origin", "*")
+                .header("Access-Control-Allow-Headers", "origin, content-type, accept, authorization")
+                .header("Access-Control-Allow-Credentials", "true")
+                .header("Access-Control-Allow-Methods", "GET, POST, PUT, DELETE, OPTIONS, HEAD")
+                .header("Access-Control-Max-Age", "1209600")
+                .build();
+    }
+
+    /**
+     * @return Returns 503(Service Unavailable) telling the client when to try again.
+     */
+    private static Response overloaded(String corsOrigin) {
+        return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                .header("Retry-After", Config.bulkheadRetryAfter.value())
+                .header("Access-Control-Allow-Origin", corsOrigin)
+                .build();
+    }
 }
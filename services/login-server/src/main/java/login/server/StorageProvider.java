@@ -0,0 +1,76 @@
+package login.server;
+
+import com.mongodb.MongoClientURI;
+import services.common.StorageType;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Date;
+
+/**
+ * Persists the accounts and the users' tokens.
+ */
+public interface StorageProvider {
+
+    /**
+     * Retrieves a user's info. If Config.allowEmailLogin is true pseudonym can be null.
+     *
+     * @param username  The user's email.
+     * @param pseudonym The user's pseudonym.
+     * @return Returns the user's data or null if the user wasn't found.
+     */
+    User retrieveUser(String username, String pseudonym);
+
+    /**
+     * Saves the token with the given expire date.
+     *
+     * @param token          The users new token.
+     * @param expirationDate The tokens expire date.
+     * @param pseudonym      The users pseudonym.
+     */
+    void saveToken(String token, String expirationDate, String pseudonym);
+
+    /**
+     * Fetches a user's current token expire date. If the token is not found or expired null is returned.
+     *
+     * @param pseudonym The user's pseudonym.
+     * @param token     The user's current token.
+     * @return The token's expiration date or null if the token was not found or is expired.
+     */
+    Date retrieveTokenExpireDate(String pseudonym, String token);
+
+    /**
+     * Removes a token.
+     *
+     * @param token The token to remove.
+     */
+    void deleteToken(String token);
+
+    /**
+     * Replaces all accounts and removes all tokens.
+     *
+     * @param newUsers The accounts to store.
+     */
+    void clearForTest(User[] newUsers);
+
+    /**
+     * Creates the storage provider selected by {@link Config#storage}.
+     *
+     * @return Returns the storage provider.
+     * @throws IOException If the file storage could not be loaded.
+     */
+    static StorageProvider fromConfig() throws IOException {
+        switch (StorageType.fromConfig(Config.storage.value())) {
+            case memory:
+                return new StorageProviderMemory();
+            case file:
+                return new StorageProviderFile(
+                        Paths.get(Config.storageDirectory.value(), Config.dbAccountCollection.value() + ".journal"),
+                        Paths.get(Config.storageDirectory.value(), Config.dbTokenCollection.value() + ".journal"));
+            case mongodb:
+                return new StorageProviderMongoDB(new MongoClientURI(Config.mongoURI.value()), Config.dbName.value());
+            default:
+                throw new IllegalArgumentException("Storage type " + Config.storage.value() + " is not supported.");
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package login.server;
+
+import org.json.JSONObject;
+import services.common.StorageJournal;
+import services.common.StorageJournalReader;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Embedded storage provider for single-node deployments. Tokens are kept in memory and appended to a journal file they
+ * are restored from on start. The token journal is compacted on start and in the background while it grows. Accounts
+ * are read from the account journal written by the register server, new accounts are picked up on the next login.
+ */
+public class StorageProviderFile extends StorageProviderMemory {
+
+    private final StorageJournalReader accountJournal;
+    private final StorageJournal tokenJournal;
+
+    /**
+     * Loads the accounts and tokens.
+     *
+     * @param accountFile The register server's account journal.
+     * @param tokenFile   The token journal.
+     * @throws IOException If a journal could not be read or written.
+     */
+    public StorageProviderFile(Path accountFile, Path tokenFile) throws IOException {
+        accountJournal = new StorageJournalReader(accountFile);
+        refreshAccounts();
+
+        tokenJournal = new StorageJournal(tokenFile);
+        tokenJournal.replay(this::restoreToken);
+        tokenJournal.compact(snapshot());
+        tokenJournal.compactAutomatically(this::snapshot);
+    }
+
+    @Override
+    public User retrieveUser(String username, String pseudonym) {
+        refreshAccounts();
+        return super.retrieveUser(username, pseudonym);
+    }
+
+    @Override
+    public synchronized void saveToken(String token, String expirationDate, String pseudonym) {
+        tokenJournal.append(tokenEntry(pseudonym, token, expirationDate));
+        super.saveToken(token, expirationDate, pseudonym);
+    }
+
+    @Override
+    public synchronized void deleteToken(String token) {
+        tokenJournal.append(new JSONObject().put("op", "delete").put("token", token));
+        super.deleteToken(token);
+    }
+
+    @Override
+    public synchronized void clearForTest(User[] newUsers) {
+        super.clearForTest(newUsers);
+        try {
+            tokenJournal.compact(new ArrayList<>());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void refreshAccounts() {
+        try {
+            accountJournal.poll(accounts::clear, entry -> {
+                if ("user".equals(entry.optString("op"))) {
+                    String email = entry.getString("user");
+                    accounts.put(email, new User(email, entry.getString("password"), entry.getString("pseudonym"), true));
+                }
+            });
+        } catch (IOException e) {
+            // Known accounts are still valid, new ones are picked up once the journal is readable again.
+            System.out.printf("Failed to read account journal: %s%n", e.getMessage());
+        }
+    }
+
+    private void restoreToken(JSONObject entry) {
+        switch (entry.optString("op")) {
+            case "token":
+                tokens.put(entry.getString("pseudonym"),
+                        new Token(entry.getString("token"), entry.getString("expire-date")));
+                break;
+            case "delete":
+                super.deleteToken(entry.getString("token"));
+                break;
+            default:
+                System.out.printf("Skipping unknown journal entry %s%n", entry.optString("op"));
+        }
+    }
+
+    /**
+     * Tokens are saved and deleted while the provider is locked, so the snapshot contains every token journaled before.
+     */
+    private synchronized List<JSONObject> snapshot() {
+        List<JSONObject> entries = new ArrayList<>();
+        for (Map.Entry<String, Token> token : tokens.entrySet()) {
+            entries.add(tokenEntry(token.getKey(), token.getValue().token, token.getValue().expireDate));
+        }
+
+        return entries;
+    }
+
+    private static JSONObject tokenEntry(String pseudonym, String token, String expirationDate) {
+        return new JSONObject()
+                .put("op", "token")
+                .put("pseudonym", pseudonym)
+                .put("token", token)
+                .put("expire-date", expirationDate);
+    }
+}
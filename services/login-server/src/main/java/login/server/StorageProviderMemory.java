@@ -0,0 +1,94 @@
+package login.server;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Storage provider that keeps accounts and tokens in memory.
+ */
+public class StorageProviderMemory implements StorageProvider {
+
+    /**
+     * Accounts by email.
+     */
+    final ConcurrentHashMap<String, User> accounts = new ConcurrentHashMap<>();
+    /**
+     * Tokens by pseudonym, every user has at most one token.
+     */
+    final ConcurrentHashMap<String, Token> tokens = new ConcurrentHashMap<>();
+
+    @Override
+    public User retrieveUser(String username, String pseudonym) {
+        User account = accounts.get(username);
+        if (account == null) {
+            return null;
+        }
+
+        if (pseudonym == null && Objects.equals(Config.getSettingValue(Config.allowEmailLogin), "true")
+                || Objects.equals(account.pseudonym, pseudonym)) {
+            return new User(username, account.getSecurePassword(), account.pseudonym, true);
+        }
+
+        return null;
+    }
+
+    @Override
+    public void saveToken(String token, String expirationDate, String pseudonym) {
+        tokens.put(pseudonym, new Token(token, expirationDate));
+    }
+
+    @Override
+    public Date retrieveTokenExpireDate(String pseudonym, String token) {
+        Token saved = tokens.get(pseudonym);
+        if (saved == null || !saved.token.equals(token) || saved.expireDate == null) {
+            return null;
+        }
+
+        SimpleDateFormat sdf = new SimpleDateFormat(Service.ISO8601);
+        Calendar expireDate = Calendar.getInstance();
+        try {
+            expireDate.setTime(sdf.parse(saved.expireDate));
+        } catch (ParseException e) {
+            // The token seems to be corrupted.
+            deleteToken(token);
+            return null;
+        }
+
+        Calendar currentTime = Calendar.getInstance();
+        if (currentTime.before(expireDate))
+            return expireDate.getTime();
+        else
+            System.out.printf("User %s's token has expired for %f s.\n",
+                    pseudonym,
+                    (currentTime.getTimeInMillis() - expireDate.getTimeInMillis()) / 1000f);
+        return null;
+    }
+
+    @Override
+    public void deleteToken(String token) {
+        tokens.values().removeIf(saved -> saved.token.equals(token));
+    }
+
+    @Override
+    public void clearForTest(User[] newUsers) {
+        accounts.clear();
+        tokens.clear();
+        for (User u : newUsers) {
+            accounts.put(u.email, new User(u.email, u.getSecurePassword(), u.pseudonym, true));
+        }
+    }
+
+    static class Token {
+        final String token;
+        final String expireDate;
+
+        Token(String token, String expireDate) {
+            this.token = token;
+            this.expireDate = expireDate;
+        }
+    }
+}
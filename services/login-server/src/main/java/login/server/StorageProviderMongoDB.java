@@ -18,7 +18,7 @@ import static com.mongodb.client.model.Filters.eq;
 /**
  * Storage provider for a MongoDB.
  */
-public class StorageProviderMongoDB extends StorageProviderCoreMongoDB {
+public class StorageProviderMongoDB extends StorageProviderCoreMongoDB implements StorageProvider {
 
     public StorageProviderMongoDB(MongoClientURI uri, String database) {
         super(uri, database);
@@ -1,6 +1,7 @@
 package login.server;
 
 import services.common.SecurityHelper;
+import services.common.SignedTokens;
 
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
@@ -90,11 +91,27 @@ public class User {
 	 * @return Returns the tokens expire date.
 	 */
 	public void GenerateToken() {
+		GenerateToken(null);
+	}
+
+	/**
+	 * Generates a new token for this User.
+	 *
+	 * @param signer
+	 *            The keys to sign the token with or null for a random token
+	 *            that only the login server can check.
+	 */
+	public void GenerateToken(SignedTokens signer) {
+		this.tokenExpiration = Calendar.getInstance();
+		this.tokenExpiration.add(Calendar.SECOND, Integer.parseInt(Config.getSettingValue(Config.tokenDuration)));
+		if (signer != null) {
+			this.currentToken = signer.sign(pseudonym, tokenExpiration.getTime());
+			return;
+		}
+
 		byte[] rng = new byte[32];
 		srnd.nextBytes(rng);
 		this.currentToken = Base64.getEncoder().encodeToString(rng);
-		this.tokenExpiration = Calendar.getInstance();
-		this.tokenExpiration.add(Calendar.SECOND, Integer.parseInt(Config.getSettingValue(Config.tokenDuration)));
 	}
 
 	/**
@@ -11,9 +11,20 @@ public enum Config {
     baseURI("http://0.0.0.0:5002/"),
     mongoURI("mongodb://mongo:27017"),
     loginURI("http://login-server:5001/"),
+    tokenSigningKeys(""),
+    tokenRevoked(""),
     dbName("benutzer"),
     dbAccountCollection("account"),
-    corsAllowOrigin("*");
+    corsAllowOrigin("*"),
+    storage("mongodb"),
+    storageDirectory("data"),
+    serverExecution("fixed"),
+    serverWorkerThreads("16"),
+    serverMaxWorkerThreads("256"),
+    serverSelectorThreads(Integer.toString(Runtime.getRuntime().availableProcessors())),
+    serverKeepAliveSeconds("30"),
+    serverMaxKeepAliveRequests("256"),
+    serverRequestQueueLimit("1000");
 
     private static Map<String, List<String>> settings = new HashMap<>();
 
@@ -1,11 +1,6 @@
 package register.server;
 
 import java.io.IOException;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.HashMap;
-import java.util.Map;
 
 import javax.ws.rs.Consumes;
 import javax.ws.rs.OPTIONS;
@@ -16,20 +11,20 @@ import javax.ws.rs.Produces;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 
-import com.mongodb.MongoClientURI;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import com.sun.grizzly.http.SelectorThread;
-import com.sun.jersey.api.client.Client;
-import com.sun.jersey.api.container.grizzly.GrizzlyWebContainerFactory;
+import services.common.AuthenticationProvider;
+import services.common.ServerBootstrap;
+import services.common.SignedTokens;
 import services.common.StorageException;
 
 @Path("/")
 public class Service {
-    private static final String ISO8601 = "yyyy-MM-dd'T'HH:mm:ssZ";
-    private static StorageProviderMongoDB provider;
+    private static StorageProvider provider;
+    private static AuthenticationProvider auth;
 
     public static void main(String[] args) throws Exception {
         try {
@@ -40,19 +35,32 @@ public class Service {
             System.exit(-1);
         }
 
-        provider = new StorageProviderMongoDB(new MongoClientURI(Config.mongoURI.value()), Config.dbName.value());
+        try {
+            provider = StorageProvider.fromConfig();
+        } catch (IOException | IllegalArgumentException e) {
+            System.out.printf("Failed to open %s storage: %s%n", Config.storage.value(), e.getMessage());
+            System.exit(-1);
+        }
+
+        auth = new AuthenticationProvider(Config.loginURI.value());
+        try {
+            auth.setSignedTokens(SignedTokens.fromSettings(Config.getSettingValues(Config.tokenSigningKeys),
+                    Config.getSettingValues(Config.tokenRevoked)));
+        } catch (IllegalArgumentException e) {
+            System.out.printf("Invalid token settings: %s%n", e.getMessage());
+            System.exit(-1);
+        }
+
         startRegistrationServer(Config.baseURI.value());
     }
 
     public static SelectorThread startRegistrationServer(String uri) {
         final String baseUri = uri;
         final String paket = "register.server";
-        final Map<String, String> initParams = new HashMap<>();
         SelectorThread threadSelector = null;
-        initParams.put("com.sun.jersey.config.property.packages", paket);
         System.out.println("Starte grizzly...");
         try {
-            threadSelector = GrizzlyWebContainerFactory.create(baseUri, initParams);
+            threadSelector = ServerBootstrap.start(baseUri, paket, name -> Config.valueOf(name).value());
         } catch (IllegalArgumentException e) {
             // TODO Auto-generated catch block
             e.printStackTrace();
@@ -293,46 +301,7 @@ public class Service {
     }
 
     private static boolean verifyToken(String pseudonym, String token) {
-        try {
-            JSONObject obj = new JSONObject();
-            try {
-                obj.put("token", token);
-                obj.put("pseudonym", pseudonym);
-            } catch (JSONException e) {
-                System.out.println("Failed to build authorization request json.");
-                return false;
-            }
-
-            // TODO : Maybe use one static client?
-            Client webClient = new Client();
-            String response = webClient.resource(Config.getSettingValue(Config.loginURI) + "auth")
-                    .accept(MediaType.APPLICATION_JSON)
-                    .type(MediaType.APPLICATION_JSON)
-                    .post(String.class, obj.toString());
-            webClient.destroy();
-
-            SimpleDateFormat sdf = new SimpleDateFormat(ISO8601);
-            JSONObject jo = new JSONObject(response);
-            if (jo.getString("success").equals("true")) {
-                try {
-                    Date expireDate = sdf.parse(jo.getString("expire-date"));
-                    if (expireDate.after(new Date())) {
-                        return true;
-                    } else {
-                        System.out.printf("Could not verify user %s. Token expired. \n", pseudonym);
-                        return false;
-                    }
-                } catch (JSONException | ParseException e) {
-                    System.out.printf("Could not verify user %s. Failed to parse auth json. \n", pseudonym);
-                    return false;
-                }
-            }
-        } catch (Exception e) {
-            System.out.printf("Uncaught exception occurred during user authentication %s  \n", e.getMessage());
-            return false;
-        }
-
-        return false;
+        return auth.authenticateUser(token, pseudonym);
     }
 
     private static boolean isValidEmail(String email) {
@@ -0,0 +1,74 @@
+package register.server;
+
+import com.mongodb.MongoClientURI;
+import services.common.StorageType;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+
+/**
+ * Persists the accounts and their contact lists.
+ */
+public interface StorageProvider {
+
+    /**
+     * Registers a new user.
+     *
+     * @param user The user to register.
+     * @return Returns true if the user could be registered or false if the user already existed or invalid inforamtion
+     * was provided.
+     */
+    boolean createNewUser(User user);
+
+    /**
+     * Gets a users a profile from a given pseudonym.
+     *
+     * @param name The users pseudonym.
+     * @return Returns the users profile or null if the user could not be found.
+     */
+    User getUserProfile(String name);
+
+    /**
+     * Checks if a user with a given email or pseudonym exists. Either of the criteria has to match the user.
+     *
+     * @param name  The users pseudonym.
+     * @param email The users email.
+     * @return Returns true if a user with this email or pseudonym already exists.
+     */
+    boolean userExists(String name, String email);
+
+    /**
+     * Adds a new contact to a user's contact list.
+     *
+     * @param user        The user who will gain a new friend.
+     * @param contactName The pseudonym of the new contact.
+     * @return Returns true if the contact was added to the contact list and false if invalid information was provided or
+     * the user is already in the contact list
+     */
+    boolean newContact(User user, String contactName);
+
+    /**
+     * Removes all accounts.
+     */
+    void clearForTest();
+
+    /**
+     * Creates the storage provider selected by {@link Config#storage}.
+     *
+     * @return Returns the storage provider.
+     * @throws IOException If the file storage could not be loaded.
+     */
+    static StorageProvider fromConfig() throws IOException {
+        switch (StorageType.fromConfig(Config.storage.value())) {
+            case memory:
+                return new StorageProviderMemory();
+            case file:
+                return new StorageProviderFile(
+                        Paths.get(Config.storageDirectory.value(), Config.dbAccountCollection.value() + ".journal"));
+            case mongodb:
+                return new StorageProviderMongoDB(new MongoClientURI(Config.mongoURI.value()), Config.dbName.value());
+            default:
+                throw new IllegalArgumentException("Storage type " + Config.storage.value() + " is not supported.");
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package register.server;
+
+import org.json.JSONObject;
+import services.common.StorageJournal;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Embedded storage provider for single-node deployments. Accounts are kept in memory like
+ * {@link StorageProviderMemory} and every change is appended to a journal file the accounts are restored from on
+ * start. The journal is compacted on start and in the background while it grows. The login server reads new accounts
+ * from the same journal.
+ */
+public class StorageProviderFile extends StorageProviderMemory {
+
+    private final StorageJournal journal;
+
+    /**
+     * Restores the accounts from the journal and compacts it.
+     *
+     * @param file The journal file.
+     * @throws IOException If the journal could not be read or written.
+     */
+    public StorageProviderFile(Path file) throws IOException {
+        journal = new StorageJournal(file);
+        journal.replay(this::restore);
+        journal.compact(snapshot());
+        journal.compactAutomatically(this::snapshot);
+    }
+
+    @Override
+    void creating(User user) {
+        journal.append(userEntry(user.getPseudonym(), user.getEmail(), user.getHashedPassword()));
+    }
+
+    @Override
+    void addingContact(String pseudonym, String contactName) {
+        journal.append(contactEntry(pseudonym, contactName));
+    }
+
+    @Override
+    public synchronized void clearForTest() {
+        super.clearForTest();
+        try {
+            journal.compact(new ArrayList<>());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void restore(JSONObject entry) {
+        switch (entry.optString("op")) {
+            case "user":
+                accounts.put(entry.getString("pseudonym"),
+                        new Account(entry.getString("user"), entry.getString("password")));
+                emails.add(entry.getString("user"));
+                break;
+            case "contact":
+                Account account = accounts.get(entry.getString("pseudonym"));
+                if (account != null) {
+                    account.contacts.add(entry.getString("contact"));
+                }
+
+                break;
+            default:
+                System.out.printf("Skipping unknown journal entry %s%n", entry.optString("op"));
+        }
+    }
+
+    /**
+     * Accounts are created while the provider is locked and contacts are added while their account is locked, so the
+     * snapshot contains every change journaled before.
+     */
+    private synchronized List<JSONObject> snapshot() {
+        List<JSONObject> entries = new ArrayList<>();
+        for (Map.Entry<String, Account> account : accounts.entrySet()) {
+            entries.add(userEntry(account.getKey(), account.getValue().email, account.getValue().password));
+            synchronized (account.getValue()) {
+                for (String contact : account.getValue().contacts) {
+                    entries.add(contactEntry(account.getKey(), contact));
+                }
+            }
+        }
+
+        return entries;
+    }
+
+    private static JSONObject userEntry(String pseudonym, String email, String password) {
+        return new JSONObject()
+                .put("op", "user")
+                .put("user", email)
+                .put("pseudonym", pseudonym)
+                .put("password", password);
+    }
+
+    private static JSONObject contactEntry(String pseudonym, String contactName) {
+        return new JSONObject()
+                .put("op", "contact")
+                .put("pseudonym", pseudonym)
+                .put("contact", contactName);
+    }
+}
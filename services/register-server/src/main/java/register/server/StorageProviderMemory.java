@@ -0,0 +1,104 @@
+package register.server;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Storage provider that keeps all accounts in memory.
+ */
+public class StorageProviderMemory implements StorageProvider {
+
+    /**
+     * Accounts by pseudonym.
+     */
+    final ConcurrentHashMap<String, Account> accounts = new ConcurrentHashMap<>();
+    final Set<String> emails = ConcurrentHashMap.newKeySet();
+
+    @Override
+    public synchronized boolean createNewUser(User user) {
+        if ("".equals(user.getEmail()) || "".equals(user.getPseudonym())
+                || userExists(user.getPseudonym(), user.getEmail())) {
+            return false;
+        }
+
+        creating(user);
+        accounts.put(user.getPseudonym(), new Account(user.getEmail(), user.getHashedPassword()));
+        emails.add(user.getEmail());
+        return true;
+    }
+
+    @Override
+    public User getUserProfile(String name) {
+        Account account = accounts.get(name);
+        if (account == null) {
+            return null;
+        }
+
+        synchronized (account) {
+            return new User(this, name, account.password, account.email, new ArrayList<>(account.contacts));
+        }
+    }
+
+    @Override
+    public boolean userExists(String name, String email) {
+        return accounts.containsKey(name) || emails.contains(email);
+    }
+
+    @Override
+    public boolean newContact(User user, String contactName) {
+        if ("".equals(contactName) || contactName.equals(user.getPseudonym())) {
+            return false;
+        }
+
+        Account account = accounts.get(user.getPseudonym());
+        if (account == null || !account.email.equals(user.getEmail())) {
+            return false;
+        }
+
+        synchronized (account) {
+            if (account.contacts.contains(contactName)) {
+                return false;
+            }
+
+            addingContact(user.getPseudonym(), contactName);
+            account.contacts.add(contactName);
+            return true;
+        }
+    }
+
+    @Override
+    public synchronized void clearForTest() {
+        accounts.clear();
+        emails.clear();
+    }
+
+    /**
+     * Called before a new account is stored. Throwing prevents storing the account.
+     *
+     * @param user The new user.
+     */
+    void creating(User user) {
+    }
+
+    /**
+     * Called while the account is locked before a contact is added. Throwing prevents adding the contact.
+     *
+     * @param pseudonym   The user's pseudonym.
+     * @param contactName The new contact's pseudonym.
+     */
+    void addingContact(String pseudonym, String contactName) {
+    }
+
+    static class Account {
+        final String email;
+        final String password;
+        final Set<String> contacts = new LinkedHashSet<>();
+
+        Account(String email, String password) {
+            this.email = email;
+            this.password = password;
+        }
+    }
+}
@@ -14,7 +14,7 @@ import java.util.List;
 import static com.mongodb.client.model.Filters.*;
 import static com.mongodb.client.model.Updates.addToSet;
 
-public class StorageProviderMongoDB extends StorageProviderCoreMongoDB {
+public class StorageProviderMongoDB extends StorageProviderCoreMongoDB implements StorageProvider {
     public StorageProviderMongoDB(MongoClientURI uri, String database) {
         super(uri, database);
     }
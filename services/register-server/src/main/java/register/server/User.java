@@ -15,7 +15,7 @@ public class User {
     private String securePassword;
     private String email;
     private List<String> contacts;
-    private StorageProviderMongoDB provider;
+    private StorageProvider provider;
     /**
      * Creates a new user a hashes the given clear text password.
      *
@@ -24,7 +24,7 @@ public class User {
      * @param password  The users clear text password.
      * @param email     The users registration email address.
      */
-    public User(StorageProviderMongoDB provider, String pseudonym, String password, String email) throws InvalidKeySpecException, NoSuchAlgorithmException {
+    public User(StorageProvider provider, String pseudonym, String password, String email) throws InvalidKeySpecException, NoSuchAlgorithmException {
         this(provider, pseudonym, SecurityHelper.hashPassword(password), email, new ArrayList<>());
     }
 
@@ -36,7 +36,7 @@ public class User {
      * @param email          The users registration email address.
      * @param contacts       This users contact list.
      */
-    public User(StorageProviderMongoDB provider, String pseudonym, String securePassword, String email, List<String> contacts) {
+    public User(StorageProvider provider, String pseudonym, String securePassword, String email, List<String> contacts) {
         this.provider = provider;
         this.pseudonym = pseudonym;
         this.securePassword = securePassword;